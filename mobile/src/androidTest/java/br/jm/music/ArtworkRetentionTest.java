@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music;
+
+import android.graphics.Bitmap;
+import android.media.MediaMetadata;
+import android.media.session.MediaSession;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import br.jm.music.model.MusicProvider;
+import br.jm.music.utils.ImageLoader;
+import br.jm.music.utils.LruBitmapCache;
+
+/**
+ * Plays the artwork side of many tracks the way the service does: both sizes of the art go
+ * through the image loader and its cache, are attached to a copy of the track's catalog entry
+ * and published on a media session. The bitmaps still reachable afterwards must fit in the
+ * cache budget, whatever the number of tracks.
+ */
+public class ArtworkRetentionTest extends AndroidTestCase {
+
+    private static final int TRACKS = 500;
+    private static final long LOAD_TIMEOUT_SECONDS = 10;
+
+    private File mArtDir;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private MediaSession mSession;
+    private final List<WeakReference<Bitmap>> mBitmaps = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mArtDir = new File(getContext().getCacheDir(), "retention_test");
+        mArtDir.mkdirs();
+        // The service loads art from its own looper thread
+        mThread = new HandlerThread("ArtworkRetentionTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mSession = new MediaSession(getContext(), "ArtworkRetentionTest");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSession.release();
+        mThread.quit();
+        File[] files = mArtDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mArtDir.delete();
+        super.tearDown();
+    }
+
+    public void testPlayingManyTracksKeepsBitmapMemoryBounded() throws Exception {
+        MusicApplication application = MusicApplication.getInstance();
+        LruBitmapCache cache = application.getLruBitmapCache();
+        MusicProvider provider = loadCatalog(application);
+        List<MediaMetadata> catalog = provider.getMusics();
+        int normalSize = application.getArtSizeNormal();
+
+        for (int i = 0; i < TRACKS; i++) {
+            // Device tracks when there are any, each played with art of its own
+            MediaMetadata track = catalog.isEmpty() ? newTrack(i) : catalog.get(i % catalog.size());
+            File art = writeArt(i, normalSize);
+            play(track, art.getAbsolutePath());
+            art.delete();
+        }
+
+        long live = getLiveBitmapBytes();
+        long budget = cache.maxSize() * 1024L;
+        // The current track's art is published on the session, and may have left the cache
+        long current = 2L * normalSize * normalSize * 4;
+        assertTrue("Bitmaps still reachable: " + live + " bytes, cache budget " + budget,
+                live <= budget + current);
+        for (MediaMetadata track : provider.getMusics()) {
+            assertNull(track.getBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART));
+            assertNull(track.getBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON));
+        }
+    }
+
+    private MusicProvider loadCatalog(MusicApplication application) throws InterruptedException {
+        MusicProvider provider = new MusicProvider(application.getEmbeddedArtCache(),
+                application.getFolderArtIndex());
+        final CountDownLatch ready = new CountDownLatch(1);
+        provider.retrieveMediaAsync(getContext().getContentResolver(),
+                new MusicProvider.Callback() {
+                    @Override
+                    public void onMusicCatalogReady(boolean success) {
+                        ready.countDown();
+                    }
+                });
+        assertTrue(ready.await(60, TimeUnit.SECONDS));
+        return provider;
+    }
+
+    private static MediaMetadata newTrack(int index) {
+        return new MediaMetadata.Builder()
+                .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, "retention-" + index)
+                .putString(MediaMetadata.METADATA_KEY_TITLE, "Track " + index)
+                .build();
+    }
+
+    /**
+     * Writes a distinct square image, so every track decodes bitmaps of its own.
+     */
+    private File writeArt(int index, int size) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(0xFF000000 | index * 0x10101);
+        File file = new File(mArtDir, "art" + index + ".png");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } finally {
+            out.close();
+        }
+        bitmap.recycle();
+        return file;
+    }
+
+    /**
+     * Loads the icon then the full art of a track and publishes them with it, like the service's
+     * metadata art loader.
+     */
+    private void play(final MediaMetadata track, final String path) throws InterruptedException {
+        final CountDownLatch published = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final ImageLoader loader = MusicApplication.getInstance().getImageLoader();
+                loader.load(path, MusicApplication.getArtSizeIcon(), false,
+                        new ImageLoader.Callback() {
+                            @Override
+                            public void onImageLoaded(String path, final Bitmap icon,
+                                                      int[] colors) {
+                                loader.load(path,
+                                        MusicApplication.getInstance().getArtSizeNormal(), false,
+                                        new ImageLoader.Callback() {
+                                            @Override
+                                            public void onImageLoaded(String path, Bitmap art,
+                                                                      int[] colors) {
+                                                publish(track, icon, art);
+                                                published.countDown();
+                                            }
+                                        });
+                            }
+                        });
+            }
+        });
+        assertTrue(published.await(LOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private void publish(MediaMetadata track, Bitmap icon, Bitmap art) {
+        mBitmaps.add(new WeakReference<>(icon));
+        mBitmaps.add(new WeakReference<>(art));
+        mSession.setMetadata(new MediaMetadata.Builder(track)
+                .putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, art)
+                .putBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON, icon)
+                .build());
+    }
+
+    /**
+     * @return the memory of the published bitmaps that are still reachable after a collection
+     */
+    private long getLiveBitmapBytes() {
+        for (int i = 0; i < 3; i++) {
+            Runtime.getRuntime().gc();
+            Runtime.getRuntime().runFinalization();
+        }
+        long bytes = 0;
+        for (WeakReference<Bitmap> reference : mBitmaps) {
+            Bitmap bitmap = reference.get();
+            if (bitmap != null && !bitmap.isRecycled()) {
+                bytes += bitmap.getAllocationByteCount();
+            }
+        }
+        return bytes;
+    }
+}
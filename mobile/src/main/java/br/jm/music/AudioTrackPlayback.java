@@ -0,0 +1,634 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.AudioManager;
+import android.media.MediaMetadata;
+import android.media.session.PlaybackState;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import br.jm.music.audio.PcmPipeline;
+import br.jm.music.audio.TimeStretcher;
+import br.jm.music.model.MusicProvider;
+import br.jm.music.utils.LogHelper;
+import br.jm.music.utils.MediaIDHelper;
+
+import static android.media.session.MediaSession.QueueItem;
+
+/**
+ * A class that implements local media playback by decoding with {@link MediaCodecSource} and
+ * playing through {@link AudioTrackSink}, joined by a {@link PcmPipeline}. Unlike
+ * {@link LocalPlayback}, it sees every sample on the way out.
+ * <p/>
+ * Like LocalPlayback, it is driven from the service's command thread and hands the pipeline
+ * events back to it. Opening a source (extractor, codec and seek table) may be slow, so it is
+ * done on a worker thread and the result posted back, keeping the command thread responsive.
+ * <p/>
+ * A partial wake lock is held from play until pause or stop, since nothing else keeps the
+ * decoder and output threads running with the screen off, plus a Wifi lock for remote sources.
+ */
+public class AudioTrackPlayback implements Playback, AudioManager.OnAudioFocusChangeListener {
+
+    private static final String TAG = LogHelper.makeLogTag(AudioTrackPlayback.class);
+
+    // we don't have audio focus, and can't duck (play at a low volume)
+    private static final int AUDIO_NO_FOCUS_NO_DUCK = 0;
+    // we don't have focus, but can duck (play at a low volume)
+    private static final int AUDIO_NO_FOCUS_CAN_DUCK = 1;
+    // we have full audio focus
+    private static final int AUDIO_FOCUSED  = 2;
+
+    // Ring of 16 chunks of 4096 samples, about 750ms of 44.1kHz stereo
+    private static final int CHUNK_COUNT = 16;
+    private static final int CHUNK_SAMPLES = 4096;
+    // How long the idle preparing thread is kept around
+    private static final long PREPARE_KEEP_ALIVE_SECONDS = 30;
+
+    private final MusicService mService;
+    private final MusicProvider mMusicProvider;
+    private final Handler mHandler;
+    private final AudioManager mAudioManager;
+    private final PowerManager.WakeLock mWakeLock;
+    private final WifiManager.WifiLock mWifiLock;
+    private final ThreadPoolExecutor mPrepareExecutor;
+    private int mState;
+    private boolean mPlayOnFocusGain;
+    private Callback mCallback;
+    private volatile boolean mAudioNoisyReceiverRegistered;
+    private volatile int mCurrentPosition;
+    private volatile String mCurrentMediaId;
+
+    // Type of audio focus we have:
+    private int mAudioFocus = AUDIO_NO_FOCUS_NO_DUCK;
+
+    private PcmPipeline mPipeline;
+    // Source being opened for the current item, null if none
+    private PrepareTask mPrepareTask;
+    // Loudness normalization volume of the current item
+    private float mGain = 1f;
+    private float mSpeed = 1f;
+    // Whether the pipeline has queued samples since it was started or last seeked
+    private boolean mPipelineStarted;
+    private int mPipelines;
+    private int mCompletions;
+
+    private IntentFilter mAudioNoisyIntentFilter =
+            new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
+
+    private BroadcastReceiver mAudioNoisyReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (AudioManager.ACTION_AUDIO_BECOMING_NOISY.equals(intent.getAction())) {
+                LogHelper.d(TAG, "Headphones disconnected.");
+                if (isPlaying()) {
+                    Intent i = new Intent(context, MusicService.class);
+                    i.setAction(MusicService.ACTION_CMD);
+                    i.putExtra(MusicService.CMD_NAME, MusicService.CMD_PAUSE);
+                    mService.startService(i);
+                }
+            }
+        }
+    };
+
+    /**
+     * Hands the events of one pipeline over to the command thread, where they are dropped if
+     * that pipeline is not the current one anymore.
+     */
+    private final class PipelineListener implements PcmPipeline.Listener {
+        PcmPipeline pipeline;
+
+        @Override
+        public void onStarted() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (pipeline == mPipeline) {
+                        onPipelineStarted();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onEndOfStream() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (pipeline == mPipeline) {
+                        onPipelineCompleted();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onError(final Exception e) {
+            LogHelper.e(TAG, e, "Pipeline error");
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (pipeline == mPipeline) {
+                        releasePipeline();
+                        releaseLocks();
+                        if (mCallback != null) {
+                            mCallback.onError(e.getMessage());
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens the source and sink of an item on the preparing thread, and hands them over to the
+     * command thread, where they are released if the task is not the current one anymore.
+     */
+    private final class PrepareTask implements Runnable {
+        final String source;
+        final String mediaId;
+
+        PrepareTask(String source, String mediaId) {
+            this.source = source;
+            this.mediaId = mediaId;
+        }
+
+        @Override
+        public void run() {
+            MediaCodecSource codecSource = null;
+            AudioTrackSink sink = null;
+            Exception error = null;
+            try {
+                codecSource = MediaCodecSource.create(source,
+                        mService.getSeekIndexCache().get(source));
+                sink = new AudioTrackSink(codecSource.getSampleRate(),
+                        codecSource.getChannelCount());
+            } catch (IOException | RuntimeException e) {
+                if (codecSource != null) {
+                    codecSource.release();
+                    codecSource = null;
+                }
+                error = e;
+            }
+            final MediaCodecSource preparedSource = codecSource;
+            final AudioTrackSink preparedSink = sink;
+            final Exception preparedError = error;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPrepareTask != PrepareTask.this) {
+                        if (preparedSource != null) {
+                            preparedSource.release();
+                            preparedSink.release();
+                        }
+                        return;
+                    }
+                    mPrepareTask = null;
+                    if (preparedError != null) {
+                        onPrepareFailed(preparedError);
+                    } else {
+                        onPrepared(preparedSource, preparedSink);
+                    }
+                }
+            });
+        }
+    }
+
+    public AudioTrackPlayback(MusicService service, MusicProvider musicProvider) {
+        this.mService = service;
+        this.mMusicProvider = musicProvider;
+        this.mHandler = new Handler(service.getCommandLooper());
+        this.mAudioManager = (AudioManager) service.getSystemService(Context.AUDIO_SERVICE);
+        this.mWakeLock = ((PowerManager) service.getSystemService(Context.POWER_SERVICE))
+                .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "uAmp_audio_track");
+        this.mWakeLock.setReferenceCounted(false);
+        this.mWifiLock = ((WifiManager) service.getSystemService(Context.WIFI_SERVICE))
+                .createWifiLock(WifiManager.WIFI_MODE_FULL, "uAmp_audio_track_lock");
+        this.mWifiLock.setReferenceCounted(false);
+        this.mPrepareExecutor = new ThreadPoolExecutor(1, 1, PREPARE_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        this.mPrepareExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop(boolean notifyListeners) {
+        mState = PlaybackState.STATE_STOPPED;
+        if (notifyListeners && mCallback != null) {
+            mCallback.onPlaybackStatusChanged(mState);
+        }
+        mCurrentPosition = getCurrentStreamPosition();
+        // Give up Audio focus
+        giveUpAudioFocus();
+        unregisterAudioNoisyReceiver();
+        releasePipeline();
+        releaseLocks();
+        mService.stopForeground(true);
+    }
+
+    @Override
+    public void setState(int state) {
+        this.mState = state;
+    }
+
+    @Override
+    public int getState() {
+        return mState;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mPlayOnFocusGain || (mPipeline != null && mPipeline.isPlaying());
+    }
+
+    @Override
+    public int getCurrentStreamPosition() {
+        return mPipeline != null ? (int) (mPipeline.getPositionUs() / 1000) : mCurrentPosition;
+    }
+
+    @Override
+    public void setCurrentStreamPosition(int pos) {
+        this.mCurrentPosition = pos;
+    }
+
+    @Override
+    public void play(QueueItem item) {
+        mPlayOnFocusGain = true;
+        PlaybackLatencyTracker tracker = mService.getLatencyTracker();
+        tracker.stageStarted(PlaybackLatencyTracker.STAGE_AUDIO_FOCUS);
+        tryToGetAudioFocus();
+        tracker.stageFinished(PlaybackLatencyTracker.STAGE_AUDIO_FOCUS);
+        registerAudioNoisyReceiver();
+        String mediaId = item.getDescription().getMediaId();
+        boolean mediaHasChanged = !TextUtils.equals(mediaId, mCurrentMediaId);
+        if (mediaHasChanged) {
+            mCurrentPosition = 0;
+            mCurrentMediaId = mediaId;
+        }
+
+        if (mState == PlaybackState.STATE_PAUSED && !mediaHasChanged && mPipeline != null) {
+            acquireLocks(getSource(item));
+            configPlayerState();
+            return;
+        }
+        if (!mediaHasChanged && mPrepareTask != null) {
+            // Still being opened, it starts playing once it is
+            acquireLocks(mPrepareTask.source);
+            mState = PlaybackState.STATE_BUFFERING;
+            if (mCallback != null) {
+                mCallback.onPlaybackStatusChanged(mState);
+            }
+            return;
+        }
+
+        mState = PlaybackState.STATE_STOPPED;
+        releasePipeline();
+        MediaMetadata track = mMusicProvider.getMusic(
+                MediaIDHelper.extractMusicIDFromMediaID(mediaId));
+        String source = track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE);
+        tracker.setSource(source, false);
+        mGain = mService.getNormalizationGain(track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID));
+        acquireLocks(source);
+
+        tracker.stageStarted(PlaybackLatencyTracker.STAGE_PREPARE);
+        mPrepareTask = new PrepareTask(source, mediaId);
+        mPrepareExecutor.execute(mPrepareTask);
+        mState = PlaybackState.STATE_BUFFERING;
+        if (mCallback != null) {
+            mCallback.onPlaybackStatusChanged(mState);
+        }
+    }
+
+    /**
+     * Starts the pipeline of the source opened for the current item, from the current position,
+     * playing it unless paused meanwhile.
+     */
+    private void onPrepared(MediaCodecSource codecSource, AudioTrackSink sink) {
+        mService.getLatencyTracker().stageFinished(PlaybackLatencyTracker.STAGE_PREPARE);
+        PipelineListener listener = new PipelineListener();
+        mPipeline = new PcmPipeline(codecSource, sink, listener,
+                codecSource.getSampleRate(), codecSource.getChannelCount(),
+                CHUNK_COUNT, CHUNK_SAMPLES);
+        listener.pipeline = mPipeline;
+        mPipeline.setProcessor(mService.getDspChain());
+        mPipeline.setSpeed(mSpeed);
+        mPipelineStarted = false;
+        mPipelines++;
+        mPipeline.start(mCurrentPosition * 1000L);
+        if (mState == PlaybackState.STATE_BUFFERING) {
+            configPlayerState();
+        }
+    }
+
+    private void onPrepareFailed(Exception e) {
+        LogHelper.e(TAG, e, "Exception playing song");
+        releaseLocks();
+        if (mCallback != null) {
+            mCallback.onError(e.getMessage());
+        }
+    }
+
+    @Override
+    public void setNeighbourItems(QueueItem previous, QueueItem next, boolean chainNext) {
+        // Items are only decoded once they are played, but their seek tables can be ready
+        SeekIndexCache seekIndexes = mService.getSeekIndexCache();
+        seekIndexes.prefetch(getSource(previous));
+        seekIndexes.prefetch(getSource(next));
+    }
+
+    private String getSource(QueueItem item) {
+        if (item == null) {
+            return null;
+        }
+        MediaMetadata track = mMusicProvider.getMusic(
+                MediaIDHelper.extractMusicIDFromMediaID(item.getDescription().getMediaId()));
+        return track == null ? null : track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE);
+    }
+
+    @Override
+    public void setPlaybackSpeed(float speed) {
+        mSpeed = Math.max(TimeStretcher.MIN_SPEED, Math.min(TimeStretcher.MAX_SPEED, speed));
+        if (mPipeline != null) {
+            mPipeline.setSpeed(mSpeed);
+        }
+    }
+
+    @Override
+    public float getPlaybackSpeed() {
+        return mSpeed;
+    }
+
+    @Override
+    public void setCrossfadeDuration(int duration) {
+        // Not supported by this engine yet
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // Nothing is kept besides what is playing
+    }
+
+    @Override
+    public void pause() {
+        if (mState == PlaybackState.STATE_PLAYING || mState == PlaybackState.STATE_BUFFERING) {
+            if (mPipeline != null) {
+                mPipeline.pause();
+                mCurrentPosition = getCurrentStreamPosition();
+            }
+            // while paused, retain the pipeline but give up audio focus
+            mService.stopForeground(true);
+            giveUpAudioFocus();
+        }
+        releaseLocks();
+        mState = PlaybackState.STATE_PAUSED;
+        if (mCallback != null) {
+            mCallback.onPlaybackStatusChanged(mState);
+        }
+        unregisterAudioNoisyReceiver();
+    }
+
+    @Override
+    public void seekTo(int position) {
+        LogHelper.d(TAG, "seekTo called with ", position);
+
+        if (mPipeline == null) {
+            // If we do not have a pipeline, simply update the current position
+            mCurrentPosition = position;
+        } else {
+            mPipeline.seekTo(position * 1000L);
+            mPipelineStarted = false;
+            if (mState == PlaybackState.STATE_PLAYING) {
+                mState = PlaybackState.STATE_BUFFERING;
+            }
+            if (mCallback != null) {
+                mCallback.onPlaybackStatusChanged(mState);
+            }
+        }
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.mCallback = callback;
+    }
+
+    @Override
+    public void setCurrentMediaId(String mediaId) {
+        this.mCurrentMediaId = mediaId;
+    }
+
+    @Override
+    public String getCurrentMediaId() {
+        return mCurrentMediaId;
+    }
+
+    @Override
+    public void dump(PrintWriter writer) {
+        writer.println("AudioTrack playback:");
+        writer.println("  state=" + mState + " pipelines=" + mPipelines
+                + " completions=" + mCompletions + " preparing=" + (mPrepareTask != null)
+                + " wakeLock=" + mWakeLock.isHeld() + " wifiLock=" + mWifiLock.isHeld());
+        if (mPipeline != null) {
+            mPipeline.dump(writer);
+        }
+    }
+
+    private void onPipelineStarted() {
+        mPipelineStarted = true;
+        if (mState == PlaybackState.STATE_BUFFERING && mPipeline.isPlaying()) {
+            mState = PlaybackState.STATE_PLAYING;
+            if (mCallback != null) {
+                mCallback.onPlaybackStatusChanged(mState);
+            }
+        }
+    }
+
+    private void onPipelineCompleted() {
+        mCompletions++;
+        releasePipeline();
+        mCurrentPosition = 0;
+        if (mCallback != null) {
+            mCallback.onCompletion();
+        }
+        if (mPipeline == null && mPrepareTask == null) {
+            // Nothing else was started from the completion
+            releaseLocks();
+        }
+    }
+
+    /**
+     * Releases the pipeline, and drops the source being opened, if any.
+     */
+    private void releasePipeline() {
+        if (mPipeline != null) {
+            mPipeline.release();
+            mPipeline = null;
+        }
+        mPrepareTask = null;
+        mPipelineStarted = false;
+    }
+
+    /**
+     * Keeps the CPU, and the Wifi radio for a remote source, awake while playing.
+     */
+    private void acquireLocks(String source) {
+        mWakeLock.acquire();
+        if (source != null && source.contains("://") && !source.startsWith("file://")) {
+            mWifiLock.acquire();
+        }
+    }
+
+    private void releaseLocks() {
+        if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+        if (mWifiLock.isHeld()) {
+            mWifiLock.release();
+        }
+    }
+
+    /**
+     * Try to get the system audio focus.
+     */
+    private void tryToGetAudioFocus() {
+        LogHelper.d(TAG, "tryToGetAudioFocus");
+        if (mAudioFocus != AUDIO_FOCUSED) {
+            int result = mAudioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC,
+                    AudioManager.AUDIOFOCUS_GAIN);
+            if (result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
+                mAudioFocus = AUDIO_FOCUSED;
+            }
+        }
+    }
+
+    /**
+     * Give up the audio focus.
+     */
+    private void giveUpAudioFocus() {
+        LogHelper.d(TAG, "giveUpAudioFocus");
+        if (mAudioFocus == AUDIO_FOCUSED) {
+            if (mAudioManager.abandonAudioFocus(this) == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
+                mAudioFocus = AUDIO_NO_FOCUS_NO_DUCK;
+            }
+        }
+    }
+
+    /**
+     * Reconfigures the pipeline according to audio focus settings and starts or restarts it,
+     * like {@link LocalPlayback} does with its MediaPlayer.
+     */
+    private void configPlayerState() {
+        LogHelper.d(TAG, "configPlayerState. mAudioFocus=", mAudioFocus);
+        if (mAudioFocus == AUDIO_NO_FOCUS_NO_DUCK) {
+            // If we don't have audio focus and can't duck, we have to pause,
+            if (mState == PlaybackState.STATE_PLAYING) {
+                pause();
+            }
+        } else {  // we have audio focus:
+            if (mPipeline != null) {
+                mPipeline.setVolume(mGain * (mAudioFocus == AUDIO_NO_FOCUS_CAN_DUCK
+                        ? LocalPlayback.VOLUME_DUCK : LocalPlayback.VOLUME_NORMAL));
+            }
+            // If we were playing when we lost focus, we need to resume playing.
+            if (mPlayOnFocusGain) {
+                if (mPipeline != null && !mPipeline.isPlaying()) {
+                    mPipeline.play();
+                    mState = mPipelineStarted
+                            ? PlaybackState.STATE_PLAYING : PlaybackState.STATE_BUFFERING;
+                }
+                mPlayOnFocusGain = false;
+            }
+        }
+        if (mCallback != null) {
+            mCallback.onPlaybackStatusChanged(mState);
+        }
+    }
+
+    /**
+     * Called by AudioManager on audio focus changes.
+     * Implementation of {@link android.media.AudioManager.OnAudioFocusChangeListener}
+     */
+    @Override
+    public void onAudioFocusChange(final int focusChange) {
+        if (Looper.myLooper() != mHandler.getLooper()) {
+            // Focus changes are dispatched on the main thread, but the pipeline is driven from
+            // the service's command thread.
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onAudioFocusChange(focusChange);
+                }
+            });
+            return;
+        }
+        LogHelper.d(TAG, "onAudioFocusChange. focusChange=", focusChange);
+        if (focusChange == AudioManager.AUDIOFOCUS_GAIN) {
+            // We have gained focus:
+            mAudioFocus = AUDIO_FOCUSED;
+
+        } else if (focusChange == AudioManager.AUDIOFOCUS_LOSS ||
+                focusChange == AudioManager.AUDIOFOCUS_LOSS_TRANSIENT ||
+                focusChange == AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK) {
+            // We have lost focus. If we can duck (low playback volume), we can keep playing.
+            // Otherwise, we need to pause the playback.
+            boolean canDuck = focusChange == AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK;
+            mAudioFocus = canDuck ? AUDIO_NO_FOCUS_CAN_DUCK : AUDIO_NO_FOCUS_NO_DUCK;
+
+            if (mState == PlaybackState.STATE_PLAYING && !canDuck) {
+                // If we don't have audio focus and can't duck, we save the information that
+                // we were playing, so that we can resume playback once we get the focus back.
+                mPlayOnFocusGain = true;
+            }
+        } else {
+            LogHelper.e(TAG, "onAudioFocusChange: Ignoring unsupported focusChange: ", focusChange);
+        }
+        configPlayerState();
+    }
+
+    private void registerAudioNoisyReceiver() {
+        if (!mAudioNoisyReceiverRegistered) {
+            mService.registerReceiver(mAudioNoisyReceiver, mAudioNoisyIntentFilter);
+            mAudioNoisyReceiverRegistered = true;
+        }
+    }
+
+    private void unregisterAudioNoisyReceiver() {
+        if (mAudioNoisyReceiverRegistered) {
+            mService.unregisterReceiver(mAudioNoisyReceiver);
+            mAudioNoisyReceiverRegistered = false;
+        }
+    }
+}
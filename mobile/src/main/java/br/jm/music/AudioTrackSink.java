@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+import java.io.IOException;
+
+import br.jm.music.audio.PcmPipeline;
+
+/**
+ * Streams float samples to an {@link AudioTrack}. Only used on the output thread of a
+ * {@link PcmPipeline}.
+ */
+public class AudioTrackSink implements PcmPipeline.Sink {
+
+    // Multiple of the minimum buffer size, to ride over scheduling hiccups
+    private static final int BUFFER_FACTOR = 4;
+
+    private final AudioTrack mTrack;
+
+    public AudioTrackSink(int sampleRate, int channelCount) throws IOException {
+        int channelMask;
+        if (channelCount == 1) {
+            channelMask = AudioFormat.CHANNEL_OUT_MONO;
+        } else if (channelCount == 2) {
+            channelMask = AudioFormat.CHANNEL_OUT_STEREO;
+        } else {
+            throw new IOException("Unsupported channel count: " + channelCount);
+        }
+        int minSize = AudioTrack.getMinBufferSize(sampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_FLOAT);
+        if (minSize <= 0) {
+            throw new IOException("Unsupported output format: " + sampleRate + "Hz");
+        }
+        mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_FLOAT, minSize * BUFFER_FACTOR, AudioTrack.MODE_STREAM);
+        if (mTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+            mTrack.release();
+            throw new IOException("Could not create the audio track");
+        }
+    }
+
+    @Override
+    public int write(float[] data, int offset, int length) {
+        return mTrack.write(data, offset, length, AudioTrack.WRITE_NON_BLOCKING);
+    }
+
+    @Override
+    public long getPlayedFrames() {
+        // The head position is an unsigned 32 bit value
+        return mTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        mTrack.setVolume(volume);
+    }
+
+    @Override
+    public void play() {
+        mTrack.play();
+    }
+
+    @Override
+    public void pause() {
+        mTrack.pause();
+    }
+
+    @Override
+    public void drain() {
+        // Stopping a streaming track lets it play what it holds first
+        mTrack.stop();
+    }
+
+    @Override
+    public void flush() {
+        mTrack.pause();
+        mTrack.flush();
+    }
+
+    @Override
+    public void release() {
+        mTrack.release();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+import br.jm.music.utils.LogHelper;
+
+/**
+ * Single threaded executor for the commands that read or change the {@link MusicService} queue
+ * and session state. Commands run on a dedicated thread, in the order they were submitted.
+ * Commands submitted while a batch is running join that batch, and the {@link Callback} is told
+ * when the batch is over so it can publish the accumulated changes only once.
+ */
+public class CommandLoop {
+
+    private static final String TAG = LogHelper.makeLogTag(CommandLoop.class);
+
+    public interface Callback {
+        /**
+         * Executes the command. Always called on the loop thread.
+         */
+        void onCommand(Command command);
+
+        /**
+         * Called on the loop thread after the last command of a batch.
+         */
+        void onBatchFinished();
+    }
+
+    /**
+     * A typed command with its arguments. The meaning of the arguments depends on the type.
+     */
+    public static final class Command {
+        public final int type;
+        public final long longArg;
+        public final String stringArg;
+        public final Bundle extras;
+        public final Intent intent;
+
+        private long mSubmitTime;
+
+        public Command(int type) {
+            this(type, 0, null, null, null);
+        }
+
+        public Command(int type, long longArg) {
+            this(type, longArg, null, null, null);
+        }
+
+        public Command(int type, String stringArg, Bundle extras) {
+            this(type, 0, stringArg, extras, null);
+        }
+
+        public Command(int type, Intent intent) {
+            this(type, 0, null, null, intent);
+        }
+
+        public Command(int type, long longArg, String stringArg, Bundle extras, Intent intent) {
+            this.type = type;
+            this.longArg = longArg;
+            this.stringArg = stringArg;
+            this.extras = extras;
+            this.intent = intent;
+        }
+    }
+
+    private final Callback mCallback;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Pending commands and scheduling state, guarded by this
+    private final ArrayDeque<Command> mPending = new ArrayDeque<>();
+    private boolean mDrainScheduled;
+
+    // Throughput counters, guarded by this
+    private long mSubmitted;
+    private long mProcessed;
+    private long mBatches;
+    private int mMaxBatchSize;
+    private long mTotalWaitNanos;
+    private long mMaxWaitNanos;
+    private long mTotalExecNanos;
+    private long mMaxExecNanos;
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public CommandLoop(String name, Callback callback) {
+        mCallback = callback;
+        mThread = new HandlerThread(name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * @return the looper of the loop thread, for handlers that must run alongside the commands.
+     */
+    public Looper getLooper() {
+        return mThread.getLooper();
+    }
+
+    public boolean isLoopThread() {
+        return Looper.myLooper() == mThread.getLooper();
+    }
+
+    /**
+     * Queues a command. Can be called from any thread.
+     */
+    public void submit(Command command) {
+        synchronized (this) {
+            command.mSubmitTime = System.nanoTime();
+            mPending.add(command);
+            mSubmitted++;
+            if (!mDrainScheduled) {
+                mDrainScheduled = true;
+                mHandler.post(mDrainRunnable);
+            }
+        }
+    }
+
+    /**
+     * Stops the loop once the commands already submitted have been processed.
+     */
+    public void quit() {
+        mThread.quitSafely();
+    }
+
+    private void drain() {
+        int batchSize = 0;
+        while (true) {
+            Command command;
+            synchronized (this) {
+                command = mPending.poll();
+                if (command == null) {
+                    mDrainScheduled = false;
+                    break;
+                }
+            }
+            long start = System.nanoTime();
+            mCallback.onCommand(command);
+            long end = System.nanoTime();
+            batchSize++;
+
+            synchronized (this) {
+                long wait = start - command.mSubmitTime;
+                long exec = end - start;
+                mProcessed++;
+                mTotalWaitNanos += wait;
+                mMaxWaitNanos = Math.max(mMaxWaitNanos, wait);
+                mTotalExecNanos += exec;
+                mMaxExecNanos = Math.max(mMaxExecNanos, exec);
+            }
+        }
+
+        mCallback.onBatchFinished();
+
+        synchronized (this) {
+            mBatches++;
+            mMaxBatchSize = Math.max(mMaxBatchSize, batchSize);
+        }
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Command loop:");
+        writer.println("  submitted=" + mSubmitted + " processed=" + mProcessed
+                + " pending=" + mPending.size());
+        writer.println("  batches=" + mBatches + " maxBatchSize=" + mMaxBatchSize
+                + " avgBatchSize=" + (mBatches == 0 ? 0 : mProcessed / (float) mBatches));
+        writer.println("  avgWaitUs=" + (mProcessed == 0 ? 0 : mTotalWaitNanos / mProcessed / 1000)
+                + " maxWaitUs=" + mMaxWaitNanos / 1000);
+        writer.println("  avgExecUs=" + (mProcessed == 0 ? 0 : mTotalExecNanos / mProcessed / 1000)
+                + " maxExecUs=" + mMaxExecNanos / 1000);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music;
+
+import java.util.Locale;
+
+/**
+ * Fixed size histogram of durations, in microseconds. Values are counted in buckets that split
+ * each power of two in {@link #SUB_BUCKETS}, so recording is a couple of bit operations and the
+ * reported percentiles are within about 6% of the real ones. Not thread safe.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final int[] mCounts = new int[BUCKETS];
+    private long mCount;
+    private long mMax;
+
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        mCounts[indexOf(micros)]++;
+        mCount++;
+        mMax = Math.max(mMax, micros);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the value below which the given fraction of the recorded values fall, or 0 if
+     * nothing was recorded.
+     */
+    public long getPercentile(double fraction) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(fraction * mCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return Math.min(mMax, midpointOf(i));
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * @return a one line summary, with the values in milliseconds.
+     */
+    public String summarize() {
+        return String.format(Locale.US, "n=%d p50=%.1f p95=%.1f p99=%.1f max=%.1f", mCount,
+                getPercentile(0.5) / 1000f, getPercentile(0.95) / 1000f,
+                getPercentile(0.99) / 1000f, mMax / 1000f);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long midpointOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+}
@@ -16,6 +16,7 @@
 package br.jm.music;
 
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -24,7 +25,10 @@ import android.media.MediaMetadata;
 import android.media.MediaPlayer;
 import android.media.session.PlaybackState;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import br.jm.music.model.MusicProvider;
@@ -32,6 +36,7 @@ import br.jm.music.utils.LogHelper;
 import br.jm.music.utils.MediaIDHelper;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 
 import static android.media.MediaPlayer.OnCompletionListener;
 import static android.media.MediaPlayer.OnErrorListener;
@@ -60,7 +65,38 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     // we have full audio focus
     private static final int AUDIO_FOCUSED  = 2;
 
+    // Number of idle players kept around
+    private static final int POOL_SIZE = 2;
+    // How long neighbours are not prepared speculatively after memory pressure
+    private static final long SPECULATION_BACKOFF = 60000;
+    // Interval between two volume steps of a crossfade
+    private static final int CROSSFADE_STEP = 50;
+
+    /**
+     * A player getting a queue item ready ahead of time.
+     */
+    private static final class PreparedItem {
+        final QueueItem item;
+        final MediaPlayer player;
+        // Loudness normalization volume of the item
+        final float gain;
+        // Leading and trailing silence skipped, in ms
+        final int start;
+        final int endTrim;
+        boolean prepared;
+
+        PreparedItem(QueueItem item, MediaPlayer player, float gain, int start, int endTrim) {
+            this.item = item;
+            this.player = player;
+            this.gain = gain;
+            this.start = start;
+            this.endTrim = endTrim;
+        }
+    }
+
     private final MusicService mService;
+    // Handler on the thread that drives this playback, see MusicService#getCommandLooper
+    private final Handler mHandler;
     private final WifiManager.WifiLock mWifiLock;
     private int mState;
     private boolean mPlayOnFocusGain;
@@ -74,6 +110,61 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     private int mAudioFocus = AUDIO_NO_FOCUS_NO_DUCK;
     private AudioManager mAudioManager;
     private MediaPlayer mMediaPlayer;
+    // Whether mMediaPlayer is done preparing
+    private boolean mPrepared;
+    // Loudness normalization volume of the item in mMediaPlayer, looked up from the gain table
+    // when the item is set up and combined with the audio focus volume
+    private float mGain = 1f;
+    // Trailing silence of the item in mMediaPlayer, in ms. The track is over that much before
+    // its end.
+    private int mEndTrim;
+
+    // Idle players, so preparing an item doesn't pay for creating one
+    private final MediaPlayerPool mPool;
+    // Players getting the queue neighbours of the current item ready, so skipping to them is
+    // instant. Once both are prepared, the next one is chained to mMediaPlayer (if asked to), so
+    // the framework starts it right when the current track ends.
+    private PreparedItem mNext;
+    private PreparedItem mPrevious;
+    private boolean mChainNext;
+    private boolean mNextChained;
+    // Neighbours are not prepared speculatively before this time, after memory pressure
+    private long mSpeculationResumeTime;
+    // Media ID a chained player started on its own, until the service asks for it
+    private String mGaplessMediaId;
+
+    // Crossfade length, 0 to chain tracks without a gap instead
+    private int mCrossfadeDuration;
+    // Outgoing player while a crossfade runs, mMediaPlayer being the incoming one
+    private MediaPlayer mFadingOut;
+    private float mFadingOutGain = 1f;
+    private long mFadeStartTime;
+    private int mFadeLength;
+
+    private final Runnable mCrossfadeStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startCrossfade();
+        }
+    };
+
+    private final Runnable mCrossfadeStepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stepCrossfade();
+        }
+    };
+
+    // Transition and pre-buffering statistics
+    private int mCrossfades;
+    private int mSilenceSkips;
+    private int mPreparedHits;
+    private int mPreparedMisses;
+    private long mCompletionTime;
+    private int mGaplessTransitions;
+    private int mGappedTransitions;
+    private long mTotalGap;
+    private long mMaxGap;
 
     private IntentFilter mAudioNoisyIntentFilter =
             new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
@@ -96,14 +187,28 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     public LocalPlayback(MusicService service, MusicProvider musicProvider) {
         this.mService = service;
         this.mMusicProvider = musicProvider;
+        this.mHandler = new Handler(service.getCommandLooper());
         this.mAudioManager = (AudioManager) service.getSystemService(Context.AUDIO_SERVICE);
         // Create the Wifi lock (this does not acquire the lock, this just creates it)
         this.mWifiLock = ((WifiManager) service.getSystemService(Context.WIFI_SERVICE))
                 .createWifiLock(WifiManager.WIFI_MODE_FULL, "uAmp_lock");
+        this.mPool = new MediaPlayerPool(new MediaPlayerPool.Factory() {
+            @Override
+            public MediaPlayer create() {
+                return createMediaPlayer();
+            }
+        }, POOL_SIZE);
     }
 
     @Override
     public void start() {
+        // Players must be created on the thread that gets their events
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPool.prewarm();
+            }
+        });
     }
 
     @Override
@@ -116,6 +221,10 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         // Give up Audio focus
         giveUpAudioFocus();
         unregisterAudioNoisyReceiver();
+        mGaplessMediaId = null;
+        mCompletionTime = 0;
+        finishCrossfade();
+        mHandler.removeCallbacks(mCrossfadeStartRunnable);
         // Relax all resources
         relaxResources(true);
         if (mWifiLock.isHeld()) {
@@ -152,27 +261,63 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     @Override
     public void play(QueueItem item) {
         mPlayOnFocusGain = true;
+        PlaybackLatencyTracker tracker = mService.getLatencyTracker();
+        tracker.stageStarted(PlaybackLatencyTracker.STAGE_AUDIO_FOCUS);
         tryToGetAudioFocus();
+        tracker.stageFinished(PlaybackLatencyTracker.STAGE_AUDIO_FOCUS);
         registerAudioNoisyReceiver();
         String mediaId = item.getDescription().getMediaId();
         boolean mediaHasChanged = !TextUtils.equals(mediaId, mCurrentMediaId);
         if (mediaHasChanged) {
-            mCurrentPosition = 0;
+            // Skip the silence at the start, and at the end once there
+            String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
+            mCurrentPosition = mService.getLeadingSilence(musicId);
+            mEndTrim = mService.getTrailingSilence(musicId);
             mCurrentMediaId = mediaId;
         }
 
-        if (mState == PlaybackState.STATE_PAUSED && !mediaHasChanged && mMediaPlayer != null) {
+        boolean gaplessStarted = mediaId.equals(mGaplessMediaId);
+        mGaplessMediaId = null;
+        if (!gaplessStarted) {
+            // Anything else than catching up with a transition cuts a crossfade short
+            finishCrossfade();
+        }
+
+        if (gaplessStarted && mMediaPlayer != null) {
+            // The chained player is already playing this item
+            configMediaPlayerState();
+        } else if (mState == PlaybackState.STATE_PAUSED && !mediaHasChanged && mMediaPlayer != null) {
             configMediaPlayerState();
+        } else if (mediaHasChanged && findPrepared(mediaId) != null) {
+            // We were already getting this one ready
+            relaxResources(false);
+            tracker.setSource(getSource(item), true);
+            adoptPrepared(findPrepared(mediaId));
+            mPreparedHits++;
+            mWifiLock.acquire();
+            if (mPrepared) {
+                configMediaPlayerState();
+            } else {
+                mState = PlaybackState.STATE_BUFFERING;
+                if (mCallback != null) {
+                    mCallback.onPlaybackStatusChanged(mState);
+                }
+            }
         } else {
+            mPreparedMisses++;
             mState = PlaybackState.STATE_STOPPED;
             relaxResources(false); // release everything except MediaPlayer
             MediaMetadata track = mMusicProvider.getMusic(
                     MediaIDHelper.extractMusicIDFromMediaID(item.getDescription().getMediaId()));
 
             String source = track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE);
+            tracker.setSource(source, false);
+            mGain = mService.getNormalizationGain(
+                    track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID));
 
             try {
                 createMediaPlayerIfNeeded();
+                mPrepared = false;
 
                 mState = PlaybackState.STATE_BUFFERING;
 
@@ -184,6 +329,7 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                 // the onPrepared() method on this class, since we set the
                 // listener to 'this'). Until the media player is prepared,
                 // we *cannot* call start() on it!
+                tracker.stageStarted(PlaybackLatencyTracker.STAGE_PREPARE);
                 mMediaPlayer.prepareAsync();
 
                 // If we are streaming from the internet, we want to hold a
@@ -206,6 +352,8 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
 
     @Override
     public void pause() {
+        finishCrossfade();
+        mHandler.removeCallbacks(mCrossfadeStartRunnable);
         if (mState == PlaybackState.STATE_PLAYING) {
             // Pause media player and cancel the 'foreground service' state.
             if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
@@ -217,15 +365,372 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
             giveUpAudioFocus();
         }
         mState = PlaybackState.STATE_PAUSED;
+        mCompletionTime = 0;
         if (mCallback != null) {
             mCallback.onPlaybackStatusChanged(mState);
         }
         unregisterAudioNoisyReceiver();
     }
 
+    @Override
+    public void setNeighbourItems(QueueItem previous, QueueItem next, boolean chainNext) {
+        if (SystemClock.uptimeMillis() < mSpeculationResumeTime) {
+            previous = null;
+        }
+        if (!isSameItem(next, mNext != null ? mNext.item : null)) {
+            unchainNext();
+            releasePrepared(mNext);
+            mNext = prepareItem(next);
+        }
+        if (!isSameItem(previous, mPrevious != null ? mPrevious.item : null)) {
+            releasePrepared(mPrevious);
+            mPrevious = prepareItem(previous);
+        }
+        mChainNext = chainNext;
+        if (!chainNext || isCrossfadeTarget(mNext)) {
+            unchainNext();
+        }
+        chainNextMediaPlayer();
+        scheduleCrossfade();
+    }
+
+    @Override
+    public void setPlaybackSpeed(float speed) {
+        // MediaPlayer only gets tempo control from API 23
+    }
+
+    @Override
+    public float getPlaybackSpeed() {
+        return 1f;
+    }
+
+    @Override
+    public void setCrossfadeDuration(int duration) {
+        if (duration == mCrossfadeDuration) {
+            return;
+        }
+        LogHelper.d(TAG, "Crossfade duration set to ", duration);
+        mCrossfadeDuration = duration;
+        if (isCrossfadeTarget(mNext)) {
+            unchainNext();
+        } else {
+            chainNextMediaPlayer();
+        }
+        scheduleCrossfade();
+    }
+
+    /**
+     * @return whether the current item should crossfade into the given one. Repeating an item
+     * is always gapless, since fading a track into itself would sound like a glitch.
+     */
+    private boolean isCrossfadeTarget(PreparedItem next) {
+        return mCrossfadeDuration > 0 && next != null
+                && !TextUtils.equals(next.item.getDescription().getMediaId(), mCurrentMediaId);
+    }
+
+    /**
+     * @return whether playback can switch to the given item right away, without the service
+     */
+    private boolean isSwitchTarget(PreparedItem next) {
+        return next != null && next.prepared
+                && !TextUtils.equals(next.item.getDescription().getMediaId(), mCurrentMediaId);
+    }
+
+    /**
+     * @return the time left until the sound of the current track ends, in ms
+     */
+    private int getRemaining() {
+        return mMediaPlayer.getDuration() - mEndTrim - mMediaPlayer.getCurrentPosition();
+    }
+
+    /**
+     * Posts the start of the crossfade into the next item, if there should be one, or else the
+     * early end of a track with trailing silence. This is a single delayed post, checked again
+     * when it fires.
+     */
+    private void scheduleCrossfade() {
+        mHandler.removeCallbacks(mCrossfadeStartRunnable);
+        if (mFadingOut != null || mState != PlaybackState.STATE_PLAYING || !mPrepared
+                || mMediaPlayer == null) {
+            return;
+        }
+        boolean crossfade = isCrossfadeTarget(mNext) && mNext.prepared;
+        if (!crossfade && mEndTrim <= 0) {
+            return;
+        }
+        mHandler.postDelayed(mCrossfadeStartRunnable,
+                Math.max(0, getRemaining() - (crossfade ? mCrossfadeDuration : 0)));
+    }
+
+    private void startCrossfade() {
+        if (mFadingOut != null || mState != PlaybackState.STATE_PLAYING || mMediaPlayer == null) {
+            return;
+        }
+        boolean crossfade = isCrossfadeTarget(mNext) && mNext.prepared;
+        if (!crossfade && mEndTrim <= 0) {
+            return;
+        }
+        int remaining = getRemaining();
+        if (remaining > (crossfade ? mCrossfadeDuration : 0) + CROSSFADE_STEP) {
+            // Fired early, e.g. after a seek we didn't hear about
+            scheduleCrossfade();
+            return;
+        }
+        if (!crossfade) {
+            // Only silence is left
+            mSilenceSkips++;
+            if (!isSwitchTarget(mNext)) {
+                // Nothing ready to take over, end the track here as if it were over
+                LogHelper.d(TAG, "Skipping the trailing silence of ", mCurrentMediaId);
+                // A chained player, e.g. the same item again for repeat one, hasn't taken over:
+                // unchained, the completion goes the normal way instead of adopting it
+                unchainNext();
+                mMediaPlayer.pause();
+                onCompletion(mMediaPlayer);
+                return;
+            }
+            // Switch with a fade too short to hear, as a gapless transition would
+            remaining = 0;
+        }
+        LogHelper.d(TAG, "Starting crossfade into ", mNext.item.getDescription().getMediaId());
+        unchainNext();
+        PreparedItem next = mNext;
+        mNext = null;
+        mFadingOut = mMediaPlayer;
+        mFadingOutGain = mGain;
+        mMediaPlayer = next.player;
+        mGain = next.gain;
+        mEndTrim = next.endTrim;
+        mPrepared = true;
+        mCurrentMediaId = next.item.getDescription().getMediaId();
+        mCurrentPosition = next.start;
+        mGaplessMediaId = mCurrentMediaId;
+        mFadeLength = Math.max(remaining, CROSSFADE_STEP);
+        mFadeStartTime = SystemClock.uptimeMillis();
+        mMediaPlayer.setVolume(0, 0);
+        mMediaPlayer.start();
+        mCrossfades++;
+        mHandler.post(mCrossfadeStepRunnable);
+
+        // As far as the service is concerned, the outgoing track is over
+        if (mCallback != null) {
+            mCallback.onCompletion();
+        }
+    }
+
+    /**
+     * Applies one volume step of the running crossfade. The volumes follow an equal-power curve
+     * (the sum of their squares stays constant), scaled by the volume audio focus allows and
+     * by the normalization gain of each track.
+     */
+    private void stepCrossfade() {
+        if (mFadingOut == null) {
+            return;
+        }
+        float t = Math.min(1f, (SystemClock.uptimeMillis() - mFadeStartTime) / (float) mFadeLength);
+        float volume = getFocusVolume();
+        float in = (float) Math.sin(t * Math.PI / 2) * volume * mGain;
+        float out = (float) Math.cos(t * Math.PI / 2) * volume * mFadingOutGain;
+        mMediaPlayer.setVolume(in, in);
+        mFadingOut.setVolume(out, out);
+        if (t >= 1f) {
+            finishCrossfade();
+        } else {
+            mHandler.postDelayed(mCrossfadeStepRunnable, CROSSFADE_STEP);
+        }
+    }
+
+    /**
+     * Ends the running crossfade, if any, dropping the outgoing player and giving the incoming
+     * one its full volume.
+     */
+    private void finishCrossfade() {
+        mHandler.removeCallbacks(mCrossfadeStepRunnable);
+        if (mFadingOut == null) {
+            return;
+        }
+        mPool.recycle(mFadingOut);
+        mFadingOut = null;
+        applyVolume();
+        scheduleCrossfade();
+    }
+
+    private float getFocusVolume() {
+        return mAudioFocus == AUDIO_NO_FOCUS_CAN_DUCK ? VOLUME_DUCK : VOLUME_NORMAL;
+    }
+
+    /**
+     * Sets the volume of the current player, and of the chained one so it starts at the right
+     * level, from the audio focus and their normalization gains. Left to the crossfade while
+     * one runs.
+     */
+    private void applyVolume() {
+        float volume = getFocusVolume();
+        if (mMediaPlayer != null && mFadingOut == null) {
+            mMediaPlayer.setVolume(volume * mGain, volume * mGain);
+        }
+        if (mNextChained) {
+            mNext.player.setVolume(volume * mNext.gain, volume * mNext.gain);
+        }
+    }
+
+    private static boolean isSameItem(QueueItem a, QueueItem b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.getQueueId() == b.getQueueId()
+                && TextUtils.equals(a.getDescription().getMediaId(), b.getDescription().getMediaId());
+    }
+
+    /**
+     * Starts preparing the item on a pooled player.
+     *
+     * @return the prepared item, or null if the item is null or can't be prepared.
+     */
+    private PreparedItem prepareItem(QueueItem item) {
+        if (item == null) {
+            return null;
+        }
+        MediaMetadata track = mMusicProvider.getMusic(
+                MediaIDHelper.extractMusicIDFromMediaID(item.getDescription().getMediaId()));
+        if (track == null) {
+            return null;
+        }
+        LogHelper.d(TAG, "Preparing item ", item.getDescription().getMediaId());
+        MediaPlayer player = mPool.obtain();
+        try {
+            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            player.setDataSource(track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE));
+            player.prepareAsync();
+        } catch (IOException ex) {
+            // Not fatal, the item will be prepared the usual way when its turn comes
+            LogHelper.w(TAG, ex, "Could not prepare item");
+            mPool.recycle(player);
+            return null;
+        }
+        String musicId = track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
+        return new PreparedItem(item, player, mService.getNormalizationGain(musicId),
+                mService.getLeadingSilence(musicId), mService.getTrailingSilence(musicId));
+    }
+
+    private String getSource(QueueItem item) {
+        MediaMetadata track = mMusicProvider.getMusic(
+                MediaIDHelper.extractMusicIDFromMediaID(item.getDescription().getMediaId()));
+        return track == null ? null : track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE);
+    }
+
+    private PreparedItem findPrepared(String mediaId) {
+        if (mNext != null && mediaId.equals(mNext.item.getDescription().getMediaId())) {
+            return mNext;
+        }
+        if (mPrevious != null && mediaId.equals(mPrevious.item.getDescription().getMediaId())) {
+            return mPrevious;
+        }
+        return null;
+    }
+
+    private PreparedItem findPrepared(MediaPlayer player) {
+        if (mNext != null && mNext.player == player) {
+            return mNext;
+        }
+        if (mPrevious != null && mPrevious.player == player) {
+            return mPrevious;
+        }
+        return null;
+    }
+
+    /**
+     * Chains the next player to the current one, once both are prepared.
+     */
+    private void chainNextMediaPlayer() {
+        if (mChainNext && mMediaPlayer != null && mPrepared && mNext != null && mNext.prepared
+                && !mNextChained && !isCrossfadeTarget(mNext)) {
+            LogHelper.d(TAG, "Chaining next item ", mNext.item.getDescription().getMediaId());
+            mMediaPlayer.setNextMediaPlayer(mNext.player);
+            mNextChained = true;
+            applyVolume();
+        }
+    }
+
+    private void unchainNext() {
+        if (mNextChained && mMediaPlayer != null) {
+            mMediaPlayer.setNextMediaPlayer(null);
+        }
+        mNextChained = false;
+    }
+
+    /**
+     * Makes a prepared item's player the current one, recycling the current one.
+     */
+    private void adoptPrepared(PreparedItem prepared) {
+        unchainNext();
+        if (prepared == mNext) {
+            mNext = null;
+        } else if (prepared == mPrevious) {
+            mPrevious = null;
+        }
+        MediaPlayer previous = mMediaPlayer;
+        mMediaPlayer = prepared.player;
+        mPrepared = prepared.prepared;
+        mGain = prepared.gain;
+        mEndTrim = prepared.endTrim;
+        mPool.recycle(previous);
+    }
+
+    private void releasePrepared(PreparedItem prepared) {
+        if (prepared != null) {
+            mPool.recycle(prepared.player);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // Speculating on the previous item is the first thing to go, the next one is
+            // needed for gapless playback. Its player is released rather than pooled, the
+            // pool is emptied below.
+            if (mPrevious != null) {
+                mPrevious.player.release();
+                mPrevious = null;
+            }
+            mSpeculationResumeTime = SystemClock.uptimeMillis() + SPECULATION_BACKOFF;
+        }
+        if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            mPool.trim();
+        }
+    }
+
+    private void recordTransitionGap() {
+        if (mCompletionTime != 0) {
+            long gap = SystemClock.elapsedRealtime() - mCompletionTime;
+            mCompletionTime = 0;
+            mGappedTransitions++;
+            mTotalGap += gap;
+            mMaxGap = Math.max(mMaxGap, gap);
+            LogHelper.d(TAG, "Transition gap ", gap, "ms");
+        }
+    }
+
+    @Override
+    public void dump(PrintWriter writer) {
+        writer.println("Local playback:");
+        writer.println("  preparedHits=" + mPreparedHits + " preparedMisses=" + mPreparedMisses);
+        writer.println("  crossfadeDuration=" + mCrossfadeDuration + " crossfades=" + mCrossfades
+                + " silenceSkips=" + mSilenceSkips);
+        mPool.dump(writer);
+        writer.println("  gaplessTransitions=" + mGaplessTransitions
+                + " gappedTransitions=" + mGappedTransitions
+                + " avgGapMs=" + (mGappedTransitions == 0 ? 0 : mTotalGap / mGappedTransitions)
+                + " maxGapMs=" + mMaxGap);
+    }
+
     @Override
     public void seekTo(int position) {
         LogHelper.d(TAG, "seekTo called with ", position);
+        finishCrossfade();
 
         if (mMediaPlayer == null) {
             // If we do not have a current media player, simply update the current position
@@ -305,13 +810,9 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                 pause();
             }
         } else {  // we have audio focus:
-            if (mAudioFocus == AUDIO_NO_FOCUS_CAN_DUCK) {
-                mMediaPlayer.setVolume(VOLUME_DUCK, VOLUME_DUCK); // we'll be relatively quiet
-            } else {
-                if (mMediaPlayer != null) {
-                    mMediaPlayer.setVolume(VOLUME_NORMAL, VOLUME_NORMAL); // we can be loud again
-                } // else do something for remote client.
-            }
+            // Quiet when ducking, loud again otherwise. A running crossfade scales its volumes
+            // by the focus volume on its next step.
+            applyVolume();
             // If we were playing when we lost focus, we need to resume playing.
             if (mPlayOnFocusGain) {
                 if (mMediaPlayer != null && !mMediaPlayer.isPlaying()) {
@@ -320,6 +821,7 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                     if (mCurrentPosition == mMediaPlayer.getCurrentPosition()) {
                         mMediaPlayer.start();
                         mState = PlaybackState.STATE_PLAYING;
+                        recordTransitionGap();
                     } else {
                         mMediaPlayer.seekTo(mCurrentPosition);
                         mState = PlaybackState.STATE_BUFFERING;
@@ -328,6 +830,7 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                 mPlayOnFocusGain = false;
             }
         }
+        scheduleCrossfade();
         if (mCallback != null) {
             mCallback.onPlaybackStatusChanged(mState);
         }
@@ -338,7 +841,18 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
      * Implementation of {@link android.media.AudioManager.OnAudioFocusChangeListener}
      */
     @Override
-    public void onAudioFocusChange(int focusChange) {
+    public void onAudioFocusChange(final int focusChange) {
+        if (Looper.myLooper() != mHandler.getLooper()) {
+            // Focus changes are dispatched on the main thread, but the player is owned by the
+            // service's command thread.
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onAudioFocusChange(focusChange);
+                }
+            });
+            return;
+        }
         LogHelper.d(TAG, "onAudioFocusChange. focusChange=", focusChange);
         if (focusChange == AudioManager.AUDIOFOCUS_GAIN) {
             // We have gained focus:
@@ -373,11 +887,17 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     @Override
     public void onSeekComplete(MediaPlayer mp) {
         LogHelper.d(TAG, "onSeekComplete from MediaPlayer:", mp.getCurrentPosition());
+        if (mp != mMediaPlayer) {
+            // A prepared neighbour moved past its leading silence
+            return;
+        }
         mCurrentPosition = mp.getCurrentPosition();
         if (mState == PlaybackState.STATE_BUFFERING) {
             mMediaPlayer.start();
             mState = PlaybackState.STATE_PLAYING;
+            recordTransitionGap();
         }
+        scheduleCrossfade();
         if (mCallback != null) {
             mCallback.onPlaybackStatusChanged(mState);
         }
@@ -391,6 +911,25 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     @Override
     public void onCompletion(MediaPlayer player) {
         LogHelper.d(TAG, "onCompletion from MediaPlayer");
+        if (player == mFadingOut) {
+            // The outgoing track of a crossfade ran out, the service already moved on
+            finishCrossfade();
+            return;
+        }
+        if (player != mMediaPlayer) {
+            return;
+        }
+        if (mNextChained) {
+            // The next player has already taken over, the service only needs to catch up
+            mCurrentMediaId = mNext.item.getDescription().getMediaId();
+            mCurrentPosition = mNext.start;
+            mGaplessMediaId = mCurrentMediaId;
+            mNextChained = false;
+            adoptPrepared(mNext);
+            mGaplessTransitions++;
+        } else {
+            mCompletionTime = SystemClock.elapsedRealtime();
+        }
         // The media player finished playing the current song, so we go ahead
         // and start the next.
         if (mCallback != null) {
@@ -406,6 +945,20 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     @Override
     public void onPrepared(MediaPlayer player) {
         LogHelper.d(TAG, "onPrepared from MediaPlayer");
+        PreparedItem prepared = findPrepared(player);
+        if (prepared != null) {
+            prepared.prepared = true;
+            if (prepared.start > 0) {
+                // So it starts with sound, when chained too
+                player.seekTo(prepared.start);
+            }
+            chainNextMediaPlayer();
+            scheduleCrossfade();
+            return;
+        }
+        mPrepared = true;
+        mService.getLatencyTracker().stageFinished(PlaybackLatencyTracker.STAGE_PREPARE);
+        chainNextMediaPlayer();
         // The media player is done preparing. That means we can start playing if we
         // have audio focus.
         configMediaPlayerState();
@@ -421,6 +974,23 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
         LogHelper.e(TAG, "Media player error: what=" + what + ", extra=" + extra);
+        if (mp == mFadingOut) {
+            // Losing the tail of the outgoing track is not worth an error
+            finishCrossfade();
+            return true;
+        }
+        PreparedItem prepared = findPrepared(mp);
+        if (prepared != null) {
+            // The item will get another chance when its turn comes
+            if (prepared == mNext) {
+                unchainNext();
+                mNext = null;
+            } else {
+                mPrevious = null;
+            }
+            releasePrepared(prepared);
+            return true;
+        }
         if (mCallback != null) {
             mCallback.onError("MediaPlayer error " + what + " (" + extra + ")");
         }
@@ -435,25 +1005,31 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     private void createMediaPlayerIfNeeded() {
         LogHelper.d(TAG, "createMediaPlayerIfNeeded. needed? ", (mMediaPlayer==null));
         if (mMediaPlayer == null) {
-            mMediaPlayer = new MediaPlayer();
-
-            // Make sure the media player will acquire a wake-lock while
-            // playing. If we don't do that, the CPU might go to sleep while the
-            // song is playing, causing playback to stop.
-            mMediaPlayer.setWakeMode(mService.getApplicationContext(),
-                    PowerManager.PARTIAL_WAKE_LOCK);
-
-            // we want the media player to notify us when it's ready preparing,
-            // and when it's done playing:
-            mMediaPlayer.setOnPreparedListener(this);
-            mMediaPlayer.setOnCompletionListener(this);
-            mMediaPlayer.setOnErrorListener(this);
-            mMediaPlayer.setOnSeekCompleteListener(this);
+            mMediaPlayer = mPool.obtain();
         } else {
+            unchainNext();
             mMediaPlayer.reset();
         }
     }
 
+    private MediaPlayer createMediaPlayer() {
+        MediaPlayer mediaPlayer = new MediaPlayer();
+
+        // Make sure the media player will acquire a wake-lock while
+        // playing. If we don't do that, the CPU might go to sleep while the
+        // song is playing, causing playback to stop.
+        mediaPlayer.setWakeMode(mService.getApplicationContext(),
+                PowerManager.PARTIAL_WAKE_LOCK);
+
+        // we want the media player to notify us when it's ready preparing,
+        // and when it's done playing:
+        mediaPlayer.setOnPreparedListener(this);
+        mediaPlayer.setOnCompletionListener(this);
+        mediaPlayer.setOnErrorListener(this);
+        mediaPlayer.setOnSeekCompleteListener(this);
+        return mediaPlayer;
+    }
+
     /**
      * Releases resources used by the service for playback. This includes the
      * "foreground service" status, the wake locks and possibly the MediaPlayer.
@@ -467,10 +1043,18 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         mService.stopForeground(true);
 
         // stop and release the Media Player, if it's available
-        if (releaseMediaPlayer && mMediaPlayer != null) {
-            mMediaPlayer.reset();
-            mMediaPlayer.release();
+        if (releaseMediaPlayer) {
+            finishCrossfade();
+            mHandler.removeCallbacks(mCrossfadeStartRunnable);
+            unchainNext();
+            releasePrepared(mNext);
+            releasePrepared(mPrevious);
+            mNext = null;
+            mPrevious = null;
+            // Keep it warm for the next time we play
+            mPool.recycle(mMediaPlayer);
             mMediaPlayer = null;
+            mPrepared = false;
         }
 
         // we can also release the Wifi lock, if we're holding it
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music;
+
+import android.media.MediaMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import br.jm.music.audio.LoudnessMeter;
+import br.jm.music.audio.PcmRingBuffer;
+import br.jm.music.model.GainTable;
+import br.jm.music.model.MusicProvider;
+
+/**
+ * Measures the loudness of the catalog tracks missing from a {@link GainTable}.
+ */
+public class LoudnessAnalyzer extends TrackAnalyzer<LoudnessAnalyzer.Worker> {
+
+    private static final int CHUNK_SAMPLES = 8192;
+
+    private final GainTable mTable;
+    private final File mFile;
+
+    static class Worker {
+        final LoudnessMeter meter = new LoudnessMeter();
+        final PcmRingBuffer.Chunk chunk = new PcmRingBuffer.Chunk(CHUNK_SAMPLES);
+    }
+
+    public LoudnessAnalyzer(GainTable table, File file, ExecutorService executor) {
+        super(executor);
+        mTable = table;
+        mFile = file;
+    }
+
+    @Override
+    protected Worker createWorkerState() {
+        return new Worker();
+    }
+
+    @Override
+    protected boolean isAnalyzed(long trackId, long modified) {
+        return mTable.contains(trackId, modified);
+    }
+
+    @Override
+    protected boolean retain(Set<Long> trackIds) {
+        int before = mTable.size();
+        mTable.retain(trackIds);
+        return mTable.size() != before;
+    }
+
+    @Override
+    protected long analyze(MediaMetadata track, long trackId, long modified, Worker worker)
+            throws IOException {
+        String musicId = track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
+        LoudnessMeter meter = worker.meter;
+        MediaCodecSource decoder = MediaCodecSource.create(
+                track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE));
+        try {
+            meter.configure(decoder.getSampleRate(), decoder.getChannelCount());
+            boolean more = true;
+            while (more && !isReleased()) {
+                more = decoder.read(worker.chunk);
+                meter.process(worker.chunk.data, 0, worker.chunk.length);
+            }
+        } finally {
+            decoder.release();
+        }
+        if (!isReleased()) {
+            mTable.put(trackId, modified, getMusicProvider().getAlbumIdFromMusic(musicId),
+                    (float) meter.getIntegratedLoudness(), meter.getTruePeak(),
+                    meter.getGatedBlockCount());
+        }
+        return meter.getDurationUs();
+    }
+
+    @Override
+    protected void write() throws IOException {
+        mTable.updateAlbums();
+        mTable.write(mFile);
+    }
+
+    @Override
+    protected void dumpTable(PrintWriter writer) {
+        mTable.dump(writer);
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import br.jm.music.audio.Mp3FrameReader;
+import br.jm.music.audio.Mp3SeekTable;
+import br.jm.music.audio.PcmPipeline;
+import br.jm.music.audio.PcmRingBuffer;
+import br.jm.music.utils.LogHelper;
+
+/**
+ * Decodes the audio track of a file with {@link MediaCodec}, turning its 16 bit output into
+ * float samples. Only used on the decoder thread of a {@link PcmPipeline}.
+ * <p/>
+ * Samples are read with a {@link MediaExtractor}, except for MP3 files with a seek table,
+ * whose frames are read straight from the memory mapped file so seeks jump to the right frame
+ * even in long VBR files, where the extractor can only estimate positions.
+ */
+public class MediaCodecSource implements PcmPipeline.Source {
+
+    private static final String TAG = LogHelper.makeLogTag(MediaCodecSource.class);
+
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+    private static final float SHORT_SCALE = 1f / 32768;
+
+    // Exactly one of these provides the samples
+    private final MediaExtractor mExtractor;
+    private final Mp3FrameReader mFrames;
+    private final MediaCodec mCodec;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private final int mSampleRate;
+    private final int mChannelCount;
+
+    private boolean mInputDone;
+    private boolean mOutputDone;
+    // Output buffer being copied, if any
+    private int mOutputIndex = -1;
+    private ByteBuffer mOutput;
+    private int mOutputStart;
+    private long mOutputTimeUs;
+    // Samples before this time are dropped, so seeks land on the exact frame
+    private long mSkipUntilUs;
+
+    private MediaCodecSource(MediaExtractor extractor, Mp3FrameReader frames, MediaCodec codec,
+                             MediaFormat format) {
+        mExtractor = extractor;
+        mFrames = frames;
+        mCodec = codec;
+        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        mChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+    }
+
+    /**
+     * Opens the first audio track of the given file and starts its decoder.
+     */
+    public static MediaCodecSource create(String source) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(source);
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    codec = MediaCodec.createDecoderByType(mime);
+                    codec.configure(format, null, null, 0);
+                    codec.start();
+                    return new MediaCodecSource(extractor, null, codec, format);
+                }
+            }
+            throw new IOException("No audio track in " + source);
+        } catch (IOException | RuntimeException e) {
+            if (codec != null) {
+                codec.release();
+            }
+            extractor.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an MP3 file with its seek table, see {@link SeekIndexCache}, or any file the usual
+     * way if there is no table.
+     */
+    public static MediaCodecSource create(String source, Mp3SeekTable seekTable)
+            throws IOException {
+        if (seekTable == null) {
+            return create(source);
+        }
+        ByteBuffer buffer;
+        FileInputStream is = new FileInputStream(source);
+        try {
+            // The mapping stays valid once the file is closed
+            buffer = is.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    new File(source).length());
+        } finally {
+            is.close();
+        }
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_MPEG,
+                seekTable.sampleRate, seekTable.channelCount);
+        MediaCodec codec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_AUDIO_MPEG);
+        try {
+            Mp3FrameReader frames = new Mp3FrameReader(buffer, seekTable);
+            codec.configure(format, null, null, 0);
+            codec.start();
+            return new MediaCodecSource(null, frames, codec, format);
+        } catch (RuntimeException e) {
+            codec.release();
+            throw e;
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    @Override
+    public boolean read(PcmRingBuffer.Chunk chunk) throws IOException {
+        float[] data = chunk.data;
+        int length = 0;
+        chunk.timeUs = -1;
+        while (length < data.length) {
+            if (mOutput == null) {
+                if (mOutputDone) {
+                    break;
+                }
+                feedInput();
+                dequeueOutput();
+                continue;
+            }
+            if (chunk.timeUs < 0) {
+                int frames = (mOutput.position() - mOutputStart) / 2 / mChannelCount;
+                chunk.timeUs = mOutputTimeUs + frames * 1000000L / mSampleRate;
+            }
+            int samples = Math.min(data.length - length, mOutput.remaining() / 2);
+            for (int i = 0; i < samples; i++) {
+                data[length++] = mOutput.getShort() * SHORT_SCALE;
+            }
+            if (mOutput.remaining() < 2) {
+                releaseOutput();
+            }
+        }
+        chunk.length = length;
+        if (chunk.timeUs < 0) {
+            chunk.timeUs = mOutputTimeUs;
+        }
+        return !mOutputDone || mOutput != null;
+    }
+
+    private void feedInput() {
+        while (!mInputDone) {
+            int index = mCodec.dequeueInputBuffer(0);
+            if (index < 0) {
+                return;
+            }
+            ByteBuffer input = mCodec.getInputBuffer(index);
+            int size = mFrames != null ? mFrames.readFrame(input)
+                    : mExtractor.readSampleData(input, 0);
+            if (size < 0) {
+                mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mInputDone = true;
+            } else if (mFrames != null) {
+                mCodec.queueInputBuffer(index, 0, size, mFrames.getFrameTimeUs(), 0);
+                mFrames.advance();
+            } else {
+                mCodec.queueInputBuffer(index, 0, size, mExtractor.getSampleTime(), 0);
+                mExtractor.advance();
+            }
+        }
+    }
+
+    private void dequeueOutput() throws IOException {
+        int index = mCodec.dequeueOutputBuffer(mInfo, DEQUEUE_TIMEOUT_US);
+        if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            MediaFormat format = mCodec.getOutputFormat();
+            if (format.getInteger(MediaFormat.KEY_SAMPLE_RATE) != mSampleRate
+                    || format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) != mChannelCount) {
+                throw new IOException("Unsupported output format change: " + format);
+            }
+            return;
+        }
+        if (index < 0) {
+            return;
+        }
+        if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mOutputDone = true;
+        }
+        ByteBuffer output = mCodec.getOutputBuffer(index);
+        if (mInfo.size <= 0 || output == null) {
+            mCodec.releaseOutputBuffer(index, false);
+            return;
+        }
+        output.order(ByteOrder.nativeOrder());
+        output.limit(mInfo.offset + mInfo.size);
+        output.position(mInfo.offset);
+        mOutputIndex = index;
+        mOutput = output;
+        mOutputStart = mInfo.offset;
+        mOutputTimeUs = mInfo.presentationTimeUs;
+
+        if (mSkipUntilUs > mOutputTimeUs) {
+            long frames = (mSkipUntilUs - mOutputTimeUs) * mSampleRate / 1000000;
+            long bytes = Math.min(frames * 2 * mChannelCount, output.remaining());
+            output.position(output.position() + (int) bytes);
+            if (output.remaining() < 2) {
+                releaseOutput();
+                return;
+            }
+        }
+        mSkipUntilUs = 0;
+    }
+
+    private void releaseOutput() {
+        if (mOutputIndex >= 0) {
+            mCodec.releaseOutputBuffer(mOutputIndex, false);
+        }
+        mOutputIndex = -1;
+        mOutput = null;
+    }
+
+    @Override
+    public void seekTo(long timeUs) {
+        LogHelper.d(TAG, "seekTo ", timeUs);
+        releaseOutput();
+        mCodec.flush();
+        if (mFrames != null) {
+            mFrames.seekTo(timeUs);
+        } else {
+            mExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+        mInputDone = false;
+        mOutputDone = false;
+        mSkipUntilUs = timeUs;
+    }
+
+    @Override
+    public void release() {
+        try {
+            releaseOutput();
+            mCodec.stop();
+        } catch (IllegalStateException e) {
+            LogHelper.w(TAG, e, "Error stopping the decoder");
+        }
+        mCodec.release();
+        if (mExtractor != null) {
+            mExtractor.release();
+        }
+    }
+}
@@ -30,9 +30,14 @@ import android.media.MediaMetadata;
 import android.media.session.MediaController;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import java.io.PrintWriter;
 
 import br.jm.music.ui.MainActivity;
 import br.jm.music.utils.BitmapHelper;
+import br.jm.music.utils.ImageLoader;
 import br.jm.music.utils.LogHelper;
 import br.jm.music.utils.ResourceHelper;
 
@@ -46,6 +51,11 @@ public class MediaNotificationManager extends BroadcastReceiver {
 
     private static final int NOTIFICATION_ID = 412;
     private static final int REQUEST_CODE = 100;
+    // Chronometer drift below which the notification is not worth reposting.
+    private static final long WHEN_TOLERANCE = 1000;
+    // Actions that show up as notification buttons
+    private static final long VISIBLE_ACTIONS = PlaybackState.ACTION_SKIP_TO_PREVIOUS
+            | PlaybackState.ACTION_SKIP_TO_NEXT;
 
     public static final String ACTION_PAUSE = "br.jm.music.pause";
     public static final String ACTION_PLAY = "br.jm.music.play";
@@ -73,6 +83,23 @@ public class MediaNotificationManager extends BroadcastReceiver {
 
     private boolean mStarted = false;
 
+    // What the posted notification shows, to skip rebuilding it when nothing visible changed
+    private boolean mShownPlaying;
+    private long mShownActions;
+    private long mShownWhen;
+    private String mShownMediaId;
+    private CharSequence mShownTitle;
+    private CharSequence mShownSubtitle;
+    private String mShownIconUri;
+
+    // Icon of the track art at mArtPath, null until loaded
+    private String mArtPath;
+    private Bitmap mArt;
+    private boolean mArtRequesting;
+
+    private long mBuiltCount;
+    private long mSkippedCount;
+
     public MediaNotificationManager(MusicService service) {
         mService = service;
         updateSessionToken();
@@ -205,10 +232,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
                     state.getState() == PlaybackState.STATE_NONE)) {
                 stopNotification();
             } else {
-                Notification notification = createNotification();
-                if (notification != null) {
-                    mNotificationManager.notify(NOTIFICATION_ID, notification);
-                }
+                updateNotification();
             }
         }
 
@@ -216,10 +240,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
         public void onMetadataChanged(MediaMetadata metadata) {
             mMetadata = metadata;
             LogHelper.d(TAG, "Received new metadata ", metadata);
-            Notification notification = createNotification();
-            if (notification != null) {
-                mNotificationManager.notify(NOTIFICATION_ID, notification);
-            }
+            updateNotification();
         }
 
         @Override
@@ -230,11 +251,83 @@ public class MediaNotificationManager extends BroadcastReceiver {
         }
     };
 
+    /**
+     * Reposts the notification, unless the current state and metadata look exactly like the
+     * ones it already shows.
+     */
+    private void updateNotification() {
+        if (!hasVisibleChanges()) {
+            mSkippedCount++;
+            return;
+        }
+        Notification notification = createNotification();
+        if (notification != null) {
+            mNotificationManager.notify(NOTIFICATION_ID, notification);
+        }
+    }
+
+    private boolean hasVisibleChanges() {
+        if (mMetadata == null || mPlaybackState == null) {
+            return true;
+        }
+        MediaDescription description = mMetadata.getDescription();
+        String iconUri = description.getIconUri() != null
+                ? description.getIconUri().toString() : null;
+        return isPlaying() != mShownPlaying
+                || (mPlaybackState.getActions() & VISIBLE_ACTIONS) != mShownActions
+                || Math.abs(getWhen() - mShownWhen) > WHEN_TOLERANCE
+                || !TextUtils.equals(description.getMediaId(), mShownMediaId)
+                || !TextUtils.equals(description.getTitle(), mShownTitle)
+                || !TextUtils.equals(description.getSubtitle(), mShownSubtitle)
+                || !TextUtils.equals(iconUri, mShownIconUri);
+    }
+
+    private void rememberShown() {
+        MediaDescription description = mMetadata.getDescription();
+        mShownPlaying = isPlaying();
+        mShownActions = mPlaybackState.getActions() & VISIBLE_ACTIONS;
+        mShownWhen = getWhen();
+        mShownMediaId = description.getMediaId();
+        mShownTitle = description.getTitle();
+        mShownSubtitle = description.getSubtitle();
+        mShownIconUri = description.getIconUri() != null
+                ? description.getIconUri().toString() : null;
+    }
+
+    private boolean isPlaying() {
+        return mPlaybackState.getState() == PlaybackState.STATE_PLAYING;
+    }
+
+    /**
+     * @return the chronometer base shown for the current state, or 0 if it is hidden. The
+     * position is carried forward from the time the state was set, at its speed, so a state
+     * delivered late or after a seek or speed change gives the right base.
+     */
+    private long getWhen() {
+        if (!isPlaying() || mPlaybackState.getPosition() < 0) {
+            return 0;
+        }
+        long position = mPlaybackState.getPosition();
+        long updateTime = mPlaybackState.getLastPositionUpdateTime();
+        if (updateTime > 0) {
+            position += (long) ((SystemClock.elapsedRealtime() - updateTime)
+                    * mPlaybackState.getPlaybackSpeed());
+        }
+        return System.currentTimeMillis() - position;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Notification:");
+        writer.println("  started=" + mStarted + " built=" + mBuiltCount
+                + " skipped=" + mSkippedCount);
+    }
+
     private Notification createNotification() {
         LogHelper.d(TAG, "updateNotificationMetadata. mMetadata=" + mMetadata);
         if (mMetadata == null || mPlaybackState == null) {
             return null;
         }
+        long startTime = System.nanoTime();
 
         Notification.Builder notificationBuilder = new Notification.Builder(mService);
         int playPauseButtonPosition = 0;
@@ -261,21 +354,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
 
         MediaDescription description = mMetadata.getDescription();
 
-        String fetchArtUrl = null;
-        Bitmap art = null;
-        if (description.getIconUri() != null) {
-            // This sample assumes the iconUri will be a valid URL formatted String, but
-            // it can actually be any valid Android Uri formatted String.
-            // async fetch the album art icon
-            String path = description.getIconUri().toString();
-            art = BitmapHelper.readFromDisk(path, MusicApplication.getArtSizeIcon());
-            if (art == null) {
-                fetchArtUrl = path;
-                // use a placeholder art while the remote art is being downloaded
-                art = BitmapHelper.getDefault(mService.getResources(),
-                        MusicApplication.DEF_ART_SIZE_ICON);
-            }
-        }
+        Bitmap art = getArt(description);
 
         notificationBuilder
                 .setStyle(new Notification.MediaStyle()
@@ -291,16 +370,56 @@ public class MediaNotificationManager extends BroadcastReceiver {
                 .setContentText(description.getSubtitle())
                 .setLargeIcon(art);
 
+        rememberShown();
         setNotificationPlaybackState(notificationBuilder);
-        if (fetchArtUrl != null) {
-            Bitmap bitmap = BitmapHelper.readFromDisk(fetchArtUrl, MusicApplication.getArtSizeIcon());
-            notificationBuilder.setLargeIcon(bitmap);
-            mNotificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
-        }
 
-        return notificationBuilder.build();
+        mBuiltCount++;
+        Notification notification = notificationBuilder.build();
+        mService.getLatencyTracker().recordNotificationBuild(System.nanoTime() - startTime);
+        return notification;
+    }
+
+    /**
+     * @return the icon of the track art: the one in the metadata, else the one loaded for its
+     * path, else the default art while it loads. The notification is reposted once it is.
+     */
+    private Bitmap getArt(MediaDescription description) {
+        if (description.getIconBitmap() != null) {
+            return description.getIconBitmap();
+        }
+        if (description.getIconUri() == null) {
+            return null;
+        }
+        String path = description.getIconUri().toString();
+        if (!path.equals(mArtPath)) {
+            mArtPath = path;
+            mArt = null;
+            // Set right away when in memory, no need to repost then
+            mArtRequesting = true;
+            MusicApplication.getInstance().getImageLoader()
+                    .load(path, MusicApplication.getArtSizeIcon(), false, mArtCallback);
+            mArtRequesting = false;
+        }
+        return mArt != null ? mArt : BitmapHelper.getDefault(mService.getResources(),
+                MusicApplication.DEF_ART_SIZE_ICON);
     }
 
+    private final ImageLoader.Callback mArtCallback = new ImageLoader.Callback() {
+        @Override
+        public void onImageLoaded(String path, Bitmap bitmap, int[] colors) {
+            if (bitmap == null || !path.equals(mArtPath)) {
+                return;
+            }
+            mArt = bitmap;
+            if (!mArtRequesting && mStarted) {
+                Notification notification = createNotification();
+                if (notification != null) {
+                    mNotificationManager.notify(NOTIFICATION_ID, notification);
+                }
+            }
+        }
+    };
+
     private void addPlayPauseAction(Notification.Builder builder) {
         LogHelper.d(TAG, "updatePlayPauseAction");
         String label;
@@ -327,10 +446,12 @@ public class MediaNotificationManager extends BroadcastReceiver {
         }
         if (mPlaybackState.getState() == PlaybackState.STATE_PLAYING
                 && mPlaybackState.getPosition() >= 0) {
+            // The same base hasVisibleChanges() compares against, as remembered when built
+            long when = mShownWhen;
             LogHelper.d(TAG, "updateNotificationPlaybackState. updating playback position to ",
-                    (System.currentTimeMillis() - mPlaybackState.getPosition()) / 1000, " seconds");
+                    (System.currentTimeMillis() - when) / 1000, " seconds");
             builder
-                .setWhen(System.currentTimeMillis() - mPlaybackState.getPosition())
+                .setWhen(when)
                 .setShowWhen(true)
                 .setUsesChronometer(true);
         } else {
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music;
+
+import android.media.MediaPlayer;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+import br.jm.music.utils.LogHelper;
+
+/**
+ * A small pool of idle {@link MediaPlayer}s, so getting a player ready doesn't have to pay for
+ * creating the native one. Not thread safe: it must only be used on the thread the players are
+ * created on, since that is where their events are delivered.
+ */
+public class MediaPlayerPool {
+
+    private static final String TAG = LogHelper.makeLogTag(MediaPlayerPool.class);
+
+    public interface Factory {
+        /**
+         * Creates a new player, with its listeners already set.
+         */
+        MediaPlayer create();
+    }
+
+    private final Factory mFactory;
+    private final int mMaxIdle;
+    private final ArrayDeque<MediaPlayer> mIdle = new ArrayDeque<>();
+
+    private int mCreated;
+    private int mReused;
+    private int mEvicted;
+
+    public MediaPlayerPool(Factory factory, int maxIdle) {
+        mFactory = factory;
+        mMaxIdle = maxIdle;
+    }
+
+    /**
+     * @return an idle player in the idle state, or a new one if the pool is empty.
+     */
+    public MediaPlayer obtain() {
+        MediaPlayer player = mIdle.poll();
+        if (player != null) {
+            mReused++;
+            return player;
+        }
+        mCreated++;
+        return mFactory.create();
+    }
+
+    /**
+     * Resets the player and keeps it for later, or releases it if the pool is full.
+     */
+    public void recycle(MediaPlayer player) {
+        if (player == null) {
+            return;
+        }
+        if (mIdle.size() >= mMaxIdle) {
+            player.release();
+            return;
+        }
+        player.reset();
+        mIdle.add(player);
+    }
+
+    /**
+     * Fills the pool up to its capacity.
+     */
+    public void prewarm() {
+        while (mIdle.size() < mMaxIdle) {
+            mCreated++;
+            mIdle.add(mFactory.create());
+        }
+    }
+
+    /**
+     * Releases all the idle players.
+     */
+    public void trim() {
+        if (!mIdle.isEmpty()) {
+            LogHelper.d(TAG, "Releasing ", mIdle.size(), " idle players");
+        }
+        MediaPlayer player;
+        while ((player = mIdle.poll()) != null) {
+            player.release();
+            mEvicted++;
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("  pool: idle=" + mIdle.size() + " created=" + mCreated
+                + " reused=" + mReused + " evicted=" + mEvicted);
+    }
+}
@@ -19,10 +19,19 @@ import android.app.Application;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
+import java.io.File;
+
 import com.google.android.gms.analytics.GoogleAnalytics;
 import com.google.android.gms.analytics.Tracker;
 
+import br.jm.music.utils.BitmapHelper;
+import br.jm.music.utils.BitmapPool;
+import br.jm.music.utils.EmbeddedArtCache;
+import br.jm.music.utils.FolderArtIndex;
+import br.jm.music.utils.ImageLoader;
 import br.jm.music.utils.LruBitmapCache;
+import br.jm.music.utils.MemoryTrimmer;
+import br.jm.music.utils.ThumbnailPack;
 
 /**
  * The {@link Application} for the uAmp application.
@@ -39,10 +48,24 @@ public class MusicApplication extends Application {
     public static final int DEF_ART_SIZE_SMALL = 270;
     public static final int DEF_ART_SIZE_ICON = 100;
 
+    // File name of the album thumbnails, in the cache directory
+    private static final String THUMBNAIL_PACK_FILE = "thumbnails.pack";
+    // Directory of the covers read from the tracks, in the cache directory
+    private static final String EMBEDDED_ART_DIR = "embedded_art";
+    // File name of the index of the images next to the tracks, in the cache directory
+    private static final String FOLDER_ART_INDEX_FILE = "folder_art.index";
+
     private int mArtSizeNormal;
     private int mArtSizeSmall;
 
     private LruBitmapCache lruBitmapCache;
+    private BitmapPool mBitmapPool;
+    private ThumbnailPack mThumbnailPack;
+    private EmbeddedArtCache mEmbeddedArtCache;
+    private FolderArtIndex mFolderArtIndex;
+    private ImageLoader mImageLoader;
+    // Caches register with it as they are created
+    private final MemoryTrimmer mMemoryTrimmer = new MemoryTrimmer();
     private Tracker mTracker;
 
     private static MusicApplication mInstance;
@@ -55,6 +78,26 @@ public class MusicApplication extends Application {
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
         mArtSizeNormal = sharedPreferences.getInt(PREF_ART_SIZE_NORMAL, 0);
         mArtSizeSmall = sharedPreferences.getInt(PREF_ART_SIZE_SMALL, 0);
+
+        mMemoryTrimmer.register("bitmapBounds", new MemoryTrimmer.Trimmable() {
+            @Override
+            public long trimMemory(int level) {
+                BitmapHelper.trimBounds(level);
+                return 0;
+            }
+        });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mMemoryTrimmer.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mMemoryTrimmer.trimMemory(TRIM_MEMORY_COMPLETE);
     }
 
     public static synchronized MusicApplication getInstance() {
@@ -92,13 +135,57 @@ public class MusicApplication extends Application {
                 .apply();
     }
 
-    public LruBitmapCache getLruBitmapCache() {
+    public synchronized LruBitmapCache getLruBitmapCache() {
         if (lruBitmapCache == null) {
             lruBitmapCache = new LruBitmapCache();
+            mMemoryTrimmer.register("bitmapCache", lruBitmapCache);
         }
         return this.lruBitmapCache;
     }
 
+    public synchronized BitmapPool getBitmapPool() {
+        if (mBitmapPool == null) {
+            // Enough for a few full size intermediate decodes
+            mBitmapPool = new BitmapPool((int) (Runtime.getRuntime().maxMemory() / 32));
+            mMemoryTrimmer.register("bitmapPool", mBitmapPool);
+        }
+        return mBitmapPool;
+    }
+
+    public synchronized ThumbnailPack getThumbnailPack() {
+        if (mThumbnailPack == null) {
+            mThumbnailPack = new ThumbnailPack(new File(getCacheDir(), THUMBNAIL_PACK_FILE));
+        }
+        return mThumbnailPack;
+    }
+
+    public synchronized EmbeddedArtCache getEmbeddedArtCache() {
+        if (mEmbeddedArtCache == null) {
+            mEmbeddedArtCache = new EmbeddedArtCache(new File(getCacheDir(), EMBEDDED_ART_DIR));
+        }
+        return mEmbeddedArtCache;
+    }
+
+    public synchronized FolderArtIndex getFolderArtIndex() {
+        if (mFolderArtIndex == null) {
+            mFolderArtIndex = new FolderArtIndex(new File(getCacheDir(), FOLDER_ART_INDEX_FILE));
+            mMemoryTrimmer.register("folderArtIndex", mFolderArtIndex);
+        }
+        return mFolderArtIndex;
+    }
+
+    public synchronized ImageLoader getImageLoader() {
+        if (mImageLoader == null) {
+            mImageLoader = new ImageLoader();
+            mMemoryTrimmer.register("imageLoader", mImageLoader);
+        }
+        return mImageLoader;
+    }
+
+    public MemoryTrimmer getMemoryTrimmer() {
+        return mMemoryTrimmer;
+    }
+
     public synchronized Tracker getTracker() {
         if (mTracker == null) {
             GoogleAnalytics analytics = GoogleAnalytics.getInstance(this);
@@ -17,8 +17,10 @@
 package br.jm.music;
 
 import android.app.PendingIntent;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.media.MediaDescription;
 import android.media.MediaMetadata;
 import android.media.browse.MediaBrowser;
@@ -28,25 +30,41 @@ import android.media.session.PlaybackState;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
 import android.service.media.MediaBrowserService;
 import android.support.v4.content.LocalBroadcastManager;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
+import br.jm.music.audio.DspChain;
+import br.jm.music.audio.TimeStretcher;
 import br.jm.music.model.Album;
+import br.jm.music.model.GainTable;
 import br.jm.music.model.MusicProvider;
+import br.jm.music.model.QueueCheckpoint;
+import br.jm.music.model.QueueCheckpointWriter;
+import br.jm.music.model.SilenceTable;
 import br.jm.music.ui.BaseActivity;
 import br.jm.music.ui.MainActivity;
-import br.jm.music.utils.BitmapHelper;
 import br.jm.music.utils.CarHelper;
+import br.jm.music.utils.ImageLoader;
 import br.jm.music.utils.LogHelper;
+import br.jm.music.utils.MemoryTrimmer;
 import br.jm.music.utils.MediaIDHelper;
+import br.jm.music.utils.PrefUtils;
+import br.jm.music.utils.QueueEditHelper;
 import br.jm.music.utils.QueueHelper;
 import br.jm.music.utils.WearHelper;
 
@@ -112,12 +130,41 @@ import static br.jm.music.utils.MediaIDHelper.createBrowseCategoryMediaID;
  *
  * @see <a href="README.md">README.md</a> for more details.
  */
-public class MusicService extends MediaBrowserService implements Playback.Callback {
+public class MusicService extends MediaBrowserService implements Playback.Callback,
+        CommandLoop.Callback {
 
     // Extra on MediaSession that indicates if we are shuffling
     public static final String EXTRA_SHUFFLING = "br.jm.music.EXTRA_SHUFFLING";
     // Extra on MediaSession that indicates if we are repeating
     public static final String EXTRA_REPEAT_MODE = "br.jm.music.EXTRA_REPEAT_MODE";
+    // Extra on MediaSession with the playback tempo (float, 1 being the original one)
+    public static final String EXTRA_PLAYBACK_SPEED = "br.jm.music.EXTRA_PLAYBACK_SPEED";
+    // Range of tempos, applied by PCM based engines only
+    public static final float MIN_PLAYBACK_SPEED = TimeStretcher.MIN_SPEED;
+    public static final float MAX_PLAYBACK_SPEED = TimeStretcher.MAX_SPEED;
+    // Extra on MediaSession with the crossfade duration between tracks, in ms (0 for none)
+    public static final String EXTRA_CROSSFADE_DURATION = "br.jm.music.EXTRA_CROSSFADE_DURATION";
+    // Longest crossfade allowed, in ms
+    public static final int MAX_CROSSFADE_DURATION = 12000;
+    // Extra of CMD_SET_PLAYBACK_ENGINE with one of the ENGINE_ values
+    public static final String EXTRA_PLAYBACK_ENGINE = "br.jm.music.EXTRA_PLAYBACK_ENGINE";
+    // Playback engines: MediaPlayer, or MediaCodec decoding into an AudioTrack
+    public static final int ENGINE_MEDIA_PLAYER = 0;
+    public static final int ENGINE_AUDIO_TRACK = 1;
+    // Extras of CMD_SET_EQUALIZER: band frequencies in Hz and gains in dB (float arrays of
+    // the same length), and the preamp gain in dB (float)
+    public static final String EXTRA_EQ_FREQUENCIES = "br.jm.music.EXTRA_EQ_FREQUENCIES";
+    public static final String EXTRA_EQ_GAINS = "br.jm.music.EXTRA_EQ_GAINS";
+    public static final String EXTRA_EQ_PREAMP = "br.jm.music.EXTRA_EQ_PREAMP";
+    // Extra on MediaSession with one of the NORMALIZATION_ values
+    public static final String EXTRA_NORMALIZATION_MODE = "br.jm.music.EXTRA_NORMALIZATION_MODE";
+    // Loudness normalization: none, each track on its own, or whole albums keeping the level
+    // differences between their tracks
+    public static final int NORMALIZATION_OFF = 0;
+    public static final int NORMALIZATION_TRACK = 1;
+    public static final int NORMALIZATION_ALBUM = 2;
+    // Extra on MediaSession indicating whether the silence at the ends of tracks is skipped
+    public static final String EXTRA_TRIM_SILENCE = "br.jm.music.EXTRA_TRIM_SILENCE";
     // The action of the incoming Intent indicating that it contains a command
     // to be executed (see {@link #onStartCommand})
     public static final String ACTION_CMD = "br.jm.music.ACTION_CMD";
@@ -134,6 +181,9 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     public static final String CMD_GET_ARTIST = "CMD_GET_ARTIST";
     // A value of a CMD_NAME key that indicates that a song should be added to the queue.
     public static final String CMD_ADD_TO_QUEUE = "CMD_ADD_TO_QUEUE";
+    // A value of a CMD_NAME key that applies the batch of queue edits in the extras of the
+    // incoming Intent, as the QueueEditHelper.ACTION_EDIT_QUEUE custom action does.
+    public static final String CMD_EDIT_QUEUE = "CMD_EDIT_QUEUE";
     // A value of a CMD_NAME key that indicates that two song should be swapped in the queue.
     public static final String CMD_SWAP_QUEUE = "CMD_SWAP_QUEUE";
     // A value of a CMD_NAME key that indicates that a song should be removed from the queue.
@@ -144,6 +194,24 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     public static final String CMD_TOGGLE_SHUFFLE = "CMD_TOGGLE_SHUFFLE";
     // A value of a CMD_NAME key that toggles repeation.
     public static final String CMD_TOGGLE_REPEAT = "CMD_TOGGLE_REPEAT";
+    // A value of a CMD_NAME key that sets the playback tempo to the EXTRA_PLAYBACK_SPEED of
+    // the incoming Intent.
+    public static final String CMD_SET_PLAYBACK_SPEED = "CMD_SET_PLAYBACK_SPEED";
+    // A value of a CMD_NAME key that sets the crossfade duration to the
+    // EXTRA_CROSSFADE_DURATION of the incoming Intent.
+    public static final String CMD_SET_CROSSFADE = "CMD_SET_CROSSFADE";
+    // A value of a CMD_NAME key that switches to the EXTRA_PLAYBACK_ENGINE of the
+    // incoming Intent.
+    public static final String CMD_SET_PLAYBACK_ENGINE = "CMD_SET_PLAYBACK_ENGINE";
+    // A value of a CMD_NAME key that sets the software equalizer of PCM based engines from
+    // the EXTRA_EQ_ extras of the incoming Intent.
+    public static final String CMD_SET_EQUALIZER = "CMD_SET_EQUALIZER";
+    // A value of a CMD_NAME key that sets the loudness normalization to the
+    // EXTRA_NORMALIZATION_MODE of the incoming Intent, from the next track on.
+    public static final String CMD_SET_NORMALIZATION = "CMD_SET_NORMALIZATION";
+    // A value of a CMD_NAME key that turns the skipping of the silence at the ends of tracks on
+    // or off, from the EXTRA_TRIM_SILENCE of the incoming Intent.
+    public static final String CMD_SET_TRIM_SILENCE = "CMD_SET_TRIM_SILENCE";
     // The key in the extras of the incoming Intent indicating the song's media ID
     public static final String EXTRA_MEDIA_ID = "EXTRA_MEDIA_ID";
     // The key in the extras of the incoming Intent indicating the song's index in the queue
@@ -162,20 +230,103 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     public static final int REPEAT_ALL = 1;
     // Flag to repeat the current song.
     public static final int REPEAT_ONCE = 2;
+    // File name of the persisted playing queue.
+    private static final String QUEUE_CHECKPOINT_FILE = "queue.ckpt";
+    // Directory of the MP3 seek tables, in the cache directory.
+    private static final String SEEK_INDEX_DIRECTORY = "seek";
+    // File name of the measured loudness of the tracks.
+    private static final String GAIN_TABLE_FILE = "gains.tbl";
+    // File name of the silence found at the ends of the tracks.
+    private static final String SILENCE_TABLE_FILE = "silence.tbl";
+    // Interval between playback position checkpoints while playing.
+    private static final int CHECKPOINT_INTERVAL = 10000;
+    // Number of remaining tracks on a random queue that makes it grow.
+    private static final int RANDOM_QUEUE_EXTEND_THRESHOLD = 3;
+    // Number of played tracks a random queue keeps before the current one when it grows.
+    private static final int RANDOM_QUEUE_HISTORY = 50;
+
+    // Commands processed by the command loop
+    private static final int OP_INTENT = 0;
+    private static final int OP_PLAY = 1;
+    private static final int OP_PLAY_FROM_MEDIA_ID = 2;
+    private static final int OP_PLAY_FROM_SEARCH = 3;
+    private static final int OP_SEARCH_CATALOG_READY = 4;
+    private static final int OP_SKIP_TO_QUEUE_ITEM = 5;
+    private static final int OP_SKIP_TO_NEXT = 6;
+    private static final int OP_SKIP_TO_PREVIOUS = 7;
+    private static final int OP_SEEK_TO = 8;
+    private static final int OP_PAUSE = 9;
+    private static final int OP_STOP = 10;
+    private static final int OP_CUSTOM_ACTION = 11;
+    private static final int OP_RESTORE_QUEUE = 12;
+    private static final int OP_COMPLETION = 13;
+    private static final int OP_PLAYBACK_STATUS_CHANGED = 14;
+    private static final int OP_ERROR = 15;
+    private static final int OP_METADATA_CHANGED = 16;
+    private static final int OP_DESTROY = 17;
+    private static final int OP_TRIM_MEMORY = 18;
+
+    // Names registered with the memory trimmer
+    private static final String TRIM_PLAYBACK = "playback";
+    private static final String TRIM_SEEK_INDEX = "seekIndex";
 
     // Music catalog manager
     private MusicProvider mMusicProvider;
     private MediaSession mSession;
+    // Coalesces the updates to mSession, which must only be made through it.
+    private SessionPublisher mPublisher;
     // "Now playing" queue:
     private List<MediaSession.QueueItem> mPlayingQueue;
     private int mCurrentIndexOnQueue;
+    private String mQueueTitle;
+    // Whether the playing queue is a random one, that can be extended as it's played.
+    private boolean mRandomQueue;
     private MediaNotificationManager mMediaNotificationManager;
+    // Times skip and play requests, up to the new track playing.
+    private final PlaybackLatencyTracker mLatencyTracker = new PlaybackLatencyTracker();
+    // Equalizer shared by the PCM based engines, so it survives switching between them.
+    private final DspChain mDspChain = new DspChain();
+    private GainTable mGainTable;
+    private SilenceTable mSilenceTable;
+    // Background threads shared by the analyzers of the catalog tracks.
+    private ExecutorService mAnalyzerExecutor;
+    private LoudnessAnalyzer mLoudnessAnalyzer;
+    private SilenceAnalyzer mSilenceAnalyzer;
+    private final MetadataArtLoader mMetadataArtLoader = new MetadataArtLoader();
+    private SeekIndexCache mSeekIndexCache;
+    // Releases the idle and prepared players, on the command loop that owns them
+    private final MemoryTrimmer.Trimmable mPlaybackTrimmable = new MemoryTrimmer.Trimmable() {
+        @Override
+        public long trimMemory(int level) {
+            mCommandLoop.submit(new CommandLoop.Command(OP_TRIM_MEMORY, level));
+            // Mostly native memory, released later
+            return 0;
+        }
+    };
     // Indicates whether the service was started.
     private boolean mServiceStarted;
     private Bundle mSessionExtras;
-    private DelayedStopHandler mDelayedStopHandler = new DelayedStopHandler(this);
+    private DelayedStopHandler mDelayedStopHandler;
     private Playback mPlayback;
+    private int mPlaybackEngine;
     private PackageValidator mPackageValidator;
+    private QueueCheckpointWriter mCheckpointWriter;
+    // Queue restored from disk, waiting for the music catalog to be rebuilt.
+    private QueueCheckpoint mPendingCheckpoint;
+    private Handler mCheckpointHandler;
+    private Runnable mCheckpointRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkpointPlaybackState();
+            mCheckpointHandler.postDelayed(this, CHECKPOINT_INTERVAL);
+        }
+    };
+    // Owns the queue and session state: everything below is only touched on its thread.
+    private CommandLoop mCommandLoop;
+    // Whether the queue changed during the current batch and must be published.
+    private boolean mQueueChanged;
+    // Whether a play request is pending until the end of the current run of skips.
+    private boolean mPlayRequested;
 
     /*
      * (non-Javadoc)
@@ -187,17 +338,42 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         LogHelper.d(TAG, "onCreate");
 
         mPlayingQueue = new ArrayList<>();
-        mMusicProvider = new MusicProvider();
+        mMusicProvider = new MusicProvider(MusicApplication.getInstance().getEmbeddedArtCache(),
+                MusicApplication.getInstance().getFolderArtIndex());
         mPackageValidator = new PackageValidator(this);
 
+        // Queue and session state are owned by the command loop. The main thread only forwards
+        // intents, session callbacks and playback events to it.
+        mCommandLoop = new CommandLoop("MusicService", this);
+        mDelayedStopHandler = new DelayedStopHandler(this, mCommandLoop.getLooper());
+        mCheckpointHandler = new Handler(mCommandLoop.getLooper());
+
         // Start a new MediaSession
         mSession = new MediaSession(this, "MusicService");
         setSessionToken(mSession.getSessionToken());
         mSession.setCallback(new MediaSessionCallback());
         mSession.setFlags(MediaSession.FLAG_HANDLES_MEDIA_BUTTONS |
                 MediaSession.FLAG_HANDLES_TRANSPORT_CONTROLS);
-
-        mPlayback = new LocalPlayback(this, mMusicProvider);
+        mPublisher = new SessionPublisher(mSession, mCommandLoop.getLooper(),
+                new SessionPublisher.Listener() {
+                    @Override
+                    public void onPlaybackStatePublished(PlaybackState state) {
+                        int playbackState = state.getState();
+                        mLatencyTracker.statePublished(playbackState);
+                        if (mMediaNotificationManager != null
+                                && (playbackState == PlaybackState.STATE_PLAYING
+                                || playbackState == PlaybackState.STATE_PAUSED)) {
+                            mMediaNotificationManager.startNotification();
+                        }
+                    }
+                });
+
+        mSeekIndexCache = new SeekIndexCache(new File(getCacheDir(), SEEK_INDEX_DIRECTORY));
+        MemoryTrimmer memoryTrimmer = MusicApplication.getInstance().getMemoryTrimmer();
+        memoryTrimmer.register(TRIM_PLAYBACK, mPlaybackTrimmable);
+        memoryTrimmer.register(TRIM_SEEK_INDEX, mSeekIndexCache);
+        mPlaybackEngine = PrefUtils.getPlaybackEngine(this);
+        mPlayback = createPlayback(mPlaybackEngine);
         mPlayback.setState(PlaybackState.STATE_NONE);
         mPlayback.setCallback(this);
         mPlayback.start();
@@ -211,14 +387,65 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         mSessionExtras = new Bundle();
         mSessionExtras.putBoolean(EXTRA_SHUFFLING, false);
         mSessionExtras.putInt(EXTRA_REPEAT_MODE, REPEAT_NONE);
+        mSessionExtras.putFloat(EXTRA_PLAYBACK_SPEED, PrefUtils.getPlaybackSpeed(this));
+        mSessionExtras.putInt(EXTRA_CROSSFADE_DURATION, PrefUtils.getCrossfadeDuration(this));
+        mSessionExtras.putInt(EXTRA_NORMALIZATION_MODE, PrefUtils.getNormalizationMode(this));
+        mSessionExtras.putBoolean(EXTRA_TRIM_SILENCE, PrefUtils.isSilenceTrimming(this));
+
+        // Restore the queue we had before the process was killed. Only the raw checkpoint is
+        // read here, the queue items are built once the catalog is ready.
+        File checkpointFile = new File(getFilesDir(), QUEUE_CHECKPOINT_FILE);
+        mCheckpointWriter = new QueueCheckpointWriter(checkpointFile);
+        mPendingCheckpoint = QueueCheckpoint.read(checkpointFile);
+        if (mPendingCheckpoint != null) {
+            LogHelper.d(TAG, "Found queue checkpoint. size=", mPendingCheckpoint.size());
+            mSessionExtras.putBoolean(EXTRA_SHUFFLING, mPendingCheckpoint.shuffling);
+            mSessionExtras.putInt(EXTRA_REPEAT_MODE, mPendingCheckpoint.repeatMode);
+        }
+
         CarHelper.setSlotReservationFlags(mSessionExtras, true, true, true);
         WearHelper.setSlotReservationFlags(mSessionExtras, true, true);
         WearHelper.setUseBackgroundFromTheme(mSessionExtras, true);
-        mSession.setExtras(mSessionExtras);
+        mPublisher.setExtras(mSessionExtras);
 
         updatePlaybackState(null);
 
         mMediaNotificationManager = new MediaNotificationManager(this);
+
+        // The catalog is loaded right away so new tracks get analyzed before they are played
+        mAnalyzerExecutor = TrackAnalyzer.createExecutor();
+        File gainTableFile = new File(getFilesDir(), GAIN_TABLE_FILE);
+        mGainTable = GainTable.read(gainTableFile);
+        mLoudnessAnalyzer = new LoudnessAnalyzer(mGainTable, gainTableFile, mAnalyzerExecutor);
+        File silenceTableFile = new File(getFilesDir(), SILENCE_TABLE_FILE);
+        mSilenceTable = SilenceTable.read(silenceTableFile);
+        mSilenceAnalyzer = new SilenceAnalyzer(mSilenceTable, silenceTableFile,
+                mAnalyzerExecutor);
+        mMusicProvider.retrieveMediaAsync(getContentResolver(), new MusicProvider.Callback() {
+            @Override
+            public void onMusicCatalogReady(boolean success) {
+                // The checkpoint belongs to the command loop, which drops it if there is none
+                mCommandLoop.submit(new CommandLoop.Command(OP_RESTORE_QUEUE));
+                if (success) {
+                    // Covers and thumbnails first, the album grid shows them right away. Then
+                    // silence, it only decodes the ends of the tracks.
+                    mAnalyzerExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            MusicApplication application = MusicApplication.getInstance();
+                            // Reads tags only, and its covers go in the thumbnail pack
+                            application.getEmbeddedArtCache().extract(mMusicProvider,
+                                    application.getArtSizeNormal());
+                            application.getThumbnailPack().update(mMusicProvider,
+                                    application.getArtSizeSmall(),
+                                    MusicApplication.getArtSizeIcon());
+                        }
+                    });
+                    mSilenceAnalyzer.analyze(mMusicProvider);
+                    mLoudnessAnalyzer.analyze(mMusicProvider);
+                }
+            }
+        });
     }
 
     /**
@@ -228,6 +455,14 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
      */
     @Override
     public int onStartCommand(Intent startIntent, int flags, int startId) {
+        mCommandLoop.submit(new CommandLoop.Command(OP_INTENT, startIntent));
+        return START_STICKY;
+    }
+
+    /**
+     * Executes a command received through {@link #onStartCommand}.
+     */
+    private void handleIntentCommand(Intent startIntent) {
         if (startIntent != null) {
             String action = startIntent.getAction();
             String command = startIntent.getStringExtra(CMD_NAME);
@@ -243,7 +478,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                         musicId = mediaId;
                     int album = mMusicProvider.getAlbumIdFromMusic(musicId);
                     if (album == -1)
-                        return START_STICKY;
+                        return;
                     String albumMediaId = createBrowseCategoryMediaID(MEDIA_ID_BY_ALBUM, album + "");
                     LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(BaseActivity.ACTION_OPEN_MEDIA_ID).putExtra(EXTRA_MEDIA_ID, albumMediaId));
                 } else if (CMD_GET_ARTIST.equals(command)) {
@@ -253,7 +488,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                     if (musicId != null) {
                         MediaMetadata mediaMetadata = mMusicProvider.getMusic(musicId);
                         if (mediaMetadata == null)
-                            return START_STICKY;
+                            return;
                         artistId = mediaMetadata.getString(MediaMetadata.METADATA_KEY_ARTIST);
 
                     } else {
@@ -266,60 +501,21 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                 } else if (CMD_ADD_TO_QUEUE.equals(command)) {
                     String mediaId = startIntent.getStringExtra(EXTRA_MEDIA_ID);
                     boolean playNext = startIntent.getBooleanExtra(EXTRA_PLAY_NEXT, false);
-                    String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
-                    boolean queueInitialized = false;
-
-                    if (mPlayingQueue == null)
-                        // Creates a new queue
-                        mPlayingQueue = new ArrayList<>();
-
-                    if (mPlayingQueue.isEmpty()) {
-                        mCurrentIndexOnQueue = 0;
-                        mSession.setQueueTitle(MediaIDHelper.extractBrowseCategoryValueFromMediaID(mediaId));
-                        queueInitialized = true;
-                    }
-
-                    if (musicId != null) {
-                        // Add the song
-                        MediaMetadata track = mMusicProvider.getMusic(musicId);
-
-                        // We create a hierarchy-aware mediaID, so we know what the queue is about by looking
-                        // at the QueueItem media IDs.
-                        String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                                track.getDescription().getMediaId(), MEDIA_ID_QUEUE);
-
-                        MediaMetadata trackCopy = new MediaMetadata.Builder(track)
-                                .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                                .build();
-
-                        // We don't expect queues to change after created, so we use the item index as the
-                        // queueId. Any other number unique in the queue would work.
-                        MediaSession.QueueItem item = new MediaSession.QueueItem(
-                                trackCopy.getDescription(), mPlayingQueue.size());
-                        if (playNext)
-                            mPlayingQueue.add(mPlayingQueue.isEmpty() ? 0 : mCurrentIndexOnQueue + 1, item);
-                        else
-                            mPlayingQueue.add(item);
-                    } else {
-                        // Add the album or artist
-                        if (playNext)
-                            mPlayingQueue.addAll(mPlayingQueue.isEmpty() ? 0 : mCurrentIndexOnQueue + 1, QueueHelper.getPlayingQueue(mediaId, mMusicProvider, mSessionExtras.getBoolean(EXTRA_SHUFFLING), mPlayingQueue.size()));
-                        else
-                            mPlayingQueue.addAll(QueueHelper.getPlayingQueue(mediaId, mMusicProvider, mSessionExtras.getBoolean(EXTRA_SHUFFLING), mPlayingQueue.size()));
-                    }
-
-                    // Change queue
-                    mSession.setQueue(mPlayingQueue);
-                    if (queueInitialized) {
-                        mSession.setPlaybackState(new PlaybackState.Builder(mSession.getController().getPlaybackState()).setState(PlaybackState.STATE_STOPPED, 0, 1).build());
-                        updateMetadata();
-                    }
+                    handleEditQueue(new QueueEditHelper()
+                            .add(playNext ? QueueEditHelper.POSITION_NEXT
+                                    : QueueEditHelper.POSITION_END, mediaId)
+                            .build());
+                } else if (CMD_EDIT_QUEUE.equals(command)) {
+                    handleEditQueue(startIntent.getExtras());
                 } else if(CMD_SWAP_QUEUE.equals(command)){
                     if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
                         int[] positions = startIntent.getIntArrayExtra(EXTRA_QUEUE_INDEX);
-                        if (positions != null) {
+                        if (positions == null || positions.length < 2
+                                || positions[0] < 0 || positions[0] >= mPlayingQueue.size()
+                                || positions[1] < 0 || positions[1] >= mPlayingQueue.size()) {
+                            LogHelper.w(TAG, "Rejecting queue swap, bad positions");
+                        } else {
                             Collections.swap(mPlayingQueue, positions[0], positions[1]);
-                            mSession.setQueue(mPlayingQueue);
 
                             // Check if it affects the currently playing song
                             if (mCurrentIndexOnQueue == positions[0]) {
@@ -327,23 +523,13 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                             } else if (mCurrentIndexOnQueue == positions[1]){
                                 mCurrentIndexOnQueue = positions[0];
                             }
+                            notifyQueueChanged();
                         }
                     }
                 } else if (CMD_DEL_FROM_QUEUE.equals(command)) {
-                    if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-                        int indexToRemove = startIntent.getIntExtra(EXTRA_QUEUE_INDEX, -1);
-                        if (indexToRemove >= 0) {
-                            mPlayingQueue.remove(indexToRemove);
-                            mSession.setQueue(mPlayingQueue);
-                            if (indexToRemove == mCurrentIndexOnQueue) {
-                                if (indexToRemove < mPlayingQueue.size() - 1) {
-                                    long nextId = mPlayingQueue.get(indexToRemove).getQueueId();
-                                    mSession.getController().getTransportControls().skipToQueueItem(nextId);
-                                } else
-                                    mSession.getController().getTransportControls().stop();
-                            } else if(indexToRemove < mCurrentIndexOnQueue)
-                                mCurrentIndexOnQueue--;
-                        }
+                    int indexToRemove = startIntent.getIntExtra(EXTRA_QUEUE_INDEX, -1);
+                    if (indexToRemove >= 0) {
+                        handleEditQueue(new QueueEditHelper().remove(indexToRemove, 1).build());
                     }
                 } else if (CMD_DEL_FROM_DEVICE.equals(command)) {
                     String mediaId = startIntent.getStringExtra(EXTRA_MEDIA_ID);
@@ -370,7 +556,6 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                                     mCurrentIndexOnQueue = i;
                                     break;
                                 }
-                            mSession.setQueue(mPlayingQueue);
                         } else {
                             MediaSession.QueueItem queueItem = mPlayingQueue.get(mCurrentIndexOnQueue);
                             List<MediaSession.QueueItem> newQueue = new ArrayList<>();
@@ -382,10 +567,10 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                             newQueue.add(0, queueItem);
                             mCurrentIndexOnQueue = 0;
                             mPlayingQueue = newQueue;
-                            mSession.setQueue(mPlayingQueue);
                         }
                         mSessionExtras.putBoolean(EXTRA_SHUFFLING, !shuffling);
-                        mSession.setExtras(mSessionExtras);
+                        mPublisher.setExtras(mSessionExtras);
+                        notifyQueueChanged();
                     }
                 } else if (CMD_TOGGLE_REPEAT.equals(command)) {
                     int repeatMode = mSessionExtras.getInt(EXTRA_REPEAT_MODE, REPEAT_NONE);
@@ -393,7 +578,54 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                         repeatMode = REPEAT_NONE;
                     else repeatMode++;
                     mSessionExtras.putInt(EXTRA_REPEAT_MODE, repeatMode);
-                    mSession.setExtras(mSessionExtras);
+                    mPublisher.setExtras(mSessionExtras);
+                    checkpointPlaybackState();
+                } else if (CMD_SET_PLAYBACK_SPEED.equals(command)) {
+                    float speed = startIntent.getFloatExtra(EXTRA_PLAYBACK_SPEED, 1f);
+                    speed = Math.max(MIN_PLAYBACK_SPEED, Math.min(MAX_PLAYBACK_SPEED, speed));
+                    PrefUtils.setPlaybackSpeed(this, speed);
+                    mPlayback.setPlaybackSpeed(speed);
+                    mSessionExtras.putFloat(EXTRA_PLAYBACK_SPEED, speed);
+                    mPublisher.setExtras(mSessionExtras);
+                    updatePlaybackState(null);
+                } else if (CMD_SET_CROSSFADE.equals(command)) {
+                    int duration = startIntent.getIntExtra(EXTRA_CROSSFADE_DURATION, 0);
+                    duration = Math.max(0, Math.min(MAX_CROSSFADE_DURATION, duration));
+                    PrefUtils.setCrossfadeDuration(this, duration);
+                    mSessionExtras.putInt(EXTRA_CROSSFADE_DURATION, duration);
+                    mPublisher.setExtras(mSessionExtras);
+                } else if (CMD_SET_PLAYBACK_ENGINE.equals(command)) {
+                    int engine = startIntent.getIntExtra(EXTRA_PLAYBACK_ENGINE,
+                            ENGINE_MEDIA_PLAYER);
+                    if (engine != mPlaybackEngine) {
+                        LogHelper.d(TAG, "Switching to playback engine ", engine);
+                        PrefUtils.setPlaybackEngine(this, engine);
+                        mPlaybackEngine = engine;
+                        switchToPlayer(createPlayback(engine), true);
+                    }
+                } else if (CMD_SET_EQUALIZER.equals(command)) {
+                    float[] frequencies = startIntent.getFloatArrayExtra(EXTRA_EQ_FREQUENCIES);
+                    float[] gains = startIntent.getFloatArrayExtra(EXTRA_EQ_GAINS);
+                    try {
+                        if (frequencies != null && gains != null) {
+                            mDspChain.setGraphicEq(frequencies, gains);
+                        }
+                        mDspChain.setPreamp(startIntent.getFloatExtra(EXTRA_EQ_PREAMP, 0));
+                    } catch (IllegalArgumentException e) {
+                        LogHelper.w(TAG, e, "Ignoring invalid equalizer settings");
+                    }
+                } else if (CMD_SET_NORMALIZATION.equals(command)) {
+                    int mode = startIntent.getIntExtra(EXTRA_NORMALIZATION_MODE,
+                            NORMALIZATION_TRACK);
+                    mode = Math.max(NORMALIZATION_OFF, Math.min(NORMALIZATION_ALBUM, mode));
+                    PrefUtils.setNormalizationMode(this, mode);
+                    mSessionExtras.putInt(EXTRA_NORMALIZATION_MODE, mode);
+                    mPublisher.setExtras(mSessionExtras);
+                } else if (CMD_SET_TRIM_SILENCE.equals(command)) {
+                    boolean trimming = startIntent.getBooleanExtra(EXTRA_TRIM_SILENCE, true);
+                    PrefUtils.setSilenceTrimming(this, trimming);
+                    mSessionExtras.putBoolean(EXTRA_TRIM_SILENCE, trimming);
+                    mPublisher.setExtras(mSessionExtras);
                 }
             }
         }
@@ -401,7 +633,6 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         // nothing is playing.
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         mDelayedStopHandler.sendEmptyMessageDelayed(0, STOP_DELAY);
-        return START_STICKY;
     }
 
     /**
@@ -412,13 +643,101 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     @Override
     public void onDestroy() {
         LogHelper.d(TAG, "onDestroy");
-        // Service is being killed, so make sure we release our resources
-        handleStopRequest(null);
+        MemoryTrimmer memoryTrimmer = MusicApplication.getInstance().getMemoryTrimmer();
+        memoryTrimmer.unregister(TRIM_PLAYBACK);
+        memoryTrimmer.unregister(TRIM_SEEK_INDEX);
+        // Service is being killed, so make sure we release our resources once the commands
+        // already submitted are done
+        mCommandLoop.submit(new CommandLoop.Command(OP_DESTROY));
+        mCommandLoop.quit();
+    }
 
-        mDelayedStopHandler.removeCallbacksAndMessages(null);
-        // Always release the MediaSession to clean up resources
-        // and notify associated MediaController(s).
-        mSession.release();
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("MusicService");
+        mCommandLoop.dump(writer);
+        mPublisher.dump(writer);
+        mMediaNotificationManager.dump(writer);
+        mPlayback.dump(writer);
+        mLatencyTracker.dump(writer);
+        mSilenceAnalyzer.dump(writer);
+        mLoudnessAnalyzer.dump(writer);
+        mSeekIndexCache.dump(writer);
+        MusicApplication.getInstance().getEmbeddedArtCache().dump(writer);
+        MusicApplication.getInstance().getFolderArtIndex().dump(writer);
+        MusicApplication.getInstance().getThumbnailPack().dump(writer);
+        MusicApplication.getInstance().getImageLoader().dump(writer);
+        MusicApplication.getInstance().getMemoryTrimmer().dump(writer);
+    }
+
+    /**
+     * @return the looper of the thread owning the queue and playback, for components that get
+     * callbacks on other threads and need to hand them over.
+     */
+    Looper getCommandLooper() {
+        return mCommandLoop.getLooper();
+    }
+
+    PlaybackLatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    DspChain getDspChain() {
+        return mDspChain;
+    }
+
+    SeekIndexCache getSeekIndexCache() {
+        return mSeekIndexCache;
+    }
+
+    /**
+     * @return the volume that brings the given track to the normalized loudness, 1 when
+     * normalization is off or the track wasn't measured yet. Only a table lookup, no decoding.
+     */
+    float getNormalizationGain(String musicId) {
+        int mode = mSessionExtras.getInt(EXTRA_NORMALIZATION_MODE, NORMALIZATION_OFF);
+        MediaMetadata track = musicId == null ? null : mMusicProvider.getMusic(musicId);
+        if (mode == NORMALIZATION_OFF || track == null) {
+            return 1f;
+        }
+        try {
+            return mGainTable.getGain(Long.parseLong(musicId),
+                    track.getLong(MusicProvider.CUSTOM_METADATA_TRACK_MODIFIED),
+                    mode == NORMALIZATION_ALBUM);
+        } catch (NumberFormatException e) {
+            return 1f;
+        }
+    }
+
+    /**
+     * @return the silence before the sound of the given track starts, in ms, to start playing
+     * it from there. 0 when trimming is off or the track wasn't analyzed yet.
+     */
+    int getLeadingSilence(String musicId) {
+        return getSilence(musicId, true);
+    }
+
+    /**
+     * @return the silence after the sound of the given track ends, in ms, to move on to the
+     * next track that much before its end. 0 when trimming is off or the track wasn't analyzed.
+     */
+    int getTrailingSilence(String musicId) {
+        return getSilence(musicId, false);
+    }
+
+    private int getSilence(String musicId, boolean leading) {
+        MediaMetadata track = musicId == null ? null : mMusicProvider.getMusic(musicId);
+        if (!mSessionExtras.getBoolean(EXTRA_TRIM_SILENCE, true) || track == null) {
+            return 0;
+        }
+        try {
+            long trackId = Long.parseLong(musicId);
+            long modified = track.getLong(MusicProvider.CUSTOM_METADATA_TRACK_MODIFIED);
+            return leading ? mSilenceTable.getLeading(trackId, modified)
+                    : mSilenceTable.getTrailing(trackId, modified);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     @Override
@@ -461,7 +780,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                     if (success) {
                         loadChildrenImpl(parentMediaId, result);
                     } else {
-                        updatePlaybackState(getString(R.string.error_no_metadata));
+                        onError(getString(R.string.error_no_metadata));
                         result.sendResult(Collections.<MediaItem>emptyList());
                     }
                 }
@@ -636,179 +955,371 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         result.sendResult(mediaItems);
     }
 
+    /**
+     * Forwards the session callbacks to the command loop.
+     */
     private final class MediaSessionCallback extends MediaSession.Callback {
         @Override
         public void onPlay() {
-            LogHelper.d(TAG, "play");
-
-            if (mPlayingQueue == null || mPlayingQueue.isEmpty()) {
-                // Clear queue-related extras
-                mSessionExtras.putBoolean(EXTRA_SHUFFLING, false);
-                mSessionExtras.putInt(EXTRA_REPEAT_MODE, REPEAT_NONE);
-                mSession.setExtras(mSessionExtras);
-
-                mPlayingQueue = QueueHelper.getRandomQueue(mMusicProvider);
-                mSession.setQueue(mPlayingQueue);
-                mSession.setQueueTitle(getString(R.string.random_queue_title));
-                // start playing from the beginning of the queue
-                mCurrentIndexOnQueue = 0;
-            }
-
-            if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-                handlePlayRequest();
-            }
+            mCommandLoop.submit(new CommandLoop.Command(OP_PLAY));
         }
 
         @Override
         public void onSkipToQueueItem(long queueId) {
-            LogHelper.d(TAG, "OnSkipToQueueItem:" + queueId);
-
-            if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-                // set the current index on queue from the music Id:
-                mCurrentIndexOnQueue = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, queueId);
-                // play the music
-                handlePlayRequest();
-            }
+            mLatencyTracker.requestStarted(PlaybackLatencyTracker.TRIGGER_SKIP_TO_QUEUE_ITEM);
+            mCommandLoop.submit(new CommandLoop.Command(OP_SKIP_TO_QUEUE_ITEM, queueId));
         }
 
         @Override
         public void onSeekTo(long position) {
-            LogHelper.d(TAG, "onSeekTo:", position);
-            mPlayback.seekTo((int) position);
+            mCommandLoop.submit(new CommandLoop.Command(OP_SEEK_TO, position));
         }
 
         @Override
         public void onPlayFromMediaId(String mediaId, Bundle extras) {
-            LogHelper.d(TAG, "playFromMediaId mediaId:", mediaId, "  extras=", extras);
-
-            // Clear queue-related extras
-            mSessionExtras.putBoolean(EXTRA_SHUFFLING, false);
-            mSessionExtras.putInt(EXTRA_REPEAT_MODE, REPEAT_NONE);
-            mSession.setExtras(mSessionExtras);
-
-            // The mediaId used here is not the unique musicId. This one comes from the
-            // MediaBrowser, and is actually a "hierarchy-aware mediaID": a concatenation of
-            // the hierarchy in MediaBrowser and the actual unique musicID. This is necessary
-            // so we can build the correct playing queue, based on where the track was
-            // selected from.
-            mPlayingQueue = QueueHelper.getPlayingQueue(mediaId, mMusicProvider, extras != null && extras.getBoolean(EXTRA_SHUFFLE));
-            mSession.setQueue(mPlayingQueue);
-            mSession.setQueueTitle(MediaIDHelper.extractBrowseCategoryValueFromMediaID(mediaId));
-
-            if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-                String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
-
-                if (musicId != null) {
-                    // set the current index on queue from the media Id:
-                    mCurrentIndexOnQueue = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, mediaId);
-
-                    if (mCurrentIndexOnQueue < 0) {
-                        LogHelper.e(TAG, "playFromMediaId: media ID ", mediaId,
-                                " could not be found on queue. Ignoring.");
-                    } else {
-                        // play the music
-                        handlePlayRequest();
-                    }
-                } else {
-                    // no specific song to be played; start from the first.
-                    mCurrentIndexOnQueue = 0;
-                    // play the music
-                    handlePlayRequest();
-                }
-            }
+            mLatencyTracker.requestStarted(PlaybackLatencyTracker.TRIGGER_PLAY_FROM_MEDIA_ID);
+            mCommandLoop.submit(new CommandLoop.Command(OP_PLAY_FROM_MEDIA_ID, mediaId, extras));
         }
 
         @Override
         public void onPause() {
-            LogHelper.d(TAG, "pause. current state=" + mPlayback.getState());
-            handlePauseRequest();
+            mCommandLoop.submit(new CommandLoop.Command(OP_PAUSE));
         }
 
         @Override
         public void onStop() {
-            LogHelper.d(TAG, "stop. current state=" + mPlayback.getState());
-            handleStopRequest(null);
+            mCommandLoop.submit(new CommandLoop.Command(OP_STOP));
         }
 
         @Override
         public void onSkipToNext() {
-            LogHelper.d(TAG, "skipToNext");
-            mCurrentIndexOnQueue++;
-            if (mPlayingQueue != null && mCurrentIndexOnQueue >= mPlayingQueue.size()) {
-                // This sample's behavior: skipping to next when in last song returns to the
-                // first song.
-                mCurrentIndexOnQueue = 0;
-            }
-            if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
-                handlePlayRequest();
-            } else {
-                LogHelper.e(TAG, "skipToNext: cannot skip to next. next Index=" +
-                        mCurrentIndexOnQueue + " queue length=" +
-                        (mPlayingQueue == null ? "null" : mPlayingQueue.size()));
-                handleStopRequest("Cannot skip");
-            }
+            mLatencyTracker.requestStarted(PlaybackLatencyTracker.TRIGGER_SKIP_TO_NEXT);
+            mCommandLoop.submit(new CommandLoop.Command(OP_SKIP_TO_NEXT));
         }
 
         @Override
         public void onSkipToPrevious() {
-            LogHelper.d(TAG, "skipToPrevious");
-            mCurrentIndexOnQueue--;
-            if (mPlayingQueue != null && mCurrentIndexOnQueue < 0) {
-                // This sample's behavior: skipping to previous when in first song restarts the
-                // first song.
-                mCurrentIndexOnQueue = 0;
-            }
-            if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
-                handlePlayRequest();
-            } else {
-                LogHelper.e(TAG, "skipToPrevious: cannot skip to previous. previous Index=" +
-                        mCurrentIndexOnQueue + " queue length=" +
-                        (mPlayingQueue == null ? "null" : mPlayingQueue.size()));
-                handleStopRequest("Cannot skip");
-            }
+            mLatencyTracker.requestStarted(PlaybackLatencyTracker.TRIGGER_SKIP_TO_PREVIOUS);
+            mCommandLoop.submit(new CommandLoop.Command(OP_SKIP_TO_PREVIOUS));
         }
 
         @Override
         public void onCustomAction(String action, Bundle extras) {
-            LogHelper.e(TAG, "Unsupported action: ", action);
+            mCommandLoop.submit(new CommandLoop.Command(OP_CUSTOM_ACTION, action, extras));
         }
 
         @Override
-        public void onPlayFromSearch(final String query, final Bundle extras) {
-            LogHelper.d(TAG, "playFromSearch  query=", query, " extras=", extras);
+        public void onPlayFromSearch(String query, Bundle extras) {
+            mCommandLoop.submit(new CommandLoop.Command(OP_PLAY_FROM_SEARCH, query, extras));
+        }
+    }
 
-            mPlayback.setState(PlaybackState.STATE_CONNECTING);
+    /**
+     * Implementation of the CommandLoop.Callback interface. Always runs on the command loop.
+     */
+    @Override
+    public void onCommand(CommandLoop.Command command) {
+        // Runs of skips only need to play the track they end on. Anything else must see the
+        // track they asked for already playing.
+        if (!isQueueNavigation(command.type)) {
+            flushPlayRequest();
+        }
 
-            // Voice searches may occur before the media catalog has been
-            // prepared. We only handle the search after the musicProvider is ready.
-            mMusicProvider.retrieveMediaAsync(getContentResolver(), new MusicProvider.Callback() {
-                @Override
-                public void onMusicCatalogReady(boolean success) {
-                    // Clear queue-related extras
-                    mSessionExtras.putBoolean(EXTRA_SHUFFLING, false);
-                    mSessionExtras.putInt(EXTRA_REPEAT_MODE, REPEAT_NONE);
-                    mSession.setExtras(mSessionExtras);
+        switch (command.type) {
+            case OP_INTENT:
+                handleIntentCommand(command.intent);
+                break;
+            case OP_PLAY:
+                handlePlay();
+                break;
+            case OP_PLAY_FROM_MEDIA_ID:
+                handlePlayFromMediaId(command.stringArg, command.extras);
+                break;
+            case OP_PLAY_FROM_SEARCH:
+                handlePlayFromSearch(command.stringArg, command.extras);
+                break;
+            case OP_SEARCH_CATALOG_READY:
+                handleSearchCatalogReady(command.stringArg, command.extras);
+                break;
+            case OP_SKIP_TO_QUEUE_ITEM:
+                handleSkipToQueueItem(command.longArg);
+                break;
+            case OP_SKIP_TO_NEXT:
+                handleSkipToNext();
+                break;
+            case OP_SKIP_TO_PREVIOUS:
+                handleSkipToPrevious();
+                break;
+            case OP_SEEK_TO:
+                LogHelper.d(TAG, "onSeekTo:", command.longArg);
+                mPlayback.seekTo((int) command.longArg);
+                break;
+            case OP_PAUSE:
+                LogHelper.d(TAG, "pause. current state=" + mPlayback.getState());
+                handlePauseRequest();
+                break;
+            case OP_STOP:
+                LogHelper.d(TAG, "stop. current state=" + mPlayback.getState());
+                handleStopRequest(null);
+                break;
+            case OP_CUSTOM_ACTION:
+                if (QueueEditHelper.ACTION_EDIT_QUEUE.equals(command.stringArg)) {
+                    handleEditQueue(command.extras);
+                } else {
+                    LogHelper.e(TAG, "Unsupported action: ", command.stringArg);
+                }
+                break;
+            case OP_RESTORE_QUEUE:
+                restoreQueue();
+                if (command.longArg != 0) {
+                    handlePlay();
+                }
+                break;
+            case OP_COMPLETION:
+                handleCompletion();
+                break;
+            case OP_PLAYBACK_STATUS_CHANGED:
+                updatePlaybackState(null);
+                break;
+            case OP_ERROR:
+                updatePlaybackState(command.stringArg);
+                break;
+            case OP_METADATA_CHANGED:
+                handleMetadataChanged(command.stringArg);
+                break;
+            case OP_DESTROY:
+                handleDestroy();
+                break;
+            case OP_TRIM_MEMORY:
+                mPlayback.onTrimMemory((int) command.longArg);
+                break;
+            default:
+                LogHelper.w(TAG, "Ignoring unknown command ", command.type);
+        }
+    }
 
-                    mPlayingQueue = QueueHelper.getPlayingQueueFromSearch(query, extras,
-                            mMusicProvider);
+    @Override
+    public void onBatchFinished() {
+        flushPlayRequest();
+        if (mQueueChanged) {
+            mQueueChanged = false;
+            mPublisher.setQueue(mPlayingQueue);
+        }
+        updateNeighbourItems();
+    }
 
-                    LogHelper.d(TAG, "playFromSearch  playqueue.length=" + mPlayingQueue.size());
-                    mSession.setQueue(mPlayingQueue);
+    private static boolean isQueueNavigation(int type) {
+        return type == OP_SKIP_TO_NEXT || type == OP_SKIP_TO_PREVIOUS
+                || type == OP_SKIP_TO_QUEUE_ITEM || type == OP_PLAY_FROM_MEDIA_ID;
+    }
 
-                    if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-                        // immediately start playing from the beginning of the search results
-                        mCurrentIndexOnQueue = 0;
+    /**
+     * Asks for the track at the current index to be played. The request is carried out once the
+     * current run of queue navigation commands is over.
+     */
+    private void requestPlay() {
+        mPlayRequested = true;
+    }
 
-                        handlePlayRequest();
-                    } else {
-                        // if nothing was found, we need to warn the user and stop playing
-                        handleStopRequest(getString(R.string.no_search_results));
+    private void flushPlayRequest() {
+        if (mPlayRequested) {
+            mPlayRequested = false;
+            handlePlayRequest();
+        }
+    }
+
+    /**
+     * Marks the queue as changed. It is checkpointed right away and published to the session
+     * once, at the end of the current batch of commands.
+     */
+    private void notifyQueueChanged() {
+        mQueueChanged = true;
+        checkpointQueue();
+    }
+
+    private void handlePlay() {
+        LogHelper.d(TAG, "play");
+
+        if ((mPlayingQueue == null || mPlayingQueue.isEmpty()) && mPendingCheckpoint != null) {
+            if (!mMusicProvider.isInitialized()) {
+                // Resume the queue we had before being killed, as soon as the catalog allows
+                mMusicProvider.retrieveMediaAsync(getContentResolver(), new MusicProvider.Callback() {
+                    @Override
+                    public void onMusicCatalogReady(boolean success) {
+                        mCommandLoop.submit(new CommandLoop.Command(OP_RESTORE_QUEUE, 1));
                     }
+                });
+                return;
+            }
+            restoreQueue();
+        }
+
+        if (mPlayingQueue == null || mPlayingQueue.isEmpty()) {
+            // Clear queue-related extras
+            mSessionExtras.putBoolean(EXTRA_SHUFFLING, false);
+            mSessionExtras.putInt(EXTRA_REPEAT_MODE, REPEAT_NONE);
+            mPublisher.setExtras(mSessionExtras);
+
+            mPlayingQueue = QueueHelper.getRandomQueue(mMusicProvider,
+                    PrefUtils.getRandomQueueSize(this), 0, null);
+            mRandomQueue = true;
+            setQueueTitle(getString(R.string.random_queue_title));
+            // start playing from the beginning of the queue
+            mCurrentIndexOnQueue = 0;
+            notifyQueueChanged();
+        }
+
+        if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
+            handlePlayRequest();
+        }
+    }
+
+    private void handleSkipToQueueItem(long queueId) {
+        LogHelper.d(TAG, "OnSkipToQueueItem:" + queueId);
+
+        if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
+            // set the current index on queue from the music Id:
+            mCurrentIndexOnQueue = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, queueId);
+            // play the music
+            requestPlay();
+        }
+    }
+
+    private void handlePlayFromMediaId(String mediaId, Bundle extras) {
+        LogHelper.d(TAG, "playFromMediaId mediaId:", mediaId, "  extras=", extras);
+
+        // Clear queue-related extras
+        mSessionExtras.putBoolean(EXTRA_SHUFFLING, false);
+        mSessionExtras.putInt(EXTRA_REPEAT_MODE, REPEAT_NONE);
+        mPublisher.setExtras(mSessionExtras);
+
+        // The mediaId used here is not the unique musicId. This one comes from the
+        // MediaBrowser, and is actually a "hierarchy-aware mediaID": a concatenation of
+        // the hierarchy in MediaBrowser and the actual unique musicID. This is necessary
+        // so we can build the correct playing queue, based on where the track was
+        // selected from.
+        mPlayingQueue = QueueHelper.getPlayingQueue(mediaId, mMusicProvider, extras != null && extras.getBoolean(EXTRA_SHUFFLE));
+        mRandomQueue = false;
+        setQueueTitle(MediaIDHelper.extractBrowseCategoryValueFromMediaID(mediaId));
+        notifyQueueChanged();
+
+        if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
+            String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
+
+            if (musicId != null) {
+                // set the current index on queue from the media Id:
+                mCurrentIndexOnQueue = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, mediaId);
+
+                if (mCurrentIndexOnQueue < 0) {
+                    LogHelper.e(TAG, "playFromMediaId: media ID ", mediaId,
+                            " could not be found on queue. Ignoring.");
+                } else {
+                    // play the music
+                    requestPlay();
                 }
-            });
+            } else {
+                // no specific song to be played; start from the first.
+                mCurrentIndexOnQueue = 0;
+                // play the music
+                requestPlay();
+            }
         }
     }
 
+    private void handleSkipToNext() {
+        LogHelper.d(TAG, "skipToNext");
+        mCurrentIndexOnQueue++;
+        if (mPlayingQueue != null && mCurrentIndexOnQueue >= mPlayingQueue.size()) {
+            // This sample's behavior: skipping to next when in last song returns to the
+            // first song.
+            mCurrentIndexOnQueue = 0;
+        }
+        if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
+            requestPlay();
+        } else {
+            LogHelper.e(TAG, "skipToNext: cannot skip to next. next Index=" +
+                    mCurrentIndexOnQueue + " queue length=" +
+                    (mPlayingQueue == null ? "null" : mPlayingQueue.size()));
+            handleStopRequest("Cannot skip");
+        }
+    }
+
+    private void handleSkipToPrevious() {
+        LogHelper.d(TAG, "skipToPrevious");
+        mCurrentIndexOnQueue--;
+        if (mPlayingQueue != null && mCurrentIndexOnQueue < 0) {
+            // This sample's behavior: skipping to previous when in first song restarts the
+            // first song.
+            mCurrentIndexOnQueue = 0;
+        }
+        if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
+            requestPlay();
+        } else {
+            LogHelper.e(TAG, "skipToPrevious: cannot skip to previous. previous Index=" +
+                    mCurrentIndexOnQueue + " queue length=" +
+                    (mPlayingQueue == null ? "null" : mPlayingQueue.size()));
+            handleStopRequest("Cannot skip");
+        }
+    }
+
+    private void handlePlayFromSearch(final String query, final Bundle extras) {
+        LogHelper.d(TAG, "playFromSearch  query=", query, " extras=", extras);
+
+        mPlayback.setState(PlaybackState.STATE_CONNECTING);
+
+        // Voice searches may occur before the media catalog has been
+        // prepared. We only handle the search after the musicProvider is ready.
+        mMusicProvider.retrieveMediaAsync(getContentResolver(), new MusicProvider.Callback() {
+            @Override
+            public void onMusicCatalogReady(boolean success) {
+                mCommandLoop.submit(new CommandLoop.Command(OP_SEARCH_CATALOG_READY, query, extras));
+            }
+        });
+    }
+
+    private void handleSearchCatalogReady(String query, Bundle extras) {
+        // Clear queue-related extras
+        mSessionExtras.putBoolean(EXTRA_SHUFFLING, false);
+        mSessionExtras.putInt(EXTRA_REPEAT_MODE, REPEAT_NONE);
+        mPublisher.setExtras(mSessionExtras);
+
+        mPlayingQueue = QueueHelper.getPlayingQueueFromSearch(query, extras,
+                mMusicProvider);
+        mRandomQueue = false;
+
+        LogHelper.d(TAG, "playFromSearch  playqueue.length=" + mPlayingQueue.size());
+        notifyQueueChanged();
+
+        if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
+            // immediately start playing from the beginning of the search results
+            mCurrentIndexOnQueue = 0;
+
+            handlePlayRequest();
+        } else {
+            // if nothing was found, we need to warn the user and stop playing
+            handleStopRequest(getString(R.string.no_search_results));
+        }
+    }
+
+    private void handleDestroy() {
+        handleStopRequest(null);
+        // Let go of the warm players too
+        mPlayback.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        mCheckpointWriter.close();
+        mMetadataArtLoader.cancel();
+        mSilenceAnalyzer.release();
+        mLoudnessAnalyzer.release();
+        mAnalyzerExecutor.shutdown();
+        mSeekIndexCache.close();
+
+        mDelayedStopHandler.removeCallbacksAndMessages(null);
+        mCheckpointHandler.removeCallbacksAndMessages(null);
+        // Always release the MediaSession to clean up resources
+        // and notify associated MediaController(s).
+        mPublisher.release();
+        mSession.release();
+    }
+
     /**
      * Handle a request to play music
      */
@@ -830,9 +1341,17 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         }
 
         if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
+            mLatencyTracker.requestDispatched();
+            extendRandomQueueIfNeeded();
+            mLatencyTracker.stageStarted(PlaybackLatencyTracker.STAGE_METADATA);
             updateMetadata();
+            mLatencyTracker.stageFinished(PlaybackLatencyTracker.STAGE_METADATA);
             mPlayback.play(mPlayingQueue.get(mCurrentIndexOnQueue));
         }
+
+        // Keep the checkpointed position fresh while playing
+        mCheckpointHandler.removeCallbacks(mCheckpointRunnable);
+        mCheckpointHandler.post(mCheckpointRunnable);
     }
 
     /**
@@ -841,6 +1360,8 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     private void handlePauseRequest() {
         LogHelper.d(TAG, "handlePauseRequest: mState=" + mPlayback.getState());
         mPlayback.pause();
+        mCheckpointHandler.removeCallbacks(mCheckpointRunnable);
+        checkpointPlaybackState();
         // reset the delayed stop handler.
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         mDelayedStopHandler.sendEmptyMessageDelayed(0, STOP_DELAY);
@@ -852,6 +1373,8 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     private void handleStopRequest(String withError) {
         LogHelper.d(TAG, "handleStopRequest: mState=" + mPlayback.getState() + " error=", withError);
         mPlayback.stop(true);
+        mCheckpointHandler.removeCallbacks(mCheckpointRunnable);
+        checkpointPlaybackState();
         // reset the delayed stop handler.
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         mDelayedStopHandler.sendEmptyMessageDelayed(0, STOP_DELAY);
@@ -863,6 +1386,290 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         mServiceStarted = false;
     }
 
+    /**
+     * Appends a new batch of random tracks to a random queue when playback gets close to its
+     * end, so it never runs out without ever having to materialize the whole catalog. The played
+     * tracks beyond {@link #RANDOM_QUEUE_HISTORY} are dropped at the same time, so the queue
+     * stays the same size however long it plays, and only that window is kept from being
+     * picked again.
+     */
+    private void extendRandomQueueIfNeeded() {
+        if (!mRandomQueue || !PrefUtils.isRandomQueueExtending(this)
+                || mPlayingQueue.size() - mCurrentIndexOnQueue > RANDOM_QUEUE_EXTEND_THRESHOLD) {
+            return;
+        }
+        int played = mCurrentIndexOnQueue - RANDOM_QUEUE_HISTORY;
+        if (played > 0) {
+            mPlayingQueue = new ArrayList<>(
+                    mPlayingQueue.subList(played, mPlayingQueue.size()));
+            mCurrentIndexOnQueue -= played;
+        }
+        Set<String> queued = new HashSet<>();
+        long nextQueueId = 0;
+        for (MediaSession.QueueItem item : mPlayingQueue) {
+            queued.add(MediaIDHelper.extractMusicIDFromMediaID(item.getDescription().getMediaId()));
+            nextQueueId = Math.max(nextQueueId, item.getQueueId() + 1);
+        }
+        List<MediaSession.QueueItem> extension = QueueHelper.getRandomQueue(mMusicProvider,
+                PrefUtils.getRandomQueueSize(this), (int) nextQueueId, queued);
+        LogHelper.d(TAG, "Extending random queue by ", extension.size(), ", dropping ",
+                Math.max(0, played));
+        mPlayingQueue.addAll(extension);
+        if (played > 0 || !extension.isEmpty()) {
+            notifyQueueChanged();
+        }
+    }
+
+    /**
+     * Applies a batch of queue edits built by {@link QueueEditHelper}. The edits are applied to
+     * a copy of the queue, which only replaces the playing one if all of them are valid, so the
+     * session sees either the whole batch or nothing, published once.
+     */
+    private void handleEditQueue(Bundle extras) {
+        List<Bundle> edits = extras != null
+                ? extras.<Bundle>getParcelableArrayList(QueueEditHelper.EXTRA_EDITS) : null;
+        if (edits == null || edits.isEmpty()) {
+            return;
+        }
+        List<MediaSession.QueueItem> queue = mPlayingQueue != null
+                ? new ArrayList<>(mPlayingQueue) : new ArrayList<MediaSession.QueueItem>();
+        boolean wasEmpty = queue.isEmpty();
+        String firstMediaId = null;
+        int currentIndex = wasEmpty ? 0 : mCurrentIndexOnQueue;
+        boolean currentRemoved = false;
+        long nextQueueId = 0;
+        for (MediaSession.QueueItem item : queue) {
+            nextQueueId = Math.max(nextQueueId, item.getQueueId() + 1);
+        }
+
+        for (Bundle edit : edits) {
+            int type = edit.getInt(QueueEditHelper.KEY_TYPE);
+            int from = edit.getInt(QueueEditHelper.KEY_FROM);
+            int count = edit.getInt(QueueEditHelper.KEY_COUNT);
+            if (type == QueueEditHelper.TYPE_ADD) {
+                String[] mediaIds = edit.getStringArray(QueueEditHelper.KEY_MEDIA_IDS);
+                int position = edit.getInt(QueueEditHelper.KEY_POSITION,
+                        QueueEditHelper.POSITION_END);
+                if (position == QueueEditHelper.POSITION_END) {
+                    position = queue.size();
+                } else if (position == QueueEditHelper.POSITION_NEXT) {
+                    position = queue.isEmpty() ? 0 : Math.min(currentIndex + 1, queue.size());
+                }
+                if (mediaIds == null || position < 0 || position > queue.size()) {
+                    LogHelper.w(TAG, "Rejecting queue edits, bad add at ", position);
+                    return;
+                }
+                List<MediaSession.QueueItem> items = new ArrayList<>();
+                for (String mediaId : mediaIds) {
+                    List<MediaSession.QueueItem> added = createQueueItems(mediaId, nextQueueId);
+                    nextQueueId += added.size();
+                    items.addAll(added);
+                    if (firstMediaId == null) {
+                        firstMediaId = mediaId;
+                    }
+                }
+                boolean empty = queue.isEmpty();
+                queue.addAll(position, items);
+                if (!empty && position <= currentIndex) {
+                    currentIndex += items.size();
+                }
+            } else if (type == QueueEditHelper.TYPE_MOVE) {
+                int to = edit.getInt(QueueEditHelper.KEY_TO);
+                if (count <= 0 || from < 0 || from + count > queue.size()
+                        || to < 0 || to + count > queue.size()) {
+                    LogHelper.w(TAG, "Rejecting queue edits, bad move of ", count, " from ",
+                            from, " to ", to);
+                    return;
+                }
+                List<MediaSession.QueueItem> range = queue.subList(from, from + count);
+                List<MediaSession.QueueItem> moved = new ArrayList<>(range);
+                range.clear();
+                queue.addAll(to, moved);
+                if (currentIndex >= from && currentIndex < from + count) {
+                    currentIndex = to + currentIndex - from;
+                } else {
+                    if (currentIndex >= from + count) {
+                        currentIndex -= count;
+                    }
+                    if (currentIndex >= to) {
+                        currentIndex += count;
+                    }
+                }
+            } else if (type == QueueEditHelper.TYPE_REMOVE) {
+                if (count <= 0 || from < 0 || from + count > queue.size()) {
+                    LogHelper.w(TAG, "Rejecting queue edits, bad removal of ", count, " from ",
+                            from);
+                    return;
+                }
+                queue.subList(from, from + count).clear();
+                if (currentIndex >= from + count) {
+                    currentIndex -= count;
+                } else if (currentIndex >= from) {
+                    // The track that took its place becomes the current one
+                    currentIndex = from;
+                    currentRemoved = true;
+                }
+            } else {
+                LogHelper.w(TAG, "Rejecting queue edits, unknown type ", type);
+                return;
+            }
+        }
+
+        LogHelper.d(TAG, "Applied ", edits.size(), " queue edits. size=", queue.size());
+        if (wasEmpty && queue.isEmpty()) {
+            return;
+        }
+        mPlayingQueue = queue;
+        mCurrentIndexOnQueue = Math.max(0, Math.min(currentIndex, queue.size() - 1));
+        if (wasEmpty) {
+            // Set before the checkpoint is taken, it keeps both
+            setQueueTitle(MediaIDHelper.extractBrowseCategoryValueFromMediaID(firstMediaId));
+            mRandomQueue = false;
+        }
+        notifyQueueChanged();
+
+        if (queue.isEmpty() || (currentRemoved && currentIndex >= queue.size())) {
+            handleStopRequest(null);
+        } else if (wasEmpty) {
+            mPlayback.setState(PlaybackState.STATE_STOPPED);
+            updatePlaybackState(null);
+            updateMetadata();
+        } else if (currentRemoved) {
+            int state = mPlayback.getState();
+            if (state == PlaybackState.STATE_PLAYING || state == PlaybackState.STATE_BUFFERING) {
+                requestPlay();
+            } else {
+                updatePlaybackState(null);
+                updateMetadata();
+            }
+        } else {
+            // The available skip actions may have changed
+            updatePlaybackState(null);
+        }
+    }
+
+    /**
+     * Creates the queue items for a song, album or artist media ID, numbering them from
+     * {@code firstQueueId}.
+     */
+    private List<MediaSession.QueueItem> createQueueItems(String mediaId, long firstQueueId) {
+        List<MediaSession.QueueItem> items = new ArrayList<>();
+        if (mediaId == null) {
+            return items;
+        }
+        String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
+        if (musicId != null) {
+            MediaMetadata track = mMusicProvider.getMusic(musicId);
+            if (track == null) {
+                LogHelper.w(TAG, "Can't add unknown music to the queue: ", mediaId);
+                return items;
+            }
+            // We create a hierarchy-aware mediaID, so we know what the queue is about by looking
+            // at the QueueItem media IDs.
+            String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
+                    track.getDescription().getMediaId(), MEDIA_ID_QUEUE);
+            MediaMetadata trackCopy = new MediaMetadata.Builder(track)
+                    .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
+                    .build();
+            items.add(new MediaSession.QueueItem(trackCopy.getDescription(), firstQueueId));
+        } else {
+            // Add the album or artist
+            List<MediaSession.QueueItem> queue = QueueHelper.getPlayingQueue(mediaId,
+                    mMusicProvider, mSessionExtras.getBoolean(EXTRA_SHUFFLING), (int) firstQueueId);
+            if (queue != null) {
+                items.addAll(queue);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Tells the playback which item {@link #handleCompletion} would pick next and which one a
+     * skip to previous would, so they can be prepared ahead and the next one chained to the
+     * current one. Cheap when nothing changed, so it is simply called after every batch, which
+     * covers queue edits and repeat or shuffle changes.
+     */
+    private void updateNeighbourItems() {
+        MediaSession.QueueItem previous = null;
+        MediaSession.QueueItem next = null;
+        int state = mPlayback.getState();
+        if ((state == PlaybackState.STATE_PLAYING || state == PlaybackState.STATE_PAUSED
+                || state == PlaybackState.STATE_BUFFERING)
+                && QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
+            int repeatMode = mSessionExtras.getInt(EXTRA_REPEAT_MODE, REPEAT_NONE);
+            int nextIndex = mCurrentIndexOnQueue;
+            if (repeatMode != REPEAT_ONCE) {
+                nextIndex++;
+                if (nextIndex >= mPlayingQueue.size()) {
+                    nextIndex = repeatMode == REPEAT_ALL ? 0 : -1;
+                }
+            }
+            if (nextIndex >= 0) {
+                next = mPlayingQueue.get(nextIndex);
+            }
+            if (mCurrentIndexOnQueue > 0 && mCurrentIndexOnQueue - 1 != nextIndex) {
+                previous = mPlayingQueue.get(mCurrentIndexOnQueue - 1);
+            }
+        }
+        mPlayback.setCrossfadeDuration(mSessionExtras.getInt(EXTRA_CROSSFADE_DURATION, 0));
+        mPlayback.setNeighbourItems(previous, next, PrefUtils.isGaplessPlayback(this));
+    }
+
+    private void setQueueTitle(String title) {
+        mQueueTitle = title;
+        mPublisher.setQueueTitle(title);
+    }
+
+    /**
+     * Hands the current queue over to the checkpoint writer. Must be called after every change
+     * to the queue's contents or order.
+     */
+    private void checkpointQueue() {
+        mPendingCheckpoint = null;
+        mCheckpointWriter.setQueue(mPlayingQueue, mQueueTitle, mRandomQueue);
+        checkpointPlaybackState();
+    }
+
+    /**
+     * Hands the current index, position and queue modes over to the checkpoint writer.
+     */
+    private void checkpointPlaybackState() {
+        mCheckpointWriter.setPlaybackState(mCurrentIndexOnQueue,
+                mPlayback.getCurrentStreamPosition(),
+                mSessionExtras.getBoolean(EXTRA_SHUFFLING),
+                mSessionExtras.getInt(EXTRA_REPEAT_MODE, REPEAT_NONE));
+    }
+
+    /**
+     * Rebuilds the playing queue from {@link #mPendingCheckpoint} and makes it the current one,
+     * unless another queue was started in the meantime. The catalog must be ready.
+     */
+    private void restoreQueue() {
+        QueueCheckpoint checkpoint = mPendingCheckpoint;
+        if (checkpoint == null) {
+            return;
+        }
+        mPendingCheckpoint = null;
+        List<MediaSession.QueueItem> queue = QueueHelper.getQueueFromCheckpoint(checkpoint,
+                mMusicProvider);
+        if (queue.isEmpty()) {
+            return;
+        }
+        mPlayingQueue = queue;
+        mRandomQueue = checkpoint.randomQueue;
+        mCurrentIndexOnQueue = Math.min(checkpoint.currentIndex, queue.size() - 1);
+        mQueueChanged = true;
+        setQueueTitle(checkpoint.title);
+
+        // Resume from where we were, as if the track had been paused
+        MediaSession.QueueItem item = mPlayingQueue.get(mCurrentIndexOnQueue);
+        mPlayback.setCurrentMediaId(item.getDescription().getMediaId());
+        mPlayback.setCurrentStreamPosition((int) checkpoint.position);
+        mPlayback.setState(PlaybackState.STATE_STOPPED);
+        updatePlaybackState(null);
+        updateMetadata();
+    }
+
     private void updateMetadata() {
         if (!QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
             LogHelper.e(TAG, "Can't retrieve current metadata.");
@@ -887,35 +1694,81 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             throw e;
         }
         LogHelper.d(TAG, "Updating metadata for MusicID= " + musicId);
-        mSession.setMetadata(track);
+        mPublisher.setMetadata(track);
 
         // Set the proper album artwork on the media session, so it can be shown in the
-        // locked screen and in other places.
-        if (track.getDescription().getIconBitmap() == null &&
-                track.getDescription().getIconUri() != null) {
+        // locked screen and in other places. The catalog only keeps its URI.
+        if (track.getDescription().getIconUri() != null) {
             String path = track.getDescription().getIconUri().toString();
 
+            mLatencyTracker.stageStarted(PlaybackLatencyTracker.STAGE_ART);
+            mMetadataArtLoader.load(trackId, path);
+            mLatencyTracker.stageFinished(PlaybackLatencyTracker.STAGE_ART);
+        }
+    }
+
+    /**
+     * Publishes the metadata of a track with its album art once loaded, if the track is still the
+     * current one. Both sizes arrive on the command loop, the icon first, usually straight from
+     * memory or the thumbnail pack. The bitmaps are only referenced by the published metadata,
+     * never by the catalog, so they stay within the budget of the bitmap cache.
+     */
+    private final class MetadataArtLoader implements ImageLoader.Callback {
+        private String mTrackId;
+        private Bitmap mIcon;
+
+        private final ImageLoader.Callback mIconCallback = new ImageLoader.Callback() {
+            @Override
+            public void onImageLoaded(String path, Bitmap bitmap, int[] colors) {
+                mIcon = bitmap;
+                MusicApplication.getInstance().getImageLoader().load(path,
+                        MusicApplication.getInstance().getArtSizeNormal(), false,
+                        MetadataArtLoader.this);
+            }
+        };
+
+        void load(String trackId, String path) {
+            ImageLoader imageLoader = MusicApplication.getInstance().getImageLoader();
+            // The art of a track skipped past is of no use anymore
+            imageLoader.cancel(this);
+            mTrackId = trackId;
+            mIcon = null;
+            imageLoader.load(path, MusicApplication.getArtSizeIcon(), false, mIconCallback);
+        }
+
+        void cancel() {
+            ImageLoader imageLoader = MusicApplication.getInstance().getImageLoader();
+            imageLoader.cancel(mIconCallback);
+            imageLoader.cancel(this);
+        }
+
+        @Override
+        public void onImageLoaded(String path, Bitmap art, int[] colors) {
+            Bitmap icon = mIcon;
+            mIcon = null;
+            MediaMetadata track = mMusicProvider.getMusic(mTrackId);
+            if (track == null || !isCurrent(mTrackId)) {
+                return;
+            }
             track = new MediaMetadata.Builder(track)
 
                     // set high resolution bitmap in METADATA_KEY_ALBUM_ART. This is used, for
                     // example, on the lockscreen background when the media session is active.
-                    .putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, BitmapHelper.readFromDisk(path, MusicApplication.getInstance().getArtSizeNormal()))
+                    .putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, art)
 
                             // set small version of the album art in the DISPLAY_ICON. This is used on
                             // the MediaDescription and thus it should be small to be serialized if
                             // necessary..
-                    .putBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON, BitmapHelper.readFromDisk(path, MusicApplication.getArtSizeIcon()))
+                    .putBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON, icon)
 
                     .build();
+            mPublisher.setMetadata(track);
+        }
 
-            mMusicProvider.updateMusic(MusicService.this, trackId, track);
-
-            // If we are still playing the same music
-            String currentPlayingId = MediaIDHelper.extractMusicIDFromMediaID(
-                    queueItem.getDescription().getMediaId());
-            if (trackId.equals(currentPlayingId)) {
-                mSession.setMetadata(track);
-            }
+        private boolean isCurrent(String trackId) {
+            return QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)
+                    && trackId.equals(MediaIDHelper.extractMusicIDFromMediaID(
+                    mPlayingQueue.get(mCurrentIndexOnQueue).getDescription().getMediaId()));
         }
     }
 
@@ -943,7 +1796,9 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             stateBuilder.setErrorMessage(error);
             state = PlaybackState.STATE_ERROR;
         }
-        stateBuilder.setState(state, position, 1.0f, SystemClock.elapsedRealtime());
+        // Controllers extrapolate the position with the speed
+        stateBuilder.setState(state, position, mPlayback.getPlaybackSpeed(),
+                SystemClock.elapsedRealtime());
 
         // Set the activeQueueItemId if the current index is valid.
         if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
@@ -951,11 +1806,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             stateBuilder.setActiveQueueItemId(item.getQueueId());
         }
 
-        mSession.setPlaybackState(stateBuilder.build());
-
-        if (state == PlaybackState.STATE_PLAYING || state == PlaybackState.STATE_PAUSED) {
-            mMediaNotificationManager.startNotification();
-        }
+        mPublisher.setPlaybackState(stateBuilder.build());
     }
 
     private long getAvailableActions() {
@@ -994,6 +1845,10 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
      */
     @Override
     public void onCompletion() {
+        mCommandLoop.submit(new CommandLoop.Command(OP_COMPLETION));
+    }
+
+    private void handleCompletion() {
         // The media player finished playing the current song, so we go ahead
         // and start the next.
         if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
@@ -1021,26 +1876,53 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
 
     @Override
     public void onPlaybackStatusChanged(int state) {
-        updatePlaybackState(null);
+        // Status changes reported while handling a command must be applied in place, so a later
+        // state (e.g. an error) is not overwritten by them.
+        if (mCommandLoop.isLoopThread()) {
+            updatePlaybackState(null);
+        } else {
+            mCommandLoop.submit(new CommandLoop.Command(OP_PLAYBACK_STATUS_CHANGED));
+        }
     }
 
     @Override
     public void onError(String error) {
-        updatePlaybackState(error);
+        if (mCommandLoop.isLoopThread()) {
+            updatePlaybackState(error);
+        } else {
+            mCommandLoop.submit(new CommandLoop.Command(OP_ERROR, error, null));
+        }
     }
 
     @Override
     public void onMetadataChanged(String mediaId) {
+        mCommandLoop.submit(new CommandLoop.Command(OP_METADATA_CHANGED, mediaId, null));
+    }
+
+    private void handleMetadataChanged(String mediaId) {
         LogHelper.d(TAG, "onMetadataChanged", mediaId);
         List<MediaSession.QueueItem> queue = QueueHelper.getPlayingQueue(mediaId, mMusicProvider);
         int index = QueueHelper.getMusicIndexOnQueue(queue, mediaId);
         if (index > -1) {
             mCurrentIndexOnQueue = index;
             mPlayingQueue = queue;
+            mRandomQueue = false;
+            notifyQueueChanged();
             updateMetadata();
         }
     }
 
+    private Playback createPlayback(int engine) {
+        Playback playback;
+        if (engine == ENGINE_AUDIO_TRACK) {
+            playback = new AudioTrackPlayback(this, mMusicProvider);
+        } else {
+            playback = new LocalPlayback(this, mMusicProvider);
+        }
+        playback.setPlaybackSpeed(PrefUtils.getPlaybackSpeed(this));
+        return playback;
+    }
+
     /**
      * Helper to switch to a different Playback instance
      *
@@ -1056,6 +1938,8 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         String currentMediaId = mPlayback.getCurrentMediaId();
         LogHelper.d(TAG, "Current position from " + playback + " is ", pos);
         mPlayback.stop(false);
+        // Whatever the old one kept warm won't be used anymore
+        mPlayback.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
         playback.setCallback(this);
         playback.setCurrentStreamPosition(pos < 0 ? 0 : pos);
         playback.setCurrentMediaId(currentMediaId);
@@ -1090,7 +1974,8 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     private static class DelayedStopHandler extends Handler {
         private final WeakReference<MusicService> mWeakReference;
 
-        private DelayedStopHandler(MusicService service) {
+        private DelayedStopHandler(MusicService service, Looper looper) {
+            super(looper);
             mWeakReference = new WeakReference<>(service);
         }
 
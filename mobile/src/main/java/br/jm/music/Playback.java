@@ -15,6 +15,8 @@
  */
 package br.jm.music;
 
+import java.io.PrintWriter;
+
 import static android.media.session.MediaSession.QueueItem;
 
 /**
@@ -76,6 +78,42 @@ public interface Playback {
      */
     void play(QueueItem item);
 
+    /**
+     * Sets the queue neighbours of the current item, so implementations can get them ready
+     * ahead of time. Called again whenever the queue or its modes change.
+     *
+     * @param previous the item a skip to previous would play, or null.
+     * @param next the item that should start right after the current one ends, or null if
+     *             playback should stop after the current one.
+     * @param chainNext whether the next item should start without a gap when the current one
+     *                  ends.
+     */
+    void setNeighbourItems(QueueItem previous, QueueItem next, boolean chainNext);
+
+    /**
+     * Sets how long the current item fades into the next one, in ms. With 0 the items are
+     * chained without a gap instead.
+     */
+    void setCrossfadeDuration(int duration);
+
+    /**
+     * Sets the tempo, 1 being the original one, keeping the pitch. Engines that can't change
+     * the tempo ignore it.
+     */
+    void setPlaybackSpeed(float speed);
+
+    /**
+     * @return the tempo actually used, 1 for engines that can't change it
+     */
+    float getPlaybackSpeed();
+
+    /**
+     * Releases what can be rebuilt later, like speculatively prepared items.
+     *
+     * @param level as in {@link android.content.ComponentCallbacks2#onTrimMemory}
+     */
+    void onTrimMemory(int level);
+
     /**
      * Pause the current playing item
      */
@@ -127,4 +165,9 @@ public interface Playback {
      * @param callback to be called
      */
     void setCallback(Callback callback);
+
+    /**
+     * Prints the implementation's statistics, for dumpsys.
+     */
+    void dump(PrintWriter writer);
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music;
+
+import android.media.session.PlaybackState;
+import android.net.Uri;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Measures how long it takes from a skip or play request to the new track being heard. A trace
+ * starts when the session gets the request and goes through the stages below, each timed with
+ * {@link System#nanoTime()}, until the first {@link PlaybackState#STATE_PLAYING} is published.
+ * The stage durations are then added to histograms kept per source type and file format.
+ * <p/>
+ * Only one trace runs at a time: a request arriving while another one is still in flight
+ * replaces it, like the skip it stands for.
+ */
+public class PlaybackLatencyTracker {
+
+    public static final int TRIGGER_SKIP_TO_NEXT = 0;
+    public static final int TRIGGER_SKIP_TO_PREVIOUS = 1;
+    public static final int TRIGGER_SKIP_TO_QUEUE_ITEM = 2;
+    public static final int TRIGGER_PLAY_FROM_MEDIA_ID = 3;
+    private static final String[] TRIGGER_NAMES = {
+            "skipToNext", "skipToPrevious", "skipToQueueItem", "playFromMediaId"};
+
+    // From the session callback to the play request running on the command loop
+    public static final int STAGE_DISPATCH = 0;
+    // Building and publishing the metadata, art request included
+    public static final int STAGE_METADATA = 1;
+    // Requesting the album art for the metadata, which is then loaded off the command loop
+    public static final int STAGE_ART = 2;
+    // Requesting the audio focus
+    public static final int STAGE_AUDIO_FOCUS = 3;
+    // From prepareAsync to onPrepared
+    public static final int STAGE_PREPARE = 4;
+    // From the last stage above to the first STATE_PLAYING being published
+    public static final int STAGE_START = 5;
+    // From the session callback to the first STATE_PLAYING being published
+    public static final int STAGE_TOTAL = 6;
+    private static final String[] STAGE_NAMES = {
+            "dispatch", "metadata", "art", "audioFocus", "prepare", "start", "total"};
+
+    private static final String UNKNOWN = "unknown";
+
+    // Current trace, guarded by this. mRequestTime is 0 when no trace is running.
+    private long mRequestTime;
+    private long mLastMark;
+    private String mKey;
+    private final long[] mStageStarts = new long[STAGE_NAMES.length];
+    private final long[] mDurations = new long[STAGE_NAMES.length];
+
+    // Results, guarded by this
+    private final Map<String, LatencyHistogram[]> mHistograms = new TreeMap<>();
+    private final LatencyHistogram mNotificationBuilds = new LatencyHistogram();
+    private final long[] mRequests = new long[TRIGGER_NAMES.length];
+    private long mCompleted;
+    private long mSuperseded;
+    private long mCancelled;
+
+    /**
+     * Starts a new trace. Can be called from any thread.
+     */
+    public synchronized void requestStarted(int trigger) {
+        if (mRequestTime != 0) {
+            mSuperseded++;
+        }
+        mRequests[trigger]++;
+        mRequestTime = System.nanoTime();
+        mLastMark = mRequestTime;
+        mKey = null;
+        Arrays.fill(mStageStarts, 0);
+        Arrays.fill(mDurations, -1);
+    }
+
+    /**
+     * Ends the dispatch stage, once the request is carried out.
+     */
+    public synchronized void requestDispatched() {
+        if (mRequestTime != 0 && mDurations[STAGE_DISPATCH] < 0) {
+            mStageStarts[STAGE_DISPATCH] = mRequestTime;
+            stageFinished(STAGE_DISPATCH);
+        }
+    }
+
+    public synchronized void stageStarted(int stage) {
+        if (mRequestTime != 0) {
+            mStageStarts[stage] = System.nanoTime();
+        }
+    }
+
+    public synchronized void stageFinished(int stage) {
+        if (mRequestTime != 0 && mStageStarts[stage] != 0) {
+            mLastMark = System.nanoTime();
+            mDurations[stage] = mLastMark - mStageStarts[stage];
+            mStageStarts[stage] = 0;
+        }
+    }
+
+    /**
+     * Sets the histograms the current trace goes to, from the source of the track played.
+     *
+     * @param prebuffered whether the track had been prepared ahead, which skips the prepare
+     *                    stage and is therefore kept apart
+     */
+    public synchronized void setSource(String source, boolean prebuffered) {
+        if (mRequestTime != 0) {
+            mKey = getSourceType(source) + "/" + getFormat(source)
+                    + (prebuffered ? " (prebuffered)" : "");
+        }
+    }
+
+    /**
+     * Ends the current trace when the first {@link PlaybackState#STATE_PLAYING} goes out, or
+     * drops it when playback stops or fails instead.
+     */
+    public synchronized void statePublished(int state) {
+        if (mRequestTime == 0) {
+            return;
+        }
+        switch (state) {
+            case PlaybackState.STATE_PLAYING:
+                long now = System.nanoTime();
+                mDurations[STAGE_START] = now - mLastMark;
+                mDurations[STAGE_TOTAL] = now - mRequestTime;
+                LatencyHistogram[] histograms = getHistograms(mKey != null ? mKey : UNKNOWN);
+                for (int i = 0; i < mDurations.length; i++) {
+                    if (mDurations[i] >= 0) {
+                        histograms[i].record(mDurations[i] / 1000);
+                    }
+                }
+                mCompleted++;
+                mRequestTime = 0;
+                break;
+            case PlaybackState.STATE_NONE:
+            case PlaybackState.STATE_STOPPED:
+            case PlaybackState.STATE_PAUSED:
+            case PlaybackState.STATE_ERROR:
+                mCancelled++;
+                mRequestTime = 0;
+                break;
+        }
+    }
+
+    /**
+     * Records how long building a notification took, whether or not a trace is running.
+     */
+    public synchronized void recordNotificationBuild(long nanos) {
+        mNotificationBuilds.record(nanos / 1000);
+    }
+
+    private LatencyHistogram[] getHistograms(String key) {
+        LatencyHistogram[] histograms = mHistograms.get(key);
+        if (histograms == null) {
+            histograms = new LatencyHistogram[STAGE_NAMES.length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+            mHistograms.put(key, histograms);
+        }
+        return histograms;
+    }
+
+    private static String getSourceType(String source) {
+        if (source == null) {
+            return UNKNOWN;
+        }
+        String scheme = Uri.parse(source).getScheme();
+        return scheme == null ? "file" : scheme.toLowerCase(Locale.US);
+    }
+
+    private static String getFormat(String source) {
+        if (source == null) {
+            return UNKNOWN;
+        }
+        String path = Uri.parse(source).getPath();
+        if (path == null) {
+            return UNKNOWN;
+        }
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/')) {
+            return UNKNOWN;
+        }
+        return path.substring(dot + 1).toLowerCase(Locale.US);
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Playback latency (ms):");
+        StringBuilder requests = new StringBuilder("  requests:");
+        for (int i = 0; i < TRIGGER_NAMES.length; i++) {
+            requests.append(' ').append(TRIGGER_NAMES[i]).append('=').append(mRequests[i]);
+        }
+        writer.println(requests);
+        writer.println("  completed=" + mCompleted + " superseded=" + mSuperseded
+                + " cancelled=" + mCancelled + " inFlight=" + (mRequestTime != 0));
+        writer.println("  notificationBuild: " + mNotificationBuilds.summarize());
+        for (Map.Entry<String, LatencyHistogram[]> entry : mHistograms.entrySet()) {
+            writer.println("  " + entry.getKey() + ":");
+            LatencyHistogram[] histograms = entry.getValue();
+            for (int i = 0; i < histograms.length; i++) {
+                if (histograms[i].getCount() > 0) {
+                    writer.println("    " + STAGE_NAMES[i] + ": " + histograms[i].summarize());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import br.jm.music.audio.Mp3FrameScanner;
+import br.jm.music.audio.Mp3SeekTable;
+import br.jm.music.utils.LogHelper;
+import br.jm.music.utils.MemoryTrimmer;
+
+/**
+ * Seek tables of MP3 files, kept in memory for the few files around the current one and on disk
+ * for all of them. A table is built on a background thread the first time its file is asked
+ * for, so that file is only seeked precisely the next time it is opened (or right away when it
+ * was prefetched as a queue neighbour).
+ */
+public class SeekIndexCache implements MemoryTrimmer.Trimmable {
+
+    private static final String TAG = LogHelper.makeLogTag(SeekIndexCache.class);
+
+    private static final int MAGIC = 0x4D534958; // "MSIX"
+    private static final int VERSION = 1;
+
+    // Distance between two entries of a table, a seek walks at most this much of frame headers
+    private static final int INTERVAL_MS = 1000;
+    private static final int MEMORY_ENTRIES = 4;
+
+    private final File mDirectory;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Guarded by this
+    private final Map<String, Mp3SeekTable> mTables =
+            new LinkedHashMap<String, Mp3SeekTable>(MEMORY_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Mp3SeekTable> eldest) {
+                    return size() > MEMORY_ENTRIES;
+                }
+            };
+    private final Set<String> mPending = new HashSet<>();
+    private int mHits;
+    private int mMisses;
+    private int mBuilt;
+    private long mBuildMillis;
+
+    public SeekIndexCache(File directory) {
+        mDirectory = directory;
+        mThread = new HandlerThread("SeekIndexCache", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public static boolean isSupported(String source) {
+        return source != null && source.toLowerCase(Locale.US).endsWith(".mp3");
+    }
+
+    /**
+     * @return the table of the file, or null if it isn't ready yet, in which case it gets built
+     * in the background
+     */
+    public Mp3SeekTable get(String source) {
+        if (!isSupported(source)) {
+            return null;
+        }
+        synchronized (this) {
+            Mp3SeekTable table = mTables.get(source);
+            if (table != null) {
+                mHits++;
+                return table;
+            }
+        }
+        // Tables are small, a few bytes per second of audio
+        Mp3SeekTable table = readTable(source);
+        synchronized (this) {
+            if (table != null) {
+                mHits++;
+                mTables.put(source, table);
+            } else {
+                mMisses++;
+            }
+        }
+        if (table == null) {
+            prefetch(source);
+        }
+        return table;
+    }
+
+    /**
+     * Loads or builds the table of the file in the background, so a later {@link #get} finds it.
+     */
+    public void prefetch(final String source) {
+        if (!isSupported(source)) {
+            return;
+        }
+        synchronized (this) {
+            if (mTables.containsKey(source) || !mPending.add(source)) {
+                return;
+            }
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Mp3SeekTable table = readTable(source);
+                if (table == null) {
+                    table = buildTable(source);
+                }
+                synchronized (SeekIndexCache.this) {
+                    mPending.remove(source);
+                    if (table != null) {
+                        mTables.put(source, table);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the tables in memory if the level asks for indexes to be released, they are read
+     * from disk again when next asked for.
+     */
+    @Override
+    public synchronized long trimMemory(int level) {
+        if (!MemoryTrimmer.isReleasingIndexes(level)) {
+            return 0;
+        }
+        long bytes = 0;
+        for (Mp3SeekTable table : mTables.values()) {
+            bytes += table.getByteCount();
+        }
+        mTables.clear();
+        return bytes;
+    }
+
+    /**
+     * Stops the background thread once the tables being built are done.
+     */
+    public void close() {
+        mThread.quitSafely();
+    }
+
+    private File getFile(String source) {
+        return new File(mDirectory, Integer.toHexString(source.hashCode()) + ".idx");
+    }
+
+    private Mp3SeekTable buildTable(String source) {
+        File file = new File(source);
+        long start = System.currentTimeMillis();
+        Mp3SeekTable table;
+        try {
+            FileInputStream is = new FileInputStream(file);
+            try {
+                table = Mp3FrameScanner.scan(is.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        file.length()), INTERVAL_MS);
+            } finally {
+                is.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            LogHelper.w(TAG, e, "Could not index ", source);
+            return null;
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        LogHelper.d(TAG, "Indexed ", source, ": ", table.frameCount, " frames in ", elapsed, "ms");
+        synchronized (this) {
+            mBuilt++;
+            mBuildMillis += elapsed;
+        }
+        writeTable(source, file, table);
+        return table;
+    }
+
+    private Mp3SeekTable readTable(String source) {
+        File index = getFile(source);
+        if (!index.exists()) {
+            return null;
+        }
+        File file = new File(source);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(index)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION
+                        || !source.equals(in.readUTF()) || in.readLong() != file.length()
+                        || in.readLong() != file.lastModified()) {
+                    // Another file with the same hash, an older format or a changed file
+                    return null;
+                }
+                return Mp3SeekTable.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Could not read the index of ", source);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the table to a temporary file and renames it over the index, so a reader never
+     * sees a partially written one.
+     */
+    private void writeTable(String source, File file, Mp3SeekTable table) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            LogHelper.w(TAG, "Could not create ", mDirectory);
+            return;
+        }
+        File index = getFile(source);
+        File tmp = new File(index.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(source);
+                out.writeLong(file.length());
+                out.writeLong(file.lastModified());
+                table.write(out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(index)) {
+                throw new IOException("Could not rename " + tmp + " to " + index);
+            }
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Could not write the index of ", source);
+        }
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("SeekIndexCache");
+        writer.print("  hits=");
+        writer.print(mHits);
+        writer.print(" misses=");
+        writer.print(mMisses);
+        writer.print(" built=");
+        writer.print(mBuilt);
+        writer.print(" avgBuildMs=");
+        writer.print(mBuilt > 0 ? mBuildMillis / mBuilt : 0);
+        writer.print(" pending=");
+        writer.println(mPending.size());
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music;
+
+import android.media.MediaMetadata;
+import android.media.session.MediaSession;
+import android.media.session.PlaybackState;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+import br.jm.music.utils.LogHelper;
+
+/**
+ * Coalesces the updates the {@link MusicService} makes to its {@link MediaSession}. Each setter
+ * only records the latest value and marks it dirty; dirty values are pushed to the session
+ * together, at most once per {@link #PUBLISH_INTERVAL}, so a burst of updates (e.g. the
+ * STOPPED, BUFFERING, PLAYING run of a track change) costs a single round of broadcasts.
+ */
+public class SessionPublisher {
+
+    private static final String TAG = LogHelper.makeLogTag(SessionPublisher.class);
+
+    // Minimum time between two flushes, about one frame.
+    private static final long PUBLISH_INTERVAL = 16;
+
+    private static final int DIRTY_STATE = 1;
+    private static final int DIRTY_METADATA = 1 << 1;
+    private static final int DIRTY_QUEUE = 1 << 2;
+    private static final int DIRTY_QUEUE_TITLE = 1 << 3;
+    private static final int DIRTY_EXTRAS = 1 << 4;
+
+    public interface Listener {
+        /**
+         * Called on the publisher's thread after a flush that pushed a new playback state.
+         */
+        void onPlaybackStatePublished(PlaybackState state);
+    }
+
+    private final MediaSession mSession;
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    // Pending values, guarded by this
+    private int mDirty;
+    private PlaybackState mState;
+    private MediaMetadata mMetadata;
+    private List<MediaSession.QueueItem> mQueue;
+    private CharSequence mQueueTitle;
+    private Bundle mExtras;
+    private boolean mFlushScheduled;
+    private long mLastFlushTime;
+    private boolean mReleased;
+
+    // Counters, guarded by this
+    private final long[] mRequested = new long[5];
+    private final long[] mPublished = new long[5];
+    private long mFlushes;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public SessionPublisher(MediaSession session, Looper looper, Listener listener) {
+        mSession = session;
+        mHandler = new Handler(looper);
+        mListener = listener;
+    }
+
+    public synchronized void setPlaybackState(PlaybackState state) {
+        mState = state;
+        markDirty(DIRTY_STATE);
+    }
+
+    public synchronized void setMetadata(MediaMetadata metadata) {
+        mMetadata = metadata;
+        markDirty(DIRTY_METADATA);
+    }
+
+    /**
+     * Records the queue to publish. The list is published as it is at flush time, so callers
+     * must only mutate it on the publisher's thread.
+     */
+    public synchronized void setQueue(List<MediaSession.QueueItem> queue) {
+        mQueue = queue;
+        markDirty(DIRTY_QUEUE);
+    }
+
+    public synchronized void setQueueTitle(CharSequence title) {
+        mQueueTitle = title;
+        markDirty(DIRTY_QUEUE_TITLE);
+    }
+
+    /**
+     * Records the extras to publish. Like the queue, the bundle is read at flush time.
+     */
+    public synchronized void setExtras(Bundle extras) {
+        mExtras = extras;
+        markDirty(DIRTY_EXTRAS);
+    }
+
+    /**
+     * Drops any pending update. Must be called before the session is released.
+     */
+    public synchronized void release() {
+        mReleased = true;
+        mDirty = 0;
+        mHandler.removeCallbacks(mFlushRunnable);
+    }
+
+    private void markDirty(int flag) {
+        if (mReleased) {
+            return;
+        }
+        mDirty |= flag;
+        mRequested[Integer.numberOfTrailingZeros(flag)]++;
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            long delay = mLastFlushTime + PUBLISH_INTERVAL - SystemClock.uptimeMillis();
+            mHandler.postDelayed(mFlushRunnable, Math.max(0, delay));
+        }
+    }
+
+    private void flush() {
+        int dirty;
+        PlaybackState state;
+        MediaMetadata metadata;
+        List<MediaSession.QueueItem> queue;
+        CharSequence queueTitle;
+        Bundle extras;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mReleased || mDirty == 0) {
+                return;
+            }
+            dirty = mDirty;
+            mDirty = 0;
+            state = mState;
+            metadata = mMetadata;
+            queue = mQueue;
+            queueTitle = mQueueTitle;
+            extras = mExtras;
+            mLastFlushTime = SystemClock.uptimeMillis();
+            mFlushes++;
+            for (int i = 0; i < mPublished.length; i++) {
+                if ((dirty & (1 << i)) != 0) {
+                    mPublished[i]++;
+                }
+            }
+        }
+
+        // Extras and queue first, so controllers reacting to the new state already see them
+        if ((dirty & DIRTY_EXTRAS) != 0) {
+            mSession.setExtras(extras);
+        }
+        if ((dirty & DIRTY_QUEUE_TITLE) != 0) {
+            mSession.setQueueTitle(queueTitle);
+        }
+        if ((dirty & DIRTY_QUEUE) != 0) {
+            mSession.setQueue(queue);
+        }
+        if ((dirty & DIRTY_METADATA) != 0) {
+            mSession.setMetadata(metadata);
+        }
+        if ((dirty & DIRTY_STATE) != 0) {
+            mSession.setPlaybackState(state);
+            if (mListener != null) {
+                mListener.onPlaybackStatePublished(state);
+            }
+        }
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Session publisher:");
+        writer.println("  flushes=" + mFlushes);
+        dumpCounter(writer, "state", DIRTY_STATE);
+        dumpCounter(writer, "metadata", DIRTY_METADATA);
+        dumpCounter(writer, "queue", DIRTY_QUEUE);
+        dumpCounter(writer, "queueTitle", DIRTY_QUEUE_TITLE);
+        dumpCounter(writer, "extras", DIRTY_EXTRAS);
+    }
+
+    private void dumpCounter(PrintWriter writer, String name, int flag) {
+        int i = Integer.numberOfTrailingZeros(flag);
+        writer.println("  " + name + ": requested=" + mRequested[i] + " published="
+                + mPublished[i] + " saved=" + (mRequested[i] - mPublished[i]));
+    }
+}
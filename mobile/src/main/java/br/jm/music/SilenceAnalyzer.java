@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music;
+
+import android.media.MediaMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import br.jm.music.audio.PcmRingBuffer;
+import br.jm.music.audio.SilenceDetector;
+import br.jm.music.model.MusicProvider;
+import br.jm.music.model.SilenceTable;
+
+/**
+ * Finds the leading and trailing silence of the catalog tracks missing from a
+ * {@link SilenceTable}.
+ * <p/>
+ * Only the ends of a track are decoded: its start until the sound begins, and its last
+ * {@link #WINDOW_US}, reached with a seek. Longer silences are left alone, they are more likely
+ * a hidden track or a deliberate pause than a ripping artifact.
+ */
+public class SilenceAnalyzer extends TrackAnalyzer<SilenceAnalyzer.Worker> {
+
+    private static final int CHUNK_SAMPLES = 8192;
+    // How far into each end of a track silence is searched for
+    private static final long WINDOW_US = 30000000;
+    // Silence kept before and after the sound, so the attack of the first note isn't clipped
+    private static final long GUARD_US = 20000;
+    // Shorter silences are kept as is, skipping them wouldn't be noticed
+    private static final long MIN_SILENCE_US = 250000;
+
+    private final SilenceTable mTable;
+    private final File mFile;
+
+    static class Worker {
+        final SilenceDetector detector = new SilenceDetector();
+        final PcmRingBuffer.Chunk chunk = new PcmRingBuffer.Chunk(CHUNK_SAMPLES);
+    }
+
+    public SilenceAnalyzer(SilenceTable table, File file, ExecutorService executor) {
+        super(executor);
+        mTable = table;
+        mFile = file;
+    }
+
+    @Override
+    protected Worker createWorkerState() {
+        return new Worker();
+    }
+
+    @Override
+    protected boolean isAnalyzed(long trackId, long modified) {
+        return mTable.contains(trackId, modified);
+    }
+
+    @Override
+    protected boolean retain(Set<Long> trackIds) {
+        return mTable.retain(trackIds);
+    }
+
+    @Override
+    protected long analyze(MediaMetadata track, long trackId, long modified, Worker worker)
+            throws IOException {
+        SilenceDetector detector = worker.detector;
+        PcmRingBuffer.Chunk chunk = worker.chunk;
+        long durationUs = track.getLong(MediaMetadata.METADATA_KEY_DURATION) * 1000;
+        long decodedUs;
+        long leadingUs = 0;
+        long trailingUs = 0;
+        MediaCodecSource decoder = MediaCodecSource.create(
+                track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE));
+        try {
+            detector.configure(decoder.getSampleRate(), decoder.getChannelCount());
+            // Head: stop as soon as the sound starts
+            boolean more = true;
+            while (more && !isReleased() && !detector.hasSound()
+                    && detector.getEndUs() < WINDOW_US) {
+                more = decoder.read(chunk);
+                if (chunk.length > 0) {
+                    detector.process(chunk.data, 0, chunk.length, chunk.timeUs);
+                }
+            }
+            decodedUs = detector.getEndUs();
+            if (detector.hasSound()) {
+                leadingUs = detector.getFirstSoundUs();
+            }
+
+            // Tail: the sound end must be after its start, and the whole end was decoded
+            // already for short tracks
+            long tailUs = Math.max(decodedUs, durationUs - WINDOW_US);
+            if (more && !isReleased()) {
+                if (tailUs > decodedUs) {
+                    decoder.seekTo(tailUs);
+                    detector.reset();
+                }
+                while (more && !isReleased()) {
+                    more = decoder.read(chunk);
+                    if (chunk.length > 0) {
+                        detector.process(chunk.data, 0, chunk.length, chunk.timeUs);
+                    }
+                }
+                decodedUs += detector.getEndUs() - tailUs;
+            }
+            if (detector.hasSound()) {
+                trailingUs = detector.getEndUs() - detector.getLastSoundUs();
+            }
+        } finally {
+            decoder.release();
+        }
+        if (!isReleased()) {
+            mTable.put(trackId, modified, toTrimMs(leadingUs), toTrimMs(trailingUs));
+        }
+        return decodedUs;
+    }
+
+    private static int toTrimMs(long silenceUs) {
+        return silenceUs < MIN_SILENCE_US ? 0 : (int) ((silenceUs - GUARD_US) / 1000);
+    }
+
+    @Override
+    protected void write() throws IOException {
+        mTable.write(mFile);
+    }
+
+    @Override
+    protected void dumpTable(PrintWriter writer) {
+        mTable.dump(writer);
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music;
+
+import android.media.MediaMetadata;
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.jm.music.model.MusicProvider;
+import br.jm.music.utils.LogHelper;
+
+/**
+ * Base of the background analyzers that decode the catalog tracks to build a persisted table.
+ * Only tracks missing from the table, or whose file changed since, are analyzed, on workers
+ * of a pool shared by all analyzers; the table is saved every few tracks and at the end.
+ *
+ * @param <S> per worker state, like meters and buffers, so tracks don't allocate them
+ */
+public abstract class TrackAnalyzer<S> {
+
+    private static final String TAG = LogHelper.makeLogTag(TrackAnalyzer.class);
+
+    // Decoding is CPU bound, leave at least one core to playback and the UI
+    private static final int MAX_WORKERS = 2;
+    // Tracks analyzed between two saves of the table, so a killed process loses little work
+    private static final int SAVE_INTERVAL = 25;
+
+    private final ExecutorService mExecutor;
+    private final int mWorkerCount;
+
+    private final ConcurrentLinkedQueue<MediaMetadata> mPending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mActiveWorkers = new AtomicInteger();
+    private final AtomicInteger mUnsaved = new AtomicInteger();
+    private volatile boolean mReleased;
+    private MusicProvider mMusicProvider;
+
+    // Statistics, for dumpsys
+    private final AtomicInteger mAnalyzed = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final AtomicLong mAudioUs = new AtomicLong();
+    private final AtomicLong mWorkNanos = new AtomicLong();
+
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            S state = createWorkerState();
+            MediaMetadata track;
+            while (!mReleased && (track = mPending.poll()) != null) {
+                analyzeTrack(track, state);
+            }
+            if (mActiveWorkers.decrementAndGet() == 0 && !mReleased) {
+                save();
+            }
+        }
+    };
+
+    /**
+     * @return a pool of low priority threads for the analyzers to share. Each one runs its
+     * tracks in turn, in the order their passes were started.
+     */
+    public static ExecutorService createExecutor() {
+        return Executors.newFixedThreadPool(getWorkerCount(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "TrackAnalyzer-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    protected TrackAnalyzer(ExecutorService executor) {
+        mExecutor = executor;
+        mWorkerCount = getWorkerCount();
+    }
+
+    private static int getWorkerCount() {
+        return Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * Queues the tracks of the catalog that have no up to date result and starts the workers.
+     * Results of tracks gone from the catalog are dropped. Does nothing while a previous pass is
+     * still running.
+     */
+    public synchronized void analyze(MusicProvider musicProvider) {
+        if (mReleased || mActiveWorkers.get() > 0) {
+            return;
+        }
+        mMusicProvider = musicProvider;
+        Set<Long> trackIds = new HashSet<>();
+        for (MediaMetadata track : musicProvider.getMusics()) {
+            long trackId = getTrackId(track);
+            if (trackId < 0) {
+                continue;
+            }
+            trackIds.add(trackId);
+            if (!isAnalyzed(trackId, getModified(track))) {
+                mPending.add(track);
+            }
+        }
+        boolean pruned = retain(trackIds);
+        if (mPending.isEmpty()) {
+            if (pruned) {
+                save();
+            }
+            return;
+        }
+        LogHelper.d(TAG, getClass().getSimpleName(), ": analyzing ", mPending.size(), " tracks");
+        int workers = Math.min(mWorkerCount, mPending.size());
+        mActiveWorkers.set(workers);
+        for (int i = 0; i < workers; i++) {
+            mExecutor.execute(mWorker);
+        }
+    }
+
+    /**
+     * Stops the workers. Tracks being analyzed are abandoned, the others were saved already.
+     */
+    public void release() {
+        mReleased = true;
+        mPending.clear();
+    }
+
+    protected boolean isReleased() {
+        return mReleased;
+    }
+
+    protected MusicProvider getMusicProvider() {
+        return mMusicProvider;
+    }
+
+    protected abstract S createWorkerState();
+
+    /**
+     * @return whether the table has a result for the track with this modification time
+     */
+    protected abstract boolean isAnalyzed(long trackId, long modified);
+
+    /**
+     * Drops the results of tracks not in the given set.
+     *
+     * @return whether any was dropped
+     */
+    protected abstract boolean retain(Set<Long> trackIds);
+
+    /**
+     * Analyzes a track and stores the result, on a worker thread. Should give up early once
+     * {@link #isReleased()}.
+     *
+     * @return the duration of audio decoded, in us
+     */
+    protected abstract long analyze(MediaMetadata track, long trackId, long modified, S state)
+            throws IOException;
+
+    /**
+     * Writes the table. Called on a worker thread, never concurrently.
+     */
+    protected abstract void write() throws IOException;
+
+    protected abstract void dumpTable(PrintWriter writer);
+
+    private void analyzeTrack(MediaMetadata track, S state) {
+        long start = System.nanoTime();
+        long audioUs;
+        try {
+            audioUs = analyze(track, getTrackId(track), getModified(track), state);
+        } catch (IOException | RuntimeException e) {
+            LogHelper.w(TAG, e, "Could not analyze ",
+                    track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE));
+            mFailed.incrementAndGet();
+            return;
+        }
+        if (mReleased) {
+            return;
+        }
+        mAnalyzed.incrementAndGet();
+        mAudioUs.addAndGet(audioUs);
+        mWorkNanos.addAndGet(System.nanoTime() - start);
+        if (mUnsaved.incrementAndGet() >= SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+    private synchronized void save() {
+        mUnsaved.set(0);
+        try {
+            write();
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not write the table of ", getClass().getSimpleName());
+        }
+    }
+
+    private static long getTrackId(MediaMetadata track) {
+        try {
+            return Long.parseLong(track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long getModified(MediaMetadata track) {
+        return track.getLong(MusicProvider.CUSTOM_METADATA_TRACK_MODIFIED);
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println(getClass().getSimpleName());
+        dumpTable(writer);
+        long workMs = mWorkNanos.get() / 1000000;
+        writer.print("  analyzed=");
+        writer.print(mAnalyzed.get());
+        writer.print(" failed=");
+        writer.print(mFailed.get());
+        writer.print(" pending=");
+        writer.print(mPending.size());
+        writer.print(" workers=");
+        writer.print(mActiveWorkers.get());
+        writer.print("/");
+        writer.print(mWorkerCount);
+        writer.print(" speed=");
+        writer.print(workMs > 0 ? mAudioUs.get() / 1000 / workMs : 0);
+        writer.println("x");
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+/**
+ * Software equalizer: a preamp, up to {@link #MAX_BANDS} biquad filters and a soft limiter,
+ * applied in place to interleaved PCM.
+ * <p/>
+ * The setters can be called from any thread; they only record the parameters and bump a
+ * version. The processing thread notices the new version at the start of a block and
+ * recomputes the filter coefficients then, so a steady stream costs no coefficient math and,
+ * like the rest of the processing, no allocation.
+ */
+public class DspChain implements PcmProcessor {
+
+    public static final int MAX_BANDS = 16;
+    public static final int MAX_CHANNELS = 2;
+
+    public static final int TYPE_PEAKING = 0;
+    public static final int TYPE_LOW_SHELF = 1;
+    public static final int TYPE_HIGH_SHELF = 2;
+
+    // About one octave wide
+    public static final float DEFAULT_Q = 1.41f;
+    // Level above which the limiter starts bending the signal, -1 dBFS
+    private static final float LIMITER_THRESHOLD = 0.891f;
+    // Filter state below this is flushed to 0, avoiding slow denormal arithmetic in silences
+    private static final float DENORMAL_LIMIT = 1e-15f;
+    private static final float SHORT_SCALE = 1f / 32768;
+
+    // Parameters, guarded by this
+    private boolean mEnabled = true;
+    private int mBandCount;
+    private final int[] mTypes = new int[MAX_BANDS];
+    private final float[] mFrequencies = new float[MAX_BANDS];
+    private final float[] mGains = new float[MAX_BANDS];
+    private final float[] mQs = new float[MAX_BANDS];
+    private float mPreampDb;
+    private boolean mLimiterEnabled = true;
+    private volatile int mVersion;
+
+    // Processing state, only used by the processing thread
+    private int mAppliedVersion = -1;
+    private int mSampleRate;
+    private int mChannelCount;
+    private boolean mActive;
+    private boolean mLimiting;
+    private float mPreamp = 1f;
+    private int mActiveBands;
+    // Coefficients of the bands that actually change the signal, normalized by a0
+    private final float[] mB0 = new float[MAX_BANDS];
+    private final float[] mB1 = new float[MAX_BANDS];
+    private final float[] mB2 = new float[MAX_BANDS];
+    private final float[] mA1 = new float[MAX_BANDS];
+    private final float[] mA2 = new float[MAX_BANDS];
+    // Transposed direct form II state, per band and channel
+    private final float[] mZ1 = new float[MAX_BANDS * MAX_CHANNELS];
+    private final float[] mZ2 = new float[MAX_BANDS * MAX_CHANNELS];
+    // Conversion buffer for 16 bit blocks, only grown
+    private float[] mScratch = new float[0];
+
+    public synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        mVersion++;
+    }
+
+    public synchronized void setPreamp(float gainDb) {
+        mPreampDb = gainDb;
+        mVersion++;
+    }
+
+    public synchronized void setLimiterEnabled(boolean enabled) {
+        mLimiterEnabled = enabled;
+        mVersion++;
+    }
+
+    /**
+     * Sets the number of bands in use. Bands keep their settings when they are dropped.
+     */
+    public synchronized void setBandCount(int count) {
+        if (count < 0 || count > MAX_BANDS) {
+            throw new IllegalArgumentException("Invalid band count: " + count);
+        }
+        mBandCount = count;
+        mVersion++;
+    }
+
+    public synchronized void setBand(int band, int type, float frequency, float gainDb, float q) {
+        if (band < 0 || band >= MAX_BANDS) {
+            throw new IllegalArgumentException("Invalid band: " + band);
+        }
+        if (frequency <= 0 || q <= 0) {
+            throw new IllegalArgumentException("Invalid frequency or Q");
+        }
+        mTypes[band] = type;
+        mFrequencies[band] = frequency;
+        mGains[band] = gainDb;
+        mQs[band] = q;
+        mVersion++;
+    }
+
+    /**
+     * Configures a graphic equalizer: peaking bands at the given frequencies, with the first and
+     * last ones as shelves so the extremes of the spectrum follow them.
+     */
+    public synchronized void setGraphicEq(float[] frequencies, float[] gainsDb) {
+        if (frequencies.length != gainsDb.length || frequencies.length > MAX_BANDS) {
+            throw new IllegalArgumentException("Invalid equalizer bands");
+        }
+        int count = frequencies.length;
+        for (int i = 0; i < count; i++) {
+            int type = TYPE_PEAKING;
+            if (count > 1 && i == 0) {
+                type = TYPE_LOW_SHELF;
+            } else if (count > 1 && i == count - 1) {
+                type = TYPE_HIGH_SHELF;
+            }
+            setBand(i, type, frequencies[i], gainsDb[i], DEFAULT_Q);
+        }
+        setBandCount(count);
+    }
+
+    @Override
+    public void configure(int sampleRate, int channelCount) {
+        if (channelCount > MAX_CHANNELS) {
+            throw new IllegalArgumentException("Too many channels: " + channelCount);
+        }
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        for (int i = 0; i < mZ1.length; i++) {
+            mZ1[i] = 0;
+            mZ2[i] = 0;
+        }
+        mAppliedVersion = -1;
+    }
+
+    @Override
+    public void process(float[] data, int offset, int length) {
+        if (mAppliedVersion != mVersion) {
+            updateCoefficients();
+        }
+        if (!mActive) {
+            return;
+        }
+        int channels = mChannelCount;
+        int end = offset + length;
+        for (int band = 0; band < mActiveBands; band++) {
+            float b0 = mB0[band];
+            float b1 = mB1[band];
+            float b2 = mB2[band];
+            float a1 = mA1[band];
+            float a2 = mA2[band];
+            for (int channel = 0; channel < channels; channel++) {
+                int state = band * MAX_CHANNELS + channel;
+                float z1 = mZ1[state];
+                float z2 = mZ2[state];
+                for (int i = offset + channel; i < end; i += channels) {
+                    float x = data[i];
+                    float y = b0 * x + z1;
+                    z1 = b1 * x - a1 * y + z2;
+                    z2 = b2 * x - a2 * y;
+                    data[i] = y;
+                }
+                mZ1[state] = Math.abs(z1) < DENORMAL_LIMIT ? 0 : z1;
+                mZ2[state] = Math.abs(z2) < DENORMAL_LIMIT ? 0 : z2;
+            }
+        }
+        float preamp = mPreamp;
+        if (mLimiting) {
+            for (int i = offset; i < end; i++) {
+                data[i] = limit(data[i] * preamp);
+            }
+        } else if (preamp != 1f) {
+            for (int i = offset; i < end; i++) {
+                data[i] *= preamp;
+            }
+        }
+    }
+
+    /**
+     * Processes 16 bit samples in place, clamping the result.
+     */
+    public void process(short[] data, int offset, int length) {
+        if (mScratch.length < length) {
+            mScratch = new float[length];
+        }
+        float[] scratch = mScratch;
+        for (int i = 0; i < length; i++) {
+            scratch[i] = data[offset + i] * SHORT_SCALE;
+        }
+        process(scratch, 0, length);
+        for (int i = 0; i < length; i++) {
+            float sample = scratch[i] * 32768f;
+            data[offset + i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        }
+    }
+
+    /**
+     * Soft knee limiter: the identity up to the threshold, then a curve with the same slope that
+     * approaches full scale without ever reaching it.
+     */
+    private static float limit(float x) {
+        float magnitude = Math.abs(x);
+        if (magnitude <= LIMITER_THRESHOLD) {
+            return x;
+        }
+        float over = (magnitude - LIMITER_THRESHOLD) / (1f - LIMITER_THRESHOLD);
+        float limited = LIMITER_THRESHOLD + (1f - LIMITER_THRESHOLD) * over / (1f + over);
+        return x < 0 ? -limited : limited;
+    }
+
+    private void updateCoefficients() {
+        synchronized (this) {
+            mAppliedVersion = mVersion;
+            mPreamp = (float) Math.pow(10, mPreampDb / 20);
+            mLimiting = mEnabled && mLimiterEnabled;
+            int active = 0;
+            if (mEnabled && mSampleRate > 0) {
+                for (int band = 0; band < mBandCount; band++) {
+                    if (mGains[band] == 0) {
+                        // A flat band is the identity
+                        continue;
+                    }
+                    computeBand(active, mTypes[band], mFrequencies[band], mGains[band],
+                            mQs[band]);
+                    active++;
+                }
+            }
+            mActiveBands = active;
+            mActive = mEnabled && (active > 0 || mPreampDb != 0 || mLimiting);
+        }
+    }
+
+    /**
+     * Computes the coefficients of a band, from the Audio EQ Cookbook by Robert Bristow-Johnson.
+     */
+    private void computeBand(int index, int type, float frequency, float gainDb, float q) {
+        double a = Math.pow(10, gainDb / 40);
+        double w0 = 2 * Math.PI * Math.min(frequency, mSampleRate * 0.45) / mSampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        double b0, b1, b2, a0, a1, a2;
+        switch (type) {
+            case TYPE_LOW_SHELF: {
+                double sqrtAlpha = 2 * Math.sqrt(a) * alpha;
+                b0 = a * ((a + 1) - (a - 1) * cos + sqrtAlpha);
+                b1 = 2 * a * ((a - 1) - (a + 1) * cos);
+                b2 = a * ((a + 1) - (a - 1) * cos - sqrtAlpha);
+                a0 = (a + 1) + (a - 1) * cos + sqrtAlpha;
+                a1 = -2 * ((a - 1) + (a + 1) * cos);
+                a2 = (a + 1) + (a - 1) * cos - sqrtAlpha;
+                break;
+            }
+            case TYPE_HIGH_SHELF: {
+                double sqrtAlpha = 2 * Math.sqrt(a) * alpha;
+                b0 = a * ((a + 1) + (a - 1) * cos + sqrtAlpha);
+                b1 = -2 * a * ((a - 1) + (a + 1) * cos);
+                b2 = a * ((a + 1) + (a - 1) * cos - sqrtAlpha);
+                a0 = (a + 1) - (a - 1) * cos + sqrtAlpha;
+                a1 = 2 * ((a - 1) - (a + 1) * cos);
+                a2 = (a + 1) - (a - 1) * cos - sqrtAlpha;
+                break;
+            }
+            default:
+                b0 = 1 + alpha * a;
+                b1 = -2 * cos;
+                b2 = 1 - alpha * a;
+                a0 = 1 + alpha / a;
+                a1 = -2 * cos;
+                a2 = 1 - alpha / a;
+        }
+        mB0[index] = (float) (b0 / a0);
+        mB1[index] = (float) (b1 / a0);
+        mB2[index] = (float) (b2 / a0);
+        mA1[index] = (float) (a1 / a0);
+        mA2[index] = (float) (a2 / a0);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+/**
+ * Measures the integrated loudness (ITU-R BS.1770 / EBU R128) and the true peak of a stream of
+ * interleaved float samples.
+ * <p/>
+ * Gating blocks are kept in a histogram of {@link #BIN_WIDTH} LU wide bins holding their count
+ * and summed energy, so memory stays constant whatever the length of the track and the gates
+ * only lose precision at the bin holding the relative threshold.
+ * <p/>
+ * Not thread safe, one instance per decoded stream.
+ */
+public class LoudnessMeter implements PcmProcessor {
+
+    public static final int MAX_CHANNELS = 2;
+
+    // Returned when no block passes the gates, e.g. for digital silence
+    public static final double SILENCE = Double.NEGATIVE_INFINITY;
+
+    private static final double ABSOLUTE_GATE = -70;
+    private static final double RELATIVE_GATE = -10;
+    // Highest block loudness the histogram tells apart, louder blocks share the last bin
+    private static final double MAX_LOUDNESS = 5;
+    private static final double BIN_WIDTH = 0.1;
+    private static final int BIN_COUNT = (int) ((MAX_LOUDNESS - ABSOLUTE_GATE) / BIN_WIDTH);
+
+    // Gating blocks are 400 ms long and start every 100 ms
+    private static final int STEPS_PER_BLOCK = 4;
+
+    // True peak oversampling: a windowed sinc interpolator split in OVERSAMPLING phases
+    private static final int OVERSAMPLING = 4;
+    private static final int TAPS_PER_PHASE = 12;
+
+    private int mSampleRate;
+    private int mChannelCount;
+
+    // K-weighting: a high shelf followed by a high pass, transposed direct form II
+    private double mShelfB0, mShelfB1, mShelfB2, mShelfA1, mShelfA2;
+    private double mPassB0, mPassB1, mPassB2, mPassA1, mPassA2;
+    private final double[] mShelfZ1 = new double[MAX_CHANNELS];
+    private final double[] mShelfZ2 = new double[MAX_CHANNELS];
+    private final double[] mPassZ1 = new double[MAX_CHANNELS];
+    private final double[] mPassZ2 = new double[MAX_CHANNELS];
+
+    // Energy of the 100 ms step being filled and of the last few complete ones
+    private int mStepFrames;
+    private int mStepFilled;
+    private double mStepEnergy;
+    private final double[] mSteps = new double[STEPS_PER_BLOCK];
+    private long mStepCount;
+
+    private final int[] mBinCounts = new int[BIN_COUNT];
+    private final double[] mBinEnergies = new double[BIN_COUNT];
+
+    private final float[] mPhases = new float[OVERSAMPLING * TAPS_PER_PHASE];
+    // Last input samples per channel, doubled so a window is always contiguous
+    private final float[] mHistory = new float[MAX_CHANNELS * TAPS_PER_PHASE * 2];
+    private int mHistoryPosition;
+    private float mTruePeak;
+
+    private long mFrames;
+
+    public LoudnessMeter() {
+        computeInterpolator();
+    }
+
+    /**
+     * Prepares the meter for a new stream, discarding anything measured before.
+     */
+    @Override
+    public void configure(int sampleRate, int channelCount) {
+        if (channelCount < 1 || channelCount > MAX_CHANNELS) {
+            throw new IllegalArgumentException("Unsupported channel count: " + channelCount);
+        }
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        computeWeighting(sampleRate);
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            mShelfZ1[i] = 0;
+            mShelfZ2[i] = 0;
+            mPassZ1[i] = 0;
+            mPassZ2[i] = 0;
+        }
+        mStepFrames = Math.max(1, sampleRate / 10);
+        mStepFilled = 0;
+        mStepEnergy = 0;
+        mStepCount = 0;
+        for (int i = 0; i < BIN_COUNT; i++) {
+            mBinCounts[i] = 0;
+            mBinEnergies[i] = 0;
+        }
+        for (int i = 0; i < mHistory.length; i++) {
+            mHistory[i] = 0;
+        }
+        mHistoryPosition = 0;
+        mTruePeak = 0;
+        mFrames = 0;
+    }
+
+    /**
+     * Feeds {@code length} interleaved samples to the meter. The data isn't modified.
+     */
+    @Override
+    public void process(float[] data, int offset, int length) {
+        int channels = mChannelCount;
+        int end = offset + length;
+        for (int frame = offset; frame + channels <= end; frame += channels) {
+            double energy = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                float sample = data[frame + channel];
+                double weighted = weight(channel, sample);
+                energy += weighted * weighted;
+                updateTruePeak(channel, sample);
+            }
+            mHistoryPosition = (mHistoryPosition + 1) % TAPS_PER_PHASE;
+            mStepEnergy += energy;
+            if (++mStepFilled == mStepFrames) {
+                finishStep();
+            }
+        }
+        mFrames += length / channels;
+    }
+
+    /**
+     * @return the integrated loudness in LUFS, or {@link #SILENCE}
+     */
+    public double getIntegratedLoudness() {
+        int count = 0;
+        double energy = 0;
+        for (int i = 0; i < BIN_COUNT; i++) {
+            count += mBinCounts[i];
+            energy += mBinEnergies[i];
+        }
+        if (count == 0) {
+            return SILENCE;
+        }
+        double threshold = toLoudness(energy / count) + RELATIVE_GATE;
+        int first = Math.max(0, (int) Math.ceil((threshold - ABSOLUTE_GATE) / BIN_WIDTH));
+        count = 0;
+        energy = 0;
+        for (int i = first; i < BIN_COUNT; i++) {
+            count += mBinCounts[i];
+            energy += mBinEnergies[i];
+        }
+        return count > 0 ? toLoudness(energy / count) : SILENCE;
+    }
+
+    /**
+     * @return the number of gating blocks above the absolute gate, a measure of how much of the
+     * stream contributes to its loudness
+     */
+    public int getGatedBlockCount() {
+        int count = 0;
+        for (int i = 0; i < BIN_COUNT; i++) {
+            count += mBinCounts[i];
+        }
+        return count;
+    }
+
+    /**
+     * @return the highest absolute sample value of the stream oversampled 4 times, as a linear
+     * value where 1 is full scale
+     */
+    public float getTruePeak() {
+        return mTruePeak;
+    }
+
+    public long getDurationUs() {
+        return mSampleRate > 0 ? mFrames * 1000000L / mSampleRate : 0;
+    }
+
+    private double weight(int channel, double x) {
+        double y = mShelfB0 * x + mShelfZ1[channel];
+        mShelfZ1[channel] = mShelfB1 * x - mShelfA1 * y + mShelfZ2[channel];
+        mShelfZ2[channel] = mShelfB2 * x - mShelfA2 * y;
+        x = y;
+        y = mPassB0 * x + mPassZ1[channel];
+        mPassZ1[channel] = mPassB1 * x - mPassA1 * y + mPassZ2[channel];
+        mPassZ2[channel] = mPassB2 * x - mPassA2 * y;
+        return y;
+    }
+
+    private void finishStep() {
+        mSteps[(int) (mStepCount % STEPS_PER_BLOCK)] = mStepEnergy / mStepFrames;
+        mStepCount++;
+        mStepEnergy = 0;
+        mStepFilled = 0;
+        if (mStepCount < STEPS_PER_BLOCK) {
+            return;
+        }
+        double energy = 0;
+        for (double step : mSteps) {
+            energy += step;
+        }
+        energy /= STEPS_PER_BLOCK;
+        double loudness = toLoudness(energy);
+        if (loudness <= ABSOLUTE_GATE) {
+            return;
+        }
+        int bin = Math.min(BIN_COUNT - 1, (int) ((loudness - ABSOLUTE_GATE) / BIN_WIDTH));
+        mBinCounts[bin]++;
+        mBinEnergies[bin] += energy;
+    }
+
+    private void updateTruePeak(int channel, float sample) {
+        // Both copies of the history are written, the window then starts at mHistoryPosition + 1
+        int base = channel * TAPS_PER_PHASE * 2;
+        mHistory[base + mHistoryPosition] = sample;
+        mHistory[base + mHistoryPosition + TAPS_PER_PHASE] = sample;
+        int window = base + mHistoryPosition + 1;
+        float peak = mTruePeak;
+        for (int phase = 0; phase < OVERSAMPLING; phase++) {
+            int coefficients = phase * TAPS_PER_PHASE;
+            float value = 0;
+            for (int tap = 0; tap < TAPS_PER_PHASE; tap++) {
+                value += mPhases[coefficients + tap] * mHistory[window + tap];
+            }
+            if (value > peak) {
+                peak = value;
+            } else if (-value > peak) {
+                peak = -value;
+            }
+        }
+        mTruePeak = peak;
+    }
+
+    private static double toLoudness(double energy) {
+        return energy > 0 ? -0.691 + 10 * Math.log10(energy) : SILENCE;
+    }
+
+    /**
+     * Computes the K-weighting coefficients for the given rate, with the analog prototype of the
+     * 48 kHz filters listed by BS.1770 so other rates get the same response.
+     */
+    private void computeWeighting(int sampleRate) {
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        mShelfB0 = (vh + vb * k / q + k * k) / a0;
+        mShelfB1 = 2 * (k * k - vh) / a0;
+        mShelfB2 = (vh - vb * k / q + k * k) / a0;
+        mShelfA1 = 2 * (k * k - 1) / a0;
+        mShelfA2 = (1 - k / q + k * k) / a0;
+
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        mPassB0 = 1;
+        mPassB1 = -2;
+        mPassB2 = 1;
+        mPassA1 = 2 * (k * k - 1) / a0;
+        mPassA2 = (1 - k / q + k * k) / a0;
+    }
+
+    /**
+     * Splits a Hann windowed sinc low pass at the original Nyquist frequency into the phases of
+     * the interpolator. Phase 0 lands on the input samples themselves.
+     */
+    private void computeInterpolator() {
+        int length = OVERSAMPLING * TAPS_PER_PHASE;
+        double center = length / 2.0;
+        for (int i = 0; i < length; i++) {
+            double t = (i - center) / OVERSAMPLING;
+            double sinc = t == 0 ? 1 : Math.sin(Math.PI * t) / (Math.PI * t);
+            double window = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / length);
+            int phase = i % OVERSAMPLING;
+            // The newest sample is the last one of the window, so taps are reversed
+            int tap = TAPS_PER_PHASE - 1 - i / OVERSAMPLING;
+            mPhases[phase * TAPS_PER_PHASE + tap] = (float) (sinc * window);
+        }
+    }
+}
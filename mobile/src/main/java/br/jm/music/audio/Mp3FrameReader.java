@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the frames of an MPEG audio file one at a time, to feed a decoder, using its
+ * {@link Mp3SeekTable} to seek to the frame holding any position without scanning the file.
+ */
+public class Mp3FrameReader {
+
+    // Frames decoded before a seek target. Layer III frames may take up to 511 bytes of their
+    // data from the previous frames (the "bit reservoir"), which at low bitrates spans several
+    // of them, and the first frames after a jump decode with glitches until it is filled.
+    private static final int PREROLL_FRAMES = 10;
+
+    private final Mp3SeekTable mTable;
+    private final ByteBuffer mBuffer;
+    // View over mBuffer used to copy a frame without allocating
+    private final ByteBuffer mView;
+    private final int mReference;
+
+    // Offset and number of the current frame, offset -1 at the end
+    private int mOffset;
+    private long mFrame;
+
+    public Mp3FrameReader(ByteBuffer buffer, Mp3SeekTable table) {
+        mTable = table;
+        mBuffer = buffer;
+        mView = buffer.duplicate();
+        mOffset = table.getEntryOffset(0);
+        mReference = Mp3FrameScanner.getReference(buffer.getInt(mOffset));
+    }
+
+    /**
+     * Copies the current frame to the start of {@code dst}.
+     *
+     * @return the size of the frame, or -1 at the end of the stream
+     */
+    public int readFrame(ByteBuffer dst) {
+        if (mOffset < 0) {
+            return -1;
+        }
+        int length = Mp3FrameScanner.getFrameLength(mBuffer.getInt(mOffset));
+        mView.limit(mView.capacity());
+        mView.position(mOffset);
+        mView.limit(mOffset + length);
+        dst.clear();
+        dst.put(mView);
+        return length;
+    }
+
+    public long getFrameTimeUs() {
+        return mTable.getFrameTimeUs(mFrame);
+    }
+
+    public void advance() {
+        if (mOffset >= 0) {
+            mOffset = Mp3FrameScanner.nextFrame(mBuffer, mOffset, mTable.dataEnd, mReference);
+            mFrame++;
+        }
+    }
+
+    /**
+     * Moves a few frames before the one playing at {@code timeUs}, so the decoder output is
+     * clean from there. The caller drops the samples decoded before the target.
+     */
+    public void seekTo(long timeUs) {
+        long target = Math.max(0, mTable.getFrameAt(timeUs) - PREROLL_FRAMES);
+        int entry = mTable.getEntryBefore(target);
+        mOffset = mTable.getEntryOffset(entry);
+        mFrame = mTable.getEntryFrame(entry);
+        while (mFrame < target && mOffset >= 0) {
+            advance();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Walks the frame headers of an MPEG audio (MP3) file and builds its {@link Mp3SeekTable}.
+ * <p/>
+ * Only the 4 byte header of each frame is read, the scanner then jumps over the frame, so a
+ * memory mapped file is only paged in where headers are. Garbage between frames is skipped by
+ * searching for a header that is followed by another consistent one.
+ */
+public final class Mp3FrameScanner {
+
+    public static final int HEADER_SIZE = 4;
+    // Sync, version, layer and sample rate bits, which can't change within a stream
+    private static final int HEADER_MASK = 0xFFFE0C00;
+
+    private static final int VERSION_2_5 = 0;
+    private static final int VERSION_1 = 3;
+    private static final int LAYER_3 = 1;
+    private static final int LAYER_2 = 2;
+    private static final int LAYER_1 = 3;
+    private static final int CHANNEL_MODE_MONO = 3;
+
+    // Bitrates in kbps by index, for MPEG 1 layers I, II and III and MPEG 2 / 2.5 layers I and
+    // II / III
+    private static final int[] BITRATES_V1_L1 =
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448};
+    private static final int[] BITRATES_V1_L2 =
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384};
+    private static final int[] BITRATES_V1_L3 =
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+    private static final int[] BITRATES_V2_L1 =
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256};
+    private static final int[] BITRATES_V2_L23 =
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160};
+    private static final int[] SAMPLE_RATES_V1 = {44100, 48000, 32000};
+
+    private Mp3FrameScanner() {
+    }
+
+    /**
+     * Builds the seek table of the MPEG audio data in the buffer, holding a whole file.
+     *
+     * @param intervalMs how far apart the entries of the table are, at most
+     * @throws IOException if the buffer holds no MPEG audio frame
+     */
+    public static Mp3SeekTable scan(ByteBuffer buffer, int intervalMs) throws IOException {
+        int end = getDataEnd(buffer);
+        int offset = findFrame(buffer, skipId3v2(buffer), end, 0);
+        if (offset < 0) {
+            throw new IOException("No MPEG audio frame found");
+        }
+        int header = buffer.getInt(offset);
+        int reference = header & HEADER_MASK;
+        if (isInfoFrame(buffer, offset, header)) {
+            // Encoder metadata, not audio
+            offset = nextFrame(buffer, offset, end, reference);
+            if (offset < 0) {
+                throw new IOException("No MPEG audio frame found");
+            }
+        }
+        int sampleRate = getSampleRate(header);
+        int samplesPerFrame = getSamplesPerFrame(header);
+        int intervalFrames = Math.max(1,
+                (int) ((long) intervalMs * sampleRate / (samplesPerFrame * 1000L)));
+
+        int[] offsets = new int[64];
+        int count = 0;
+        long frames = 0;
+        while (offset >= 0) {
+            if (frames % intervalFrames == 0) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = offset;
+            }
+            frames++;
+            offset = nextFrame(buffer, offset, end, reference);
+        }
+        return new Mp3SeekTable(sampleRate, getChannelCount(header), samplesPerFrame,
+                intervalFrames, frames, end, Arrays.copyOf(offsets, count));
+    }
+
+    /**
+     * @return the offset of the frame following the one at {@code offset}, or -1 at the end of
+     * the data
+     */
+    public static int nextFrame(ByteBuffer buffer, int offset, int end, int reference) {
+        int next = offset + getFrameLength(buffer.getInt(offset));
+        if (next + HEADER_SIZE > end) {
+            return -1;
+        }
+        int header = buffer.getInt(next);
+        int length = getFrameLength(header);
+        if (length > 0 && (header & HEADER_MASK) == reference && next + length <= end) {
+            return next;
+        }
+        return findFrame(buffer, next, end, reference);
+    }
+
+    /**
+     * @return the bits of the given header that all frames of its stream share
+     */
+    public static int getReference(int header) {
+        return header & HEADER_MASK;
+    }
+
+    /**
+     * Searches for a frame header from {@code position}, which must be followed by another
+     * header of the same stream unless the frame is the last one.
+     *
+     * @param reference the shared bits of the stream, see {@link #getReference}, or 0 for any
+     * @return the offset of the frame, or -1 if there is none
+     */
+    static int findFrame(ByteBuffer buffer, int position, int end, int reference) {
+        for (int offset = position; offset + HEADER_SIZE <= end; offset++) {
+            if (buffer.get(offset) != (byte) 0xFF) {
+                continue;
+            }
+            int header = buffer.getInt(offset);
+            int length = getFrameLength(header);
+            if (length <= 0 || offset + length > end
+                    || (reference != 0 && (header & HEADER_MASK) != reference)) {
+                continue;
+            }
+            int next = offset + length;
+            if (next + HEADER_SIZE > end) {
+                return offset;
+            }
+            int nextHeader = buffer.getInt(next);
+            if (getFrameLength(nextHeader) > 0
+                    && (nextHeader & HEADER_MASK) == (header & HEADER_MASK)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the length in bytes of the frame starting with the given header, or -1 if it is
+     * not a valid header. Free format frames are not supported.
+     */
+    public static int getFrameLength(int header) {
+        if ((header >>> 21) != 0x7FF) {
+            return -1;
+        }
+        int version = (header >>> 19) & 3;
+        int layer = (header >>> 17) & 3;
+        int bitrateIndex = (header >>> 12) & 15;
+        int sampleRateIndex = (header >>> 10) & 3;
+        if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15
+                || sampleRateIndex == 3) {
+            return -1;
+        }
+        int[] bitrates;
+        if (version == VERSION_1) {
+            bitrates = layer == LAYER_1 ? BITRATES_V1_L1
+                    : layer == LAYER_2 ? BITRATES_V1_L2 : BITRATES_V1_L3;
+        } else {
+            bitrates = layer == LAYER_1 ? BITRATES_V2_L1 : BITRATES_V2_L23;
+        }
+        int bitrate = bitrates[bitrateIndex] * 1000;
+        int sampleRate = getSampleRate(header);
+        int padding = (header >>> 9) & 1;
+        if (layer == LAYER_1) {
+            return (12 * bitrate / sampleRate + padding) * 4;
+        }
+        if (layer == LAYER_3 && version != VERSION_1) {
+            return 72 * bitrate / sampleRate + padding;
+        }
+        return 144 * bitrate / sampleRate + padding;
+    }
+
+    public static int getSampleRate(int header) {
+        int version = (header >>> 19) & 3;
+        int rate = SAMPLE_RATES_V1[(header >>> 10) & 3];
+        if (version == VERSION_1) {
+            return rate;
+        }
+        return version == VERSION_2_5 ? rate / 4 : rate / 2;
+    }
+
+    public static int getSamplesPerFrame(int header) {
+        int layer = (header >>> 17) & 3;
+        if (layer == LAYER_1) {
+            return 384;
+        }
+        if (layer == LAYER_3 && ((header >>> 19) & 3) != VERSION_1) {
+            return 576;
+        }
+        return 1152;
+    }
+
+    public static int getChannelCount(int header) {
+        return ((header >>> 6) & 3) == CHANNEL_MODE_MONO ? 1 : 2;
+    }
+
+    /**
+     * @return the end of the audio data, before an ID3v1 tag if there is one
+     */
+    private static int getDataEnd(ByteBuffer buffer) {
+        int end = buffer.limit();
+        if (end >= 128 && buffer.get(end - 128) == 'T' && buffer.get(end - 127) == 'A'
+                && buffer.get(end - 126) == 'G') {
+            end -= 128;
+        }
+        return end;
+    }
+
+    /**
+     * @return the offset right after the ID3v2 tags at the start of the buffer, if any
+     */
+    private static int skipId3v2(ByteBuffer buffer) {
+        int position = 0;
+        while (position + 10 <= buffer.limit() && buffer.get(position) == 'I'
+                && buffer.get(position + 1) == 'D' && buffer.get(position + 2) == '3') {
+            // The size is stored as a "syncsafe" integer, 7 bits per byte
+            int size = (buffer.get(position + 6) & 0x7F) << 21
+                    | (buffer.get(position + 7) & 0x7F) << 14
+                    | (buffer.get(position + 8) & 0x7F) << 7
+                    | (buffer.get(position + 9) & 0x7F);
+            boolean footer = (buffer.get(position + 5) & 0x10) != 0;
+            position += 10 + size + (footer ? 10 : 0);
+        }
+        return position;
+    }
+
+    /**
+     * @return whether the frame holds a Xing, Info or VBRI header written by the encoder
+     */
+    private static boolean isInfoFrame(ByteBuffer buffer, int offset, int header) {
+        boolean mono = ((header >>> 6) & 3) == CHANNEL_MODE_MONO;
+        int sideInfo;
+        if (((header >>> 19) & 3) == VERSION_1) {
+            sideInfo = mono ? 17 : 32;
+        } else {
+            sideInfo = mono ? 9 : 17;
+        }
+        // A CRC follows the header of protected frames
+        int crc = ((header >>> 16) & 1) == 0 ? 2 : 0;
+        int tag = offset + HEADER_SIZE + crc + sideInfo;
+        int vbri = offset + HEADER_SIZE + 32;
+        return hasTag(buffer, tag, "Xing") || hasTag(buffer, tag, "Info")
+                || hasTag(buffer, vbri, "VBRI");
+    }
+
+    private static boolean hasTag(ByteBuffer buffer, int offset, String tag) {
+        if (offset + tag.length() > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (buffer.get(offset + i) != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
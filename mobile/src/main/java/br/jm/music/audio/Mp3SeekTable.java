@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Byte offsets of every {@code intervalFrames}th audio frame of an MPEG audio file, built by
+ * {@link Mp3FrameScanner}. All frames of a file have the same number of samples, so the time of
+ * an entry follows from its index and a seek only walks the frame headers after one entry.
+ */
+public class Mp3SeekTable {
+
+    public final int sampleRate;
+    public final int channelCount;
+    public final int samplesPerFrame;
+    public final int intervalFrames;
+    public final long frameCount;
+    // End of the audio frames, before any trailing tag
+    public final int dataEnd;
+    private final int[] mOffsets;
+
+    Mp3SeekTable(int sampleRate, int channelCount, int samplesPerFrame, int intervalFrames,
+                 long frameCount, int dataEnd, int[] offsets) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.samplesPerFrame = samplesPerFrame;
+        this.intervalFrames = intervalFrames;
+        this.frameCount = frameCount;
+        this.dataEnd = dataEnd;
+        mOffsets = offsets;
+    }
+
+    /**
+     * @return the memory taken by the entries, in bytes
+     */
+    public int getByteCount() {
+        return mOffsets.length * 4;
+    }
+
+    public long getDurationUs() {
+        return getFrameTimeUs(frameCount);
+    }
+
+    public long getFrameTimeUs(long frame) {
+        return frame * samplesPerFrame * 1000000L / sampleRate;
+    }
+
+    /**
+     * @return the frame playing at the given time, clamped to the frames of the file
+     */
+    public long getFrameAt(long timeUs) {
+        long frame = timeUs * sampleRate / (samplesPerFrame * 1000000L);
+        return Math.max(0, Math.min(frameCount - 1, frame));
+    }
+
+    /**
+     * @return the index of the last entry at or before the given frame
+     */
+    public int getEntryBefore(long frame) {
+        return (int) Math.min(mOffsets.length - 1, frame / intervalFrames);
+    }
+
+    public long getEntryFrame(int entry) {
+        return (long) entry * intervalFrames;
+    }
+
+    public int getEntryOffset(int entry) {
+        return mOffsets[entry];
+    }
+
+    public int getEntryCount() {
+        return mOffsets.length;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(sampleRate);
+        out.writeInt(channelCount);
+        out.writeInt(samplesPerFrame);
+        out.writeInt(intervalFrames);
+        out.writeLong(frameCount);
+        out.writeInt(dataEnd);
+        out.writeInt(mOffsets.length);
+        for (int offset : mOffsets) {
+            out.writeInt(offset);
+        }
+    }
+
+    public static Mp3SeekTable read(DataInputStream in) throws IOException {
+        int sampleRate = in.readInt();
+        int channelCount = in.readInt();
+        int samplesPerFrame = in.readInt();
+        int intervalFrames = in.readInt();
+        long frameCount = in.readLong();
+        int dataEnd = in.readInt();
+        int count = in.readInt();
+        if (sampleRate <= 0 || samplesPerFrame <= 0 || intervalFrames <= 0 || count <= 0
+                || frameCount > (long) count * intervalFrames) {
+            throw new IOException("Invalid seek table");
+        }
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = in.readInt();
+        }
+        return new Mp3SeekTable(sampleRate, channelCount, samplesPerFrame, intervalFrames,
+                frameCount, dataEnd, offsets);
+    }
+}
@@ -0,0 +1,529 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves decoded PCM from a {@link Source} to a {@link Sink} through a {@link PcmRingBuffer}.
+ * The source is only used on a decoder thread and the sink only on an output thread, both
+ * owned by the pipeline; the other methods can be called from any thread and only leave
+ * requests for them, unparking the threads concerned. A thread waiting for a request or for the
+ * other thread parks until it is unparked: the decoder when the ring is full or the stream is
+ * over, the output when paused or ended. Only a playing output, waiting for the sink that
+ * doesn't signal room, parks for a short while. So the steady state neither takes a lock nor
+ * allocates, and a paused pipeline doesn't wake up at all.
+ * <p/>
+ * Seeks bump a generation number: the decoder seeks the source and stamps the new chunks with
+ * it, while the output flushes the sink and drops any chunk from an older generation.
+ * <p/>
+ * At speeds other than 1 the decoder runs the source through a {@link TimeStretcher} before
+ * filling the chunks. A speed change is handled as a seek to the current position, so each
+ * generation has a single speed and positions stay a simple function of the played frames.
+ */
+public class PcmPipeline {
+
+    public interface Source {
+        /**
+         * Fills the chunk with the next samples, setting its length and time.
+         *
+         * @return false when the stream is over. The chunk may still hold its last samples.
+         */
+        boolean read(PcmRingBuffer.Chunk chunk) throws IOException;
+
+        void seekTo(long timeUs) throws IOException;
+
+        void release();
+    }
+
+    public interface Sink {
+        /**
+         * Queues samples without blocking.
+         *
+         * @return the number of samples taken, possibly 0, or a negative error code.
+         */
+        int write(float[] data, int offset, int length);
+
+        /**
+         * @return the number of frames played since the last flush.
+         */
+        long getPlayedFrames();
+
+        void setVolume(float volume);
+
+        void play();
+
+        void pause();
+
+        /**
+         * Plays what was queued to the end, then stops.
+         */
+        void drain();
+
+        /**
+         * Drops what was queued. Leaves the sink paused.
+         */
+        void flush();
+
+        void release();
+    }
+
+    public interface Listener {
+        /**
+         * Called on the output thread when the first samples after the start or a seek have
+         * been queued.
+         */
+        void onStarted();
+
+        /**
+         * Called on the output thread once the last samples have been played.
+         */
+        void onEndOfStream();
+
+        /**
+         * Called on the thread that failed. The pipeline stops moving samples afterwards.
+         */
+        void onError(Exception e);
+    }
+
+    private static final long OUTPUT_IDLE_NANOS = 5000000;
+    // How long the sink may make no progress while draining before the stream is considered
+    // over anyway
+    private static final long DRAIN_TIMEOUT_NANOS = 1000000000;
+
+    private final Source mSource;
+    private final Sink mSink;
+    private final Listener mListener;
+    private final PcmRingBuffer mRing;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final Thread mDecoderThread;
+    private final Thread mOutputThread;
+
+    // Requests, written by any thread
+    private volatile boolean mPlaying;
+    private volatile boolean mReleased;
+    private volatile float mVolume = 1f;
+    private final Object mSeekLock = new Object();
+    private volatile int mRequestedGeneration;
+    private volatile long mRequestedSeekUs;
+    private volatile float mRequestedSpeed = 1f;
+    private volatile PcmProcessor mProcessor;
+
+    // Decoder thread state
+    private int mDecodeGeneration;
+    private boolean mDecodeEnded;
+    private float mDecodeSpeed = 1f;
+    // Created the first time the speed is changed
+    private TimeStretcher mStretcher;
+    private PcmRingBuffer.Chunk mStretchInput;
+    private int mStretchOffset;
+    private boolean mStretchInputEnded;
+
+    // Output thread state
+    private volatile int mOutputGeneration;
+    private boolean mSinkPlaying;
+    private float mSinkVolume = 1f;
+    private int mChunkOffset;
+    private boolean mChunkProcessed;
+    private PcmProcessor mActiveProcessor;
+    private long mBaseTimeUs = -1;
+    private float mOutputSpeed = 1f;
+    private long mWrittenFrames;
+    private boolean mStarted;
+    private boolean mEnded;
+    private boolean mDraining;
+    private long mDrainProgressTime;
+    private long mDrainPlayedFrames;
+    private boolean mUnderrun;
+    private volatile long mPositionUs;
+
+    // Statistics, each written by a single thread
+    private volatile long mDecodedChunks;
+    private volatile long mWrittenSamples;
+    private volatile int mUnderruns;
+
+    public PcmPipeline(Source source, Sink sink, Listener listener, int sampleRate,
+                       int channelCount, int chunkCount, int chunkCapacity) {
+        mSource = source;
+        mSink = sink;
+        mListener = listener;
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        // Chunks must hold whole frames
+        mRing = new PcmRingBuffer(chunkCount, chunkCapacity - chunkCapacity % channelCount);
+        mDecoderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runDecoder();
+            }
+        }, "PcmDecoder");
+        mOutputThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runOutput();
+            }
+        }, "PcmOutput");
+        mOutputThread.setPriority(Thread.MAX_PRIORITY);
+    }
+
+    /**
+     * Starts decoding from the given position. Samples only reach the sink after {@link #play()}.
+     */
+    public void start(long positionUs) {
+        if (positionUs > 0) {
+            seekTo(positionUs);
+        }
+        mDecoderThread.start();
+        mOutputThread.start();
+    }
+
+    public void play() {
+        mPlaying = true;
+        LockSupport.unpark(mOutputThread);
+    }
+
+    public void pause() {
+        mPlaying = false;
+        LockSupport.unpark(mOutputThread);
+    }
+
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    public void seekTo(long positionUs) {
+        synchronized (mSeekLock) {
+            mRequestedSeekUs = positionUs;
+            mRequestedGeneration = mRequestedGeneration + 1;
+        }
+        LockSupport.unpark(mDecoderThread);
+        LockSupport.unpark(mOutputThread);
+    }
+
+    /**
+     * Sets the processor applied to every chunk before it reaches the sink, or null for none.
+     */
+    public void setProcessor(PcmProcessor processor) {
+        mProcessor = processor;
+        LockSupport.unpark(mOutputThread);
+    }
+
+    /**
+     * Sets the tempo, from {@link TimeStretcher#MIN_SPEED} to {@link TimeStretcher#MAX_SPEED},
+     * keeping the pitch. Costs a short refill of the sink, like a seek.
+     */
+    public void setSpeed(float speed) {
+        speed = Math.max(TimeStretcher.MIN_SPEED, Math.min(TimeStretcher.MAX_SPEED, speed));
+        synchronized (mSeekLock) {
+            if (speed == mRequestedSpeed) {
+                return;
+            }
+            mRequestedSeekUs = getPositionUs();
+            mRequestedSpeed = speed;
+            mRequestedGeneration = mRequestedGeneration + 1;
+        }
+        LockSupport.unpark(mDecoderThread);
+        LockSupport.unpark(mOutputThread);
+    }
+
+    public void setVolume(float volume) {
+        mVolume = volume;
+        LockSupport.unpark(mOutputThread);
+    }
+
+    /**
+     * @return the stream time of what is being heard, or the target of a pending seek.
+     */
+    public long getPositionUs() {
+        if (mOutputGeneration != mRequestedGeneration) {
+            return mRequestedSeekUs;
+        }
+        return mPositionUs;
+    }
+
+    /**
+     * Stops both threads. The source and sink are released by the threads using them.
+     */
+    public void release() {
+        mReleased = true;
+        LockSupport.unpark(mDecoderThread);
+        LockSupport.unpark(mOutputThread);
+    }
+
+    private void runDecoder() {
+        try {
+            while (!mReleased) {
+                if (mRequestedGeneration != mDecodeGeneration) {
+                    int generation;
+                    long seekUs;
+                    synchronized (mSeekLock) {
+                        generation = mRequestedGeneration;
+                        seekUs = mRequestedSeekUs;
+                        mDecodeSpeed = mRequestedSpeed;
+                    }
+                    mSource.seekTo(seekUs);
+                    mDecodeGeneration = generation;
+                    mDecodeEnded = false;
+                    if (mDecodeSpeed != 1f) {
+                        resetStretcher();
+                    }
+                }
+                if (mDecodeEnded) {
+                    // Until a seek or the release
+                    LockSupport.park(this);
+                    continue;
+                }
+                PcmRingBuffer.Chunk chunk = mRing.acquireWrite();
+                if (chunk == null) {
+                    // Until the output releases a chunk
+                    LockSupport.park(this);
+                    continue;
+                }
+                chunk.generation = mDecodeGeneration;
+                chunk.length = 0;
+                chunk.endOfStream = mDecodeSpeed == 1f ? !mSource.read(chunk)
+                        : !readStretched(chunk);
+                mRing.commitWrite();
+                mDecodedChunks++;
+                mDecodeEnded = chunk.endOfStream;
+                LockSupport.unpark(mOutputThread);
+            }
+        } catch (Exception e) {
+            if (!mReleased) {
+                mListener.onError(e);
+            }
+        } finally {
+            mSource.release();
+        }
+    }
+
+    private void resetStretcher() {
+        if (mStretcher == null) {
+            mStretcher = new TimeStretcher(mSampleRate, mChannelCount);
+            mStretchInput = new PcmRingBuffer.Chunk(mRing.getChunkCapacity());
+        }
+        mStretcher.setSpeed(mDecodeSpeed);
+        mStretcher.reset();
+        mStretchInput.length = 0;
+        mStretchOffset = 0;
+        mStretchInputEnded = false;
+    }
+
+    /**
+     * Fills the chunk with stretched samples, reading the source as the stretcher needs.
+     *
+     * @return false when the stream is over. The chunk may still hold its last samples.
+     */
+    private boolean readStretched(PcmRingBuffer.Chunk chunk) throws IOException {
+        TimeStretcher stretcher = mStretcher;
+        PcmRingBuffer.Chunk input = mStretchInput;
+        float[] data = chunk.data;
+        // Only the time of the first chunk of a generation is used, which is exact
+        chunk.timeUs = -1;
+        while (true) {
+            chunk.length += stretcher.getSamples(data, chunk.length, data.length - chunk.length);
+            if (chunk.length == data.length) {
+                break;
+            }
+            if (mStretchOffset < input.length) {
+                mStretchOffset += stretcher.putSamples(input.data, mStretchOffset,
+                        input.length - mStretchOffset);
+            } else if (!mStretchInputEnded) {
+                mStretchInputEnded = !mSource.read(input);
+                mStretchOffset = 0;
+                if (chunk.timeUs < 0) {
+                    chunk.timeUs = input.timeUs;
+                }
+            } else if (!stretcher.isDrained()) {
+                stretcher.drain();
+            } else {
+                return false;
+            }
+        }
+        if (chunk.timeUs < 0) {
+            chunk.timeUs = input.timeUs;
+        }
+        return true;
+    }
+
+    private void runOutput() {
+        try {
+            while (!mReleased) {
+                applyRequests();
+                if (!mPlaying || mEnded) {
+                    // Until a request
+                    LockSupport.park(this);
+                    continue;
+                }
+                if (!writeNextChunk()) {
+                    LockSupport.parkNanos(OUTPUT_IDLE_NANOS);
+                }
+            }
+        } catch (Exception e) {
+            if (!mReleased) {
+                mListener.onError(e);
+            }
+        } finally {
+            mSink.release();
+        }
+    }
+
+    private void applyRequests() {
+        int generation = mRequestedGeneration;
+        if (generation != mOutputGeneration) {
+            // Whatever is queued belongs to the position before the seek
+            mSink.flush();
+            mSinkPlaying = false;
+            mChunkOffset = 0;
+            mChunkProcessed = false;
+            if (mActiveProcessor != null) {
+                // Filter state from before the jump would only ring
+                mActiveProcessor.configure(mSampleRate, mChannelCount);
+            }
+            mBaseTimeUs = -1;
+            mOutputSpeed = mRequestedSpeed;
+            mPositionUs = mRequestedSeekUs;
+            mWrittenFrames = 0;
+            mStarted = false;
+            mEnded = false;
+            mDraining = false;
+            mUnderrun = false;
+            mOutputGeneration = generation;
+        }
+        PcmProcessor processor = mProcessor;
+        if (processor != mActiveProcessor) {
+            if (processor != null) {
+                processor.configure(mSampleRate, mChannelCount);
+            }
+            mActiveProcessor = processor;
+        }
+        boolean playing = mPlaying && !mEnded;
+        if (playing != mSinkPlaying) {
+            if (playing) {
+                mSink.play();
+            } else {
+                mSink.pause();
+            }
+            mSinkPlaying = playing;
+        }
+        float volume = mVolume;
+        if (volume != mSinkVolume) {
+            mSink.setVolume(volume);
+            mSinkVolume = volume;
+        }
+        if (mBaseTimeUs >= 0) {
+            mPositionUs = mBaseTimeUs
+                    + (long) (mSink.getPlayedFrames() * 1000000 / mSampleRate * mOutputSpeed);
+        }
+    }
+
+    /**
+     * Moves samples from the oldest chunk to the sink.
+     *
+     * @return whether there may be more to do right away, false if the thread should idle.
+     */
+    private boolean writeNextChunk() throws IOException {
+        PcmRingBuffer.Chunk chunk = mRing.acquireRead();
+        if (chunk == null) {
+            if (mStarted && !mUnderrun && mSink.getPlayedFrames() >= mWrittenFrames) {
+                // The sink ran dry before the decoder caught up: a gap was heard
+                mUnderrun = true;
+                mUnderruns++;
+            }
+            return false;
+        }
+        if (chunk.generation != mOutputGeneration) {
+            releaseChunk();
+            return true;
+        }
+        if (mBaseTimeUs < 0) {
+            mBaseTimeUs = chunk.timeUs;
+        }
+        if (!mChunkProcessed) {
+            if (mActiveProcessor != null && chunk.length > 0) {
+                mActiveProcessor.process(chunk.data, 0, chunk.length);
+            }
+            mChunkProcessed = true;
+        }
+        if (mChunkOffset < chunk.length) {
+            int written = mSink.write(chunk.data, mChunkOffset, chunk.length - mChunkOffset);
+            if (written < 0) {
+                throw new IOException("Sink write failed: " + written);
+            }
+            mChunkOffset += written;
+            mWrittenFrames += written / mChannelCount;
+            mWrittenSamples += written;
+            if (written > 0) {
+                mUnderrun = false;
+                if (!mStarted) {
+                    mStarted = true;
+                    mListener.onStarted();
+                }
+            }
+            if (mChunkOffset < chunk.length) {
+                // The sink is full
+                return false;
+            }
+        }
+        // Read before the release, after which the decoder may refill the chunk
+        boolean endOfStream = chunk.endOfStream;
+        if (endOfStream && !isDrained()) {
+            return false;
+        }
+        releaseChunk();
+        if (endOfStream) {
+            mEnded = true;
+            mListener.onEndOfStream();
+        }
+        return true;
+    }
+
+    private void releaseChunk() {
+        mChunkOffset = 0;
+        mChunkProcessed = false;
+        mRing.releaseRead();
+        LockSupport.unpark(mDecoderThread);
+    }
+
+    /**
+     * Waits for the sink to play what it holds, so the end is not reported early.
+     */
+    private boolean isDrained() {
+        long now = System.nanoTime();
+        long played = mSink.getPlayedFrames();
+        if (!mDraining) {
+            mDraining = true;
+            mSink.drain();
+            mDrainPlayedFrames = played;
+            mDrainProgressTime = now;
+        } else if (played != mDrainPlayedFrames) {
+            mDrainPlayedFrames = played;
+            mDrainProgressTime = now;
+        }
+        return played >= mWrittenFrames || now - mDrainProgressTime > DRAIN_TIMEOUT_NANOS;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("  pipeline: playing=" + mPlaying + " speed=" + mRequestedSpeed
+                + " positionUs=" + getPositionUs()
+                + " ring=" + mRing.size() + "/" + mRing.capacity()
+                + " decodedChunks=" + mDecodedChunks + " writtenSamples=" + mWrittenSamples
+                + " underruns=" + mUnderruns);
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+/**
+ * Transforms blocks of interleaved float samples in place, on the thread that feeds the output.
+ */
+public interface PcmProcessor {
+    /**
+     * Called on the processing thread before the first block, and again whenever the format
+     * changes or the stream jumps, so any state carried between blocks can be reset.
+     */
+    void configure(int sampleRate, int channelCount);
+
+    /**
+     * Processes {@code length} interleaved samples starting at {@code offset}, in place.
+     * {@code length} is a whole number of frames.
+     */
+    void process(float[] data, int offset, int length);
+}
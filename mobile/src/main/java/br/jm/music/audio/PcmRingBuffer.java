@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+/**
+ * Lock-free ring of preallocated PCM chunks, between exactly one producer thread and one
+ * consumer thread. The producer fills the chunk returned by {@link #acquireWrite()} and hands
+ * it over with {@link #commitWrite()}; the consumer gets it from {@link #acquireRead()} and
+ * gives it back with {@link #releaseRead()}. Chunks are reused forever, so nothing is allocated
+ * once the ring exists.
+ * <p/>
+ * Each index is only written by its own side. The volatile write that moves an index publishes
+ * the chunk contents written before it to the other side.
+ */
+public class PcmRingBuffer {
+
+    /**
+     * A block of interleaved float samples, with the stream time of its first frame.
+     */
+    public static final class Chunk {
+        public final float[] data;
+        // Number of valid samples in data
+        public int length;
+        public long timeUs;
+        // Lets the consumer drop chunks decoded before a seek
+        public int generation;
+        // Set on the last chunk of the stream, which may hold samples too
+        public boolean endOfStream;
+
+        public Chunk(int capacity) {
+            data = new float[capacity];
+        }
+    }
+
+    private final Chunk[] mChunks;
+    private final int mMask;
+
+    // Only written by the producer
+    private volatile long mWriteIndex;
+    // Only written by the consumer
+    private volatile long mReadIndex;
+
+    /**
+     * @param chunkCount number of chunks, rounded up to a power of two
+     * @param chunkCapacity number of samples each chunk can hold
+     */
+    public PcmRingBuffer(int chunkCount, int chunkCapacity) {
+        if (chunkCount <= 0 || chunkCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid ring size");
+        }
+        int capacity = Integer.highestOneBit(chunkCount);
+        if (capacity < chunkCount) {
+            capacity <<= 1;
+        }
+        mChunks = new Chunk[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mChunks[i] = new Chunk(chunkCapacity);
+        }
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return the next chunk to fill, or null if the ring is full.
+     */
+    public Chunk acquireWrite() {
+        long write = mWriteIndex;
+        if (write - mReadIndex > mMask) {
+            return null;
+        }
+        return mChunks[(int) (write & mMask)];
+    }
+
+    /**
+     * Producer side. Hands the chunk from the last {@link #acquireWrite()} to the consumer.
+     */
+    public void commitWrite() {
+        mWriteIndex = mWriteIndex + 1;
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return the oldest filled chunk, or null if the ring is empty.
+     */
+    public Chunk acquireRead() {
+        long read = mReadIndex;
+        if (read == mWriteIndex) {
+            return null;
+        }
+        return mChunks[(int) (read & mMask)];
+    }
+
+    /**
+     * Consumer side. Gives the chunk from the last {@link #acquireRead()} back to the producer.
+     */
+    public void releaseRead() {
+        mReadIndex = mReadIndex + 1;
+    }
+
+    /**
+     * @return the number of filled chunks. Only a snapshot when called from a third thread.
+     */
+    public int size() {
+        return (int) (mWriteIndex - mReadIndex);
+    }
+
+    public int capacity() {
+        return mChunks.length;
+    }
+
+    public int getChunkCapacity() {
+        return mChunks[0].data.length;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+/**
+ * Finds where the sound starts and ends in a stream of interleaved float PCM, e.g. the digital
+ * silence many rips have around the music.
+ * <p/>
+ * A frame is sound when any of its channels reaches {@link #THRESHOLD}, so dither and the noise
+ * floor of a recording count as silence while the quietest fade in doesn't. The stream may be
+ * fed from a seek, chunks only need their start time.
+ */
+public class SilenceDetector {
+
+    // -60 dBFS, well above 16 bit dither and well below any audible music
+    public static final float THRESHOLD = 0.001f;
+
+    private int mSampleRate;
+    private int mChannelCount;
+
+    private long mFirstSoundUs;
+    private long mLastSoundUs;
+    private long mEndUs;
+
+    public void configure(int sampleRate, int channelCount) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        reset();
+    }
+
+    /**
+     * Forgets the sound seen so far.
+     */
+    public void reset() {
+        mFirstSoundUs = -1;
+        mLastSoundUs = -1;
+        mEndUs = 0;
+    }
+
+    /**
+     * @param timeUs time of the first frame of {@code data}
+     */
+    public void process(float[] data, int offset, int length, long timeUs) {
+        int channels = mChannelCount;
+        int frames = length / channels;
+        int first = -1;
+        int last = -1;
+        for (int frame = 0, i = offset; frame < frames; frame++, i += channels) {
+            for (int channel = 0; channel < channels; channel++) {
+                float sample = data[i + channel];
+                if (sample > THRESHOLD || sample < -THRESHOLD) {
+                    if (first < 0) {
+                        first = frame;
+                    }
+                    last = frame;
+                    break;
+                }
+            }
+        }
+        if (first >= 0) {
+            if (mFirstSoundUs < 0) {
+                mFirstSoundUs = timeUs + getDurationUs(first);
+            }
+            mLastSoundUs = timeUs + getDurationUs(last + 1);
+        }
+        mEndUs = Math.max(mEndUs, timeUs + getDurationUs(frames));
+    }
+
+    public boolean hasSound() {
+        return mFirstSoundUs >= 0;
+    }
+
+    /**
+     * @return the time of the first frame of sound, or -1 if there was none
+     */
+    public long getFirstSoundUs() {
+        return mFirstSoundUs;
+    }
+
+    /**
+     * @return the time right after the last frame of sound, or -1 if there was none
+     */
+    public long getLastSoundUs() {
+        return mLastSoundUs;
+    }
+
+    /**
+     * @return the time right after the last frame processed
+     */
+    public long getEndUs() {
+        return mEndUs;
+    }
+
+    private long getDurationUs(int frames) {
+        return frames * 1000000L / mSampleRate;
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the picture embedded in the tags of an audio file: ID3v2 (MP3), MP4 (M4A) and FLAC.
+ * <p/>
+ * Only tag structures are read, everything else is seeked over, and reading stops at the
+ * front cover, so the audio is never touched. Other pictures are only returned when the file
+ * has no front cover.
+ */
+public final class TagPictureReader {
+
+    // Pictures larger than this are skipped, a cover never needs it
+    private static final int MAX_PICTURE_SIZE = 8 * 1024 * 1024;
+    // APIC and FLAC picture type
+    private static final int PICTURE_TYPE_FRONT_COVER = 3;
+    // Atoms leading to the cover, in MP4 files
+    private static final String[] MP4_COVER_PATH = {"moov", "udta", "meta", "ilst", "covr", "data"};
+
+    private final RandomAccessFile mFile;
+    private final long mLength;
+    // First picture that isn't a front cover
+    private byte[] mFallback;
+
+    private TagPictureReader(RandomAccessFile file) throws IOException {
+        mFile = file;
+        mLength = file.length();
+    }
+
+    /**
+     * @return the encoded front cover embedded in the file, else its first picture, or null if
+     * it has none or its format isn't supported
+     */
+    public static byte[] read(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            TagPictureReader reader = new TagPictureReader(randomAccessFile);
+            byte[] picture = reader.readPicture();
+            return picture != null ? picture : reader.mFallback;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private byte[] readPicture() throws IOException {
+        byte[] magic = new byte[8];
+        if (mLength < magic.length) {
+            return null;
+        }
+        mFile.readFully(magic);
+        if (magic[0] == 'I' && magic[1] == 'D' && magic[2] == '3') {
+            mFile.seek(0);
+            return readId3();
+        }
+        if (magic[0] == 'f' && magic[1] == 'L' && magic[2] == 'a' && magic[3] == 'C') {
+            mFile.seek(4);
+            return readFlac();
+        }
+        if (magic[4] == 'f' && magic[5] == 't' && magic[6] == 'y' && magic[7] == 'p') {
+            return readMp4(0, mLength, 0);
+        }
+        return null;
+    }
+
+    /**
+     * Walks the frames of the ID3v2 tag at the current position, up to the first front cover.
+     */
+    private byte[] readId3() throws IOException {
+        byte[] header = new byte[10];
+        if (mLength < header.length) {
+            return null;
+        }
+        mFile.readFully(header);
+        int version = header[3];
+        int flags = header[5] & 0xFF;
+        if (version < 2 || version > 4) {
+            return null;
+        }
+        long end = Math.min(mLength, header.length + getSyncsafe(header, 6));
+        boolean unsynchronised = (flags & 0x80) != 0;
+        if (version >= 3 && (flags & 0x40) != 0) {
+            // Extended header, its size only includes itself as of 2.4
+            byte[] size = new byte[4];
+            mFile.readFully(size);
+            int skipped = version == 4 ? getSyncsafe(size, 0) - size.length : getInt(size, 0);
+            if (skipped < 0) {
+                return null;
+            }
+            mFile.seek(mFile.getFilePointer() + skipped);
+        }
+
+        byte[] frame = new byte[version == 2 ? 6 : 10];
+        while (mFile.getFilePointer() + frame.length <= end) {
+            mFile.readFully(frame);
+            if (frame[0] == 0) {
+                // Padding
+                return null;
+            }
+            int size;
+            int frameFlags;
+            boolean picture;
+            if (version == 2) {
+                size = getInt24(frame, 3);
+                frameFlags = 0;
+                picture = frame[0] == 'P' && frame[1] == 'I' && frame[2] == 'C';
+            } else {
+                size = version == 4 ? getSyncsafe(frame, 4) : getInt(frame, 4);
+                frameFlags = frame[9] & 0xFF;
+                picture = frame[0] == 'A' && frame[1] == 'P' && frame[2] == 'I' && frame[3] == 'C';
+            }
+            long next = mFile.getFilePointer() + size;
+            if (size <= 0 || next > end) {
+                return null;
+            }
+            if (picture && size <= MAX_PICTURE_SIZE) {
+                byte[] body = new byte[size];
+                mFile.readFully(body);
+                byte[] cover = readId3Picture(body, version, frameFlags, unsynchronised);
+                if (cover != null) {
+                    return cover;
+                }
+            }
+            mFile.seek(next);
+        }
+        return null;
+    }
+
+    /**
+     * @return the picture of an APIC (or PIC, in 2.2) frame if it is a front cover
+     */
+    private byte[] readId3Picture(byte[] body, int version, int frameFlags,
+                                  boolean unsynchronised) {
+        int offset = 0;
+        if (version == 3) {
+            if ((frameFlags & 0xC0) != 0) {
+                // Compressed or encrypted
+                return null;
+            }
+            if ((frameFlags & 0x20) != 0) {
+                // Group ID
+                offset++;
+            }
+        } else if (version == 4) {
+            if ((frameFlags & 0x0C) != 0) {
+                return null;
+            }
+            if ((frameFlags & 0x40) != 0) {
+                offset++;
+            }
+            if ((frameFlags & 0x01) != 0) {
+                // Data length indicator
+                offset += 4;
+            }
+            unsynchronised |= (frameFlags & 0x02) != 0;
+        }
+        if (offset >= body.length) {
+            return null;
+        }
+        if (unsynchronised) {
+            body = resynchronise(body, offset);
+            offset = 0;
+        }
+
+        int encoding = body[offset++];
+        if (version == 2) {
+            // Image format, e.g. "JPG"
+            offset += 3;
+        } else {
+            offset = skipString(body, offset, false);
+        }
+        // Nothing left after an unterminated MIME type
+        if (offset >= body.length) {
+            return null;
+        }
+        int type = body[offset++] & 0xFF;
+        // Description, UTF-16 ones end with two zeros
+        offset = skipString(body, offset, encoding == 1 || encoding == 2);
+        if (offset >= body.length) {
+            return null;
+        }
+        return accept(type, Arrays.copyOfRange(body, offset, body.length));
+    }
+
+    /**
+     * Walks the metadata blocks of a FLAC stream at the current position, up to the first front
+     * cover.
+     */
+    private byte[] readFlac() throws IOException {
+        byte[] header = new byte[4];
+        while (mFile.getFilePointer() + header.length <= mLength) {
+            mFile.readFully(header);
+            boolean last = (header[0] & 0x80) != 0;
+            int type = header[0] & 0x7F;
+            int length = getInt24(header, 1);
+            long next = mFile.getFilePointer() + length;
+            if (next > mLength) {
+                return null;
+            }
+            // PICTURE
+            if (type == 6 && length <= MAX_PICTURE_SIZE) {
+                byte[] block = new byte[length];
+                mFile.readFully(block);
+                byte[] cover = readFlacPicture(block);
+                if (cover != null) {
+                    return cover;
+                }
+            }
+            if (last) {
+                return null;
+            }
+            mFile.seek(next);
+        }
+        return null;
+    }
+
+    /**
+     * @return the picture of a PICTURE block if it is a front cover, or null, also when the
+     * lengths in the block don't hold up
+     */
+    private byte[] readFlacPicture(byte[] block) {
+        if (block.length < 4) {
+            return null;
+        }
+        int pictureType = getInt(block, 0);
+        int offset = 4;
+        // MIME type and description
+        for (int i = 0; i < 2; i++) {
+            if (block.length - offset < 4) {
+                return null;
+            }
+            int length = getInt(block, offset);
+            offset += 4;
+            if (length < 0 || length > block.length - offset) {
+                return null;
+            }
+            offset += length;
+        }
+        // Width, height, color depth and palette size, then the length of the data
+        if (block.length - offset < 20) {
+            return null;
+        }
+        int dataLength = getInt(block, offset + 16);
+        offset += 20;
+        if (dataLength <= 0 || dataLength > block.length - offset) {
+            return null;
+        }
+        return accept(pictureType, Arrays.copyOfRange(block, offset, offset + dataLength));
+    }
+
+    /**
+     * Looks for the atom at {@code depth} in {@link #MP4_COVER_PATH} between {@code start} and
+     * {@code end}, seeking over the others, the media data included.
+     */
+    private byte[] readMp4(long start, long end, int depth) throws IOException {
+        byte[] header = new byte[8];
+        long position = start;
+        while (position + header.length <= end) {
+            mFile.seek(position);
+            mFile.readFully(header);
+            long size = getInt(header, 0) & 0xFFFFFFFFL;
+            int headerSize = header.length;
+            if (size == 1) {
+                size = mFile.readLong();
+                headerSize += 8;
+            } else if (size == 0) {
+                // Up to the end of the file
+                size = end - position;
+            }
+            if (size < headerSize || size > end - position) {
+                return null;
+            }
+            String type = new String(header, 4, 4, StandardCharsets.ISO_8859_1);
+            if (type.equals(MP4_COVER_PATH[depth])) {
+                long bodyStart = position + headerSize;
+                long bodyEnd = position + size;
+                if (depth == MP4_COVER_PATH.length - 1) {
+                    // Type indicator and locale, then the image
+                    long length = bodyEnd - bodyStart - 8;
+                    if (length <= 0 || length > MAX_PICTURE_SIZE) {
+                        return null;
+                    }
+                    byte[] cover = new byte[(int) length];
+                    mFile.seek(bodyStart + 8);
+                    mFile.readFully(cover);
+                    return cover;
+                }
+                if (type.equals("meta")
+                        && (bodyEnd - bodyStart < 8 || !isQuickTimeMeta(bodyStart))) {
+                    // A full atom, version and flags come first
+                    bodyStart += 4;
+                }
+                return readMp4(bodyStart, bodyEnd, depth + 1);
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the meta atom whose body starts there is a plain atom, as written by
+     * QuickTime, rather than a full atom
+     */
+    private boolean isQuickTimeMeta(long bodyStart) throws IOException {
+        byte[] child = new byte[8];
+        mFile.seek(bodyStart);
+        mFile.readFully(child);
+        return child[4] == 'h' && child[5] == 'd' && child[6] == 'l' && child[7] == 'r';
+    }
+
+    /**
+     * @return the picture if it is a front cover, else null, keeping it as the fallback if it
+     * is the first picture found
+     */
+    private byte[] accept(int type, byte[] picture) {
+        if (type == PICTURE_TYPE_FRONT_COVER) {
+            return picture;
+        }
+        if (mFallback == null) {
+            mFallback = picture;
+        }
+        return null;
+    }
+
+    /**
+     * @return the offset after the zero terminated string at {@code offset}
+     */
+    private static int skipString(byte[] data, int offset, boolean wide) {
+        if (wide) {
+            for (int i = offset; i + 1 < data.length; i += 2) {
+                if (data[i] == 0 && data[i + 1] == 0) {
+                    return i + 2;
+                }
+            }
+        } else {
+            for (int i = offset; i < data.length; i++) {
+                if (data[i] == 0) {
+                    return i + 1;
+                }
+            }
+        }
+        return data.length;
+    }
+
+    /**
+     * @return the data from {@code offset} without the zeros ID3 unsynchronisation inserts
+     * after 0xFF bytes
+     */
+    private static byte[] resynchronise(byte[] data, int offset) {
+        byte[] result = new byte[data.length - offset];
+        int length = 0;
+        for (int i = offset; i < data.length; i++) {
+            result[length++] = data[i];
+            if (data[i] == (byte) 0xFF && i + 1 < data.length && data[i + 1] == 0) {
+                i++;
+            }
+        }
+        return Arrays.copyOf(result, length);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    private static int getInt24(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 16 | (data[offset + 1] & 0xFF) << 8
+                | (data[offset + 2] & 0xFF);
+    }
+
+    /**
+     * @return the "syncsafe" integer at {@code offset}, 7 bits per byte
+     */
+    private static int getSyncsafe(byte[] data, int offset) {
+        return (data[offset] & 0x7F) << 21 | (data[offset + 1] & 0x7F) << 14
+                | (data[offset + 2] & 0x7F) << 7 | (data[offset + 3] & 0x7F);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+/**
+ * Changes the tempo of interleaved float PCM without changing its pitch, with WSOLA (waveform
+ * similarity overlap-add).
+ * <p/>
+ * The input is cut into sequences of {@link #SEQUENCE_MS} taken every {@code speed} times the
+ * output hop. Each sequence starts at the offset, within a {@link #SEEK_WINDOW_MS} window, whose
+ * waveform best matches the tail of the previous one, and the two are cross-faded over
+ * {@link #OVERLAP_MS}. The search is bounded: a coarse pass over a decimated mono mix, then a
+ * fine pass around the best coarse match.
+ * <p/>
+ * All buffers are allocated up front. Not thread safe, one instance per stream.
+ */
+public class TimeStretcher {
+
+    public static final float MIN_SPEED = 0.5f;
+    public static final float MAX_SPEED = 2.0f;
+
+    private static final int SEQUENCE_MS = 40;
+    private static final int OVERLAP_MS = 8;
+    private static final int SEEK_WINDOW_MS = 15;
+    // Offsets tried by the coarse pass, and samples compared by it
+    private static final int COARSE_STEP = 4;
+    private static final int COARSE_DECIMATION = 2;
+
+    private final int mChannelCount;
+    // Lengths in frames
+    private final int mSequence;
+    private final int mOverlap;
+    private final int mSeekWindow;
+
+    // Pending input, from mInputStart to mInputEnd, in frames
+    private final float[] mInput;
+    private int mInputStart;
+    private int mInputEnd;
+    // Pending output, same layout
+    private final float[] mOutput;
+    private int mOutputStart;
+    private int mOutputEnd;
+    // Tail of the previous sequence, faded out under the start of the next one
+    private final float[] mMid;
+    // Mono mix of mMid, for the correlation search
+    private final float[] mMidMono;
+
+    private float mSpeed = 1f;
+    private double mSkipFraction;
+    private boolean mPrimed;
+
+    public TimeStretcher(int sampleRate, int channelCount) {
+        mChannelCount = channelCount;
+        mSequence = sampleRate * SEQUENCE_MS / 1000;
+        mOverlap = sampleRate * OVERLAP_MS / 1000;
+        mSeekWindow = sampleRate * SEEK_WINDOW_MS / 1000;
+        // Room for a full iteration at the highest speed, plus as much for new input
+        int inputFrames = 2 * (mSeekWindow + mSequence + (int) Math.ceil(MAX_SPEED * mSequence));
+        mInput = new float[inputFrames * channelCount];
+        mOutput = new float[4 * mSequence * channelCount];
+        mMid = new float[mOverlap * channelCount];
+        mMidMono = new float[mOverlap];
+    }
+
+    /**
+     * Sets the tempo, 1 being the original one. Takes effect from the next sequence.
+     */
+    public void setSpeed(float speed) {
+        mSpeed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Drops everything pending, e.g. after a seek.
+     */
+    public void reset() {
+        mInputStart = 0;
+        mInputEnd = 0;
+        mOutputStart = 0;
+        mOutputEnd = 0;
+        mSkipFraction = 0;
+        mPrimed = false;
+    }
+
+    /**
+     * Queues input samples, as many as there is room for.
+     *
+     * @return the number of samples taken, a whole number of frames
+     */
+    public int putSamples(float[] data, int offset, int length) {
+        compactInput();
+        int frames = Math.min(length / mChannelCount, mInput.length / mChannelCount - mInputEnd);
+        System.arraycopy(data, offset, mInput, mInputEnd * mChannelCount, frames * mChannelCount);
+        mInputEnd += frames;
+        process();
+        return frames * mChannelCount;
+    }
+
+    /**
+     * Takes stretched samples.
+     *
+     * @return the number of samples written to {@code data}, a whole number of frames
+     */
+    public int getSamples(float[] data, int offset, int length) {
+        process();
+        int frames = Math.min(length / mChannelCount, mOutputEnd - mOutputStart);
+        System.arraycopy(mOutput, mOutputStart * mChannelCount, data, offset,
+                frames * mChannelCount);
+        mOutputStart += frames;
+        if (mOutputStart == mOutputEnd) {
+            mOutputStart = 0;
+            mOutputEnd = 0;
+        }
+        return frames * mChannelCount;
+    }
+
+    /**
+     * Moves the input too short to make a sequence to the output, at the end of a stream.
+     * Call {@link #getSamples} until it returns 0 afterwards.
+     */
+    public void drain() {
+        compactOutput();
+        int channels = mChannelCount;
+        int room = mOutput.length / channels - mOutputEnd;
+        if (mPrimed && room >= mOverlap) {
+            // The input left doesn't follow the tail of the last sequence, so the two are
+            // cross-faded like sequences are. Less input than that is dropped, and the tail
+            // fades out alone.
+            boolean crossFade = mInputEnd - mInputStart >= mOverlap;
+            int out = mOutputEnd * channels;
+            int in = mInputStart * channels;
+            for (int frame = 0; frame < mOverlap; frame++) {
+                float fadeIn = (float) frame / mOverlap;
+                float fadeOut = 1f - fadeIn;
+                for (int channel = 0; channel < channels; channel++) {
+                    int i = frame * channels + channel;
+                    float next = crossFade ? mInput[in + i] : 0;
+                    mOutput[out + i] = mMid[i] * fadeOut + next * fadeIn;
+                }
+            }
+            mOutputEnd += mOverlap;
+            mInputStart = crossFade ? mInputStart + mOverlap : mInputEnd;
+            room -= mOverlap;
+            mPrimed = false;
+        }
+        int frames = Math.min(room, mInputEnd - mInputStart);
+        System.arraycopy(mInput, mInputStart * channels, mOutput, mOutputEnd * channels,
+                frames * channels);
+        mOutputEnd += frames;
+        mInputStart += frames;
+    }
+
+    /**
+     * @return whether {@link #drain} has nothing left to move
+     */
+    public boolean isDrained() {
+        return mInputStart == mInputEnd && !mPrimed;
+    }
+
+    /**
+     * Makes as many sequences as the pending input and the room left for output allow.
+     */
+    private void process() {
+        int channels = mChannelCount;
+        int outputHop = mSequence - mOverlap;
+        while (true) {
+            double skip = outputHop * mSpeed + mSkipFraction;
+            int needed = Math.max(mSeekWindow + mSequence, (int) skip);
+            if (mInputEnd - mInputStart < needed) {
+                return;
+            }
+            compactOutput();
+            if (mOutput.length / channels - mOutputEnd < outputHop) {
+                return;
+            }
+            int out = mOutputEnd * channels;
+            int start;
+            if (!mPrimed) {
+                // Nothing to match yet, the first sequence is taken as is
+                start = mInputStart;
+                System.arraycopy(mInput, start * channels, mOutput, out, outputHop * channels);
+                mPrimed = true;
+            } else {
+                start = mInputStart + findBestOffset(mInputStart);
+                int in = start * channels;
+                for (int frame = 0; frame < mOverlap; frame++) {
+                    float fadeIn = (float) frame / mOverlap;
+                    float fadeOut = 1f - fadeIn;
+                    for (int channel = 0; channel < channels; channel++) {
+                        int i = frame * channels + channel;
+                        mOutput[out + i] = mMid[i] * fadeOut + mInput[in + i] * fadeIn;
+                    }
+                }
+                int overlapSamples = mOverlap * channels;
+                System.arraycopy(mInput, in + overlapSamples, mOutput, out + overlapSamples,
+                        (outputHop - mOverlap) * channels);
+            }
+            mOutputEnd += outputHop;
+
+            int tail = (start + outputHop) * channels;
+            System.arraycopy(mInput, tail, mMid, 0, mOverlap * channels);
+            for (int frame = 0; frame < mOverlap; frame++) {
+                float sum = 0;
+                for (int channel = 0; channel < channels; channel++) {
+                    sum += mMid[frame * channels + channel];
+                }
+                mMidMono[frame] = sum;
+            }
+
+            int advance = (int) skip;
+            mSkipFraction = skip - advance;
+            mInputStart += advance;
+        }
+    }
+
+    /**
+     * @return the offset from {@code position}, within the seek window, where the input looks
+     * most like the tail of the previous sequence
+     */
+    private int findBestOffset(int position) {
+        int best = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int offset = 0; offset < mSeekWindow; offset += COARSE_STEP) {
+            double score = correlate(position + offset, COARSE_DECIMATION);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        int from = Math.max(0, best - COARSE_STEP + 1);
+        int to = Math.min(mSeekWindow - 1, best + COARSE_STEP - 1);
+        for (int offset = from; offset <= to; offset++) {
+            if (offset == best) {
+                continue;
+            }
+            double score = correlate(position + offset, 1);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the cross-correlation of the mono mix of the input at {@code frame} with the tail
+     * of the previous sequence, normalized by the input energy
+     */
+    private double correlate(int frame, int step) {
+        int channels = mChannelCount;
+        double correlation = 0;
+        double energy = 0;
+        for (int i = 0; i < mOverlap; i += step) {
+            int base = (frame + i) * channels;
+            float sample = mInput[base];
+            if (channels == 2) {
+                sample += mInput[base + 1];
+            }
+            correlation += sample * mMidMono[i];
+            energy += sample * sample;
+        }
+        return correlation / Math.sqrt(energy + 1e-9);
+    }
+
+    private void compactInput() {
+        if (mInputStart > 0) {
+            int frames = mInputEnd - mInputStart;
+            System.arraycopy(mInput, mInputStart * mChannelCount, mInput, 0,
+                    frames * mChannelCount);
+            mInputStart = 0;
+            mInputEnd = frames;
+        }
+    }
+
+    private void compactOutput() {
+        if (mOutputStart > 0) {
+            int frames = mOutputEnd - mOutputStart;
+            System.arraycopy(mOutput, mOutputStart * mChannelCount, mOutput, 0,
+                    frames * mChannelCount);
+            mOutputStart = 0;
+            mOutputEnd = frames;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import br.jm.music.utils.LogHelper;
+
+/**
+ * Loudness normalization gains of the analyzed tracks and their albums.
+ * <p/>
+ * Entries are kept in parallel primitive arrays sorted by track ID, keyed by the track ID and
+ * the modification time of its file, so an edited file simply stops matching its old entry.
+ * Gains are computed when an entry is stored, a lookup is a binary search and nothing else.
+ * Thread safe: the analyzer fills the table while playback reads it.
+ */
+public class GainTable {
+
+    private static final String TAG = LogHelper.makeLogTag(GainTable.class);
+
+    private static final int MAGIC = 0x4C475442; // "LGTB"
+    private static final int VERSION = 1;
+
+    // Loudness tracks are brought down to, the ReplayGain 2 reference level
+    public static final float TARGET_LOUDNESS = -18f;
+    // MediaPlayer volumes can't go above 1, so quiet tracks are left alone rather than boosted
+    private static final float MAX_GAIN = 1f;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int mSize;
+    private long[] mTrackIds = new long[INITIAL_CAPACITY];
+    private long[] mModified = new long[INITIAL_CAPACITY];
+    private int[] mAlbumIds = new int[INITIAL_CAPACITY];
+    private float[] mLoudness = new float[INITIAL_CAPACITY];
+    private float[] mPeaks = new float[INITIAL_CAPACITY];
+    private int[] mBlocks = new int[INITIAL_CAPACITY];
+    private float[] mGains = new float[INITIAL_CAPACITY];
+
+    // Album gains, sorted by album ID, rebuilt by updateAlbums()
+    private int[] mAlbumGainIds = new int[0];
+    private float[] mAlbumGains = new float[0];
+
+    /**
+     * @return whether the table holds an up to date measurement of the given track
+     */
+    public synchronized boolean contains(long trackId, long modified) {
+        int index = Arrays.binarySearch(mTrackIds, 0, mSize, trackId);
+        return index >= 0 && mModified[index] == modified;
+    }
+
+    /**
+     * Stores the measurement of a track, replacing any previous one.
+     *
+     * @param loudness    integrated loudness in LUFS
+     * @param peak        linear true peak
+     * @param blockCount  number of gated blocks the loudness was computed from, used to weigh
+     *                    the track within its album
+     */
+    public synchronized void put(long trackId, long modified, int albumId, float loudness,
+                                 float peak, int blockCount) {
+        int index = Arrays.binarySearch(mTrackIds, 0, mSize, trackId);
+        if (index < 0) {
+            index = -index - 1;
+            insertAt(index);
+            mTrackIds[index] = trackId;
+        }
+        mModified[index] = modified;
+        mAlbumIds[index] = albumId;
+        mLoudness[index] = loudness;
+        mPeaks[index] = peak;
+        mBlocks[index] = blockCount;
+        mGains[index] = computeGain(loudness, peak);
+    }
+
+    /**
+     * @return the linear gain for the track, or for its album if {@code album} is set and the
+     * album gain is known. 1 when the track wasn't analyzed or its file changed since.
+     */
+    public synchronized float getGain(long trackId, long modified, boolean album) {
+        int index = Arrays.binarySearch(mTrackIds, 0, mSize, trackId);
+        if (index < 0 || mModified[index] != modified) {
+            return 1f;
+        }
+        if (album) {
+            int albumIndex = Arrays.binarySearch(mAlbumGainIds, mAlbumIds[index]);
+            if (albumIndex >= 0) {
+                return mAlbumGains[albumIndex];
+            }
+        }
+        return mGains[index];
+    }
+
+    /**
+     * Drops the entries of the tracks that are not in the catalog anymore.
+     */
+    public synchronized void retain(Set<Long> trackIds) {
+        int kept = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (trackIds.contains(mTrackIds[i])) {
+                moveEntry(i, kept++);
+            }
+        }
+        mSize = kept;
+    }
+
+    /**
+     * Recomputes the album gains from the tracks measured so far.
+     * <p/>
+     * The album loudness is the block weighted power mean of its track loudness. It differs from
+     * gating all the blocks of the album at once only when the tracks have very different levels,
+     * and it lets a single edited track be measured again without decoding its whole album.
+     */
+    public synchronized void updateAlbums() {
+        Map<Integer, double[]> albums = new HashMap<>();
+        for (int i = 0; i < mSize; i++) {
+            if (mBlocks[i] == 0) {
+                continue;
+            }
+            double[] album = albums.get(mAlbumIds[i]);
+            if (album == null) {
+                // energy sum, block count, peak
+                album = new double[3];
+                albums.put(mAlbumIds[i], album);
+            }
+            album[0] += mBlocks[i] * Math.pow(10, mLoudness[i] / 10);
+            album[1] += mBlocks[i];
+            album[2] = Math.max(album[2], mPeaks[i]);
+        }
+        int[] ids = new int[albums.size()];
+        int count = 0;
+        for (Integer id : albums.keySet()) {
+            ids[count++] = id;
+        }
+        Arrays.sort(ids);
+        float[] gains = new float[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            double[] album = albums.get(ids[i]);
+            float loudness = (float) (10 * Math.log10(album[0] / album[1]));
+            gains[i] = computeGain(loudness, (float) album[2]);
+        }
+        mAlbumGainIds = ids;
+        mAlbumGains = gains;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private static float computeGain(float loudness, float peak) {
+        if (Float.isInfinite(loudness) || Float.isNaN(loudness)) {
+            // Silence, nothing to normalize
+            return MAX_GAIN;
+        }
+        float gain = (float) Math.pow(10, (TARGET_LOUDNESS - loudness) / 20);
+        if (peak > 0) {
+            gain = Math.min(gain, 1f / peak);
+        }
+        return Math.min(gain, MAX_GAIN);
+    }
+
+    private void insertAt(int index) {
+        if (mSize == mTrackIds.length) {
+            int capacity = mSize * 2;
+            mTrackIds = Arrays.copyOf(mTrackIds, capacity);
+            mModified = Arrays.copyOf(mModified, capacity);
+            mAlbumIds = Arrays.copyOf(mAlbumIds, capacity);
+            mLoudness = Arrays.copyOf(mLoudness, capacity);
+            mPeaks = Arrays.copyOf(mPeaks, capacity);
+            mBlocks = Arrays.copyOf(mBlocks, capacity);
+            mGains = Arrays.copyOf(mGains, capacity);
+        }
+        int moved = mSize - index;
+        System.arraycopy(mTrackIds, index, mTrackIds, index + 1, moved);
+        System.arraycopy(mModified, index, mModified, index + 1, moved);
+        System.arraycopy(mAlbumIds, index, mAlbumIds, index + 1, moved);
+        System.arraycopy(mLoudness, index, mLoudness, index + 1, moved);
+        System.arraycopy(mPeaks, index, mPeaks, index + 1, moved);
+        System.arraycopy(mBlocks, index, mBlocks, index + 1, moved);
+        System.arraycopy(mGains, index, mGains, index + 1, moved);
+        mSize++;
+    }
+
+    private void moveEntry(int from, int to) {
+        mTrackIds[to] = mTrackIds[from];
+        mModified[to] = mModified[from];
+        mAlbumIds[to] = mAlbumIds[from];
+        mLoudness[to] = mLoudness[from];
+        mPeaks[to] = mPeaks[from];
+        mBlocks[to] = mBlocks[from];
+        mGains[to] = mGains[from];
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.print("  tracks=");
+        writer.print(mSize);
+        writer.print(" albums=");
+        writer.println(mAlbumGainIds.length);
+    }
+
+    /**
+     * Reads a table previously written by {@link #write(File)}.
+     *
+     * @return the table, empty if the file doesn't exist or can't be parsed.
+     */
+    public static GainTable read(File file) {
+        GainTable table = new GainTable();
+        if (!file.exists()) {
+            return table;
+        }
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            ByteBuffer buffer = ByteBuffer.allocate((int) file.length());
+            while (buffer.hasRemaining()) {
+                if (is.getChannel().read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LogHelper.w(TAG, "Ignoring gain table with unknown format");
+                return table;
+            }
+            int size = buffer.getInt();
+            int capacity = Math.max(INITIAL_CAPACITY, size);
+            table.mTrackIds = new long[capacity];
+            table.mModified = new long[capacity];
+            table.mAlbumIds = new int[capacity];
+            table.mLoudness = new float[capacity];
+            table.mPeaks = new float[capacity];
+            table.mBlocks = new int[capacity];
+            table.mGains = new float[capacity];
+            buffer.asLongBuffer().get(table.mTrackIds, 0, size);
+            buffer.position(buffer.position() + size * 8);
+            buffer.asLongBuffer().get(table.mModified, 0, size);
+            buffer.position(buffer.position() + size * 8);
+            buffer.asIntBuffer().get(table.mAlbumIds, 0, size);
+            buffer.position(buffer.position() + size * 4);
+            buffer.asFloatBuffer().get(table.mLoudness, 0, size);
+            buffer.position(buffer.position() + size * 4);
+            buffer.asFloatBuffer().get(table.mPeaks, 0, size);
+            buffer.position(buffer.position() + size * 4);
+            buffer.asIntBuffer().get(table.mBlocks, 0, size);
+            for (int i = 0; i < size; i++) {
+                table.mGains[i] = computeGain(table.mLoudness[i], table.mPeaks[i]);
+            }
+            table.mSize = size;
+            table.updateAlbums();
+        } catch (IOException | RuntimeException e) {
+            LogHelper.w(TAG, e, "Could not read gain table");
+            return new GainTable();
+        } finally {
+            try {
+                if (is != null)
+                    is.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Writes this table to a temporary file and renames it over the given one, so a reader
+     * never sees a partially written table.
+     */
+    public void write(File file) throws IOException {
+        ByteBuffer buffer;
+        synchronized (this) {
+            int size = mSize;
+            buffer = ByteBuffer.allocate(4 + 4 + 4 + size * (8 + 8 + 4 + 4 + 4 + 4));
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(size);
+            buffer.asLongBuffer().put(mTrackIds, 0, size);
+            buffer.position(buffer.position() + size * 8);
+            buffer.asLongBuffer().put(mModified, 0, size);
+            buffer.position(buffer.position() + size * 8);
+            buffer.asIntBuffer().put(mAlbumIds, 0, size);
+            buffer.position(buffer.position() + size * 4);
+            buffer.asFloatBuffer().put(mLoudness, 0, size);
+            buffer.position(buffer.position() + size * 4);
+            buffer.asFloatBuffer().put(mPeaks, 0, size);
+            buffer.position(buffer.position() + size * 4);
+            buffer.asIntBuffer().put(mBlocks, 0, size);
+            buffer.position(buffer.position() + size * 4);
+            buffer.flip();
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            while (buffer.hasRemaining()) {
+                os.getChannel().write(buffer);
+            }
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+}
@@ -17,20 +17,25 @@
 package br.jm.music.model;
 
 import android.content.ContentResolver;
-import android.content.Context;
 import android.database.Cursor;
 import android.media.MediaMetadata;
 import android.os.AsyncTask;
 import android.provider.MediaStore;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import br.jm.music.utils.EmbeddedArtCache;
+import br.jm.music.utils.FolderArtIndex;
 import br.jm.music.utils.LogHelper;
 
 /**
@@ -41,6 +46,8 @@ public class MusicProvider {
     private static final String TAG = LogHelper.makeLogTag(MusicProvider.class);
 
     public static final String CUSTOM_METADATA_TRACK_SOURCE = "__SOURCE__";
+    // Last modification of the file, in seconds, as recorded by the media scanner
+    public static final String CUSTOM_METADATA_TRACK_MODIFIED = "__MODIFIED__";
 
     public static final String ALBUM_EXTRA_ARTIST = "artist";
 
@@ -50,6 +57,12 @@ public class MusicProvider {
     private final ConcurrentMap<String, MutableMediaMetadata> mMusicListById; // <musicId, music>
     private ConcurrentMap<String, List<Integer>> mAlbumListByArtist; // <artistId, albumId>
     private ConcurrentMap<Integer, Album> mAlbumListById; // <albumId, album>
+    // Music IDs in catalog order, for index based access (e.g. sampling)
+    private volatile String[] mMusicIds = new String[0];
+    // Covers of the albums the media store has no art for
+    private final EmbeddedArtCache mEmbeddedArtCache;
+    // Images next to the tracks of the albums the media store has no art for
+    private final FolderArtIndex mFolderArtIndex;
 
     enum State {
         NON_INITIALIZED, INITIALIZING, INITIALIZED
@@ -61,7 +74,9 @@ public class MusicProvider {
         void onMusicCatalogReady(boolean success);
     }
 
-    public MusicProvider() {
+    public MusicProvider(EmbeddedArtCache embeddedArtCache, FolderArtIndex folderArtIndex) {
+        mEmbeddedArtCache = embeddedArtCache;
+        mFolderArtIndex = folderArtIndex;
         mMusicListByAlbum = new ConcurrentHashMap<>();
         mAlbumListByArtist = new ConcurrentHashMap<>();
         mMusicListById = new ConcurrentHashMap<>();
@@ -85,6 +100,18 @@ public class MusicProvider {
         return musics;
     }
 
+    /**
+     * Get the IDs of all music tracks in catalog order, for index based access. The list is a
+     * snapshot: a catalog rebuild doesn't change it, so counts and positions taken from it stay
+     * consistent.
+     */
+    public List<String> getMusicIds() {
+        if (mCurrentState != State.INITIALIZED) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(mMusicIds));
+    }
+
     /**
      * Get an iterator over the list of albums
      *
@@ -208,13 +235,36 @@ public class MusicProvider {
         return mMusicListById.containsKey(musicId) ? mMusicListById.get(musicId).albumId : -1;
     }
 
-    public synchronized void updateMusic(Context context, String musicId, MediaMetadata metadata) {
-        MutableMediaMetadata track = mMusicListById.get(musicId);
-        if (track == null) {
+    /**
+     * Sets the art of an album found after the catalog was built, on the album and its tracks.
+     */
+    public synchronized void setAlbumArtwork(int albumId, String artwork) {
+        Album album = mAlbumListById.get(albumId);
+        List<MediaMetadata> tracks = mMusicListByAlbum.get(albumId);
+        if (album == null || tracks == null) {
             return;
         }
-
-        track.metadata = metadata;
+        mAlbumListById.put(albumId, new Album(albumId, album.getTitle(), album.getArtist(),
+                artwork));
+        for (int i = 0; i < tracks.size(); i++) {
+            MediaMetadata track = tracks.get(i);
+            MediaMetadata updated = new MediaMetadata.Builder(track)
+                    .putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI, artwork)
+                    .build();
+            tracks.set(i, updated);
+            String musicId = track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
+            MutableMediaMetadata mutable = mMusicListById.get(musicId);
+            if (mutable != null) {
+                mutable.metadata = updated;
+            }
+            String artist = track.getString(MediaMetadata.METADATA_KEY_ARTIST);
+            List<MediaMetadata> artistTracks = artist == null ? null
+                    : mMusicListByArtist.get(artist);
+            int index = artistTracks == null ? -1 : artistTracks.indexOf(track);
+            if (index >= 0) {
+                artistTracks.set(index, updated);
+            }
+        }
     }
 
     public synchronized void delete(String musicId, ContentResolver contentResolver) {
@@ -282,6 +332,29 @@ public class MusicProvider {
         cursor.close();
     }
 
+    /**
+     * Resolves the art of an album the media store has none for: an image in the directory of
+     * the given track of the album, otherwise the cover read from its tags, if any.
+     *
+     * @return the album, with the art found
+     */
+    private Album resolveArtwork(Album album, String source) {
+        String artwork = null;
+        int separator = source == null ? -1 : source.lastIndexOf(File.separatorChar);
+        if (separator > 0) {
+            artwork = mFolderArtIndex.find(source.substring(0, separator));
+        }
+        if (artwork == null) {
+            artwork = mEmbeddedArtCache.getArtwork(album.getId());
+        }
+        if (artwork == null) {
+            return album;
+        }
+        Album resolved = new Album(album.getId(), album.getTitle(), album.getArtist(), artwork);
+        mAlbumListById.put(album.getId(), resolved);
+        return resolved;
+    }
+
     private synchronized void retrieveMedia(ContentResolver contentResolver) {
         try {
             if (mCurrentState == State.NON_INITIALIZED) {
@@ -304,6 +377,7 @@ public class MusicProvider {
                     int titleColumn = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
                     int artistColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
                     int sourceColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DATA);
+                    int modifiedColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DATE_MODIFIED);
                     int albumColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM);
                     int albumIdColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
                     int durationColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DURATION);
@@ -312,16 +386,23 @@ public class MusicProvider {
                     ConcurrentHashMap<String, List<MediaMetadata>> newMusicListByArtist = new ConcurrentHashMap<>();
                     ConcurrentHashMap<Integer, List<MediaMetadata>> newMusicListByAlbum = new ConcurrentHashMap<>();
                     ConcurrentHashMap<String, List<Integer>> newAlbumListByArtist = new ConcurrentHashMap<>();
+                    List<String> newMusicIds = new ArrayList<>(cursor.getCount());
+                    // Albums whose art was resolved from their first track
+                    Set<Integer> resolvedAlbums = new HashSet<>();
+
+                    mFolderArtIndex.beginBuild();
 
                     do {
                         String musicId = cursor.getString(idColumn);
                         String artist = cursor.getString(artistColumn);
                         String album = cursor.getString(albumColumn);
                         int albumId = cursor.getInt(albumIdColumn);
+                        String source = cursor.getString(sourceColumn);
 
                         MediaMetadata.Builder itemBuilder = new MediaMetadata.Builder()
                                 .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, musicId)
-                                .putString(CUSTOM_METADATA_TRACK_SOURCE, cursor.getString(sourceColumn))
+                                .putString(CUSTOM_METADATA_TRACK_SOURCE, source)
+                                .putLong(CUSTOM_METADATA_TRACK_MODIFIED, cursor.getLong(modifiedColumn))
                                 .putString(MediaMetadata.METADATA_KEY_ALBUM, album)
                                 .putString(MediaMetadata.METADATA_KEY_ARTIST, artist)
                                 .putLong(MediaMetadata.METADATA_KEY_DURATION, cursor.getLong(durationColumn))
@@ -329,11 +410,15 @@ public class MusicProvider {
                                 .putLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER, cursor.getInt(trackNumColumn));
 
                         Album albumA = mAlbumListById.get(albumId);
+                        if (albumA != null && albumA.getArtwork() == null
+                                && resolvedAlbums.add(albumId))
+                            albumA = resolveArtwork(albumA, source);
                         if (albumA != null)
                             itemBuilder.putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI, albumA.getArtwork());
 
                         MediaMetadata item = itemBuilder.build();
                         mMusicListById.put(musicId, new MutableMediaMetadata(musicId, albumId, item));
+                        newMusicIds.add(musicId);
 
                         // Add this song to the respective artist
                         List<MediaMetadata> songsListByArtist = newMusicListByArtist.get(artist);
@@ -361,11 +446,13 @@ public class MusicProvider {
                             albumsList.add(albumId);
 
                     } while (cursor.moveToNext());
+                    mFolderArtIndex.endBuild();
 
                     // Update cache lists
                     mMusicListByArtist = newMusicListByArtist;
                     mMusicListByAlbum = newMusicListByAlbum;
                     mAlbumListByArtist = newAlbumListByArtist;
+                    mMusicIds = newMusicIds.toArray(new String[newMusicIds.size()]);
                 }
                 cursor.close();
 
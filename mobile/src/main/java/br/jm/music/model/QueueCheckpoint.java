@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.jm.music.model;
+
+import android.media.session.MediaSession;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import br.jm.music.utils.LogHelper;
+import br.jm.music.utils.MediaIDHelper;
+
+/**
+ * Compact binary snapshot of the playing queue, so it can survive the process being killed.
+ * Tracks are stored as plain long arrays (music ID and queue ID) plus an index into a small table
+ * of media ID categories, which keeps the file small and lets it be read back with bulk copies.
+ */
+public class QueueCheckpoint {
+
+    private static final String TAG = LogHelper.makeLogTag(QueueCheckpoint.class);
+
+    private static final int MAGIC = 0x51434B50; // "QCKP"
+    private static final int VERSION = 1;
+
+    private static final int FLAG_SHUFFLING = 1;
+    private static final int FLAG_RANDOM_QUEUE = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public final long[] trackIds;
+    public final long[] queueIds;
+    public final byte[] categoryIndexes;
+    public final String[] categories;
+    public final String title;
+    // Whether the queue is a random one, that keeps being extended as it's played
+    public final boolean randomQueue;
+    public final int currentIndex;
+    public final long position;
+    public final boolean shuffling;
+    public final int repeatMode;
+
+    // Number of items left out of the encoded queue before each index of the queue it was
+    // encoded from, or null if none were. Not persisted.
+    private final int[] mDroppedBefore;
+
+    public QueueCheckpoint(long[] trackIds, long[] queueIds, byte[] categoryIndexes,
+                           String[] categories, String title, boolean randomQueue,
+                           int currentIndex, long position, boolean shuffling, int repeatMode) {
+        this(trackIds, queueIds, categoryIndexes, categories, title, randomQueue, currentIndex,
+                position, shuffling, repeatMode, null);
+    }
+
+    private QueueCheckpoint(long[] trackIds, long[] queueIds, byte[] categoryIndexes,
+                            String[] categories, String title, boolean randomQueue,
+                            int currentIndex, long position, boolean shuffling, int repeatMode,
+                            int[] droppedBefore) {
+        this.trackIds = trackIds;
+        this.queueIds = queueIds;
+        this.categoryIndexes = categoryIndexes;
+        this.categories = categories;
+        this.title = title;
+        this.randomQueue = randomQueue;
+        this.currentIndex = currentIndex;
+        this.position = position;
+        this.shuffling = shuffling;
+        this.repeatMode = repeatMode;
+        this.mDroppedBefore = droppedBefore;
+    }
+
+    public int size() {
+        return trackIds.length;
+    }
+
+    /**
+     * Encodes the given queue. Items whose music ID is not numeric can't be represented and are
+     * left out, shifting the current index accordingly.
+     */
+    public static QueueCheckpoint fromQueue(List<MediaSession.QueueItem> queue, String title,
+                                            boolean randomQueue, int currentIndex, long position,
+                                            boolean shuffling, int repeatMode) {
+        int size = queue.size();
+        long[] trackIds = new long[size];
+        long[] queueIds = new long[size];
+        byte[] categoryIndexes = new byte[size];
+        List<String> categories = new ArrayList<>();
+        Map<String, Integer> categoryLookup = new HashMap<>();
+
+        int[] droppedBefore = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            droppedBefore[i] = i - count;
+            MediaSession.QueueItem item = queue.get(i);
+            String mediaId = item.getDescription().getMediaId();
+            String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
+            long trackId;
+            try {
+                trackId = Long.parseLong(musicId);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            String category = MediaIDHelper.createMediaID(null,
+                    MediaIDHelper.getHierarchy(mediaId));
+            Integer categoryIndex = categoryLookup.get(category);
+            if (categoryIndex == null) {
+                if (categories.size() > Byte.MAX_VALUE) {
+                    // Queues are built from a handful of sources, fall back to the first one
+                    categoryIndex = 0;
+                } else {
+                    categoryIndex = categories.size();
+                    categories.add(category);
+                    categoryLookup.put(category, categoryIndex);
+                }
+            }
+
+            trackIds[count] = trackId;
+            queueIds[count] = item.getQueueId();
+            categoryIndexes[count] = (byte) (int) categoryIndex;
+            count++;
+        }
+
+        if (count == size) {
+            droppedBefore = null;
+        } else {
+            long[] trimmedTrackIds = new long[count];
+            long[] trimmedQueueIds = new long[count];
+            byte[] trimmedCategoryIndexes = new byte[count];
+            System.arraycopy(trackIds, 0, trimmedTrackIds, 0, count);
+            System.arraycopy(queueIds, 0, trimmedQueueIds, 0, count);
+            System.arraycopy(categoryIndexes, 0, trimmedCategoryIndexes, 0, count);
+            trackIds = trimmedTrackIds;
+            queueIds = trimmedQueueIds;
+            categoryIndexes = trimmedCategoryIndexes;
+        }
+
+        return new QueueCheckpoint(trackIds, queueIds, categoryIndexes,
+                categories.toArray(new String[categories.size()]), title, randomQueue,
+                toEncodedIndex(droppedBefore, currentIndex, count), position, shuffling,
+                repeatMode, droppedBefore);
+    }
+
+    /**
+     * Returns a copy of this checkpoint with a different cursor, position and modes, sharing the
+     * (immutable) track arrays.
+     *
+     * @param currentIndex index in the queue this checkpoint was encoded from, shifted like in
+     *                     {@link #fromQueue} for the items left out
+     */
+    public QueueCheckpoint withPlaybackState(int currentIndex, long position, boolean shuffling,
+                                             int repeatMode) {
+        return new QueueCheckpoint(trackIds, queueIds, categoryIndexes, categories, title,
+                randomQueue, toEncodedIndex(mDroppedBefore, currentIndex, trackIds.length),
+                position, shuffling, repeatMode, mDroppedBefore);
+    }
+
+    /**
+     * @return the index in the encoded queue of the item at {@code index} in the original one,
+     * or of the next encoded item if that one was left out
+     */
+    private static int toEncodedIndex(int[] droppedBefore, int index, int count) {
+        if (droppedBefore != null && index >= 0) {
+            index -= droppedBefore[Math.min(index, droppedBefore.length - 1)];
+        }
+        return Math.max(0, Math.min(index, count - 1));
+    }
+
+    /**
+     * Reads a checkpoint previously written by {@link #write(File)}.
+     *
+     * @return the checkpoint, or null if the file doesn't exist or can't be parsed.
+     */
+    public static QueueCheckpoint read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            ByteBuffer buffer = ByteBuffer.allocate((int) file.length());
+            while (buffer.hasRemaining()) {
+                if (is.getChannel().read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LogHelper.w(TAG, "Ignoring queue checkpoint with unknown format");
+                return null;
+            }
+            int currentIndex = buffer.getInt();
+            long position = buffer.getLong();
+            int flags = buffer.get();
+            int repeatMode = buffer.get();
+            String title = readString(buffer);
+
+            String[] categories = new String[buffer.getShort()];
+            for (int i = 0; i < categories.length; i++) {
+                categories[i] = readString(buffer);
+            }
+
+            int size = buffer.getInt();
+            long[] trackIds = new long[size];
+            long[] queueIds = new long[size];
+            byte[] categoryIndexes = new byte[size];
+            buffer.asLongBuffer().get(trackIds);
+            buffer.position(buffer.position() + size * 8);
+            buffer.asLongBuffer().get(queueIds);
+            buffer.position(buffer.position() + size * 8);
+            buffer.get(categoryIndexes);
+
+            return new QueueCheckpoint(trackIds, queueIds, categoryIndexes, categories, title,
+                    (flags & FLAG_RANDOM_QUEUE) != 0, currentIndex, position,
+                    (flags & FLAG_SHUFFLING) != 0, repeatMode);
+        } catch (IOException | RuntimeException e) {
+            LogHelper.w(TAG, e, "Could not read queue checkpoint");
+            return null;
+        } finally {
+            try {
+                if (is != null)
+                    is.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes this checkpoint to a temporary file and renames it over the given one, so a reader
+     * never sees a partially written checkpoint.
+     */
+    public void write(File file) throws IOException {
+        byte[] titleBytes = title != null ? title.getBytes(UTF_8) : new byte[0];
+        byte[][] categoryBytes = new byte[categories.length][];
+        int stringsLength = 4 + titleBytes.length;
+        for (int i = 0; i < categories.length; i++) {
+            categoryBytes[i] = categories[i].getBytes(UTF_8);
+            stringsLength += 4 + categoryBytes[i].length;
+        }
+
+        int size = trackIds.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 4 + 8 + 1 + 1 + stringsLength + 2 + 4
+                + size * (8 + 8 + 1));
+        buffer.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(currentIndex)
+                .putLong(position)
+                .put((byte) ((shuffling ? FLAG_SHUFFLING : 0)
+                        | (randomQueue ? FLAG_RANDOM_QUEUE : 0)))
+                .put((byte) repeatMode);
+        writeString(buffer, titleBytes);
+        buffer.putShort((short) categories.length);
+        for (byte[] bytes : categoryBytes) {
+            writeString(buffer, bytes);
+        }
+        buffer.putInt(size);
+        buffer.asLongBuffer().put(trackIds);
+        buffer.position(buffer.position() + size * 8);
+        buffer.asLongBuffer().put(queueIds);
+        buffer.position(buffer.position() + size * 8);
+        buffer.put(categoryIndexes);
+        buffer.flip();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            while (buffer.hasRemaining()) {
+                os.getChannel().write(buffer);
+            }
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.jm.music.model;
+
+import android.media.session.MediaSession;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import br.jm.music.utils.LogHelper;
+
+/**
+ * Write-behind writer for {@link QueueCheckpoint}s. Callers hand over the latest queue and
+ * playback state as often as they like; the writer coalesces them and writes at most once per
+ * {@link #WRITE_DELAY} on its own thread.
+ */
+public class QueueCheckpointWriter {
+
+    private static final String TAG = LogHelper.makeLogTag(QueueCheckpointWriter.class);
+
+    // Delay between the first pending change and the actual write.
+    private static final int WRITE_DELAY = 1000;
+
+    private final File mFile;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Pending state, guarded by this
+    private List<MediaSession.QueueItem> mQueue;
+    private String mTitle;
+    private boolean mRandomQueue;
+    private boolean mQueueDirty;
+    private int mCurrentIndex;
+    private long mPosition;
+    private boolean mShuffling;
+    private int mRepeatMode;
+    private boolean mWriteScheduled;
+
+    // Last encoded queue, only touched by the writer thread
+    private QueueCheckpoint mCheckpoint;
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeNow();
+        }
+    };
+
+    public QueueCheckpointWriter(File file) {
+        mFile = file;
+        mThread = new HandlerThread("QueueCheckpointWriter", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Records a new queue. The list is copied, so the caller can keep mutating its own.
+     */
+    public synchronized void setQueue(List<MediaSession.QueueItem> queue, String title,
+                                      boolean randomQueue) {
+        mQueue = queue != null ? new ArrayList<>(queue) : new ArrayList<MediaSession.QueueItem>();
+        mTitle = title;
+        mRandomQueue = randomQueue;
+        mQueueDirty = true;
+        scheduleWrite();
+    }
+
+    /**
+     * Records the current index, position and queue modes. Cheap enough to be called on every
+     * position tick, since the queue itself is only re-encoded after {@link #setQueue}.
+     */
+    public synchronized void setPlaybackState(int currentIndex, long position, boolean shuffling,
+                                              int repeatMode) {
+        mCurrentIndex = currentIndex;
+        mPosition = position;
+        mShuffling = shuffling;
+        mRepeatMode = repeatMode;
+        scheduleWrite();
+    }
+
+    /**
+     * Writes any pending state and stops the writer thread.
+     */
+    public void close() {
+        mHandler.removeCallbacks(mWriteRunnable);
+        mHandler.post(mWriteRunnable);
+        mThread.quitSafely();
+    }
+
+    private void scheduleWrite() {
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            mHandler.postDelayed(mWriteRunnable, WRITE_DELAY);
+        }
+    }
+
+    private void writeNow() {
+        List<MediaSession.QueueItem> queue;
+        String title;
+        boolean randomQueue;
+        int currentIndex;
+        long position;
+        boolean shuffling;
+        int repeatMode;
+        synchronized (this) {
+            if (!mWriteScheduled) {
+                return;
+            }
+            mWriteScheduled = false;
+            queue = mQueueDirty ? mQueue : null;
+            mQueueDirty = false;
+            title = mTitle;
+            randomQueue = mRandomQueue;
+            currentIndex = mCurrentIndex;
+            position = mPosition;
+            shuffling = mShuffling;
+            repeatMode = mRepeatMode;
+        }
+
+        if (queue != null) {
+            mCheckpoint = QueueCheckpoint.fromQueue(queue, title, randomQueue, currentIndex,
+                    position, shuffling, repeatMode);
+        } else if (mCheckpoint != null) {
+            mCheckpoint = mCheckpoint.withPlaybackState(currentIndex, position, shuffling,
+                    repeatMode);
+        } else {
+            // Nothing to persist until we get a queue
+            return;
+        }
+
+        try {
+            mCheckpoint.write(mFile);
+            LogHelper.d(TAG, "Wrote queue checkpoint. size=", mCheckpoint.size(),
+                    " index=", currentIndex, " position=", position);
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not write queue checkpoint");
+        }
+    }
+}
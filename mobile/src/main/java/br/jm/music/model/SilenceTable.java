@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+
+import br.jm.music.utils.LogHelper;
+
+/**
+ * Leading and trailing silence of the analyzed tracks, so playback can skip it.
+ * <p/>
+ * Laid out like {@link GainTable}: parallel primitive arrays sorted by track ID, keyed by the
+ * track ID and the modification time of its file. Thread safe.
+ */
+public class SilenceTable {
+
+    private static final String TAG = LogHelper.makeLogTag(SilenceTable.class);
+
+    private static final int MAGIC = 0x534C5442; // "SLTB"
+    private static final int VERSION = 1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int mSize;
+    private long[] mTrackIds = new long[INITIAL_CAPACITY];
+    private long[] mModified = new long[INITIAL_CAPACITY];
+    // In milliseconds
+    private int[] mLeading = new int[INITIAL_CAPACITY];
+    private int[] mTrailing = new int[INITIAL_CAPACITY];
+    private int mTrimmed;
+
+    /**
+     * @return whether the table holds an up to date analysis of the given track
+     */
+    public synchronized boolean contains(long trackId, long modified) {
+        int index = Arrays.binarySearch(mTrackIds, 0, mSize, trackId);
+        return index >= 0 && mModified[index] == modified;
+    }
+
+    /**
+     * Stores the silence of a track, replacing any previous one.
+     *
+     * @param leading  silence before the sound starts, in ms
+     * @param trailing silence after the sound ends, in ms
+     */
+    public synchronized void put(long trackId, long modified, int leading, int trailing) {
+        int index = Arrays.binarySearch(mTrackIds, 0, mSize, trackId);
+        if (index < 0) {
+            index = -index - 1;
+            insertAt(index);
+            mTrackIds[index] = trackId;
+        } else if (mLeading[index] > 0 || mTrailing[index] > 0) {
+            mTrimmed--;
+        }
+        mModified[index] = modified;
+        mLeading[index] = leading;
+        mTrailing[index] = trailing;
+        if (leading > 0 || trailing > 0) {
+            mTrimmed++;
+        }
+    }
+
+    /**
+     * @return the leading silence of the track in ms, 0 when it wasn't analyzed or its file
+     * changed since
+     */
+    public synchronized int getLeading(long trackId, long modified) {
+        int index = Arrays.binarySearch(mTrackIds, 0, mSize, trackId);
+        return index < 0 || mModified[index] != modified ? 0 : mLeading[index];
+    }
+
+    /**
+     * @return the trailing silence of the track in ms, 0 when it wasn't analyzed or its file
+     * changed since
+     */
+    public synchronized int getTrailing(long trackId, long modified) {
+        int index = Arrays.binarySearch(mTrackIds, 0, mSize, trackId);
+        return index < 0 || mModified[index] != modified ? 0 : mTrailing[index];
+    }
+
+    /**
+     * Drops the entries of the tracks that are not in the catalog anymore.
+     *
+     * @return whether any entry was dropped
+     */
+    public synchronized boolean retain(Set<Long> trackIds) {
+        int kept = 0;
+        mTrimmed = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (trackIds.contains(mTrackIds[i])) {
+                mTrackIds[kept] = mTrackIds[i];
+                mModified[kept] = mModified[i];
+                mLeading[kept] = mLeading[i];
+                mTrailing[kept] = mTrailing[i];
+                if (mLeading[kept] > 0 || mTrailing[kept] > 0) {
+                    mTrimmed++;
+                }
+                kept++;
+            }
+        }
+        boolean changed = kept != mSize;
+        mSize = kept;
+        return changed;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private void insertAt(int index) {
+        if (mSize == mTrackIds.length) {
+            int capacity = mSize * 2;
+            mTrackIds = Arrays.copyOf(mTrackIds, capacity);
+            mModified = Arrays.copyOf(mModified, capacity);
+            mLeading = Arrays.copyOf(mLeading, capacity);
+            mTrailing = Arrays.copyOf(mTrailing, capacity);
+        }
+        int moved = mSize - index;
+        System.arraycopy(mTrackIds, index, mTrackIds, index + 1, moved);
+        System.arraycopy(mModified, index, mModified, index + 1, moved);
+        System.arraycopy(mLeading, index, mLeading, index + 1, moved);
+        System.arraycopy(mTrailing, index, mTrailing, index + 1, moved);
+        mSize++;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.print("  tracks=");
+        writer.print(mSize);
+        writer.print(" trimmed=");
+        writer.println(mTrimmed);
+    }
+
+    /**
+     * Reads a table previously written by {@link #write(File)}.
+     *
+     * @return the table, empty if the file doesn't exist or can't be parsed.
+     */
+    public static SilenceTable read(File file) {
+        SilenceTable table = new SilenceTable();
+        if (!file.exists()) {
+            return table;
+        }
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            ByteBuffer buffer = ByteBuffer.allocate((int) file.length());
+            while (buffer.hasRemaining()) {
+                if (is.getChannel().read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LogHelper.w(TAG, "Ignoring silence table with unknown format");
+                return table;
+            }
+            int size = buffer.getInt();
+            int capacity = Math.max(INITIAL_CAPACITY, size);
+            table.mTrackIds = new long[capacity];
+            table.mModified = new long[capacity];
+            table.mLeading = new int[capacity];
+            table.mTrailing = new int[capacity];
+            buffer.asLongBuffer().get(table.mTrackIds, 0, size);
+            buffer.position(buffer.position() + size * 8);
+            buffer.asLongBuffer().get(table.mModified, 0, size);
+            buffer.position(buffer.position() + size * 8);
+            buffer.asIntBuffer().get(table.mLeading, 0, size);
+            buffer.position(buffer.position() + size * 4);
+            buffer.asIntBuffer().get(table.mTrailing, 0, size);
+            for (int i = 0; i < size; i++) {
+                if (table.mLeading[i] > 0 || table.mTrailing[i] > 0) {
+                    table.mTrimmed++;
+                }
+            }
+            table.mSize = size;
+        } catch (IOException | RuntimeException e) {
+            LogHelper.w(TAG, e, "Could not read silence table");
+            return new SilenceTable();
+        } finally {
+            try {
+                if (is != null)
+                    is.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Writes this table to a temporary file and renames it over the given one, so a reader
+     * never sees a partially written table.
+     */
+    public void write(File file) throws IOException {
+        ByteBuffer buffer;
+        synchronized (this) {
+            int size = mSize;
+            buffer = ByteBuffer.allocate(4 + 4 + 4 + size * (8 + 8 + 4 + 4));
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(size);
+            buffer.asLongBuffer().put(mTrackIds, 0, size);
+            buffer.position(buffer.position() + size * 8);
+            buffer.asLongBuffer().put(mModified, 0, size);
+            buffer.position(buffer.position() + size * 8);
+            buffer.asIntBuffer().put(mLeading, 0, size);
+            buffer.position(buffer.position() + size * 4);
+            buffer.asIntBuffer().put(mTrailing, 0, size);
+            buffer.position(buffer.position() + size * 4);
+            buffer.flip();
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            while (buffer.hasRemaining()) {
+                os.getChannel().write(buffer);
+            }
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+}
@@ -3,11 +3,9 @@ package br.jm.music.ui;
 import android.content.res.ColorStateList;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.media.MediaDescription;
 import android.net.Uri;
 import android.os.Bundle;
-import android.support.v7.graphics.Palette;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.util.TypedValue;
@@ -21,7 +19,9 @@ import android.widget.RelativeLayout;
 import br.jm.music.MusicApplication;
 import br.jm.music.R;
 import br.jm.music.model.MusicProvider;
+import br.jm.music.utils.ArtPalette;
 import br.jm.music.utils.BitmapHelper;
+import br.jm.music.utils.ImageLoader;
 
 /**
  * Created by Jorge Augusto da Silva Moreira on 12/06/2015.
@@ -39,6 +39,16 @@ public class AlbumActivity extends MediaContainerActivity {
     private int mHeaderHeight;
     private int mActionBarHeight;
     private boolean mIsPortrait;
+    private String mArtPath;
+
+    private final ImageLoader.Callback mArtCallback = new ImageLoader.Callback() {
+        @Override
+        public void onImageLoaded(String path, Bitmap art, int[] colors) {
+            if (path.equals(mArtPath)) {
+                setArt(art, colors);
+            }
+        }
+    };
 
     @Override
     public void onCreate(final Bundle savedInstanceState) {
@@ -103,6 +113,12 @@ public class AlbumActivity extends MediaContainerActivity {
         } else initializeFromParams(savedInstanceState, getIntent());
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        MusicApplication.getInstance().getImageLoader().cancel(mArtCallback);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
@@ -173,29 +189,34 @@ public class AlbumActivity extends MediaContainerActivity {
         mSubtitleView.setText(description.getExtras().getString(MusicProvider.ALBUM_EXTRA_ARTIST));
         Uri iconUri = description.getIconUri();
         if (iconUri != null) {
-            final Bitmap art = BitmapFactory.decodeFile(iconUri.toString());
-            if (art != null)
-                new Palette.Builder(art).generate(new Palette.PaletteAsyncListener() {
-                    @Override
-                    public void onGenerated(Palette palette) {
-                        int vibrantColor = palette.getVibrantColor(getResources().getColor(R.color.default_vibrant_color));
-                        int darkVibrantColor = palette.getDarkVibrantColor(getResources().getColor(R.color.default_dark_vibrant_color));
-                        mHeaderBar.setBackgroundColor(darkVibrantColor);
-                        ColorStateList stateList = new ColorStateList(new int[][]{new int[]{}}, new int[]{vibrantColor});
-                        mFab.setBackgroundTintList(stateList);
-                        if (mIsPortrait) {
-                            mHeaderImageView.setImageBitmap(art);
-                            mHeaderFill.setBackgroundColor(darkVibrantColor);
-                        } else {
-                            getToolbar().setBackgroundColor(darkVibrantColor);
-                        }
-                    }
-                });
-            else if (mIsPortrait) mHeaderImageView.setImageBitmap(
+            mArtPath = iconUri.toString();
+            if (mIsPortrait) mHeaderImageView.setImageBitmap(
                     BitmapHelper.getDefault(getResources(), MusicApplication.DEF_ART_SIZE_NORMAL));
+            // Replaces the default art right away when in memory
+            MusicApplication.getInstance().getImageLoader().load(mArtPath,
+                    MusicApplication.getInstance().getArtSizeNormal(), true, mArtCallback);
         } else if (mIsPortrait) {
             mHeaderImageView.setImageBitmap(
                     BitmapHelper.getDefault(getResources(), MusicApplication.DEF_ART_SIZE_NORMAL));
         }
     }
+
+    private void setArt(Bitmap art, int[] colors) {
+        if (art == null) {
+            return;
+        }
+        int vibrantColor = colors != null && colors[ArtPalette.VIBRANT] != 0 ? colors[ArtPalette.VIBRANT]
+                : getResources().getColor(R.color.default_vibrant_color);
+        int darkVibrantColor = colors != null && colors[ArtPalette.DARK_VIBRANT] != 0 ? colors[ArtPalette.DARK_VIBRANT]
+                : getResources().getColor(R.color.default_dark_vibrant_color);
+        mHeaderBar.setBackgroundColor(darkVibrantColor);
+        ColorStateList stateList = new ColorStateList(new int[][]{new int[]{}}, new int[]{vibrantColor});
+        mFab.setBackgroundTintList(stateList);
+        if (mIsPortrait) {
+            mHeaderImageView.setImageBitmap(art);
+            mHeaderFill.setBackgroundColor(darkVibrantColor);
+        } else {
+            getToolbar().setBackgroundColor(darkVibrantColor);
+        }
+    }
 }
@@ -9,6 +9,7 @@ import android.media.browse.MediaBrowser;
 import android.media.session.MediaController;
 import android.media.session.PlaybackState;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
@@ -27,8 +28,7 @@ import java.util.TreeSet;
 import br.jm.music.MusicApplication;
 import br.jm.music.R;
 import br.jm.music.utils.BitmapHelper;
-import br.jm.music.utils.ColoredFileBitmapWorkerTask;
-import br.jm.music.utils.FileBitmapWorkerTask;
+import br.jm.music.utils.ImageLoader;
 import br.jm.music.utils.LogHelper;
 import br.jm.music.utils.MediaIDHelper;
 import br.jm.music.utils.StringUtils;
@@ -163,21 +163,21 @@ public class BrowseAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 Uri iconUri = description.getIconUri();
                 if (mMediaType == MEDIA_ALBUM)
                     mediaItemViewHolder.itemView.setBackgroundColor(mDefaultDarkVibrantColor);
+                ImageLoader imageLoader = MusicApplication.getInstance().getImageLoader();
                 if (iconUri != null) {
                     if (mMediaType == MEDIA_ALBUM)
-                        ColoredFileBitmapWorkerTask.loadBitmap(
-                                mActivity.getResources(),
-                                iconUri.toString(),
+                        imageLoader.load(
                                 mediaItemViewHolder.mImageView,
                                 mediaItemViewHolder.itemView,
-                                MusicApplication.getInstance().getArtSizeSmall());
-                    else
-                        FileBitmapWorkerTask.loadBitmap(
-                                mActivity.getResources(),
                                 iconUri.toString(),
+                                getArtSize());
+                    else
+                        imageLoader.load(
                                 mediaItemViewHolder.mImageView,
-                                MusicApplication.getArtSizeIcon());
+                                iconUri.toString(),
+                                getArtSize());
                 } else {
+                    imageLoader.cancel(mediaItemViewHolder.mImageView);
                     mediaItemViewHolder.mImageView.setImageBitmap(
                             BitmapHelper.getDefault(mActivity.getResources(), MusicApplication.DEF_ART_SIZE_SMALL));
                 }
@@ -269,6 +269,37 @@ public class BrowseAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
         return index;
     }
 
+    private int getArtSize() {
+        return mMediaType == MEDIA_ALBUM
+                ? MusicApplication.getInstance().getArtSizeSmall()
+                : MusicApplication.getArtSizeIcon();
+    }
+
+    /**
+     * @return the art shown by the row at this position, or null if it has none
+     */
+    private String getArtPath(int position) {
+        if (position < 0 || position >= getItemCount()
+                || (mPlaceholderHeight > 0 && position == 0)
+                || mHeadersPositions.contains(position)) {
+            return null;
+        }
+        MediaBrowser.MediaItem item = mMediaItems.get(getMediaItemIndex(position));
+        Uri iconUri = item.getDescription().getIconUri();
+        return item.isPlayable() || iconUri == null ? null : iconUri.toString();
+    }
+
+    /**
+     * @return a listener to add to the list, prefetching the art of the rows about to be shown,
+     * or null if the rows have no art
+     */
+    public RecyclerView.OnScrollListener createPrefetcher() {
+        if (mMediaType != MEDIA_ALBUM && mMediaType != MEDIA_ALBUM_SONGS) {
+            return null;
+        }
+        return new ArtPrefetcher();
+    }
+
     public RecyclerView.LayoutManager getSuitableLayoutManager(Activity activity) {
         switch (mMediaType) {
             case MEDIA_ALBUM:
@@ -315,6 +346,101 @@ public class BrowseAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
         void onMenuItemClick(MenuItem item, int position);
     }
 
+    /**
+     * Warms the art cache with the rows next in the scroll direction, as many more as the scroll
+     * is fast. Nothing is prefetched during a fling too fast for the rows to be looked at, the
+     * queued prefetches would only delay the rows it settles on.
+     */
+    private class ArtPrefetcher extends RecyclerView.OnScrollListener {
+        // Rows prefetched at rest, and the time ahead the scroll speed adds rows for
+        private static final int MIN_ROWS = 2;
+        private static final int LOOKAHEAD_MS = 500;
+        private static final int PAUSE_VELOCITY_DP = 3000;
+        // Scroll events further apart than this start a new scroll
+        private static final int MAX_EVENT_GAP_MS = 100;
+
+        private final float mPauseVelocity;
+        private long mLastEventTime;
+        // Smoothed, in px/s
+        private float mVelocity;
+        private int mDirection = 1;
+        private boolean mPaused;
+        private int mLastEdge = RecyclerView.NO_POSITION;
+        private int mLastCount;
+
+        ArtPrefetcher() {
+            mPauseVelocity = PAUSE_VELOCITY_DP * mActivity.getResources().getDisplayMetrics().density;
+        }
+
+        @Override
+        public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+            if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                mVelocity = 0;
+                mPaused = false;
+                prefetch(recyclerView);
+            }
+        }
+
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            if (dy == 0) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            long elapsed = now - mLastEventTime;
+            mLastEventTime = now;
+            int direction = dy > 0 ? 1 : -1;
+            if (elapsed <= 0 || elapsed > MAX_EVENT_GAP_MS || direction != mDirection) {
+                mDirection = direction;
+                mVelocity = 0;
+            } else {
+                float velocity = Math.abs(dy) * 1000f / elapsed;
+                mVelocity = mVelocity == 0 ? velocity : mVelocity * 0.7f + velocity * 0.3f;
+            }
+            if (mVelocity > mPauseVelocity) {
+                if (!mPaused) {
+                    mPaused = true;
+                    mLastEdge = RecyclerView.NO_POSITION;
+                    MusicApplication.getInstance().getImageLoader().cancelPrefetches();
+                }
+                return;
+            }
+            mPaused = false;
+            prefetch(recyclerView);
+        }
+
+        private void prefetch(RecyclerView recyclerView) {
+            RecyclerView.LayoutManager layoutManager = recyclerView.getLayoutManager();
+            if (!(layoutManager instanceof LinearLayoutManager)
+                    || recyclerView.getChildCount() == 0) {
+                return;
+            }
+            LinearLayoutManager linearLayoutManager = (LinearLayoutManager) layoutManager;
+            int edge = mDirection > 0 ? linearLayoutManager.findLastVisibleItemPosition()
+                    : linearLayoutManager.findFirstVisibleItemPosition();
+            if (edge == RecyclerView.NO_POSITION) {
+                return;
+            }
+            int spanCount = layoutManager instanceof GridLayoutManager
+                    ? ((GridLayoutManager) layoutManager).getSpanCount() : 1;
+            int rowHeight = Math.max(1, recyclerView.getChildAt(0).getHeight());
+            int rows = MIN_ROWS + (int) (mVelocity * LOOKAHEAD_MS / 1000 / rowHeight);
+            ImageLoader imageLoader = MusicApplication.getInstance().getImageLoader();
+            int count = Math.min(rows * spanCount, imageLoader.getPrefetchLimit(getArtSize()));
+            if (edge == mLastEdge && count <= mLastCount) {
+                return;
+            }
+            mLastEdge = edge;
+            mLastCount = count;
+            for (int i = 1; i <= count; i++) {
+                String path = getArtPath(edge + mDirection * i);
+                if (path != null) {
+                    imageLoader.prefetch(path, getArtSize());
+                }
+            }
+        }
+    }
+
     protected class PlaceHolder extends RecyclerView.ViewHolder {
 
         public PlaceHolder(final View itemView) {
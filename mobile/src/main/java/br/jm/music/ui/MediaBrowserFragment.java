@@ -35,6 +35,7 @@ import br.jm.music.MusicService;
 import br.jm.music.R;
 import br.jm.music.utils.LogHelper;
 import br.jm.music.utils.MediaIDHelper;
+import br.jm.music.utils.QueueEditHelper;
 
 import java.util.List;
 
@@ -151,10 +152,9 @@ public class MediaBrowserFragment extends Fragment {
                         MediaBrowser.MediaItem mediaItem = mBrowserAdapter.get(position);
                         switch (item.getItemId()) {
                             case R.id.add_queue:
-                                getActivity().startService(new Intent(getActivity(), MusicService.class)
-                                        .setAction(MusicService.ACTION_CMD)
-                                        .putExtra(MusicService.CMD_NAME, MusicService.CMD_ADD_TO_QUEUE)
-                                        .putExtra(MusicService.EXTRA_MEDIA_ID, mediaItem.getMediaId()));
+                                new QueueEditHelper()
+                                        .add(QueueEditHelper.POSITION_END, mediaItem.getMediaId())
+                                        .send(getActivity(), getActivity().getMediaController());
                                 break;
                             case R.id.go_album:
                                 getActivity().startService(new Intent(getActivity(), MusicService.class)
@@ -169,11 +169,9 @@ public class MediaBrowserFragment extends Fragment {
                                         .putExtra(MusicService.EXTRA_MEDIA_ID, mediaItem.getMediaId()));
                                 break;
                             case R.id.play_next:
-                                getActivity().startService(new Intent(getActivity(), MusicService.class)
-                                        .setAction(MusicService.ACTION_CMD)
-                                        .putExtra(MusicService.CMD_NAME, MusicService.CMD_ADD_TO_QUEUE)
-                                        .putExtra(MusicService.EXTRA_MEDIA_ID, mediaItem.getMediaId())
-                                        .putExtra(MusicService.EXTRA_PLAY_NEXT, true));
+                                new QueueEditHelper()
+                                        .add(QueueEditHelper.POSITION_NEXT, mediaItem.getMediaId())
+                                        .send(getActivity(), getActivity().getMediaController());
                                 break;
                             case R.id.shuffle_all:
                                 Bundle extras = new Bundle();
@@ -197,6 +195,9 @@ public class MediaBrowserFragment extends Fragment {
         recyclerView.setAdapter(mBrowserAdapter);
         if (mOnScrollListener != null)
             recyclerView.addOnScrollListener(mOnScrollListener);
+        RecyclerView.OnScrollListener prefetcher = mBrowserAdapter.createPrefetcher();
+        if (prefetcher != null)
+            recyclerView.addOnScrollListener(prefetcher);
 
         return rootView;
     }
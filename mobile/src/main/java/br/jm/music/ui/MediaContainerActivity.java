@@ -12,6 +12,7 @@ import br.jm.music.MusicService;
 import br.jm.music.R;
 import br.jm.music.utils.LogHelper;
 import br.jm.music.utils.MediaIDHelper;
+import br.jm.music.utils.QueueEditHelper;
 
 /**
  * Displays a fragment with the music tracks for the given media ID
@@ -54,17 +55,14 @@ public abstract class MediaContainerActivity extends BaseActivity {
                         .putExtra(MusicService.EXTRA_MEDIA_ID, mMediaId));
                 return true;
             case R.id.add_queue:
-                startService(new Intent(this, MusicService.class)
-                        .setAction(MusicService.ACTION_CMD)
-                        .putExtra(MusicService.CMD_NAME, MusicService.CMD_ADD_TO_QUEUE)
-                        .putExtra(MusicService.EXTRA_MEDIA_ID, mMediaId));
+                new QueueEditHelper()
+                        .add(QueueEditHelper.POSITION_END, mMediaId)
+                        .send(this, getMediaController());
                 return true;
             case R.id.play_next:
-                startService(new Intent(this, MusicService.class)
-                        .setAction(MusicService.ACTION_CMD)
-                        .putExtra(MusicService.CMD_NAME, MusicService.CMD_ADD_TO_QUEUE)
-                        .putExtra(MusicService.EXTRA_MEDIA_ID, mMediaId)
-                        .putExtra(MusicService.EXTRA_PLAY_NEXT, true));
+                new QueueEditHelper()
+                        .add(QueueEditHelper.POSITION_NEXT, mMediaId)
+                        .send(this, getMediaController());
                 return true;
             case R.id.shuffle_all:
                 Bundle extras = new Bundle();
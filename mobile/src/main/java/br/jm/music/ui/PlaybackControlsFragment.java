@@ -17,7 +17,6 @@ package br.jm.music.ui;
 
 import android.app.Fragment;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.media.MediaMetadata;
 import android.media.session.MediaController;
 import android.media.session.PlaybackState;
@@ -149,14 +148,14 @@ public class PlaybackControlsFragment extends Fragment {
             String artUrl = artUrlUri.toString();
             if (!TextUtils.equals(artUrl, mArtUrl)) {
                 mArtUrl = artUrl;
-                Bitmap art = BitmapHelper.readFromDisk(mArtUrl, MusicApplication.getArtSizeIcon());
-                if (art != null)
-                    mAlbumArt.setImageBitmap(art);
-                else
-                    mAlbumArt.setImageBitmap(BitmapHelper.getDefault(getResources(), MusicApplication.DEF_ART_SIZE_ICON));
+                MusicApplication.getInstance().getImageLoader()
+                        .load(mAlbumArt, mArtUrl, MusicApplication.getArtSizeIcon());
             }
-        } else
+        } else {
+            mArtUrl = null;
+            MusicApplication.getInstance().getImageLoader().cancel(mAlbumArt);
             mAlbumArt.setImageBitmap(BitmapHelper.getDefault(getResources(), MusicApplication.DEF_ART_SIZE_ICON));
+        }
     }
 
     public void setExtraInfo(String extraInfo) {
@@ -33,7 +33,6 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
-import android.support.v7.graphics.Palette;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -51,7 +50,9 @@ import java.util.concurrent.TimeUnit;
 import br.jm.music.MusicApplication;
 import br.jm.music.MusicService;
 import br.jm.music.R;
+import br.jm.music.utils.ArtPalette;
 import br.jm.music.utils.BitmapHelper;
+import br.jm.music.utils.ImageLoader;
 import br.jm.music.utils.LogHelper;
 import br.jm.music.utils.StringUtils;
 
@@ -85,6 +86,7 @@ public class PlayerActivity extends ActionBarCastActivity {
 
     private int mVibrantColor;
     private int mDarkVibrantColor;
+    private String mArtPath;
     private boolean mIsPortrait;
 
     private Handler mHandler = new Handler();
@@ -378,41 +380,56 @@ public class PlayerActivity extends ActionBarCastActivity {
         super.onDestroy();
         stopSeekbarUpdate();
         mExecutorService.shutdown();
+        MusicApplication.getInstance().getImageLoader().cancel(mArtCallback);
     }
 
+    private final ImageLoader.Callback mArtCallback = new ImageLoader.Callback() {
+        @Override
+        public void onImageLoaded(String path, Bitmap art, int[] colors) {
+            if (path.equals(mArtPath)) {
+                setArt(art, colors);
+            }
+        }
+    };
+
     private void fetchImageAsync(MediaDescription description) {
         Uri artUri = description.getIconUri();
         if (artUri != null) {
-            String path = artUri.toString();
-            final Bitmap art = BitmapHelper.readFromDisk(path, MusicApplication.getInstance().getArtSizeNormal());
-            if (art != null) {
-                new Palette.Builder(art).generate(new Palette.PaletteAsyncListener() {
-                    @Override
-                    public void onGenerated(Palette palette) {
-                        mVibrantColor = palette.getVibrantColor(mVibrantColor);
-                        mDarkVibrantColor = palette.getDarkVibrantColor(mDarkVibrantColor);
-                        PorterDuffColorFilter colorFilter = new PorterDuffColorFilter(mVibrantColor, PorterDuff.Mode.SRC_ATOP);
-
-                        mPlayPause.getBackground().setColorFilter(colorFilter);
-                        mBar.setBackgroundColor(mDarkVibrantColor);
-
-                        if (mShuffling)
-                            mShuffle.setColorFilter(mVibrantColor);
-                        if (mRepeatMode != MusicService.REPEAT_NONE)
-                            mRepeat.setColorFilter(mVibrantColor);
-
-                        mSeekbar.getProgressDrawable().invalidateSelf();
-                        mSeekbar.getProgressDrawable().setColorFilter(colorFilter);
-                        mSeekbar.getThumb().invalidateSelf();
-                        mSeekbar.getThumb().setColorFilter(colorFilter);
-
-                        mArt.setImageBitmap(art);
-
-                        getToolbar().setBackgroundColor(mDarkVibrantColor);
-                    }
-                });
-            } else
-                mArt.setImageBitmap(BitmapHelper.getDefault(getResources(), MusicApplication.DEF_ART_SIZE_NORMAL));
+            // The previous art stays until this one is loaded, unless it is in memory already
+            mArtPath = artUri.toString();
+            MusicApplication.getInstance().getImageLoader().load(mArtPath,
+                    MusicApplication.getInstance().getArtSizeNormal(), true, mArtCallback);
+        } else {
+            mArtPath = null;
+            MusicApplication.getInstance().getImageLoader().cancel(mArtCallback);
+            mArt.setImageBitmap(BitmapHelper.getDefault(getResources(), MusicApplication.DEF_ART_SIZE_NORMAL));
+        }
+    }
+
+    private void setArt(Bitmap art, int[] colors) {
+        if (art != null) {
+            if (colors != null && colors[ArtPalette.VIBRANT] != 0)
+                mVibrantColor = colors[ArtPalette.VIBRANT];
+            if (colors != null && colors[ArtPalette.DARK_VIBRANT] != 0)
+                mDarkVibrantColor = colors[ArtPalette.DARK_VIBRANT];
+            PorterDuffColorFilter colorFilter = new PorterDuffColorFilter(mVibrantColor, PorterDuff.Mode.SRC_ATOP);
+
+            mPlayPause.getBackground().setColorFilter(colorFilter);
+            mBar.setBackgroundColor(mDarkVibrantColor);
+
+            if (mShuffling)
+                mShuffle.setColorFilter(mVibrantColor);
+            if (mRepeatMode != MusicService.REPEAT_NONE)
+                mRepeat.setColorFilter(mVibrantColor);
+
+            mSeekbar.getProgressDrawable().invalidateSelf();
+            mSeekbar.getProgressDrawable().setColorFilter(colorFilter);
+            mSeekbar.getThumb().invalidateSelf();
+            mSeekbar.getThumb().setColorFilter(colorFilter);
+
+            mArt.setImageBitmap(art);
+
+            getToolbar().setBackgroundColor(mDarkVibrantColor);
         } else
             mArt.setImageBitmap(BitmapHelper.getDefault(getResources(), MusicApplication.DEF_ART_SIZE_NORMAL));
     }
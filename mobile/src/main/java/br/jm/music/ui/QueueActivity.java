@@ -16,6 +16,7 @@ import br.jm.music.MusicService;
 import br.jm.music.R;
 import br.jm.music.utils.LogHelper;
 import br.jm.music.utils.MediaIDHelper;
+import br.jm.music.utils.QueueEditHelper;
 
 /**
  * Created by Jorge on 11/06/2015.
@@ -89,18 +90,17 @@ public class QueueActivity extends ActionBarCastActivity implements QueueAdapter
 
             @Override
             public void onItemDismiss(int position) {
-                startService(new Intent(QueueActivity.this, MusicService.class)
-                        .setAction(MusicService.ACTION_CMD)
-                        .putExtra(MusicService.CMD_NAME, MusicService.CMD_DEL_FROM_QUEUE)
-                        .putExtra(MusicService.EXTRA_QUEUE_INDEX, position));
+                new QueueEditHelper()
+                        .remove(position, 1)
+                        .send(QueueActivity.this, getMediaController());
             }
 
             @Override
             public void onItemMove(int fromPosition, int toPosition) {
-                startService(new Intent(QueueActivity.this, MusicService.class)
-                        .setAction(MusicService.ACTION_CMD)
-                        .putExtra(MusicService.CMD_NAME, MusicService.CMD_SWAP_QUEUE)
-                        .putExtra(MusicService.EXTRA_QUEUE_INDEX, new int[]{fromPosition, toPosition}));
+                // The adapter swaps neighbours, which is moving one item by one position
+                new QueueEditHelper()
+                        .move(fromPosition, 1, toPosition)
+                        .send(QueueActivity.this, getMediaController());
             }
         });
 
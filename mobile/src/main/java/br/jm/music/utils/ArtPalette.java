@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import br.jm.music.MusicApplication;
+
+/**
+ * Picks the vibrant and dark vibrant colors of album art, the swatches the UI tints itself
+ * with, in a single pass over a sample of the pixels.
+ * <p/>
+ * Pixels go into a histogram of 15 bit colors (5 bits per channel), which also keeps the sum of
+ * their exact values. Each swatch is then the bin scoring best against its target saturation
+ * and lightness, weighted by population, as the support library Palette does, without its
+ * median cut and allocations.
+ */
+public final class ArtPalette {
+
+    public static final int VIBRANT = 0;
+    public static final int DARK_VIBRANT = 1;
+    public static final int SWATCH_COUNT = 2;
+
+    // Sampled pixels, at most. Album art is smooth enough for this to find the same colors.
+    private static final int MAX_SAMPLES = 16384;
+    private static final int BINS = 1 << 15;
+
+    // Lightness and saturation ranges and targets of the swatches, those of Palette
+    private static final float[] MIN_LIGHTNESS = {0.3f, 0f};
+    private static final float[] TARGET_LIGHTNESS = {0.5f, 0.26f};
+    private static final float[] MAX_LIGHTNESS = {0.7f, 0.45f};
+    private static final float MIN_SATURATION = 0.35f;
+    private static final float WEIGHT_SATURATION = 0.24f;
+    private static final float WEIGHT_LIGHTNESS = 0.52f;
+    private static final float WEIGHT_POPULATION = 0.24f;
+    // Bins with fewer pixels than this share of the samples are noise, not colors
+    private static final float MIN_POPULATION = 0.001f;
+
+    private ArtPalette() {
+    }
+
+    /**
+     * @return the colors of the album art at {@code path}, from the thumbnail pack, or
+     * generated from {@code art} if the pack doesn't have them yet. Not to be modified.
+     */
+    public static int[] getColors(String path, Bitmap art) {
+        int[] colors = MusicApplication.getInstance().getThumbnailPack().getColors(path);
+        return colors != null ? colors : generate(art);
+    }
+
+    /**
+     * @return the colors of the swatches, indexed by {@link #VIBRANT} and {@link #DARK_VIBRANT},
+     * 0 for a swatch the art has no color for
+     */
+    public static int[] generate(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int step = Math.max(1, (int) Math.ceil(Math.sqrt((double) width * height / MAX_SAMPLES)));
+        int[] counts = new int[BINS];
+        long[] sums = new long[BINS * 3];
+        int[] row = new int[width];
+        int samples = 0;
+        for (int y = 0; y < height; y += step) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x += step) {
+                int pixel = row[x];
+                int r = (pixel >> 16) & 0xFF;
+                int g = (pixel >> 8) & 0xFF;
+                int b = pixel & 0xFF;
+                int bin = (r >> 3) << 10 | (g >> 3) << 5 | (b >> 3);
+                counts[bin]++;
+                sums[bin * 3] += r;
+                sums[bin * 3 + 1] += g;
+                sums[bin * 3 + 2] += b;
+                samples++;
+            }
+        }
+
+        int maxCount = 0;
+        for (int count : counts) {
+            maxCount = Math.max(maxCount, count);
+        }
+        int minCount = Math.max(1, (int) (samples * MIN_POPULATION));
+        int[] colors = new int[SWATCH_COUNT];
+        float[] scores = new float[SWATCH_COUNT];
+        // Saturation and lightness, hue doesn't matter here
+        float[] sl = new float[2];
+        for (int bin = 0; bin < BINS; bin++) {
+            int count = counts[bin];
+            if (count < minCount) {
+                continue;
+            }
+            int color = Color.rgb((int) (sums[bin * 3] / count), (int) (sums[bin * 3 + 1] / count),
+                    (int) (sums[bin * 3 + 2] / count));
+            toSaturationLightness(color, sl);
+            if (sl[0] < MIN_SATURATION) {
+                continue;
+            }
+            for (int swatch = 0; swatch < SWATCH_COUNT; swatch++) {
+                if (sl[1] < MIN_LIGHTNESS[swatch] || sl[1] > MAX_LIGHTNESS[swatch]) {
+                    continue;
+                }
+                float score = WEIGHT_SATURATION * sl[0]
+                        + WEIGHT_LIGHTNESS * (1 - Math.abs(sl[1] - TARGET_LIGHTNESS[swatch]))
+                        + WEIGHT_POPULATION * count / maxCount;
+                if (score > scores[swatch]) {
+                    scores[swatch] = score;
+                    colors[swatch] = color;
+                }
+            }
+        }
+        return colors;
+    }
+
+    /**
+     * Computes the HSL saturation and lightness of a color.
+     */
+    private static void toSaturationLightness(int color, float[] sl) {
+        float r = Color.red(color) / 255f;
+        float g = Color.green(color) / 255f;
+        float b = Color.blue(color) / 255f;
+        float max = Math.max(r, Math.max(g, b));
+        float min = Math.min(r, Math.min(g, b));
+        float lightness = (max + min) / 2;
+        sl[0] = max == min ? 0 : (max - min) / (1 - Math.abs(2 * lightness - 1));
+        sl[1] = lightness;
+    }
+}
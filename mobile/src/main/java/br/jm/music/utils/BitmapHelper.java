@@ -18,9 +18,11 @@ package br.jm.music.utils;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.util.LruCache;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,6 +37,35 @@ public class BitmapHelper {
 
     // Max read limit that we allow our input stream to mark/reset.
     private static final int MAX_READ_LIMIT_PER_IMG = 1024 * 1024;
+    // Number of image files whose dimensions are remembered
+    private static final int BOUNDS_CACHE_SIZE = 512;
+
+    /**
+     * Dimensions of an image file, valid as long as the file isn't modified.
+     */
+    private static final class Bounds {
+        final int width;
+        final int height;
+        final long modified;
+
+        Bounds(int width, int height, long modified) {
+            this.width = width;
+            this.height = height;
+            this.modified = modified;
+        }
+    }
+
+    private static final LruCache<String, Bounds> sBounds = new LruCache<>(BOUNDS_CACHE_SIZE);
+
+    /**
+     * Drops the cached image bounds if the level asks for indexes to be released, they are read
+     * again on the next decode.
+     */
+    public static void trimBounds(int level) {
+        if (MemoryTrimmer.isReleasingIndexes(level)) {
+            sBounds.evictAll();
+        }
+    }
 
     public static Bitmap scaleBitmap(Bitmap src, int maxWidth, int maxHeight) {
         double scaleFactor = Math.min(
@@ -59,11 +90,28 @@ public class BitmapHelper {
         BitmapFactory.Options bmOptions = new BitmapFactory.Options();
         bmOptions.inJustDecodeBounds = true;
         BitmapFactory.decodeStream(is, null, bmOptions);
-        int actualW = bmOptions.outWidth;
-        int actualH = bmOptions.outHeight;
+        return findSampleSize(bmOptions.outWidth, bmOptions.outHeight, targetW, targetH);
+    }
 
-        // Determine how much to scale down the image
-        return Math.min(actualW / targetW, actualH / targetH);
+    /**
+     * @return the largest power of two the image can be subsampled by while still filling the
+     * target. The decoder rounds other values down to a power of two anyway.
+     */
+    public static int findSampleSize(int width, int height, int targetW, int targetH) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetW && height / (sampleSize * 2) >= targetH) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return the config to decode art of the given size with. Icons are tiny and opaque, half
+     * the memory of ARGB_8888 doesn't show on them.
+     */
+    public static Bitmap.Config getConfig(int height) {
+        return height <= MusicApplication.DEF_ART_SIZE_ICON
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
     }
 
     @SuppressWarnings("SameParameterValue")
@@ -111,27 +159,102 @@ public class BitmapHelper {
         Bitmap bitmap = lruBitmapCache.getBitmap(file.getAbsolutePath(), height);
         if (bitmap != null && !bitmap.isRecycled()) {
             return bitmap;
-        } else if (file.exists()) {
-            BufferedInputStream is = null;
+        }
+        // Album thumbnails are copied out of the pack, no decoding
+        bitmap = MusicApplication.getInstance().getThumbnailPack().get(path, height);
+        if (bitmap == null) {
+            bitmap = decodeFromDisk(path, height, getConfig(height));
+        }
+        if (bitmap != null) {
+            lruBitmapCache.putBitmap(file.getAbsolutePath(), bitmap, height);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decodes an image file so it fills a {@code height} square, bypassing the caches.
+     *
+     * @return the bitmap, or null if the file doesn't exist or isn't an image
+     */
+    public static Bitmap decodeFromDisk(String path, int height, Bitmap.Config config) {
+        File file = new File(path);
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            return decode(file, is, height, config);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
             try {
-                is = new BufferedInputStream(new FileInputStream(file));
-                is.mark(MAX_READ_LIMIT_PER_IMG);
-                int scaleFactor = findScaleFactor(height, height, is);
-                is.reset();
-                bitmap = scaleBitmap(scaleFactor, is);
-                lruBitmapCache.putBitmap(file.getAbsolutePath(), bitmap, height);
-                return bitmap;
+                if (is != null)
+                    is.close();
             } catch (IOException e) {
                 e.printStackTrace();
-            } finally {
-                try {
-                    if (is != null)
-                        is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
             }
         }
         return null;
     }
+
+    /**
+     * Decodes an image file so it fills a {@code height} square: a subsampled decode into a
+     * pooled bitmap, then a single exact scale. The file is only read once when its dimensions
+     * are known from a previous decode.
+     */
+    private static Bitmap decode(File file, FileInputStream is, int height, Bitmap.Config config)
+            throws IOException {
+        String path = file.getAbsolutePath();
+        FileDescriptor fd = is.getFD();
+        long modified = file.lastModified();
+        Bounds bounds = sBounds.get(path);
+        if (bounds == null || bounds.modified != modified) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fd, null, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            bounds = new Bounds(options.outWidth, options.outHeight, modified);
+            sBounds.put(path, bounds);
+            // Same descriptor, no need to open the file again
+            is.getChannel().position(0);
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = findSampleSize(bounds.width, bounds.height, height, height);
+        options.inPreferredConfig = config;
+        options.inMutable = true;
+        BitmapPool pool = MusicApplication.getInstance().getBitmapPool();
+        int sampledW = (bounds.width + options.inSampleSize - 1) / options.inSampleSize;
+        int sampledH = (bounds.height + options.inSampleSize - 1) / options.inSampleSize;
+        options.inBitmap = pool.get(sampledW, sampledH, options.inPreferredConfig);
+        Bitmap sampled;
+        try {
+            sampled = BitmapFactory.decodeFileDescriptor(fd, null, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all, e.g. the decoder rounded differently
+            LogHelper.w(TAG, "Could not reuse a bitmap for ", path);
+            options.inBitmap = null;
+            is.getChannel().position(0);
+            sampled = BitmapFactory.decodeFileDescriptor(fd, null, options);
+        }
+        if (sampled == null) {
+            return null;
+        }
+
+        float scale = Math.max((float) height / sampled.getWidth(),
+                (float) height / sampled.getHeight());
+        if (scale >= 1f) {
+            return sampled;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(sampled, Math.round(sampled.getWidth() * scale),
+                Math.round(sampled.getHeight() * scale), true);
+        if (scaled != sampled) {
+            // Only ever seen here, its memory goes to the next decode
+            pool.put(sampled);
+        }
+        return scaled;
+    }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.utils;
+
+import android.graphics.Bitmap;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mutable bitmaps nobody draws anymore, kept for {@link android.graphics.BitmapFactory.Options#inBitmap}
+ * so decoding an image reuses their memory instead of allocating. Bitmaps are keyed by their
+ * size and config, the least recently added going first once the pool is full. Thread safe.
+ * <p/>
+ * Only bitmaps known to be unreferenced may be put here, a bitmap still shown somewhere would
+ * get its pixels overwritten by the next decode.
+ */
+public class BitmapPool implements MemoryTrimmer.Trimmable {
+
+    private final int mMaxBytes;
+    private int mBytes;
+    private final Map<String, List<Bitmap>> mBitmaps = new HashMap<>();
+    // Keys of the pooled bitmaps, oldest first, one per bitmap
+    private final LinkedList<String> mOrder = new LinkedList<>();
+
+    private int mHits;
+    private int mMisses;
+
+    public BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return a pooled bitmap of the given size and config, taken out of the pool, or null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        String key = getKey(width, height, config);
+        List<Bitmap> bitmaps = mBitmaps.get(key);
+        if (bitmaps == null || bitmaps.isEmpty()) {
+            mMisses++;
+            return null;
+        }
+        Bitmap bitmap = bitmaps.remove(bitmaps.size() - 1);
+        mOrder.removeLastOccurrence(key);
+        mBytes -= bitmap.getAllocationByteCount();
+        mHits++;
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap over to the pool. Immutable or recycled bitmaps, and bitmaps larger than
+     * the whole pool, are dropped.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()
+                || bitmap.getAllocationByteCount() > mMaxBytes) {
+            return;
+        }
+        String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        List<Bitmap> bitmaps = mBitmaps.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayList<>();
+            mBitmaps.put(key, bitmaps);
+        }
+        bitmaps.add(bitmap);
+        mOrder.addLast(key);
+        mBytes += bitmap.getAllocationByteCount();
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Drops the oldest bitmaps until the pool holds at most {@code maxBytes}.
+     *
+     * @return the number of bytes released
+     */
+    public synchronized int trimToSize(int maxBytes) {
+        int before = mBytes;
+        while (mBytes > maxBytes && !mOrder.isEmpty()) {
+            List<Bitmap> bitmaps = mBitmaps.get(mOrder.removeFirst());
+            Bitmap bitmap = bitmaps.remove(0);
+            mBytes -= bitmap.getAllocationByteCount();
+        }
+        return before - mBytes;
+    }
+
+    @Override
+    public long trimMemory(int level) {
+        return trimToSize(MemoryTrimmer.getRetainedSize(mMaxBytes, level));
+    }
+
+    public synchronized int size() {
+        return mBytes;
+    }
+
+    private static String getKey(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + "|" + config;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.print("  bitmapPool: bytes=");
+        writer.print(mBytes);
+        writer.print("/");
+        writer.print(mMaxBytes);
+        writer.print(" count=");
+        writer.print(mOrder.size());
+        writer.print(" hits=");
+        writer.print(mHits);
+        writer.print(" misses=");
+        writer.println(mMisses);
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import br.jm.music.audio.TagPictureReader;
+import br.jm.music.model.Album;
+import br.jm.music.model.MusicProvider;
+
+/**
+ * Covers read from the tags of the tracks, for the albums the media store has no art for.
+ * <p/>
+ * Covers are scaled to the normal art size and kept as JPEG files named after the album and
+ * the last modification of its tracks, so the rest of the app loads them like any art file.
+ * An index records the result of each album, negative ones included, so the tracks of an
+ * album without a cover are only read again once one of them changes. It is laid out like
+ * {@link br.jm.music.model.GainTable}: parallel primitive arrays sorted by album ID. Thread safe.
+ */
+public class EmbeddedArtCache {
+
+    private static final String TAG = LogHelper.makeLogTag(EmbeddedArtCache.class);
+
+    private static final int MAGIC = 0x454D4152; // "EMAR"
+    private static final int VERSION = 1;
+    private static final String INDEX_FILE = "index";
+    private static final String COVER_SUFFIX = ".jpg";
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int JPEG_QUALITY = 90;
+    // Albums read between two saves of the index, so a killed process loses little work
+    private static final int SAVE_INTERVAL = 25;
+
+    private final File mDir;
+
+    private int mSize;
+    private int[] mAlbumIds = new int[INITIAL_CAPACITY];
+    // Latest modification time of the tracks of the album, in seconds
+    private long[] mModified = new long[INITIAL_CAPACITY];
+    private boolean[] mFound = new boolean[INITIAL_CAPACITY];
+
+    // Statistics, for dumpsys
+    private int mFiles;
+    private int mExtracted;
+    private long mExtractMs;
+
+    public EmbeddedArtCache(File dir) {
+        mDir = dir;
+        read();
+    }
+
+    /**
+     * @return the path of the cover read for the album, or null if it has none or wasn't read
+     * yet
+     */
+    public synchronized String getArtwork(int albumId) {
+        int index = Arrays.binarySearch(mAlbumIds, 0, mSize, albumId);
+        return index >= 0 && mFound[index] ? getFile(albumId, mModified[index]).getPath() : null;
+    }
+
+    /**
+     * Reads the covers of the albums of the catalog with no art but ours, unless they were read
+     * for the same modification time already, and sets the new ones on the catalog. Blocks, to
+     * be called on a background thread.
+     *
+     * @param size the covers are scaled to fill a square of this size
+     */
+    public void extract(MusicProvider musicProvider, int size) {
+        long start = System.currentTimeMillis();
+        Set<Integer> albumIds = new HashSet<>();
+        int read = 0;
+        int found = 0;
+        for (Integer albumId : musicProvider.getAlbums()) {
+            albumIds.add(albumId);
+            Album album = musicProvider.getAlbum(albumId);
+            if (album == null || (album.getArtwork() != null && !isCover(album.getArtwork()))) {
+                continue;
+            }
+            List<MediaMetadata> tracks = musicProvider.getMusicsByAlbum(albumId);
+            long modified = 0;
+            for (MediaMetadata track : tracks) {
+                modified = Math.max(modified,
+                        track.getLong(MusicProvider.CUSTOM_METADATA_TRACK_MODIFIED));
+            }
+            if (contains(albumId, modified)) {
+                continue;
+            }
+            File cover = getFile(albumId, modified);
+            boolean extracted = extract(tracks, cover, size);
+            put(albumId, modified, extracted);
+            if (extracted) {
+                musicProvider.setAlbumArtwork(albumId, cover.getPath());
+                found++;
+            }
+            if (++read % SAVE_INTERVAL == 0) {
+                save();
+            }
+        }
+        if (retain(albumIds) || read % SAVE_INTERVAL != 0) {
+            save();
+        }
+        deleteStaleCovers();
+        long elapsed = System.currentTimeMillis() - start;
+        synchronized (this) {
+            mExtractMs += elapsed;
+        }
+        LogHelper.d(TAG, "Read ", read, " albums, ", found, " covers found in ", elapsed, "ms");
+    }
+
+    /**
+     * Writes the cover of the first track that has one.
+     *
+     * @return whether any had one
+     */
+    private boolean extract(List<MediaMetadata> tracks, File cover, int size) {
+        for (MediaMetadata track : tracks) {
+            String source = track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE);
+            byte[] picture;
+            try {
+                picture = TagPictureReader.read(new File(source));
+            } catch (IOException | RuntimeException e) {
+                LogHelper.w(TAG, e, "Could not read the tags of ", source);
+                continue;
+            } finally {
+                synchronized (this) {
+                    mFiles++;
+                }
+            }
+            if (picture != null && writeCover(picture, cover, size)) {
+                synchronized (this) {
+                    mExtracted++;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes an embedded picture so it fills a {@code size} square and writes it as a JPEG.
+     *
+     * @return false if the picture couldn't be decoded or written
+     */
+    private static boolean writeCover(byte[] picture, File cover, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+        options.inSampleSize = BitmapHelper.findSampleSize(options.outWidth, options.outHeight,
+                size, size);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+        if (bitmap == null) {
+            return false;
+        }
+        float scale = Math.max((float) size / bitmap.getWidth(),
+                (float) size / bitmap.getHeight());
+        if (scale < 1f) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale),
+                    Math.round(bitmap.getHeight() * scale), true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+
+        mkdirs(cover.getParentFile());
+        File tmp = new File(cover.getPath() + ".tmp");
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(tmp);
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, os)) {
+                return false;
+            }
+            os.close();
+            os = null;
+            return tmp.renameTo(cover);
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Could not write ", cover);
+            return false;
+        } finally {
+            bitmap.recycle();
+            try {
+                if (os != null)
+                    os.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private boolean isCover(String artwork) {
+        return artwork.startsWith(mDir.getPath() + File.separator);
+    }
+
+    private File getFile(int albumId, long modified) {
+        return new File(mDir, albumId + "_" + modified + COVER_SUFFIX);
+    }
+
+    private synchronized boolean contains(int albumId, long modified) {
+        int index = Arrays.binarySearch(mAlbumIds, 0, mSize, albumId);
+        return index >= 0 && mModified[index] == modified;
+    }
+
+    private synchronized void put(int albumId, long modified, boolean found) {
+        int index = Arrays.binarySearch(mAlbumIds, 0, mSize, albumId);
+        if (index < 0) {
+            index = -index - 1;
+            insertAt(index);
+            mAlbumIds[index] = albumId;
+        }
+        mModified[index] = modified;
+        mFound[index] = found;
+    }
+
+    /**
+     * Drops the entries of the albums that are not in the catalog anymore.
+     *
+     * @return whether any entry was dropped
+     */
+    private synchronized boolean retain(Set<Integer> albumIds) {
+        int kept = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (albumIds.contains(mAlbumIds[i])) {
+                mAlbumIds[kept] = mAlbumIds[i];
+                mModified[kept] = mModified[i];
+                mFound[kept] = mFound[i];
+                kept++;
+            }
+        }
+        boolean changed = kept != mSize;
+        mSize = kept;
+        return changed;
+    }
+
+    private void insertAt(int index) {
+        if (mSize == mAlbumIds.length) {
+            int capacity = mSize * 2;
+            mAlbumIds = Arrays.copyOf(mAlbumIds, capacity);
+            mModified = Arrays.copyOf(mModified, capacity);
+            mFound = Arrays.copyOf(mFound, capacity);
+        }
+        int moved = mSize - index;
+        System.arraycopy(mAlbumIds, index, mAlbumIds, index + 1, moved);
+        System.arraycopy(mModified, index, mModified, index + 1, moved);
+        System.arraycopy(mFound, index, mFound, index + 1, moved);
+        mSize++;
+    }
+
+    /**
+     * Deletes the covers no entry points to, left by albums that changed or went away.
+     */
+    private void deleteStaleCovers() {
+        Set<String> names = new HashSet<>();
+        synchronized (this) {
+            for (int i = 0; i < mSize; i++) {
+                if (mFound[i]) {
+                    names.add(getFile(mAlbumIds[i], mModified[i]).getName());
+                }
+            }
+        }
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().equals(INDEX_FILE) && !names.contains(file.getName())
+                    && !file.delete()) {
+                LogHelper.w(TAG, "Could not delete ", file);
+            }
+        }
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        int found = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (mFound[i]) {
+                found++;
+            }
+        }
+        writer.println("EmbeddedArtCache");
+        writer.print("  albums=");
+        writer.print(mSize);
+        writer.print(" covers=");
+        writer.print(found);
+        writer.print(" filesRead=");
+        writer.print(mFiles);
+        writer.print(" extracted=");
+        writer.print(mExtracted);
+        writer.print(" extractMs=");
+        writer.println(mExtractMs);
+    }
+
+    private synchronized void read() {
+        File file = new File(mDir, INDEX_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            ByteBuffer buffer = ByteBuffer.allocate((int) file.length());
+            while (buffer.hasRemaining()) {
+                if (is.getChannel().read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LogHelper.w(TAG, "Ignoring embedded art index with unknown format");
+                return;
+            }
+            int size = buffer.getInt();
+            int capacity = Math.max(INITIAL_CAPACITY, size);
+            int[] albumIds = new int[capacity];
+            long[] modified = new long[capacity];
+            boolean[] found = new boolean[capacity];
+            buffer.asIntBuffer().get(albumIds, 0, size);
+            buffer.position(buffer.position() + size * 4);
+            buffer.asLongBuffer().get(modified, 0, size);
+            buffer.position(buffer.position() + size * 8);
+            for (int i = 0; i < size; i++) {
+                found[i] = buffer.get() != 0;
+            }
+            mAlbumIds = albumIds;
+            mModified = modified;
+            mFound = found;
+            mSize = size;
+        } catch (IOException | RuntimeException e) {
+            LogHelper.w(TAG, e, "Could not read embedded art index");
+        } finally {
+            try {
+                if (is != null)
+                    is.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void save() {
+        try {
+            write();
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not write embedded art index");
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and renames it over the previous one, so a reader
+     * never sees a partially written index.
+     */
+    private void write() throws IOException {
+        ByteBuffer buffer;
+        synchronized (this) {
+            int size = mSize;
+            buffer = ByteBuffer.allocate(4 + 4 + 4 + size * (4 + 8 + 1));
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(size);
+            buffer.asIntBuffer().put(mAlbumIds, 0, size);
+            buffer.position(buffer.position() + size * 4);
+            buffer.asLongBuffer().put(mModified, 0, size);
+            buffer.position(buffer.position() + size * 8);
+            for (int i = 0; i < size; i++) {
+                buffer.put((byte) (mFound[i] ? 1 : 0));
+            }
+            buffer.flip();
+        }
+
+        mkdirs(mDir);
+        File file = new File(mDir, INDEX_FILE);
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            while (buffer.hasRemaining()) {
+                os.getChannel().write(buffer);
+            }
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+
+    private static void mkdirs(File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LogHelper.w(TAG, "Could not create ", dir);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Images found next to the tracks, like cover.jpg or folder.jpg, by directory.
+ * <p/>
+ * The catalog looks up the directory of the first track of each album without art. A directory
+ * is validated against its modification time once per catalog build, which changes when files
+ * are added, removed or renamed in it, and only listed again then. Nothing is looked up per
+ * track or per bind. The index is persisted, so a launch lists only the directories that
+ * changed, and it is only read for a build, so it can be dropped from memory in between. Thread
+ * safe.
+ */
+public class FolderArtIndex implements MemoryTrimmer.Trimmable {
+
+    private static final String TAG = LogHelper.makeLogTag(FolderArtIndex.class);
+
+    private static final int MAGIC = 0x464F4C44; // "FOLD"
+    private static final int VERSION = 1;
+
+    // Usual names of album art files, by preference
+    private static final String[] NAMES = {"cover", "folder", "front", "album", "albumart"};
+    private static final String[] EXTENSIONS = {".jpg", ".jpeg", ".png"};
+
+    private static final class Entry {
+        final long modified;
+        // Name of the image in the directory, null if it has none
+        final String image;
+
+        Entry(long modified, String image) {
+            this.modified = modified;
+            this.image = image;
+        }
+    }
+
+    private final File mFile;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    // Directories validated during the current build
+    private final Set<String> mValidated = new HashSet<>();
+    private boolean mDirty;
+    // Whether mEntries holds the index file, it's read for the next build otherwise
+    private boolean mLoaded;
+    private boolean mBuilding;
+
+    // Statistics of the last build, for dumpsys
+    private int mListed;
+    private int mReused;
+
+    public FolderArtIndex(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Starts a catalog build: each directory looked up is validated again, once.
+     */
+    public synchronized void beginBuild() {
+        if (!mLoaded) {
+            read();
+            mLoaded = true;
+        }
+        mBuilding = true;
+        mValidated.clear();
+        mListed = 0;
+        mReused = 0;
+    }
+
+    /**
+     * @return the path of the album art image in the directory, or null if it has none
+     */
+    public synchronized String find(String directory) {
+        Entry entry = mEntries.get(directory);
+        if (mValidated.add(directory)) {
+            long modified = new File(directory).lastModified();
+            if (entry == null || entry.modified != modified) {
+                entry = new Entry(modified, modified == 0 ? null : findImage(directory));
+                mEntries.put(directory, entry);
+                mDirty = true;
+                mListed++;
+            } else {
+                mReused++;
+            }
+        }
+        return entry == null || entry.image == null ? null
+                : directory + File.separator + entry.image;
+    }
+
+    /**
+     * Ends a catalog build, dropping the directories it didn't look up and saving the index if
+     * anything changed.
+     */
+    public synchronized void endBuild() {
+        mBuilding = false;
+        for (Iterator<String> it = mEntries.keySet().iterator(); it.hasNext(); ) {
+            if (!mValidated.contains(it.next())) {
+                it.remove();
+                mDirty = true;
+            }
+        }
+        if (mDirty) {
+            try {
+                write();
+                mDirty = false;
+            } catch (IOException e) {
+                LogHelper.e(TAG, e, "Could not write folder art index");
+            }
+        }
+    }
+
+    /**
+     * Drops the index from memory between builds if the level asks for indexes to be released,
+     * unless it couldn't be saved.
+     *
+     * @return an estimate of the bytes released
+     */
+    @Override
+    public synchronized long trimMemory(int level) {
+        if (!MemoryTrimmer.isReleasingIndexes(level) || !mLoaded || mBuilding || mDirty) {
+            return 0;
+        }
+        long bytes = 0;
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            // Two bytes a char, plus the map entry, entry and string objects
+            bytes += 2 * entry.getKey().length() + 96;
+            if (entry.getValue().image != null) {
+                bytes += 2 * entry.getValue().image.length() + 40;
+            }
+        }
+        mEntries.clear();
+        mValidated.clear();
+        mLoaded = false;
+        return bytes;
+    }
+
+    /**
+     * @return the name of the image with the most usual name in the directory, or of its only
+     * image, or null
+     */
+    private static String findImage(String directory) {
+        String[] names = new File(directory).list();
+        if (names == null) {
+            return null;
+        }
+        String best = null;
+        int bestRank = Integer.MAX_VALUE;
+        String onlyImage = null;
+        int images = 0;
+        for (String name : names) {
+            String lowerCase = name.toLowerCase(Locale.US);
+            int dot = lowerCase.lastIndexOf('.');
+            if (dot <= 0 || !isImageExtension(lowerCase.substring(dot))) {
+                continue;
+            }
+            images++;
+            onlyImage = name;
+            String base = lowerCase.substring(0, dot);
+            for (int rank = 0; rank < NAMES.length && rank < bestRank; rank++) {
+                if (base.equals(NAMES[rank])) {
+                    best = name;
+                    bestRank = rank;
+                }
+            }
+        }
+        return best != null ? best : images == 1 ? onlyImage : null;
+    }
+
+    private static boolean isImageExtension(String extension) {
+        for (String imageExtension : EXTENSIONS) {
+            if (imageExtension.equals(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        int images = 0;
+        for (Entry entry : mEntries.values()) {
+            if (entry.image != null) {
+                images++;
+            }
+        }
+        writer.println("FolderArtIndex");
+        writer.print("  loaded=");
+        writer.print(mLoaded);
+        writer.print(" directories=");
+        writer.print(mEntries.size());
+        writer.print(" images=");
+        writer.print(images);
+        writer.print(" listed=");
+        writer.print(mListed);
+        writer.print(" reused=");
+        writer.println(mReused);
+    }
+
+    private synchronized void read() {
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                LogHelper.w(TAG, "Ignoring folder art index with unknown format");
+                return;
+            }
+            int size = is.readInt();
+            for (int i = 0; i < size; i++) {
+                String directory = is.readUTF();
+                long modified = is.readLong();
+                String image = is.readBoolean() ? is.readUTF() : null;
+                mEntries.put(directory, new Entry(modified, image));
+            }
+        } catch (IOException | RuntimeException e) {
+            LogHelper.w(TAG, e, "Could not read folder art index");
+            mEntries.clear();
+        } finally {
+            try {
+                if (is != null)
+                    is.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and renames it over the previous one, so a reader
+     * never sees a partially written index.
+     */
+    private void write() throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                os.writeUTF(entry.getKey());
+                os.writeLong(entry.getValue().modified);
+                os.writeBoolean(entry.getValue().image != null);
+                if (entry.getValue().image != null) {
+                    os.writeUTF(entry.getValue().image);
+                }
+            }
+            os.flush();
+            fos.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Could not rename " + tmp + " to " + mFile);
+        }
+    }
+}
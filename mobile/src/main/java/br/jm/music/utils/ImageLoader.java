@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.utils;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.view.View;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.jm.music.MusicApplication;
+
+/**
+ * Loads album art off the calling thread, into views or for callbacks.
+ * <p/>
+ * Requests for the same image are coalesced into a single job, whatever the number of views
+ * and callbacks waiting for it. Jobs run on a few background threads, the most recently
+ * requested first, since those are the rows on screen now, and prefetches last. A job nothing
+ * waits for anymore is dropped before it decodes anything, and so are the last jobs once too
+ * many are queued.
+ * <p/>
+ * Views are loaded on the main thread. Callbacks can be loaded on any thread with a
+ * {@link Looper}, and are called on it.
+ */
+public class ImageLoader implements MemoryTrimmer.Trimmable {
+
+    private static final String TAG = LogHelper.makeLogTag(ImageLoader.class);
+
+    private static final int THREAD_COUNT = 2;
+    // Queued jobs beyond this are for rows long scrolled away
+    private static final int MAX_QUEUED = 48;
+    // Share of the memory cache prefetched images may take, so they never evict what is shown
+    private static final int PREFETCH_CACHE_SHARE = 4;
+
+    private static final int PRIORITY_PREFETCH = 0;
+    private static final int PRIORITY_VISIBLE = 1;
+
+    /**
+     * Receives an image loaded with {@link #load(String, int, boolean, Callback)}.
+     */
+    public interface Callback {
+        /**
+         * @param bitmap the image, or null if it couldn't be loaded
+         * @param colors the {@link ArtPalette} colors of the image, if asked for and it loaded
+         */
+        void onImageLoaded(String path, Bitmap bitmap, int[] colors);
+    }
+
+    /**
+     * A view or callback waiting for an image, and the thread to deliver it on.
+     */
+    private static final class Target {
+        final WeakReference<ImageView> view;
+        // The view to tint with the colors of the image, if any
+        final WeakReference<View> tinted;
+        final Callback callback;
+        final Handler handler;
+
+        Target(ImageView view, View tinted, Handler handler) {
+            this.view = new WeakReference<>(view);
+            this.tinted = tinted == null ? null : new WeakReference<>(tinted);
+            this.callback = null;
+            this.handler = handler;
+        }
+
+        Target(Callback callback, Handler handler) {
+            this.view = null;
+            this.tinted = null;
+            this.callback = callback;
+            this.handler = handler;
+        }
+
+        Object getOwner() {
+            return callback != null ? callback : view.get();
+        }
+    }
+
+    private final class Job implements Runnable, Comparable<Job> {
+        final String path;
+        final int height;
+        final String key;
+        // Guarded by ImageLoader.this
+        final List<Target> targets = new ArrayList<>();
+        int priority;
+        long sequence;
+        boolean colors;
+        boolean cancelled;
+        boolean started;
+        // Set by the worker before the targets are posted to
+        Bitmap bitmap;
+        int[] swatches;
+
+        Job(String path, int height, String key) {
+            this.path = path;
+            this.height = height;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(Job another) {
+            if (priority != another.priority) {
+                return priority > another.priority ? -1 : 1;
+            }
+            // Newest first
+            return sequence < another.sequence ? 1 : sequence > another.sequence ? -1 : 0;
+        }
+
+        @Override
+        public void run() {
+            boolean colors;
+            synchronized (ImageLoader.this) {
+                if (cancelled) {
+                    return;
+                }
+                started = true;
+                colors = this.colors;
+            }
+            long start = System.nanoTime();
+            bitmap = BitmapHelper.readFromDisk(path, height);
+            if (bitmap != null && colors) {
+                swatches = ArtPalette.getColors(path, bitmap);
+            }
+            mDecodeNanos.addAndGet(System.nanoTime() - start);
+            mDecoded.incrementAndGet();
+
+            List<Target> targets;
+            synchronized (ImageLoader.this) {
+                if (mJobs.get(key) == this) {
+                    mJobs.remove(key);
+                }
+                targets = new ArrayList<>(this.targets);
+                this.targets.clear();
+            }
+            for (final Target target : targets) {
+                target.handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(Job.this, target);
+                    }
+                });
+            }
+        }
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    // Guarded by this: the jobs queued or running, by cache key, and the job each view or
+    // callback waits for
+    private final Map<String, Job> mJobs = new HashMap<>();
+    private final Map<Object, Job> mOwners = new WeakHashMap<>();
+    private long mSequence;
+
+    // Statistics, for dumpsys, guarded by this
+    private int mRequests;
+    private int mMemoryHits;
+    private int mCoalesced;
+    private int mPrefetched;
+    private int mCancelled;
+    private int mDropped;
+    private final AtomicInteger mDecoded = new AtomicInteger();
+    private final AtomicLong mDecodeNanos = new AtomicLong();
+
+    public ImageLoader() {
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "ImageLoader-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Shows the image at {@code path}, scaled to {@code height}, in the view: right away when
+     * it is in memory, or else the default art until it is loaded.
+     */
+    public void load(ImageView view, String path, int height) {
+        load(view, null, path, height);
+    }
+
+    /**
+     * Same as {@link #load(ImageView, String, int)}, also setting the background of
+     * {@code tinted} to the dark vibrant color of the image.
+     */
+    public void load(ImageView view, View tinted, String path, int height) {
+        cancel(view);
+        Bitmap bitmap = getCached(path, height, tinted != null);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            applyColors(tinted, MusicApplication.getInstance().getThumbnailPack().getColors(path));
+            return;
+        }
+        view.setImageBitmap(BitmapHelper.getDefault(view.getResources(), height));
+        enqueue(path, height, tinted != null, view, new Target(view, tinted, mMainHandler));
+    }
+
+    /**
+     * Gets the image at {@code path}, scaled to {@code height}, for the callback: right away
+     * when it is in memory, or else on this thread once it is loaded. Replaces the previous
+     * request of the callback, if still pending.
+     *
+     * @param colors whether the callback needs the colors of the image
+     */
+    public void load(String path, int height, boolean colors, Callback callback) {
+        cancel(callback);
+        Bitmap bitmap = getCached(path, height, colors);
+        if (bitmap != null) {
+            callback.onImageLoaded(path, bitmap, colors
+                    ? MusicApplication.getInstance().getThumbnailPack().getColors(path) : null);
+            return;
+        }
+        enqueue(path, height, colors, callback, new Target(callback, new Handler()));
+    }
+
+    /**
+     * @return the image if it is in memory, and so are its colors when asked for
+     */
+    private Bitmap getCached(String path, int height, boolean colors) {
+        Bitmap bitmap = MusicApplication.getInstance().getLruBitmapCache()
+                .getBitmap(new File(path).getAbsolutePath(), height);
+        boolean hit = bitmap != null && !bitmap.isRecycled() && (!colors
+                || MusicApplication.getInstance().getThumbnailPack().getColors(path) != null);
+        synchronized (this) {
+            mRequests++;
+            if (hit) {
+                mMemoryHits++;
+            }
+        }
+        return hit ? bitmap : null;
+    }
+
+    private synchronized void enqueue(String path, int height, boolean colors, Object owner,
+                                      Target target) {
+        String key = path + "|" + height;
+        Job job = mJobs.get(key);
+        if (job != null) {
+            mCoalesced++;
+            // Asked for again, or prefetched, it is on screen now. A worker may have taken it
+            // off the queue without having started it yet, then it is left alone.
+            if (!job.started && mExecutor.remove(job)) {
+                job.priority = PRIORITY_VISIBLE;
+                job.sequence = ++mSequence;
+                mExecutor.execute(job);
+            }
+        } else {
+            job = new Job(path, height, key);
+            job.priority = PRIORITY_VISIBLE;
+            job.sequence = ++mSequence;
+            mJobs.put(key, job);
+            mExecutor.execute(job);
+            trimQueue();
+        }
+        job.colors |= colors;
+        job.targets.add(target);
+        mOwners.put(owner, job);
+    }
+
+    /**
+     * Loads the image at {@code path}, scaled to {@code height}, into the memory cache, behind
+     * the images views and callbacks wait for.
+     */
+    public void prefetch(String path, int height) {
+        Bitmap bitmap = MusicApplication.getInstance().getLruBitmapCache()
+                .getBitmap(new File(path).getAbsolutePath(), height);
+        if (bitmap != null && !bitmap.isRecycled()) {
+            return;
+        }
+        String key = path + "|" + height;
+        synchronized (this) {
+            if (mJobs.containsKey(key)) {
+                return;
+            }
+            Job job = new Job(path, height, key);
+            job.priority = PRIORITY_PREFETCH;
+            job.sequence = ++mSequence;
+            mJobs.put(key, job);
+            mExecutor.execute(job);
+            mPrefetched++;
+            trimQueue();
+        }
+    }
+
+    /**
+     * Drops the prefetches not started yet, e.g. when the rows they were for are flung past.
+     */
+    public synchronized void cancelPrefetches() {
+        for (Runnable runnable : mExecutor.getQueue()) {
+            Job job = (Job) runnable;
+            if (job.priority == PRIORITY_PREFETCH && mExecutor.remove(job)) {
+                job.cancelled = true;
+                mJobs.remove(job.key);
+                mCancelled++;
+            }
+        }
+    }
+
+    /**
+     * Drops the prefetches not started yet once memory runs low, what they would decode would
+     * only push the images on screen out of the memory cache.
+     */
+    @Override
+    public long trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cancelPrefetches();
+        }
+        return 0;
+    }
+
+    /**
+     * @return how many images of this size may be prefetched at once, within a share of the
+     * memory cache
+     */
+    public int getPrefetchLimit(int height) {
+        long budget = MusicApplication.getInstance().getLruBitmapCache().maxSize() * 1024L
+                / PREFETCH_CACHE_SHARE;
+        int bytesPerPixel = BitmapHelper.getConfig(height) == Bitmap.Config.RGB_565 ? 2 : 4;
+        return (int) (budget / Math.max(1, (long) height * height * bytesPerPixel));
+    }
+
+    /**
+     * Stops loading an image into the view.
+     */
+    public void cancel(ImageView view) {
+        cancelOwner(view);
+    }
+
+    /**
+     * Stops loading an image for the callback. It won't be called for it anymore.
+     */
+    public void cancel(Callback callback) {
+        cancelOwner(callback);
+    }
+
+    /**
+     * Detaches the owner from its job. The job is dropped if nothing else waits for it and it
+     * hasn't started decoding yet.
+     */
+    private synchronized void cancelOwner(Object owner) {
+        Job job = mOwners.remove(owner);
+        if (job == null) {
+            return;
+        }
+        for (Iterator<Target> it = job.targets.iterator(); it.hasNext(); ) {
+            Object targetOwner = it.next().getOwner();
+            if (targetOwner == null || targetOwner == owner) {
+                it.remove();
+            }
+        }
+        if (job.targets.isEmpty() && !job.started) {
+            job.cancelled = true;
+            mExecutor.remove(job);
+            mJobs.remove(job.key);
+            mCancelled++;
+        }
+    }
+
+    /**
+     * Drops the last queued jobs, prefetches and then the oldest, beyond {@link #MAX_QUEUED}.
+     * Their views keep the default art until bound again, their callbacks are never called.
+     */
+    private void trimQueue() {
+        while (mExecutor.getQueue().size() > MAX_QUEUED) {
+            Job last = null;
+            for (Runnable runnable : mExecutor.getQueue()) {
+                Job job = (Job) runnable;
+                if (last == null || job.compareTo(last) > 0) {
+                    last = job;
+                }
+            }
+            if (last == null || !mExecutor.remove(last)) {
+                return;
+            }
+            last.cancelled = true;
+            mJobs.remove(last.key);
+            for (Target target : last.targets) {
+                Object owner = target.getOwner();
+                if (owner != null) {
+                    mOwners.remove(owner);
+                }
+            }
+            mDropped++;
+        }
+    }
+
+    /**
+     * Hands the result of a job to a target, on its thread, unless it has moved on since.
+     */
+    private void deliver(Job job, Target target) {
+        Object owner = target.getOwner();
+        synchronized (this) {
+            if (owner == null || mOwners.get(owner) != job) {
+                return;
+            }
+            mOwners.remove(owner);
+        }
+        if (target.callback != null) {
+            target.callback.onImageLoaded(job.path, job.bitmap, job.swatches);
+        } else if (job.bitmap != null) {
+            ((ImageView) owner).setImageBitmap(job.bitmap);
+            applyColors(target.tinted == null ? null : target.tinted.get(), job.swatches);
+        }
+    }
+
+    private static void applyColors(View tinted, int[] colors) {
+        if (tinted != null && colors != null && colors[ArtPalette.DARK_VIBRANT] != 0) {
+            tinted.setBackgroundColor(colors[ArtPalette.DARK_VIBRANT]);
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        int decoded = mDecoded.get();
+        writer.println("ImageLoader");
+        synchronized (this) {
+            writer.print("  queued=");
+            writer.print(mExecutor.getQueue().size());
+            writer.print(" active=");
+            writer.print(mExecutor.getActiveCount());
+            writer.print(" requests=");
+            writer.print(mRequests);
+            writer.print(" hitRatio=");
+            writer.print(mRequests == 0 ? 0 : mMemoryHits * 100 / mRequests);
+            writer.print("% coalesced=");
+            writer.print(mCoalesced);
+            writer.print(" prefetched=");
+            writer.print(mPrefetched);
+            writer.print(" cancelled=");
+            writer.print(mCancelled);
+            writer.print(" dropped=");
+            writer.println(mDropped);
+        }
+        writer.print("  decoded=");
+        writer.print(decoded);
+        writer.print(" avgDecodeMs=");
+        writer.println(decoded == 0 ? 0 : mDecodeNanos.get() / 1000000f / decoded);
+    }
+}
@@ -7,7 +7,8 @@ import android.util.LruCache;
  * Used for image caching
  * Created by Jorge on 08/07/2014.
  */
-public class LruBitmapCache extends LruCache<String, Bitmap> {
+public class LruBitmapCache extends LruCache<String, Bitmap>
+        implements MemoryTrimmer.Trimmable {
 
     public LruBitmapCache() {
         this(getDefaultLruCacheSize());
@@ -33,4 +34,11 @@ public class LruBitmapCache extends LruCache<String, Bitmap> {
     public void putBitmap(String key, Bitmap bitmap, int height){
         put(key + "|" + height, bitmap);
     }
+
+    @Override
+    public long trimMemory(int level) {
+        int before = size();
+        trimToSize(MemoryTrimmer.getRetainedSize(maxSize(), level));
+        return (before - size()) * 1024L;
+    }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.utils;
+
+import android.content.ComponentCallbacks2;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hands the memory trim levels of {@link ComponentCallbacks2#onTrimMemory} over to the caches
+ * registered with it, and keeps how much each level reclaimed for dumpsys. Thread safe, the
+ * caches are trimmed on the calling thread, outside of its lock.
+ */
+public class MemoryTrimmer {
+
+    private static final String TAG = LogHelper.makeLogTag(MemoryTrimmer.class);
+
+    public interface Trimmable {
+        /**
+         * Releases what can be rebuilt, as much as the level asks for.
+         *
+         * @return the number of bytes released, or 0 if not known, e.g. when released later on
+         * another thread or outside of the Java heap
+         */
+        long trimMemory(int level);
+    }
+
+    // Guarded by this, by name in registration order
+    private final Map<String, Trimmable> mTrimmables = new LinkedHashMap<>();
+    // Level -> {trims, bytes}
+    private final Map<Integer, long[]> mLevels = new TreeMap<>();
+    private final Map<String, Long> mReclaimed = new LinkedHashMap<>();
+
+    public synchronized void register(String name, Trimmable trimmable) {
+        mTrimmables.put(name, trimmable);
+    }
+
+    public synchronized void unregister(String name) {
+        mTrimmables.remove(name);
+    }
+
+    public void trimMemory(int level) {
+        List<Map.Entry<String, Trimmable>> trimmables;
+        synchronized (this) {
+            trimmables = new ArrayList<>(mTrimmables.entrySet());
+        }
+        long total = 0;
+        for (Map.Entry<String, Trimmable> entry : trimmables) {
+            long bytes = entry.getValue().trimMemory(level);
+            total += bytes;
+            synchronized (this) {
+                Long reclaimed = mReclaimed.get(entry.getKey());
+                mReclaimed.put(entry.getKey(), reclaimed == null ? bytes : reclaimed + bytes);
+            }
+        }
+        synchronized (this) {
+            long[] stats = mLevels.get(level);
+            if (stats == null) {
+                stats = new long[2];
+                mLevels.put(level, stats);
+            }
+            stats[0]++;
+            stats[1] += total;
+        }
+        LogHelper.d(TAG, "Trimmed ", total, " bytes at ", getLevelName(level));
+    }
+
+    /**
+     * @return how much of a cache of the given size to keep at the level: all of it while
+     * running normally, half once the UI is hidden or memory runs low, a quarter once in the
+     * background or memory is critical, and nothing once the process is about to be killed
+     */
+    public static int getRetainedSize(int size, int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return size / 4;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return size / 2;
+        }
+        return size;
+    }
+
+    /**
+     * @return whether the level asks for what is only needed now and then, like indexes that
+     * can be read again, to be dropped
+     */
+    public static boolean isReleasingIndexes(int level) {
+        return level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+    }
+
+    private static String getLevelName(int level) {
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+                return "runningModerate";
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+                return "runningLow";
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+                return "runningCritical";
+            case ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN:
+                return "uiHidden";
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                return "background";
+            case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+                return "moderate";
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+                return "complete";
+            default:
+                return String.valueOf(level);
+        }
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("MemoryTrimmer");
+        writer.print("  registered=");
+        writer.println(mTrimmables.keySet());
+        for (Map.Entry<Integer, long[]> entry : mLevels.entrySet()) {
+            writer.print("  ");
+            writer.print(getLevelName(entry.getKey()));
+            writer.print(": trims=");
+            writer.print(entry.getValue()[0]);
+            writer.print(" reclaimedBytes=");
+            writer.println(entry.getValue()[1]);
+        }
+        for (Map.Entry<String, Long> entry : mReclaimed.entrySet()) {
+            writer.print("  ");
+            writer.print(entry.getKey());
+            writer.print(": reclaimedBytes=");
+            writer.println(entry.getValue());
+        }
+    }
+}
@@ -25,6 +25,14 @@ public class PrefUtils {
 
     private static final String PREF_NAMESPACE = "br.jm.music.utils.PREFS";
     private static final String FTU_SHOWN = "ftu_shown";
+    private static final String RANDOM_QUEUE_SIZE = "random_queue_size";
+    private static final String RANDOM_QUEUE_EXTEND = "random_queue_extend";
+    private static final String GAPLESS_PLAYBACK = "gapless_playback";
+    private static final String CROSSFADE_DURATION = "crossfade_duration";
+    private static final String PLAYBACK_ENGINE = "playback_engine";
+    private static final String NORMALIZATION_MODE = "normalization_mode";
+    private static final String PLAYBACK_SPEED = "playback_speed";
+    private static final String TRIM_SILENCE = "trim_silence";
 
     public static SharedPreferences getPreferences(Context context) {
         return context.getSharedPreferences(PREF_NAMESPACE, Context.MODE_PRIVATE);
@@ -38,4 +46,87 @@ public class PrefUtils {
     public static boolean isFtuShown(Context context) {
         return getPreferences(context).getBoolean(FTU_SHOWN, false);
     }
+
+    public static void setRandomQueueSize(Context context, int size) {
+        getPreferences(context).edit().putInt(RANDOM_QUEUE_SIZE, size).apply();
+    }
+
+    public static int getRandomQueueSize(Context context) {
+        return getPreferences(context).getInt(RANDOM_QUEUE_SIZE,
+                QueueHelper.DEFAULT_RANDOM_QUEUE_SIZE);
+    }
+
+    public static void setRandomQueueExtending(Context context, boolean extending) {
+        getPreferences(context).edit().putBoolean(RANDOM_QUEUE_EXTEND, extending).apply();
+    }
+
+    /**
+     * @return whether random queues should grow by themselves when playback nears their end
+     */
+    public static boolean isRandomQueueExtending(Context context) {
+        return getPreferences(context).getBoolean(RANDOM_QUEUE_EXTEND, true);
+    }
+
+    public static void setGaplessPlayback(Context context, boolean gapless) {
+        getPreferences(context).edit().putBoolean(GAPLESS_PLAYBACK, gapless).apply();
+    }
+
+    /**
+     * @return whether the next track should be prepared ahead and chained to the current one
+     */
+    public static boolean isGaplessPlayback(Context context) {
+        return getPreferences(context).getBoolean(GAPLESS_PLAYBACK, true);
+    }
+
+    public static void setCrossfadeDuration(Context context, int duration) {
+        getPreferences(context).edit().putInt(CROSSFADE_DURATION, duration).apply();
+    }
+
+    /**
+     * @return how long tracks fade into each other, in ms, 0 meaning no crossfade
+     */
+    public static int getCrossfadeDuration(Context context) {
+        return getPreferences(context).getInt(CROSSFADE_DURATION, 0);
+    }
+
+    public static void setPlaybackEngine(Context context, int engine) {
+        getPreferences(context).edit().putInt(PLAYBACK_ENGINE, engine).apply();
+    }
+
+    /**
+     * @return one of the MusicService ENGINE_ values, MediaPlayer by default
+     */
+    public static int getPlaybackEngine(Context context) {
+        return getPreferences(context).getInt(PLAYBACK_ENGINE, 0);
+    }
+
+    public static void setNormalizationMode(Context context, int mode) {
+        getPreferences(context).edit().putInt(NORMALIZATION_MODE, mode).apply();
+    }
+
+    /**
+     * @return one of the MusicService NORMALIZATION_ values, per track normalization by default
+     */
+    public static int getNormalizationMode(Context context) {
+        return getPreferences(context).getInt(NORMALIZATION_MODE, 1);
+    }
+
+    public static void setPlaybackSpeed(Context context, float speed) {
+        getPreferences(context).edit().putFloat(PLAYBACK_SPEED, speed).apply();
+    }
+
+    /**
+     * @return the tempo of playback, 1 being the original one
+     */
+    public static float getPlaybackSpeed(Context context) {
+        return getPreferences(context).getFloat(PLAYBACK_SPEED, 1f);
+    }
+
+    public static void setSilenceTrimming(Context context, boolean trimming) {
+        getPreferences(context).edit().putBoolean(TRIM_SILENCE, trimming).apply();
+    }
+
+    public static boolean isSilenceTrimming(Context context) {
+        return getPreferences(context).getBoolean(TRIM_SILENCE, true);
+    }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.utils;
+
+import android.content.Context;
+import android.content.Intent;
+import android.media.session.MediaController;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+
+import br.jm.music.MusicService;
+
+/**
+ * Builds batches of queue edits, sent to the {@link br.jm.music.MusicService} as a single
+ * {@link #ACTION_EDIT_QUEUE} custom action. The service applies a whole batch at once and
+ * publishes the resulting queue only once, or rejects it entirely if any edit is invalid.
+ * <p/>
+ * Edits are applied in order, each one seeing the queue as left by the previous one.
+ */
+public class QueueEditHelper {
+
+    private static final String TAG = LogHelper.makeLogTag(QueueEditHelper.class);
+
+    // Custom session action carrying a batch of queue edits
+    public static final String ACTION_EDIT_QUEUE = "br.jm.music.ACTION_EDIT_QUEUE";
+    // Key of the edit list in the custom action extras
+    public static final String EXTRA_EDITS = "br.jm.music.EXTRA_QUEUE_EDITS";
+
+    // Keys of a single edit
+    public static final String KEY_TYPE = "type";
+    public static final String KEY_MEDIA_IDS = "media_ids";
+    public static final String KEY_POSITION = "position";
+    public static final String KEY_FROM = "from";
+    public static final String KEY_COUNT = "count";
+    public static final String KEY_TO = "to";
+
+    // Inserts the tracks of the media IDs (songs, albums or artists) at a position
+    public static final int TYPE_ADD = 1;
+    // Moves a range of items so that its first item ends up at a given index
+    public static final int TYPE_MOVE = 2;
+    // Removes a range of items
+    public static final int TYPE_REMOVE = 3;
+
+    // Positions for TYPE_ADD besides a plain index
+    public static final int POSITION_END = -1;
+    public static final int POSITION_NEXT = -2;
+
+    private final ArrayList<Bundle> mEdits = new ArrayList<>();
+
+    /**
+     * Adds the tracks of the given media IDs at {@code position}, which is either an index in
+     * the queue, {@link #POSITION_END} or {@link #POSITION_NEXT} (right after the current track).
+     */
+    public QueueEditHelper add(int position, String... mediaIds) {
+        Bundle edit = new Bundle();
+        edit.putInt(KEY_TYPE, TYPE_ADD);
+        edit.putInt(KEY_POSITION, position);
+        edit.putStringArray(KEY_MEDIA_IDS, mediaIds);
+        mEdits.add(edit);
+        return this;
+    }
+
+    /**
+     * Moves the {@code count} items starting at {@code from} so that the first of them ends up
+     * at index {@code to} of the resulting queue.
+     */
+    public QueueEditHelper move(int from, int count, int to) {
+        Bundle edit = new Bundle();
+        edit.putInt(KEY_TYPE, TYPE_MOVE);
+        edit.putInt(KEY_FROM, from);
+        edit.putInt(KEY_COUNT, count);
+        edit.putInt(KEY_TO, to);
+        mEdits.add(edit);
+        return this;
+    }
+
+    /**
+     * Removes the {@code count} items starting at {@code from}.
+     */
+    public QueueEditHelper remove(int from, int count) {
+        Bundle edit = new Bundle();
+        edit.putInt(KEY_TYPE, TYPE_REMOVE);
+        edit.putInt(KEY_FROM, from);
+        edit.putInt(KEY_COUNT, count);
+        mEdits.add(edit);
+        return this;
+    }
+
+    public Bundle build() {
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(EXTRA_EDITS, mEdits);
+        return extras;
+    }
+
+    /**
+     * Sends the batch through the given controller, or starts the service with it as a
+     * {@link MusicService#CMD_EDIT_QUEUE} command if there is no controller yet, e.g. before the
+     * media browser connects. Does nothing if the batch is empty.
+     */
+    public void send(Context context, MediaController controller) {
+        if (mEdits.isEmpty()) {
+            return;
+        }
+        if (controller != null) {
+            controller.getTransportControls().sendCustomAction(ACTION_EDIT_QUEUE, build());
+        } else {
+            LogHelper.d(TAG, "No media controller, sending ", mEdits.size(),
+                    " queue edits to the service");
+            context.startService(new Intent(context, MusicService.class)
+                    .setAction(MusicService.ACTION_CMD)
+                    .putExtra(MusicService.CMD_NAME, MusicService.CMD_EDIT_QUEUE)
+                    .putExtras(build()));
+        }
+    }
+}
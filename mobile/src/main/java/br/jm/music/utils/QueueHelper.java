@@ -16,16 +16,20 @@
 
 package br.jm.music.utils;
 
+import android.media.MediaDescription;
 import android.media.MediaMetadata;
 import android.media.session.MediaSession;
 import android.os.Bundle;
 
 import br.jm.music.VoiceSearchParams;
 import br.jm.music.model.MusicProvider;
+import br.jm.music.model.QueueCheckpoint;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
 
 import static br.jm.music.utils.MediaIDHelper.MEDIA_ID_BY_ALBUM;
@@ -40,6 +44,11 @@ public class QueueHelper {
 
     private static final String TAG = LogHelper.makeLogTag(QueueHelper.class);
 
+    // Default number of tracks in a random queue
+    public static final int DEFAULT_RANDOM_QUEUE_SIZE = 50;
+    // Category value of the media IDs in a random queue
+    private static final String RANDOM_QUEUE_CATEGORY = "random";
+
     public static List<MediaSession.QueueItem> getPlayingQueue(String mediaId,
                                                                MusicProvider musicProvider) {
         return getPlayingQueue(mediaId, musicProvider, false, 0);
@@ -206,23 +215,118 @@ public class QueueHelper {
     }
 
     /**
-     * Create a random queue.
+     * Rebuilds a queue saved with {@link QueueCheckpoint}. Tracks that are no longer in the
+     * catalog are dropped.
+     *
+     * @param checkpoint the saved queue
+     * @param musicProvider the provider used for fetching music, must be initialized.
+     * @return list containing {@link MediaSession.QueueItem}'s
+     */
+    public static List<MediaSession.QueueItem> getQueueFromCheckpoint(QueueCheckpoint checkpoint,
+                                                                      MusicProvider musicProvider) {
+        int size = checkpoint.size();
+        List<MediaSession.QueueItem> queue = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            MediaMetadata track = musicProvider.getMusic(String.valueOf(checkpoint.trackIds[i]));
+            if (track == null) {
+                continue;
+            }
+            String hierarchyAwareMediaID = checkpoint.categories[checkpoint.categoryIndexes[i]]
+                    + MediaIDHelper.createMediaID(track.getDescription().getMediaId());
+            queue.add(createQueueItem(track, hierarchyAwareMediaID, checkpoint.queueIds[i]));
+        }
+        LogHelper.d(TAG, "getQueueFromCheckpoint: restored ", queue.size(), " of ", size);
+        return queue;
+    }
+
+    /**
+     * Creates a queue item for the track under the given media ID. Copies the track's
+     * description instead of rebuilding the whole metadata, which is a lot cheaper for big queues.
+     */
+    private static MediaSession.QueueItem createQueueItem(MediaMetadata track, String mediaId,
+                                                          long queueId) {
+        MediaDescription description = track.getDescription();
+        MediaDescription queueDescription = new MediaDescription.Builder()
+                .setMediaId(mediaId)
+                .setTitle(description.getTitle())
+                .setSubtitle(description.getSubtitle())
+                .setDescription(description.getDescription())
+                .setIconBitmap(description.getIconBitmap())
+                .setIconUri(description.getIconUri())
+                .setExtras(description.getExtras())
+                .build();
+        return new MediaSession.QueueItem(queueDescription, queueId);
+    }
+
+    /**
+     * Create a random queue with {@link #DEFAULT_RANDOM_QUEUE_SIZE} tracks.
      *
      * @param musicProvider the provider used for fetching music.
      * @return list containing {@link MediaSession.QueueItem}'s
      */
     public static List<MediaSession.QueueItem> getRandomQueue(MusicProvider musicProvider) {
-        List<MediaMetadata> result = new ArrayList<>();
-
-        for (MediaMetadata track : musicProvider.getMusics())
-            if (ThreadLocalRandom.current().nextBoolean())
-                result.add(track);
+        return getRandomQueue(musicProvider, DEFAULT_RANDOM_QUEUE_SIZE, 0, null);
+    }
 
-        LogHelper.d(TAG, "getRandomQueue: result.size=", result.size());
+    /**
+     * Create a random queue of at most maxSize tracks. The tracks are picked by reservoir
+     * sampling over the catalog positions, so only the picked tracks are ever materialized.
+     *
+     * @param musicProvider the provider used for fetching music.
+     * @param maxSize maximum number of tracks in the queue
+     * @param initialQueueId queue ID of the first item, so the queue can be appended to another
+     * @param excludedMusicIds music IDs that must not be picked (e.g. already queued), or null
+     * @return list containing {@link MediaSession.QueueItem}'s
+     */
+    public static List<MediaSession.QueueItem> getRandomQueue(MusicProvider musicProvider,
+                                                              int maxSize, int initialQueueId,
+                                                              Set<String> excludedMusicIds) {
+        Random random = ThreadLocalRandom.current();
+        // One snapshot for both the count and the picks, the catalog may be rebuilt meanwhile
+        List<String> musicIds = musicProvider.getMusicIds();
+        int count = musicIds.size();
+        int[] reservoir = new int[Math.max(0, Math.min(maxSize, count))];
+        int candidates = 0;
+        for (int i = 0; i < count; i++) {
+            if (excludedMusicIds != null
+                    && excludedMusicIds.contains(musicIds.get(i))) {
+                continue;
+            }
+            if (candidates < reservoir.length) {
+                reservoir[candidates] = i;
+            } else {
+                int slot = random.nextInt(candidates + 1);
+                if (slot < reservoir.length) {
+                    reservoir[slot] = i;
+                }
+            }
+            candidates++;
+        }
+        int size = Math.min(candidates, reservoir.length);
+
+        // The reservoir holds a uniform sample, but not in a uniform order
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = reservoir[i];
+            reservoir[i] = reservoir[j];
+            reservoir[j] = tmp;
+        }
 
-        Collections.shuffle(result);
+        List<MediaSession.QueueItem> queue = new ArrayList<>(size);
+        int queueId = initialQueueId;
+        for (int i = 0; i < size; i++) {
+            String musicId = musicIds.get(reservoir[i]);
+            MediaMetadata track = musicProvider.getMusic(musicId);
+            if (track == null) {
+                continue;
+            }
+            String hierarchyAwareMediaID = MediaIDHelper.createMediaID(musicId,
+                    MEDIA_ID_MUSICS_BY_SEARCH, RANDOM_QUEUE_CATEGORY);
+            queue.add(createQueueItem(track, hierarchyAwareMediaID, queueId++));
+        }
 
-        return convertToQueue(result, MEDIA_ID_MUSICS_BY_SEARCH, "random");
+        LogHelper.d(TAG, "getRandomQueue: result.size=", queue.size(), " of ", count);
+        return queue;
     }
 
     public static boolean isIndexPlayable(int index, List<MediaSession.QueueItem> queue) {
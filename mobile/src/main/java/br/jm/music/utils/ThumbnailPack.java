@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.utils;
+
+import android.graphics.Bitmap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import br.jm.music.MusicApplication;
+import br.jm.music.model.Album;
+import br.jm.music.model.MusicProvider;
+
+/**
+ * The art of every album pre-scaled to the grid tile and icon sizes, as raw RGB_565 pixels in
+ * a single file read through a memory mapping. Showing a thumbnail is a copy of its pixels into
+ * a bitmap instead of decoding the full size art. The {@link ArtPalette} colors of each album are
+ * kept along, so tinting the UI after the art doesn't need a bitmap at all.
+ * <p/>
+ * The pixels are followed by an index of the albums, each with the path and modification time of
+ * its art and the offsets of its two thumbnails, and the file ends with the offset of the index.
+ * It is rebuilt in the background when the catalog changes, only decoding the albums whose art
+ * changed. Thread safe.
+ */
+public class ThumbnailPack {
+
+    private static final String TAG = LogHelper.makeLogTag(ThumbnailPack.class);
+
+    private static final int MAGIC = 0x5448504B; // "THPK"
+    private static final int VERSION = 2;
+    private static final int BYTES_PER_PIXEL = 2;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The thumbnails of an album, dimensions and offsets of the small one then of the icon.
+     */
+    private static final class Entry {
+        final int albumId;
+        final String path;
+        final long modified;
+        final int[] widths = new int[2];
+        final int[] heights = new int[2];
+        final int[] offsets = new int[2];
+        final int[] colors = new int[ArtPalette.SWATCH_COUNT];
+
+        Entry(int albumId, String path, long modified) {
+            this.albumId = albumId;
+            this.path = path;
+            this.modified = modified;
+        }
+    }
+
+    private final File mFile;
+
+    // Guarded by this, replaced together when the pack is rebuilt
+    private ByteBuffer mBuffer;
+    private Map<String, Entry> mEntries = new HashMap<>();
+    private int mSmallSize;
+    private int mIconSize;
+    private int mHits;
+    private int mMisses;
+    private int mBuilt;
+
+    public ThumbnailPack(File file) {
+        mFile = file;
+        try {
+            load();
+        } catch (IOException | RuntimeException e) {
+            LogHelper.w(TAG, e, "Could not read the thumbnail pack");
+        }
+    }
+
+    /**
+     * @return a copy of the thumbnail of the album art at {@code path}, if the pack has one of
+     * this size, or null
+     */
+    public Bitmap get(String path, int size) {
+        ByteBuffer buffer;
+        Entry entry;
+        int index;
+        synchronized (this) {
+            entry = mEntries.get(path);
+            index = size == mSmallSize ? 0 : size == mIconSize ? 1 : -1;
+            if (entry == null || index < 0) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+            buffer = mBuffer.duplicate();
+        }
+        int width = entry.widths[index];
+        int height = entry.heights[index];
+        buffer.limit(entry.offsets[index] + width * height * BYTES_PER_PIXEL);
+        buffer.position(entry.offsets[index]);
+        Bitmap bitmap = MusicApplication.getInstance().getBitmapPool()
+                .get(width, height, Bitmap.Config.RGB_565);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        }
+        bitmap.copyPixelsFromBuffer(buffer);
+        return bitmap;
+    }
+
+    /**
+     * @return the {@link ArtPalette} colors of the album art at {@code path}, 0 for the swatches
+     * it has no color for, or null if the pack doesn't have them. Not to be modified.
+     */
+    public synchronized int[] getColors(String path) {
+        Entry entry = mEntries.get(path);
+        return entry == null ? null : entry.colors;
+    }
+
+    /**
+     * Brings the pack up to date with the albums of the catalog, on the calling thread. Albums
+     * whose art didn't change keep their thumbnails, the others are decoded.
+     */
+    public void update(MusicProvider musicProvider, int smallSize, int iconSize) {
+        Map<String, Entry> entries;
+        ByteBuffer buffer;
+        boolean changed;
+        synchronized (this) {
+            entries = mEntries;
+            buffer = mBuffer;
+            changed = smallSize != mSmallSize || iconSize != mIconSize;
+        }
+        if (changed) {
+            // The tiles changed size, or there is no pack yet: every thumbnail is stale
+            entries = new HashMap<>();
+        }
+
+        List<Entry> albums = new ArrayList<>();
+        int kept = 0;
+        for (int albumId : musicProvider.getAlbums()) {
+            Album album = musicProvider.getAlbum(albumId);
+            String path = album == null ? null : album.getArtwork();
+            if (path == null) {
+                continue;
+            }
+            // 0 when the file doesn't exist
+            long modified = new File(path).lastModified();
+            if (modified == 0) {
+                continue;
+            }
+            Entry old = entries.get(path);
+            if (old != null && old.modified == modified) {
+                kept++;
+            } else {
+                changed = true;
+            }
+            albums.add(new Entry(albumId, path, modified));
+        }
+        if (!changed && kept == entries.size()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            int built = write(tmp, albums, entries, buffer, smallSize, iconSize);
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Could not rename " + tmp + " to " + mFile);
+            }
+            // Mappings of the previous file stay valid for the readers still using them
+            load();
+            synchronized (this) {
+                mBuilt += built;
+            }
+            LogHelper.d(TAG, "Packed ", albums.size(), " albums, ", built, " decoded in ",
+                    System.currentTimeMillis() - start, "ms");
+        } catch (IOException | RuntimeException e) {
+            LogHelper.w(TAG, e, "Could not write the thumbnail pack");
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Writes the thumbnails, copying them from the previous pack when they are up to date, then
+     * the index, then the offset of the index. Decoded thumbnails are written as they come, so
+     * only one album is held in memory.
+     *
+     * @return the number of albums whose art was decoded
+     */
+    private static int write(File file, List<Entry> albums, Map<String, Entry> oldEntries,
+                             ByteBuffer oldBuffer, int smallSize, int iconSize)
+            throws IOException {
+        BitmapPool pool = MusicApplication.getInstance().getBitmapPool();
+        byte[] scratch = new byte[COPY_BUFFER_SIZE];
+        List<Entry> written = new ArrayList<>(albums.size());
+        int built = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(smallSize);
+            out.writeInt(iconSize);
+            for (Entry entry : albums) {
+                Entry old = oldEntries.get(entry.path);
+                if (old != null && old.modified == entry.modified) {
+                    System.arraycopy(old.colors, 0, entry.colors, 0, entry.colors.length);
+                    for (int i = 0; i < 2; i++) {
+                        entry.widths[i] = old.widths[i];
+                        entry.heights[i] = old.heights[i];
+                        entry.offsets[i] = out.size();
+                        ByteBuffer pixels = oldBuffer.duplicate();
+                        pixels.limit(old.offsets[i] + getLength(old, i));
+                        pixels.position(old.offsets[i]);
+                        copy(pixels, out, scratch);
+                    }
+                    written.add(entry);
+                    continue;
+                }
+
+                Bitmap small = toRgb565(BitmapHelper.decodeFromDisk(entry.path, smallSize,
+                        Bitmap.Config.RGB_565), pool);
+                if (small == null) {
+                    continue;
+                }
+                int[] colors = ArtPalette.generate(small);
+                System.arraycopy(colors, 0, entry.colors, 0, colors.length);
+                float scale = Math.min(1f, Math.max((float) iconSize / small.getWidth(),
+                        (float) iconSize / small.getHeight()));
+                Bitmap icon = Bitmap.createScaledBitmap(small, Math.round(small.getWidth() * scale),
+                        Math.round(small.getHeight() * scale), true);
+                if (icon != small) {
+                    icon = toRgb565(icon, pool);
+                    if (icon == null) {
+                        pool.put(small);
+                        continue;
+                    }
+                }
+                Bitmap[] bitmaps = {small, icon};
+                for (int i = 0; i < 2; i++) {
+                    entry.widths[i] = bitmaps[i].getWidth();
+                    entry.heights[i] = bitmaps[i].getHeight();
+                    entry.offsets[i] = out.size();
+                    ByteBuffer pixels = ByteBuffer.allocate(getLength(entry, i));
+                    bitmaps[i].copyPixelsToBuffer(pixels);
+                    pixels.flip();
+                    copy(pixels, out, scratch);
+                }
+                // Never shown, their memory goes to the next decode
+                pool.put(small);
+                if (icon != small) {
+                    pool.put(icon);
+                }
+                written.add(entry);
+                built++;
+            }
+
+            int indexOffset = out.size();
+            out.writeInt(written.size());
+            for (Entry entry : written) {
+                out.writeInt(entry.albumId);
+                out.writeUTF(entry.path);
+                out.writeLong(entry.modified);
+                for (int i = 0; i < 2; i++) {
+                    out.writeInt(entry.widths[i]);
+                    out.writeInt(entry.heights[i]);
+                    out.writeInt(entry.offsets[i]);
+                }
+                for (int color : entry.colors) {
+                    out.writeInt(color);
+                }
+            }
+            out.writeInt(indexOffset);
+        } finally {
+            out.close();
+        }
+        return built;
+    }
+
+    /**
+     * @return the bitmap in the RGB_565 config of the pack, or null if it is null or can't be
+     * converted. The decoder only takes the requested config as a hint, and returns ARGB_8888 for
+     * images with alpha, such as PNG covers; those are copied and handed over to the pool.
+     */
+    private static Bitmap toRgb565(Bitmap bitmap, BitmapPool pool) {
+        if (bitmap == null || bitmap.getConfig() == Bitmap.Config.RGB_565) {
+            return bitmap;
+        }
+        // Mutable, so the pool can take the copy once it is written
+        Bitmap converted = bitmap.copy(Bitmap.Config.RGB_565, true);
+        pool.put(bitmap);
+        return converted;
+    }
+
+    private static int getLength(Entry entry, int index) {
+        return entry.widths[index] * entry.heights[index] * BYTES_PER_PIXEL;
+    }
+
+    private static void copy(ByteBuffer src, DataOutputStream out, byte[] scratch)
+            throws IOException {
+        while (src.hasRemaining()) {
+            int length = Math.min(scratch.length, src.remaining());
+            src.get(scratch, 0, length);
+            out.write(scratch, 0, length);
+        }
+    }
+
+    private void load() throws IOException {
+        if (!mFile.exists()) {
+            return;
+        }
+        RandomAccessFile in = new RandomAccessFile(mFile, "r");
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LogHelper.w(TAG, "Ignoring thumbnail pack with unknown format");
+                return;
+            }
+            int smallSize = in.readInt();
+            int iconSize = in.readInt();
+            in.seek(in.length() - 4);
+            in.seek(in.readInt());
+            int count = in.readInt();
+            Map<String, Entry> entries = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readInt(), in.readUTF(), in.readLong());
+                for (int j = 0; j < 2; j++) {
+                    entry.widths[j] = in.readInt();
+                    entry.heights[j] = in.readInt();
+                    entry.offsets[j] = in.readInt();
+                }
+                for (int j = 0; j < entry.colors.length; j++) {
+                    entry.colors[j] = in.readInt();
+                }
+                entries.put(entry.path, entry);
+            }
+            MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    in.length());
+            synchronized (this) {
+                mBuffer = buffer;
+                mEntries = entries;
+                mSmallSize = smallSize;
+                mIconSize = iconSize;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.print("ThumbnailPack: albums=");
+        writer.print(mEntries.size());
+        writer.print(" sizes=");
+        writer.print(mSmallSize);
+        writer.print("/");
+        writer.print(mIconSize);
+        writer.print(" bytes=");
+        writer.print(mBuffer == null ? 0 : mBuffer.capacity());
+        writer.print(" hits=");
+        writer.print(mHits);
+        writer.print(" misses=");
+        writer.print(mMisses);
+        writer.print(" decoded=");
+        writer.println(mBuilt);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DspChainTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BLOCK = 1024;
+    private static final float[] GRAPHIC_FREQUENCIES = {
+            31, 62, 125, 250, 500, 1000, 2000, 4000, 8000, 16000};
+
+    private static DspChain newChain(int channels) {
+        DspChain chain = new DspChain();
+        chain.configure(SAMPLE_RATE, channels);
+        return chain;
+    }
+
+    /**
+     * Interleaved stereo sine, with the given amplitude on the left channel only.
+     */
+    private static float[] sine(float frequency, float amplitude, int frames) {
+        float[] data = new float[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            data[i * 2] = (float) (amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        return data;
+    }
+
+    private static void processInBlocks(DspChain chain, float[] data) {
+        for (int offset = 0; offset < data.length; offset += BLOCK) {
+            chain.process(data, offset, Math.min(BLOCK, data.length - offset));
+        }
+    }
+
+    /**
+     * @return the gain in dB of the chain for a sine at the given frequency, once settled.
+     */
+    private static double measureGainDb(DspChain chain, float frequency) {
+        float[] data = sine(frequency, 0.1f, SAMPLE_RATE);
+        processInBlocks(chain, data);
+        // Skips the first half second, where the filters settle
+        double peak = 0;
+        for (int i = data.length / 2; i < data.length; i += 2) {
+            peak = Math.max(peak, Math.abs(data[i]));
+        }
+        return 20 * Math.log10(peak / 0.1);
+    }
+
+    @Test
+    public void flatChainIsIdentity() {
+        DspChain chain = newChain(2);
+        chain.setGraphicEq(GRAPHIC_FREQUENCIES, new float[GRAPHIC_FREQUENCIES.length]);
+        float[] data = sine(440, 0.5f, SAMPLE_RATE / 10);
+        float[] expected = data.clone();
+        processInBlocks(chain, data);
+        // The limiter doesn't touch samples below its threshold
+        assertArrayEquals(expected, data, 0f);
+    }
+
+    @Test
+    public void disabledChainIsIdentity() {
+        DspChain chain = newChain(2);
+        chain.setGraphicEq(GRAPHIC_FREQUENCIES, new float[]{6, 6, 6, 6, 6, 6, 6, 6, 6, 6});
+        chain.setPreamp(-6);
+        chain.setEnabled(false);
+        float[] data = sine(440, 1f, SAMPLE_RATE / 10);
+        float[] expected = data.clone();
+        processInBlocks(chain, data);
+        assertArrayEquals(expected, data, 0f);
+    }
+
+    @Test
+    public void peakingBandsHitGainAtCentre() {
+        for (float frequency : new float[]{100, 1000, 10000}) {
+            for (float gain : new float[]{-12, -6, 3, 9}) {
+                DspChain chain = newChain(2);
+                chain.setLimiterEnabled(false);
+                chain.setBand(0, DspChain.TYPE_PEAKING, frequency, gain, DspChain.DEFAULT_Q);
+                chain.setBandCount(1);
+                assertEquals(frequency + " Hz", gain, measureGainDb(chain, frequency), 0.1);
+            }
+        }
+    }
+
+    @Test
+    public void peakingBandLeavesDistantFrequencies() {
+        DspChain chain = newChain(2);
+        chain.setLimiterEnabled(false);
+        chain.setBand(0, DspChain.TYPE_PEAKING, 1000, 9, DspChain.DEFAULT_Q);
+        chain.setBandCount(1);
+        assertEquals(0, measureGainDb(chain, 50), 0.2);
+        chain.configure(SAMPLE_RATE, 2);
+        assertEquals(0, measureGainDb(chain, 15000), 0.2);
+    }
+
+    @Test
+    public void shelvesFollowTheExtremes() {
+        DspChain chain = newChain(2);
+        chain.setLimiterEnabled(false);
+        chain.setBand(0, DspChain.TYPE_LOW_SHELF, 200, 6, DspChain.DEFAULT_Q);
+        chain.setBand(1, DspChain.TYPE_HIGH_SHELF, 4000, -6, DspChain.DEFAULT_Q);
+        chain.setBandCount(2);
+        assertEquals(6, measureGainDb(chain, 30), 0.2);
+        chain.configure(SAMPLE_RATE, 2);
+        assertEquals(0, measureGainDb(chain, 1000), 0.3);
+        chain.configure(SAMPLE_RATE, 2);
+        assertEquals(-6, measureGainDb(chain, 18000), 0.2);
+    }
+
+    @Test
+    public void graphicEqHitsGainsAtBandCentres() {
+        // Neighbouring bands overlap, so alternate bands are flat to measure each one alone
+        float[] gains = {0, 6, 0, -6, 0, 6, 0, -6, 0, 0};
+        DspChain chain = newChain(2);
+        chain.setLimiterEnabled(false);
+        chain.setGraphicEq(GRAPHIC_FREQUENCIES, gains);
+        for (int band = 1; band < gains.length - 1; band += 2) {
+            chain.configure(SAMPLE_RATE, 2);
+            assertEquals(GRAPHIC_FREQUENCIES[band] + " Hz", gains[band],
+                    measureGainDb(chain, GRAPHIC_FREQUENCIES[band]), 1);
+        }
+    }
+
+    @Test
+    public void channelsAreFilteredSeparately() {
+        DspChain chain = newChain(2);
+        chain.setGraphicEq(GRAPHIC_FREQUENCIES, new float[]{3, -3, 3, -3, 3, -3, 3, -3, 3, -3});
+        float[] data = sine(1000, 0.5f, SAMPLE_RATE / 10);
+        processInBlocks(chain, data);
+        for (int i = 1; i < data.length; i += 2) {
+            assertEquals(0, data[i], 0f);
+        }
+    }
+
+    @Test
+    public void preampScalesSignal() {
+        DspChain chain = newChain(2);
+        chain.setLimiterEnabled(false);
+        chain.setPreamp(-6);
+        assertEquals(-6, measureGainDb(chain, 1000), 0.01);
+    }
+
+    @Test
+    public void limiterKeepsSamplesBelowFullScale() {
+        DspChain chain = newChain(2);
+        chain.setPreamp(12);
+        float[] data = sine(100, 1f, SAMPLE_RATE / 10);
+        processInBlocks(chain, data);
+        for (float sample : data) {
+            assertTrue(Math.abs(sample) < 1f);
+        }
+    }
+
+    @Test
+    public void shortBlocksMatchFloatBlocks() {
+        DspChain floatChain = newChain(2);
+        DspChain shortChain = newChain(2);
+        floatChain.setGraphicEq(GRAPHIC_FREQUENCIES, new float[]{4, 2, 0, -2, -4, 0, 2, 4, 0, -2});
+        shortChain.setGraphicEq(GRAPHIC_FREQUENCIES, new float[]{4, 2, 0, -2, -4, 0, 2, 4, 0, -2});
+        float[] floats = sine(440, 0.5f, SAMPLE_RATE / 10);
+        short[] shorts = new short[floats.length];
+        for (int i = 0; i < floats.length; i++) {
+            floats[i] = Math.round(floats[i] * 32768f) / 32768f;
+            shorts[i] = (short) Math.round(floats[i] * 32768f);
+        }
+        processInBlocks(floatChain, floats);
+        for (int offset = 0; offset < shorts.length; offset += BLOCK) {
+            shortChain.process(shorts, offset, Math.min(BLOCK, shorts.length - offset));
+        }
+        for (int i = 0; i < floats.length; i++) {
+            assertEquals(floats[i] * 32768f, shorts[i], 1f);
+        }
+    }
+
+    @Test
+    public void processingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        DspChain chain = newChain(2);
+        chain.setGraphicEq(GRAPHIC_FREQUENCIES, new float[]{4, 2, 0, -2, -4, 0, 2, 4, 0, -2});
+        chain.setPreamp(-3);
+        float[] floats = sine(440, 0.5f, BLOCK / 2);
+        short[] shorts = new short[BLOCK];
+        // Warms up the code and grows the 16 bit scratch buffer
+        for (int i = 0; i < 20000; i++) {
+            chain.process(floats, 0, floats.length);
+            chain.process(shorts, 0, shorts.length);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 1000; i++) {
+            chain.process(floats, 0, floats.length);
+            chain.process(shorts, 0, shorts.length);
+            if (i % 100 == 0) {
+                // Recomputing coefficients doesn't allocate either
+                chain.setPreamp(-3 - i / 100);
+            }
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertEquals(0, allocated);
+    }
+
+    @Test
+    public void silenceFlushesFilterState() {
+        DspChain chain = newChain(2);
+        chain.setGraphicEq(GRAPHIC_FREQUENCIES, new float[]{6, 6, 6, 6, 6, 6, 6, 6, 6, 6});
+        float[] data = sine(31, 0.5f, SAMPLE_RATE);
+        processInBlocks(chain, data);
+        // The tails of the filters decay towards the denormal range, then are flushed
+        float[] silence = new float[SAMPLE_RATE * 2];
+        processInBlocks(chain, silence);
+        float[] block = new float[BLOCK];
+        chain.process(block, 0, BLOCK);
+        for (float sample : block) {
+            assertEquals(0, Float.floatToRawIntBits(sample));
+        }
+    }
+
+    @Test
+    public void silenceAfterSignalIsNotSlower() {
+        DspChain chain = newChain(2);
+        chain.setGraphicEq(GRAPHIC_FREQUENCIES, new float[]{6, 6, 6, 6, 6, 6, 6, 6, 6, 6});
+        float[] loud = sine(31, 0.5f, SAMPLE_RATE * 3);
+        // Long enough for the slowest filter tail to decay through the denormal range
+        float[] silence = new float[loud.length];
+        long loudNanos = Long.MAX_VALUE;
+        long silenceNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            loudNanos = Math.min(loudNanos, timeProcessing(chain, loud));
+            silenceNanos = Math.min(silenceNanos, timeProcessing(chain, silence));
+        }
+        assertTrue("signal " + loudNanos + " ns, silence " + silenceNanos + " ns",
+                silenceNanos < loudNanos * 2);
+    }
+
+    @Test
+    public void tenBandsRunFasterThanRealTime() {
+        DspChain chain = newChain(2);
+        chain.setGraphicEq(GRAPHIC_FREQUENCIES, new float[]{4, 2, 1, -2, -4, 1, 2, 4, 1, -2});
+        chain.setPreamp(-4);
+        float[] second = sine(440, 0.5f, SAMPLE_RATE);
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 10; round++) {
+            best = Math.min(best, timeProcessing(chain, second));
+        }
+        // A second of 48 kHz stereo, with room for a slow device and a slow test machine
+        assertTrue(best + " ns per second of audio", best < 50000000);
+    }
+
+    private static long timeProcessing(DspChain chain, float[] data) {
+        // The chain keeps its filter state, so silence follows the tail of the last signal
+        float[] copy = data.clone();
+        long start = System.nanoTime();
+        processInBlocks(chain, copy);
+        return System.nanoTime() - start;
+    }
+}
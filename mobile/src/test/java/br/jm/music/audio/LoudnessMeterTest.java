@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the meter against the reference signals of EBU Tech 3341, generated on the fly: 1 kHz
+ * sines whose levels are peak levels, the same on every channel.
+ */
+public class LoudnessMeterTest {
+
+    // Tolerance of the EBU Tech 3341 integrated loudness cases
+    private static final double TOLERANCE = 0.1;
+    private static final int BLOCK = 4096;
+
+    /**
+     * Feeds a 1 kHz sine at the given peak level on every channel, in blocks of {@link #BLOCK}.
+     */
+    private static void feedSine(LoudnessMeter meter, int sampleRate, int channels,
+                                 double levelDb, double seconds) {
+        double amplitude = Math.pow(10, levelDb / 20);
+        int frames = (int) (seconds * sampleRate);
+        float[] block = new float[BLOCK * channels];
+        for (int start = 0; start < frames; start += BLOCK) {
+            int count = Math.min(BLOCK, frames - start);
+            for (int i = 0; i < count; i++) {
+                float sample = (float) (amplitude
+                        * Math.sin(2 * Math.PI * 1000 * (start + i) / sampleRate));
+                for (int channel = 0; channel < channels; channel++) {
+                    block[i * channels + channel] = sample;
+                }
+            }
+            meter.process(block, 0, count * channels);
+        }
+    }
+
+    private static LoudnessMeter newMeter(int sampleRate, int channels) {
+        LoudnessMeter meter = new LoudnessMeter();
+        meter.configure(sampleRate, channels);
+        return meter;
+    }
+
+    @Test
+    public void referenceSineAtMinus23() {
+        // Tech 3341 case 1
+        LoudnessMeter meter = newMeter(48000, 2);
+        feedSine(meter, 48000, 2, -23, 20);
+        assertEquals(-23, meter.getIntegratedLoudness(), TOLERANCE);
+        assertEquals(20000000, meter.getDurationUs());
+    }
+
+    @Test
+    public void referenceSineAtMinus33() {
+        // Tech 3341 case 2
+        LoudnessMeter meter = newMeter(48000, 2);
+        feedSine(meter, 48000, 2, -33, 20);
+        assertEquals(-33, meter.getIntegratedLoudness(), TOLERANCE);
+    }
+
+    @Test
+    public void relativeGateDropsQuietParts() {
+        // Tech 3341 case 3
+        LoudnessMeter meter = newMeter(48000, 2);
+        feedSine(meter, 48000, 2, -36, 10);
+        feedSine(meter, 48000, 2, -23, 60);
+        feedSine(meter, 48000, 2, -36, 10);
+        assertEquals(-23, meter.getIntegratedLoudness(), TOLERANCE);
+    }
+
+    @Test
+    public void absoluteGateDropsNearSilence() {
+        // Tech 3341 case 4
+        LoudnessMeter meter = newMeter(48000, 2);
+        feedSine(meter, 48000, 2, -72, 10);
+        feedSine(meter, 48000, 2, -36, 10);
+        feedSine(meter, 48000, 2, -23, 60);
+        feedSine(meter, 48000, 2, -36, 10);
+        feedSine(meter, 48000, 2, -72, 10);
+        assertEquals(-23, meter.getIntegratedLoudness(), TOLERANCE);
+    }
+
+    @Test
+    public void averagesLoudParts() {
+        // Tech 3341 case 5
+        LoudnessMeter meter = newMeter(48000, 2);
+        feedSine(meter, 48000, 2, -26, 20);
+        feedSine(meter, 48000, 2, -20, 20.1);
+        feedSine(meter, 48000, 2, -26, 20);
+        assertEquals(-23, meter.getIntegratedLoudness(), TOLERANCE);
+    }
+
+    @Test
+    public void weightingDoesNotDependOnSampleRate() {
+        for (int sampleRate : new int[]{22050, 32000, 44100, 96000}) {
+            LoudnessMeter meter = newMeter(sampleRate, 2);
+            feedSine(meter, sampleRate, 2, -23, 10);
+            assertEquals(sampleRate + " Hz", -23, meter.getIntegratedLoudness(), TOLERANCE);
+        }
+    }
+
+    @Test
+    public void monoCountsOneChannel() {
+        LoudnessMeter meter = newMeter(48000, 1);
+        feedSine(meter, 48000, 1, -20, 10);
+        assertEquals(-23, meter.getIntegratedLoudness(), TOLERANCE);
+    }
+
+    @Test
+    public void reconfigureDiscardsPreviousStream() {
+        LoudnessMeter meter = newMeter(48000, 2);
+        feedSine(meter, 48000, 2, -10, 10);
+        meter.configure(44100, 2);
+        feedSine(meter, 44100, 2, -30, 10);
+        assertEquals(-30, meter.getIntegratedLoudness(), TOLERANCE);
+        assertEquals(Math.pow(10, -30 / 20.0), meter.getTruePeak(), 0.001);
+    }
+
+    @Test
+    public void silenceHasNoLoudness() {
+        LoudnessMeter meter = newMeter(48000, 2);
+        meter.process(new float[48000 * 2 * 5], 0, 48000 * 2 * 5);
+        assertEquals(LoudnessMeter.SILENCE, meter.getIntegratedLoudness(), 0);
+        assertEquals(0, meter.getGatedBlockCount());
+        assertEquals(0, meter.getTruePeak(), 0);
+    }
+
+    @Test
+    public void countsGatingBlocks() {
+        LoudnessMeter meter = newMeter(48000, 2);
+        feedSine(meter, 48000, 2, -23, 2);
+        // 400 ms blocks every 100 ms
+        assertEquals(17, meter.getGatedBlockCount());
+    }
+
+    @Test
+    public void truePeakFindsInterSamplePeaks() {
+        // A quarter of the rate, shifted so that every sample lands 3 dB below the real peak
+        LoudnessMeter meter = newMeter(48000, 2);
+        float[] data = new float[48000 * 2];
+        float samplePeak = 0;
+        for (int i = 0; i < data.length / 2; i++) {
+            float sample = (float) (0.5 * Math.sin(Math.PI / 2 * i + Math.PI / 4));
+            data[i * 2] = sample;
+            data[i * 2 + 1] = sample;
+            samplePeak = Math.max(samplePeak, Math.abs(sample));
+        }
+        meter.process(data, 0, data.length);
+        assertEquals(0.354, samplePeak, 0.001);
+        // Tech 3341 allows -0.4 to +0.2 dB for true peak
+        double truePeakDb = 20 * Math.log10(meter.getTruePeak() / 0.5);
+        assertTrue("true peak " + truePeakDb + " dB", truePeakDb > -0.4 && truePeakDb < 0.2);
+    }
+
+    @Test
+    public void truePeakMatchesLowFrequencyPeak() {
+        LoudnessMeter meter = newMeter(48000, 2);
+        feedSine(meter, 48000, 2, -6, 1);
+        assertEquals(Math.pow(10, -6 / 20.0), meter.getTruePeak(), 0.001);
+    }
+
+    @Test
+    public void measuresFasterThanRealTime() {
+        LoudnessMeter meter = new LoudnessMeter();
+        float[] second = new float[48000 * 2];
+        for (int i = 0; i < second.length; i++) {
+            second[i] = (float) (0.25 * Math.sin(2 * Math.PI * 440 * (i / 2) / 48000));
+        }
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 10; round++) {
+            meter.configure(48000, 2);
+            long start = System.nanoTime();
+            meter.process(second, 0, second.length);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        // The analysis decodes many tracks in the background, so it must be far faster than
+        // playback even on a slow test machine
+        assertTrue(best + " ns per second of audio", best < 100000000);
+    }
+}
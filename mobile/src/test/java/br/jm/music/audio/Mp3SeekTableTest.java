@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scans synthetic MPEG audio files: valid frame headers around payloads that carry the index of
+ * their frame, so a test can tell which frame a reader landed on.
+ */
+public class Mp3SeekTableTest {
+
+    private static final int VERSION_1 = 3;
+    private static final int VERSION_2 = 2;
+    private static final int LAYER_3 = 1;
+    private static final int STEREO = 0;
+    private static final int MONO = 3;
+
+    /**
+     * Builds a file frame by frame and records where each audio frame starts.
+     */
+    private static class Mp3Builder {
+        private final int mVersion;
+        private final int mChannelMode;
+        private final Random mRandom = new Random(42);
+        private byte[] mData = new byte[1 << 16];
+        private int mLength;
+        private int[] mOffsets = new int[256];
+        private int mFrames;
+
+        Mp3Builder(int version, int channelMode) {
+            mVersion = version;
+            mChannelMode = channelMode;
+        }
+
+        private void ensure(int length) {
+            if (mLength + length > mData.length) {
+                mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mLength + length));
+            }
+        }
+
+        int header(int bitrateIndex, boolean padding) {
+            return 0xFFE00000 | mVersion << 19 | LAYER_3 << 17 | 1 << 16 | bitrateIndex << 12
+                    | (padding ? 1 << 9 : 0) | mChannelMode << 6;
+        }
+
+        private int putFrame(int bitrateIndex, boolean padding) {
+            int header = header(bitrateIndex, padding);
+            int length = Mp3FrameScanner.getFrameLength(header);
+            ensure(length);
+            int offset = mLength;
+            ByteBuffer.wrap(mData, offset, length).putInt(header);
+            mLength += length;
+            return offset;
+        }
+
+        Mp3Builder id3v2(int size) {
+            ensure(10 + size);
+            byte[] tag = {'I', 'D', '3', 4, 0, 0, (byte) ((size >> 21) & 0x7F),
+                    (byte) ((size >> 14) & 0x7F), (byte) ((size >> 7) & 0x7F),
+                    (byte) (size & 0x7F)};
+            System.arraycopy(tag, 0, mData, mLength, tag.length);
+            // Sync bytes in the tag must not be taken for frames
+            for (int i = 0; i < size; i++) {
+                mData[mLength + 10 + i] = (byte) 0xFF;
+            }
+            mLength += 10 + size;
+            return this;
+        }
+
+        Mp3Builder xing() {
+            int offset = putFrame(9, false);
+            int sideInfo = mVersion == VERSION_1 ? (mChannelMode == MONO ? 17 : 32)
+                    : (mChannelMode == MONO ? 9 : 17);
+            mData[offset + 4 + sideInfo] = 'X';
+            mData[offset + 5 + sideInfo] = 'i';
+            mData[offset + 6 + sideInfo] = 'n';
+            mData[offset + 7 + sideInfo] = 'g';
+            return this;
+        }
+
+        /**
+         * Adds audio frames of varying bitrates, like a VBR file.
+         */
+        Mp3Builder frames(int count) {
+            for (int i = 0; i < count; i++) {
+                int offset = putFrame(1 + mRandom.nextInt(14), mRandom.nextBoolean());
+                int index = mFrames;
+                // 7 bits per byte, so the payload never holds a sync byte
+                mData[offset + 4] = (byte) (index & 0x7F);
+                mData[offset + 5] = (byte) ((index >> 7) & 0x7F);
+                mData[offset + 6] = (byte) ((index >> 14) & 0x7F);
+                mData[offset + 7] = (byte) ((index >> 21) & 0x7F);
+                if (mFrames == mOffsets.length) {
+                    mOffsets = Arrays.copyOf(mOffsets, mFrames * 2);
+                }
+                mOffsets[mFrames++] = offset;
+            }
+            return this;
+        }
+
+        Mp3Builder garbage(int length) {
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                // Includes sync bytes whose headers don't hold up
+                mData[mLength++] = i % 7 == 0 ? (byte) 0xFF : (byte) mRandom.nextInt(0xFF);
+            }
+            return this;
+        }
+
+        Mp3Builder id3v1() {
+            ensure(128);
+            mData[mLength] = 'T';
+            mData[mLength + 1] = 'A';
+            mData[mLength + 2] = 'G';
+            mLength += 128;
+            return this;
+        }
+
+        ByteBuffer build() {
+            return ByteBuffer.wrap(Arrays.copyOf(mData, mLength));
+        }
+
+        int getOffset(long frame) {
+            return mOffsets[(int) frame];
+        }
+
+        int getFrameCount() {
+            return mFrames;
+        }
+    }
+
+    private static int readFrameIndex(Mp3FrameReader reader) {
+        ByteBuffer frame = ByteBuffer.allocate(2048);
+        assertTrue(reader.readFrame(frame) > 0);
+        return frame.get(4) | frame.get(5) << 7 | frame.get(6) << 14 | frame.get(7) << 21;
+    }
+
+    @Test
+    public void indexesEveryIntervalOfVbrFile() throws IOException {
+        Mp3Builder builder = new Mp3Builder(VERSION_1, STEREO).id3v2(300).xing()
+                .frames(5000).id3v1();
+        Mp3SeekTable table = Mp3FrameScanner.scan(builder.build(), 1000);
+
+        assertEquals(44100, table.sampleRate);
+        assertEquals(2, table.channelCount);
+        assertEquals(1152, table.samplesPerFrame);
+        // The info frame isn't audio
+        assertEquals(5000, table.frameCount);
+        assertEquals(5000L * 1152 * 1000000 / 44100, table.getDurationUs());
+        // A second is 38.3 frames, entries are never further apart than asked
+        assertEquals(38, table.intervalFrames);
+        assertEquals((5000 + 37) / 38, table.getEntryCount());
+        for (int entry = 0; entry < table.getEntryCount(); entry++) {
+            assertEquals(builder.getOffset(table.getEntryFrame(entry)),
+                    table.getEntryOffset(entry));
+        }
+        assertEquals(builder.build().limit() - 128, table.dataEnd);
+    }
+
+    @Test
+    public void skipsGarbageBetweenFrames() throws IOException {
+        Mp3Builder builder = new Mp3Builder(VERSION_1, MONO).frames(100);
+        for (int i = 0; i < 20; i++) {
+            builder.garbage(1 + i * 13).frames(100);
+        }
+        Mp3SeekTable table = Mp3FrameScanner.scan(builder.build(), 500);
+
+        assertEquals(1, table.channelCount);
+        assertEquals(builder.getFrameCount(), table.frameCount);
+        for (int entry = 0; entry < table.getEntryCount(); entry++) {
+            assertEquals(builder.getOffset(table.getEntryFrame(entry)),
+                    table.getEntryOffset(entry));
+        }
+    }
+
+    @Test
+    public void readsMpeg2Frames() throws IOException {
+        Mp3Builder builder = new Mp3Builder(VERSION_2, STEREO).xing().frames(1000);
+        Mp3SeekTable table = Mp3FrameScanner.scan(builder.build(), 1000);
+
+        assertEquals(22050, table.sampleRate);
+        assertEquals(576, table.samplesPerFrame);
+        assertEquals(1000, table.frameCount);
+        assertEquals(38, table.intervalFrames);
+    }
+
+    @Test
+    public void readerWalksEveryFrame() throws IOException {
+        Mp3Builder builder = new Mp3Builder(VERSION_1, STEREO).id3v2(20).frames(50)
+                .garbage(33).frames(50).id3v1();
+        ByteBuffer buffer = builder.build();
+        Mp3FrameReader reader = new Mp3FrameReader(buffer, Mp3FrameScanner.scan(buffer, 100));
+        for (int frame = 0; frame < 100; frame++) {
+            assertEquals(frame, readFrameIndex(reader));
+            assertEquals(frame * 1152L * 1000000 / 44100, reader.getFrameTimeUs());
+            reader.advance();
+        }
+        assertEquals(-1, reader.readFrame(ByteBuffer.allocate(2048)));
+    }
+
+    @Test
+    public void seeksToFramePlayingAtTime() throws IOException {
+        Mp3Builder builder = new Mp3Builder(VERSION_1, STEREO).xing().frames(20000);
+        ByteBuffer buffer = builder.build();
+        Mp3SeekTable table = Mp3FrameScanner.scan(buffer, 1000);
+        Mp3FrameReader reader = new Mp3FrameReader(buffer, table);
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            long timeUs = (long) (random.nextDouble() * table.getDurationUs());
+            long expected = timeUs * 44100 / (1152 * 1000000L);
+            reader.seekTo(timeUs);
+            // The reader starts a few frames early for the decoder, then reaches the target
+            long preroll = 0;
+            while (reader.getFrameTimeUs() + 1152L * 1000000 / 44100 <= timeUs) {
+                reader.advance();
+                preroll++;
+            }
+            assertTrue(preroll <= 10);
+            assertEquals(expected, readFrameIndex(reader));
+        }
+        reader.seekTo(0);
+        assertEquals(0, readFrameIndex(reader));
+        reader.seekTo(table.getDurationUs() * 2);
+        for (int i = 0; i < 10; i++) {
+            reader.advance();
+        }
+        assertEquals(19999, readFrameIndex(reader));
+    }
+
+    @Test
+    public void roundTripsThroughStream() throws IOException {
+        Mp3Builder builder = new Mp3Builder(VERSION_1, STEREO).frames(3000);
+        Mp3SeekTable table = Mp3FrameScanner.scan(builder.build(), 250);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.write(new DataOutputStream(bytes));
+        Mp3SeekTable copy = Mp3SeekTable.read(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(table.sampleRate, copy.sampleRate);
+        assertEquals(table.channelCount, copy.channelCount);
+        assertEquals(table.samplesPerFrame, copy.samplesPerFrame);
+        assertEquals(table.intervalFrames, copy.intervalFrames);
+        assertEquals(table.frameCount, copy.frameCount);
+        assertEquals(table.dataEnd, copy.dataEnd);
+        assertEquals(table.getEntryCount(), copy.getEntryCount());
+        for (int entry = 0; entry < table.getEntryCount(); entry++) {
+            assertEquals(table.getEntryOffset(entry), copy.getEntryOffset(entry));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDataWithoutFrames() throws IOException {
+        Mp3FrameScanner.scan(new Mp3Builder(VERSION_1, STEREO).garbage(10000).build(), 1000);
+    }
+
+    @Test
+    public void scansLongFileQuickly() throws IOException {
+        // About three hours of audio, like an audiobook
+        Mp3Builder builder = new Mp3Builder(VERSION_1, STEREO).xing().frames(400000);
+        ByteBuffer buffer = builder.build();
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            Mp3SeekTable table = Mp3FrameScanner.scan(buffer, 1000);
+            best = Math.min(best, System.nanoTime() - start);
+            assertEquals(400000, table.frameCount);
+        }
+        assertTrue(best + " ns for " + buffer.limit() + " bytes", best < 1000000000);
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PcmPipelineTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int CHUNK_COUNT = 4;
+    private static final int CHUNK_CAPACITY = 1024;
+
+    private FakeSource mSource;
+    private FakeSink mSink;
+    private RecordingListener mListener;
+    private PcmPipeline mPipeline;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (mPipeline != null) {
+            mPipeline.release();
+            assertTrue(mSource.released.await(5, TimeUnit.SECONDS));
+            assertTrue(mSink.released.await(5, TimeUnit.SECONDS));
+            // So the next test only finds its own threads
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().startsWith("Pcm")) {
+                    thread.join();
+                }
+            }
+        }
+    }
+
+    private void createPipeline(long frames, int sinkLimit) {
+        mSource = new FakeSource(frames);
+        mSink = new FakeSink(sinkLimit);
+        mListener = new RecordingListener();
+        mPipeline = new PcmPipeline(mSource, mSink, mListener, SAMPLE_RATE, CHANNELS,
+                CHUNK_COUNT, CHUNK_CAPACITY);
+    }
+
+    @Test(timeout = 10000)
+    public void playsWholeStreamInOrder() throws Exception {
+        createPipeline(100000, Integer.MAX_VALUE);
+        mPipeline.start(0);
+        mPipeline.play();
+        mListener.ended.await();
+
+        assertEquals(0, mListener.started.getCount());
+        assertNull(mListener.error);
+        mSink.assertContiguousFrom(0, 100000);
+        // The output thread updates the position on its next pass
+        while (mPipeline.getPositionUs() != 100000L * 1000000 / SAMPLE_RATE) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void holdsSamplesUntilPlay() throws Exception {
+        createPipeline(100000, Integer.MAX_VALUE);
+        mPipeline.start(0);
+        Thread.sleep(200);
+
+        assertEquals(0, mSink.getWrittenSamples());
+        // The decoder stops once the ring is full
+        assertTrue(mSource.getReads() <= CHUNK_COUNT);
+
+        mPipeline.play();
+        mListener.ended.await();
+        mSink.assertContiguousFrom(0, 100000);
+    }
+
+    @Test(timeout = 10000)
+    public void seekBeforePlayDropsDecodedChunks() throws Exception {
+        createPipeline(200000, Integer.MAX_VALUE);
+        mPipeline.start(0);
+        // Lets the ring fill with chunks from the start
+        Thread.sleep(100);
+        mPipeline.seekTo(1000000);
+        assertEquals(1000000, mPipeline.getPositionUs());
+
+        mPipeline.play();
+        mListener.ended.await();
+        mSink.assertContiguousFrom(SAMPLE_RATE, 200000);
+    }
+
+    @Test(timeout = 10000)
+    public void seekWhilePlayingRestartsAtTarget() throws Exception {
+        createPipeline(SAMPLE_RATE * 10, 20000);
+        mPipeline.start(0);
+        mPipeline.play();
+        mSink.awaitFull(0);
+
+        // The ring and the sink both hold samples from before the seek now
+        mPipeline.seekTo(2000000);
+        mSink.awaitFull(1);
+        assertTrue(mPipeline.getPositionUs() >= 2000000);
+
+        mSink.setLimit(Integer.MAX_VALUE);
+        mListener.ended.await();
+        assertNull(mListener.error);
+        mSink.assertContiguousFrom(SAMPLE_RATE * 2, SAMPLE_RATE * 10);
+    }
+
+    @Test(timeout = 10000)
+    public void startsAtInitialPosition() throws Exception {
+        createPipeline(SAMPLE_RATE * 2, Integer.MAX_VALUE);
+        mPipeline.start(500000);
+        assertEquals(500000, mPipeline.getPositionUs());
+        mPipeline.play();
+        mListener.ended.await();
+        mSink.assertContiguousFrom(SAMPLE_RATE / 2, SAMPLE_RATE * 2);
+    }
+
+    @Test(timeout = 10000)
+    public void pausedThreadsStopPolling() throws Exception {
+        createPipeline(SAMPLE_RATE * 60, 20000);
+        mPipeline.start(0);
+        mPipeline.play();
+        mSink.awaitFull(0);
+        mPipeline.pause();
+
+        // Both threads end up parked without a timeout
+        Thread decoder = findThread("PcmDecoder");
+        Thread output = findThread("PcmOutput");
+        awaitState(decoder, Thread.State.WAITING);
+        awaitState(output, Thread.State.WAITING);
+        int reads = mSource.getReads();
+        int sinkCalls = mSink.getCalls();
+        Thread.sleep(200);
+        assertEquals(reads, mSource.getReads());
+        assertEquals(sinkCalls, mSink.getCalls());
+        assertFalse(mSink.isPlaying());
+
+        // And wake up for the next request
+        mSink.setLimit(Integer.MAX_VALUE);
+        mPipeline.play();
+        mListener.ended.await();
+        mSink.assertContiguousFrom(0, SAMPLE_RATE * 60);
+    }
+
+    @Test(timeout = 10000)
+    public void appliesProcessor() throws Exception {
+        createPipeline(50000, Integer.MAX_VALUE);
+        mPipeline.setProcessor(new PcmProcessor() {
+            @Override
+            public void configure(int sampleRate, int channelCount) {
+            }
+
+            @Override
+            public void process(float[] data, int offset, int length) {
+                for (int i = offset; i < offset + length; i++) {
+                    data[i] = -data[i];
+                }
+            }
+        });
+        mPipeline.start(0);
+        mPipeline.play();
+        mListener.ended.await();
+        float[] samples = mSink.getSamples();
+        assertEquals(50000 * CHANNELS, samples.length);
+        for (int i = 0; i < samples.length; i++) {
+            assertEquals(-(i / CHANNELS), samples[i], 0f);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void reportsSourceErrors() throws Exception {
+        createPipeline(SAMPLE_RATE * 10, Integer.MAX_VALUE);
+        mSource.failAt = SAMPLE_RATE;
+        mPipeline.start(0);
+        mPipeline.play();
+        assertTrue(mSource.released.await(5, TimeUnit.SECONDS));
+        assertTrue(mListener.error instanceof IOException);
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName()) && thread.isAlive()) {
+                return thread;
+            }
+        }
+        throw new AssertionError("No thread " + name);
+    }
+
+    private static void awaitState(Thread thread, Thread.State state)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (thread.getState() != state) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError(thread.getName() + " is " + thread.getState());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Produces the frame index as the value of every sample.
+     */
+    private static class FakeSource implements PcmPipeline.Source {
+        final CountDownLatch released = new CountDownLatch(1);
+        private final long mFrames;
+        private long mPosition;
+        private volatile int mReads;
+        volatile long failAt = -1;
+
+        FakeSource(long frames) {
+            mFrames = frames;
+        }
+
+        @Override
+        public boolean read(PcmRingBuffer.Chunk chunk) throws IOException {
+            mReads++;
+            if (failAt >= 0 && mPosition >= failAt) {
+                throw new IOException("Decoding failed");
+            }
+            int frames = (int) Math.min(chunk.data.length / CHANNELS, mFrames - mPosition);
+            for (int i = 0; i < frames * CHANNELS; i++) {
+                chunk.data[i] = mPosition + i / CHANNELS;
+            }
+            chunk.length = frames * CHANNELS;
+            chunk.timeUs = mPosition * 1000000 / SAMPLE_RATE;
+            mPosition += frames;
+            return mPosition < mFrames;
+        }
+
+        @Override
+        public void seekTo(long timeUs) {
+            mPosition = Math.min(mFrames, timeUs * SAMPLE_RATE / 1000000);
+        }
+
+        @Override
+        public void release() {
+            released.countDown();
+        }
+
+        int getReads() {
+            return mReads;
+        }
+    }
+
+    /**
+     * Plays samples as soon as they are written, keeping those written since the last flush.
+     * Takes at most a given number of samples between flushes, as if the rest were waiting.
+     */
+    private static class FakeSink implements PcmPipeline.Sink {
+        final CountDownLatch released = new CountDownLatch(1);
+        private float[] mSamples = new float[4096];
+        private int mLength;
+        private int mLimit;
+        private boolean mPlaying;
+        private int mCalls;
+        private int mFlushes;
+
+        FakeSink(int limit) {
+            mLimit = limit;
+        }
+
+        @Override
+        public synchronized int write(float[] data, int offset, int length) {
+            mCalls++;
+            int taken = Math.min(length, mLimit - mLength);
+            if (mLength + taken > mSamples.length) {
+                float[] samples = new float[Math.max(mSamples.length * 2, mLength + taken)];
+                System.arraycopy(mSamples, 0, samples, 0, mLength);
+                mSamples = samples;
+            }
+            System.arraycopy(data, offset, mSamples, mLength, taken);
+            mLength += taken;
+            notifyAll();
+            return taken;
+        }
+
+        @Override
+        public synchronized long getPlayedFrames() {
+            mCalls++;
+            return mLength / CHANNELS;
+        }
+
+        @Override
+        public void setVolume(float volume) {
+        }
+
+        @Override
+        public synchronized void play() {
+            mPlaying = true;
+        }
+
+        @Override
+        public synchronized void pause() {
+            mPlaying = false;
+        }
+
+        @Override
+        public void drain() {
+        }
+
+        @Override
+        public synchronized void flush() {
+            mLength = 0;
+            mPlaying = false;
+            mFlushes++;
+        }
+
+        @Override
+        public void release() {
+            released.countDown();
+        }
+
+        synchronized void setLimit(int limit) {
+            mLimit = limit;
+        }
+
+        synchronized boolean isPlaying() {
+            return mPlaying;
+        }
+
+        synchronized int getCalls() {
+            return mCalls;
+        }
+
+        synchronized int getWrittenSamples() {
+            return mLength;
+        }
+
+        synchronized float[] getSamples() {
+            float[] samples = new float[mLength];
+            System.arraycopy(mSamples, 0, samples, 0, mLength);
+            return samples;
+        }
+
+        synchronized void awaitFull(int flushes) throws InterruptedException {
+            while (mFlushes < flushes || mLength < mLimit) {
+                wait();
+            }
+        }
+
+        void assertContiguousFrom(long firstFrame, long endFrame) {
+            float[] samples = getSamples();
+            assertEquals((endFrame - firstFrame) * CHANNELS, samples.length);
+            for (int i = 0; i < samples.length; i++) {
+                assertEquals("sample " + i, firstFrame + i / CHANNELS, samples[i], 0f);
+            }
+        }
+    }
+
+    private static class RecordingListener implements PcmPipeline.Listener {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch ended = new CountDownLatch(1);
+        volatile Exception error;
+
+        @Override
+        public void onStarted() {
+            started.countDown();
+        }
+
+        @Override
+        public void onEndOfStream() {
+            ended.countDown();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            error = e;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PcmRingBufferTest {
+
+    @Test
+    public void roundsChunkCountUpToPowerOfTwo() {
+        PcmRingBuffer ring = new PcmRingBuffer(5, 64);
+        assertEquals(8, ring.capacity());
+        assertEquals(64, ring.getChunkCapacity());
+        assertEquals(0, ring.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyRing() {
+        new PcmRingBuffer(0, 64);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyChunks() {
+        new PcmRingBuffer(4, 0);
+    }
+
+    @Test
+    public void reportsEmptyAndFull() {
+        PcmRingBuffer ring = new PcmRingBuffer(4, 16);
+        assertNull(ring.acquireRead());
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(ring.acquireWrite());
+            ring.commitWrite();
+        }
+        assertEquals(4, ring.size());
+        assertNull(ring.acquireWrite());
+        assertNotNull(ring.acquireRead());
+        ring.releaseRead();
+        assertEquals(3, ring.size());
+        assertNotNull(ring.acquireWrite());
+    }
+
+    @Test
+    public void wrapsAroundInOrderReusingChunks() {
+        PcmRingBuffer ring = new PcmRingBuffer(4, 16);
+        PcmRingBuffer.Chunk[] slots = new PcmRingBuffer.Chunk[4];
+        long written = 0;
+        long read = 0;
+        // Keeps the ring between one and three chunks deep so the indexes wrap many times
+        for (int round = 0; round < 1000; round++) {
+            int writes = 1 + round % 3;
+            for (int i = 0; i < writes && ring.size() < ring.capacity(); i++) {
+                PcmRingBuffer.Chunk chunk = ring.acquireWrite();
+                int slot = (int) (written % 4);
+                if (slots[slot] == null) {
+                    slots[slot] = chunk;
+                }
+                assertSame(slots[slot], chunk);
+                chunk.timeUs = written++;
+                ring.commitWrite();
+            }
+            while (ring.size() > 1) {
+                PcmRingBuffer.Chunk chunk = ring.acquireRead();
+                assertEquals(read++, chunk.timeUs);
+                ring.releaseRead();
+            }
+        }
+        assertEquals(written - 1, read);
+    }
+
+    @Test(timeout = 30000)
+    public void transfersChunksBetweenThreads() throws Exception {
+        final PcmRingBuffer ring = new PcmRingBuffer(8, 256);
+        final int count = 200000;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    PcmRingBuffer.Chunk chunk;
+                    while ((chunk = ring.acquireWrite()) == null) {
+                        Thread.yield();
+                    }
+                    // Fills the whole chunk so a chunk published before it was written shows
+                    int length = 1 + i % chunk.data.length;
+                    for (int j = 0; j < length; j++) {
+                        chunk.data[j] = i;
+                    }
+                    chunk.length = length;
+                    chunk.timeUs = i;
+                    chunk.endOfStream = i == count - 1;
+                    ring.commitWrite();
+                }
+            }
+        });
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        PcmRingBuffer.Chunk chunk;
+                        while ((chunk = ring.acquireRead()) == null) {
+                            Thread.yield();
+                        }
+                        assertEquals(i, chunk.timeUs);
+                        assertEquals(1 + i % chunk.data.length, chunk.length);
+                        for (int j = 0; j < chunk.length; j++) {
+                            assertEquals(i, chunk.data[j], 0f);
+                        }
+                        assertEquals(i == count - 1, chunk.endOfStream);
+                        ring.releaseRead();
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        producer.start();
+        consumer.start();
+        producer.join();
+        consumer.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(0, ring.size());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SilenceDetectorTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK = 4096;
+
+    /**
+     * Stereo frames of silence, with sound from {@code soundStart} to {@code soundEnd} on the
+     * right channel only: a square wave, which never comes near zero.
+     */
+    private static float[] silenceAround(int frames, int soundStart, int soundEnd) {
+        float[] data = new float[frames * 2];
+        for (int i = soundStart; i < soundEnd; i++) {
+            data[i * 2 + 1] = i % 2 == 0 ? 0.25f : -0.25f;
+        }
+        return data;
+    }
+
+    /**
+     * Feeds stereo frames in blocks of {@code block} frames, the first one playing at
+     * {@code startUs}, the way the pipeline does.
+     */
+    private static void feed(SilenceDetector detector, float[] data, int block, long startUs) {
+        int frames = data.length / 2;
+        for (int start = 0; start < frames; start += block) {
+            int count = Math.min(block, frames - start);
+            detector.process(data, start * 2, count * 2, startUs + getDurationUs(start));
+        }
+    }
+
+    private static long getDurationUs(long frames) {
+        return frames * 1000000L / SAMPLE_RATE;
+    }
+
+    private static SilenceDetector newDetector() {
+        SilenceDetector detector = new SilenceDetector();
+        detector.configure(SAMPLE_RATE, 2);
+        return detector;
+    }
+
+    @Test
+    public void findsSoundAcrossChunkBoundaries() {
+        // Neither end of the sound is on a block boundary, except for some block sizes
+        float[] data = silenceAround(100000, 10000, 50001);
+        for (int block : new int[]{1, 1000, BLOCK, 10000, 100000}) {
+            SilenceDetector detector = newDetector();
+            feed(detector, data, block, 0);
+            assertTrue(detector.hasSound());
+            assertEquals("block " + block, getDurationUs(10000), detector.getFirstSoundUs(), 1);
+            assertEquals("block " + block, getDurationUs(50001), detector.getLastSoundUs(), 1);
+            assertEquals("block " + block, getDurationUs(100000), detector.getEndUs(), 1);
+        }
+    }
+
+    @Test
+    public void soundEndingOnChunkBoundary() {
+        float[] data = silenceAround(BLOCK * 4, BLOCK, BLOCK * 2);
+        SilenceDetector detector = newDetector();
+        feed(detector, data, BLOCK, 0);
+        // Chunk times and times within chunks are both rounded down
+        assertEquals(getDurationUs(BLOCK), detector.getFirstSoundUs(), 1);
+        assertEquals(getDurationUs(BLOCK * 2), detector.getLastSoundUs(), 1);
+    }
+
+    @Test
+    public void thresholdIsMinus60Dbfs() {
+        assertEquals(Math.pow(10, -60 / 20.0), SilenceDetector.THRESHOLD, 1e-6);
+        for (double levelDb : new double[]{-90, -70, -61}) {
+            SilenceDetector detector = newDetector();
+            feed(detector, constant(BLOCK, levelDb), BLOCK, 0);
+            assertFalse(levelDb + " dBFS", detector.hasSound());
+        }
+        for (double levelDb : new double[]{-59, -40, 0}) {
+            SilenceDetector detector = newDetector();
+            feed(detector, constant(BLOCK, levelDb), BLOCK, 0);
+            assertTrue(levelDb + " dBFS", detector.hasSound());
+        }
+        // Either polarity
+        SilenceDetector detector = newDetector();
+        float[] data = new float[BLOCK * 2];
+        data[101] = -0.002f;
+        feed(detector, data, BLOCK, 0);
+        assertEquals(getDurationUs(50), detector.getFirstSoundUs());
+        assertEquals(getDurationUs(51), detector.getLastSoundUs());
+    }
+
+    /**
+     * Stereo frames alternating between plus and minus the given level.
+     */
+    private static float[] constant(int frames, double levelDb) {
+        float level = (float) Math.pow(10, levelDb / 20);
+        float[] data = new float[frames * 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (i / 2) % 2 == 0 ? level : -level;
+        }
+        return data;
+    }
+
+    @Test
+    public void resetStartsOverAfterSeek() {
+        SilenceDetector detector = newDetector();
+        feed(detector, silenceAround(SAMPLE_RATE * 2, 0, SAMPLE_RATE * 2), BLOCK, 0);
+        assertEquals(0, detector.getFirstSoundUs());
+
+        // Seeks to 30 s: a second of silence, a second of sound, a second of silence
+        detector.reset();
+        long seekUs = 30000000;
+        feed(detector, silenceAround(SAMPLE_RATE * 3, SAMPLE_RATE, SAMPLE_RATE * 2), BLOCK,
+                seekUs);
+        assertEquals(seekUs + 1000000, detector.getFirstSoundUs(), 1);
+        assertEquals(seekUs + 2000000, detector.getLastSoundUs(), 1);
+        assertEquals(seekUs + 3000000, detector.getEndUs(), 1);
+    }
+
+    @Test
+    public void allSilentInputHasNoSound() {
+        // Dither and a noise floor below the threshold
+        Random random = new Random(11);
+        float[] data = new float[SAMPLE_RATE * 5 * 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (random.nextFloat() * 2 - 1) * SilenceDetector.THRESHOLD * 0.9f;
+        }
+        SilenceDetector detector = newDetector();
+        feed(detector, data, BLOCK, 0);
+        assertFalse(detector.hasSound());
+        assertEquals(-1, detector.getFirstSoundUs());
+        assertEquals(-1, detector.getLastSoundUs());
+        assertEquals(5000000, detector.getEndUs(), 1);
+    }
+
+    @Test
+    public void monoFramesAreSingleSamples() {
+        SilenceDetector detector = new SilenceDetector();
+        detector.configure(SAMPLE_RATE, 1);
+        float[] data = new float[SAMPLE_RATE];
+        for (int i = 4410; i < 8820; i++) {
+            data[i] = 0.5f;
+        }
+        detector.process(data, 0, data.length, 0);
+        assertEquals(100000, detector.getFirstSoundUs());
+        assertEquals(200000, detector.getLastSoundUs());
+        assertEquals(1000000, detector.getEndUs());
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Reads pictures out of synthetic tags, written byte by byte after the specifications.
+ */
+public class TagPictureReaderTest {
+
+    private static final int TYPE_OTHER = 0;
+    private static final int TYPE_FRONT_COVER = 3;
+    private static final int TYPE_BACK_COVER = 4;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * @return JPEG like bytes, full of the 0xFF bytes unsynchronisation is about
+     */
+    private static byte[] picture(int seed) {
+        Random random = new Random(seed);
+        byte[] picture = new byte[1000 + random.nextInt(1000)];
+        random.nextBytes(picture);
+        for (int i = 0; i < picture.length; i += 7) {
+            picture[i] = (byte) 0xFF;
+            if (i + 1 < picture.length && i % 2 == 0) {
+                picture[i + 1] = (byte) (i % 3 == 0 ? 0x00 : 0xE0);
+            }
+        }
+        picture[0] = (byte) 0xFF;
+        picture[1] = (byte) 0xD8;
+        picture[picture.length - 2] = (byte) 0xFF;
+        picture[picture.length - 1] = (byte) 0xD9;
+        return picture;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String string) {
+        return string.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] int32(long value) {
+        return new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8),
+                (byte) value};
+    }
+
+    private static byte[] syncsafe(int value) {
+        return new byte[]{(byte) ((value >> 21) & 0x7F), (byte) ((value >> 14) & 0x7F),
+                (byte) ((value >> 7) & 0x7F), (byte) (value & 0x7F)};
+    }
+
+    /**
+     * @return the data with a zero inserted after every 0xFF, as ID3 unsynchronisation allows
+     */
+    private static byte[] unsynchronise(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte b : data) {
+            out.write(b);
+            if (b == (byte) 0xFF) {
+                out.write(0);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // ID3v2
+
+    private static byte[] id3(int version, int flags, byte[]... frames) {
+        byte[] body = concat(frames);
+        // With some padding
+        byte[] padded = Arrays.copyOf(body, body.length + 64);
+        return concat(new byte[]{'I', 'D', '3', (byte) version, 0, (byte) flags},
+                syncsafe(padded.length), padded);
+    }
+
+    private static byte[] frame(int version, String id, int flags, byte[] body) {
+        if (version == 2) {
+            return concat(ascii(id), new byte[]{(byte) (body.length >> 16),
+                    (byte) (body.length >> 8), (byte) body.length}, body);
+        }
+        byte[] size = version == 4 ? syncsafe(body.length) : int32(body.length);
+        return concat(ascii(id), size, new byte[]{0, (byte) flags}, body);
+    }
+
+    private static byte[] apic(int type, byte[] picture) {
+        return concat(new byte[]{0}, ascii("image/jpeg"), new byte[]{0, (byte) type},
+                ascii("Cover"), new byte[]{0}, picture);
+    }
+
+    private static byte[] text(String value) {
+        return concat(new byte[]{0}, ascii(value));
+    }
+
+    // FLAC
+
+    private static byte[] flac(byte[]... blocks) {
+        return concat(ascii("fLaC"), concat(blocks), new byte[4096]);
+    }
+
+    private static byte[] flacBlock(int type, boolean last, byte[] body) {
+        return concat(new byte[]{(byte) (type | (last ? 0x80 : 0)), (byte) (body.length >> 16),
+                (byte) (body.length >> 8), (byte) body.length}, body);
+    }
+
+    private static byte[] flacPicture(int type, byte[] picture) {
+        byte[] mime = ascii("image/jpeg");
+        byte[] description = ascii("Cover");
+        return concat(int32(type), int32(mime.length), mime, int32(description.length),
+                description, int32(500), int32(500), int32(24), int32(0),
+                int32(picture.length), picture);
+    }
+
+    // MP4
+
+    private static byte[] atom(String type, byte[]... children) {
+        byte[] body = concat(children);
+        return concat(int32(8 + body.length), ascii(type), body);
+    }
+
+    private static byte[] mp4(byte[] meta) {
+        return concat(atom("ftyp", ascii("M4A "), int32(0), ascii("isomM4A ")),
+                atom("mdat", new byte[100000]),
+                atom("moov", atom("mvhd", new byte[100]), atom("udta", meta)));
+    }
+
+    private static byte[] ilst(byte[] picture) {
+        return atom("ilst",
+                atom("\u00A9nam", atom("data", int32(1), int32(0), ascii("Title"))),
+                atom("covr", atom("data", int32(13), int32(0), picture)));
+    }
+
+    private static byte[] hdlr() {
+        return atom("hdlr", int32(0), ascii("mhlr"), ascii("mdir"), ascii("appl"),
+                new byte[9]);
+    }
+
+    private byte[] read(byte[] data) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return TagPictureReader.read(file);
+    }
+
+    @Test
+    public void readsId3v23Picture() throws IOException {
+        byte[] picture = picture(1);
+        assertArrayEquals(picture, read(id3(3, 0,
+                frame(3, "TIT2", 0, text("Title")),
+                frame(3, "APIC", 0, apic(TYPE_FRONT_COVER, picture)))));
+    }
+
+    @Test
+    public void readsUnsynchronisedId3v23Picture() throws IOException {
+        byte[] picture = picture(2);
+        // The whole tag is unsynchronised, frame sizes count the inserted zeros
+        assertArrayEquals(picture, read(id3(3, 0x80,
+                frame(3, "TIT2", 0, text("Title")),
+                frame(3, "APIC", 0, unsynchronise(apic(TYPE_FRONT_COVER, picture))))));
+    }
+
+    @Test
+    public void readsId3v24PictureWithDataLengthIndicator() throws IOException {
+        byte[] picture = picture(3);
+        byte[] body = apic(TYPE_FRONT_COVER, picture);
+        // Unsynchronisation and data length indicator frame flags, the length isn't
+        // unsynchronised
+        assertArrayEquals(picture, read(id3(4, 0,
+                frame(4, "TIT2", 0, text("Title")),
+                frame(4, "APIC", 0x03, concat(syncsafe(body.length), unsynchronise(body))))));
+    }
+
+    @Test
+    public void readsId3v24GroupedPicture() throws IOException {
+        byte[] picture = picture(4);
+        assertArrayEquals(picture, read(id3(4, 0,
+                frame(4, "APIC", 0x40, concat(new byte[]{7}, apic(TYPE_FRONT_COVER, picture))))));
+    }
+
+    @Test
+    public void readsId3v22Picture() throws IOException {
+        byte[] picture = picture(5);
+        byte[] body = concat(new byte[]{0}, ascii("JPG"), new byte[]{TYPE_FRONT_COVER},
+                ascii("Cover"), new byte[]{0}, picture);
+        assertArrayEquals(picture, read(id3(2, 0,
+                frame(2, "TT2", 0, text("Title")),
+                frame(2, "PIC", 0, body))));
+    }
+
+    @Test
+    public void skipsExtendedHeader() throws IOException {
+        byte[] picture = picture(6);
+        byte[] tag = id3(3, 0x40, concat(int32(6), new byte[6]),
+                frame(3, "APIC", 0, apic(TYPE_FRONT_COVER, picture)));
+        assertArrayEquals(picture, read(tag));
+    }
+
+    @Test
+    public void prefersFrontCover() throws IOException {
+        byte[] other = picture(7);
+        byte[] front = picture(8);
+        assertArrayEquals(front, read(id3(3, 0,
+                frame(3, "APIC", 0, apic(TYPE_OTHER, other)),
+                frame(3, "APIC", 0, apic(TYPE_FRONT_COVER, front)))));
+    }
+
+    @Test
+    public void fallsBackToFirstPicture() throws IOException {
+        byte[] other = picture(9);
+        byte[] back = picture(10);
+        assertArrayEquals(other, read(id3(3, 0,
+                frame(3, "APIC", 0, apic(TYPE_OTHER, other)),
+                frame(3, "APIC", 0, apic(TYPE_BACK_COVER, back)))));
+    }
+
+    @Test
+    public void skipsCompressedAndMalformedFrames() throws IOException {
+        byte[] picture = picture(11);
+        assertArrayEquals(picture, read(id3(4, 0,
+                // Compressed
+                frame(4, "APIC", 0x08, apic(TYPE_FRONT_COVER, picture(12))),
+                // Shorter than its data length indicator
+                frame(4, "APIC", 0x01, new byte[]{0, 0}),
+                frame(4, "APIC", 0, new byte[]{0}),
+                frame(4, "APIC", 0, apic(TYPE_FRONT_COVER, picture)))));
+    }
+
+    @Test
+    public void skipsFrameWithUnterminatedMimeType() throws IOException {
+        byte[] picture = picture(24);
+        assertArrayEquals(picture, read(id3(3, 0,
+                frame(3, "APIC", 0, concat(new byte[]{0}, ascii("image/jpeg"))),
+                frame(3, "APIC", 0, apic(TYPE_FRONT_COVER, picture)))));
+    }
+
+    @Test
+    public void readsFlacPicture() throws IOException {
+        byte[] back = picture(13);
+        byte[] front = picture(14);
+        assertArrayEquals(front, read(flac(
+                flacBlock(0, false, new byte[34]),
+                flacBlock(4, false, new byte[40]),
+                flacBlock(6, false, flacPicture(TYPE_BACK_COVER, back)),
+                flacBlock(6, true, flacPicture(TYPE_FRONT_COVER, front)))));
+        assertArrayEquals(back, read(flac(
+                flacBlock(0, false, new byte[34]),
+                flacBlock(6, true, flacPicture(TYPE_BACK_COVER, back)))));
+    }
+
+    @Test
+    public void skipsMalformedFlacPicture() throws IOException {
+        byte[] front = picture(15);
+        byte[] badMime = flacPicture(TYPE_FRONT_COVER, picture(16));
+        System.arraycopy(int32(0x7FFFFFF0), 0, badMime, 4, 4);
+        byte[] badData = flacPicture(TYPE_FRONT_COVER, picture(17));
+        System.arraycopy(int32(-5), 0, badData, 4 + 4 + 10 + 4 + 5 + 16, 4);
+        assertArrayEquals(front, read(flac(
+                flacBlock(0, false, new byte[34]),
+                flacBlock(6, false, badMime),
+                flacBlock(6, false, badData),
+                flacBlock(6, false, new byte[3]),
+                flacBlock(6, true, flacPicture(TYPE_FRONT_COVER, front)))));
+    }
+
+    @Test
+    public void readsMp4FullMetaAtom() throws IOException {
+        byte[] picture = picture(18);
+        // Version and flags, then the children
+        assertArrayEquals(picture, read(mp4(atom("meta", int32(0), hdlr(), ilst(picture)))));
+    }
+
+    @Test
+    public void readsQuickTimeMetaAtom() throws IOException {
+        byte[] picture = picture(19);
+        assertArrayEquals(picture, read(mp4(atom("meta", hdlr(), ilst(picture)))));
+    }
+
+    @Test
+    public void mp4WithoutCoverHasNoPicture() throws IOException {
+        assertNull(read(mp4(atom("meta", int32(0), hdlr(), atom("ilst")))));
+        assertNull(read(mp4(atom("meta"))));
+    }
+
+    @Test
+    public void rejectsOversizedMp4Atom() throws IOException {
+        byte[] data = mp4(atom("meta", int32(0), hdlr(), ilst(picture(20))));
+        // A 64 bit size far past the end of the file, in place of the mdat one
+        byte[] large = concat(int32(1), ascii("mdat"), new byte[]{0x7F, -1, -1, -1, -1, -1, -1,
+                -1});
+        int mdat = 8 + 4 + 4 + 8;
+        System.arraycopy(large, 0, data, mdat, large.length);
+        assertNull(read(data));
+    }
+
+    @Test
+    public void truncatedTagsHaveNoPicture() throws IOException {
+        byte[] id3 = id3(3, 0, frame(3, "APIC", 0, apic(TYPE_FRONT_COVER, picture(21))));
+        byte[] flac = flac(flacBlock(0, false, new byte[34]),
+                flacBlock(6, true, flacPicture(TYPE_FRONT_COVER, picture(22))));
+        byte[] mp4 = mp4(atom("meta", int32(0), hdlr(), ilst(picture(23))));
+        byte[][] files = {id3, flac, mp4};
+        // Where the pictures end, before the padding of the ID3 tag and FLAC's audio
+        int[] ends = {id3.length - 64, flac.length - 4096, mp4.length};
+        for (int i = 0; i < files.length; i++) {
+            // Down to the header, and through the picture
+            for (int length : new int[]{0, 7, 8, 12, 40, ends[i] / 2, ends[i] - 1}) {
+                assertNull(read(Arrays.copyOf(files[i], length)));
+            }
+        }
+    }
+
+    @Test
+    public void garbageNeverThrowsRuntimeExceptions() throws IOException {
+        byte[][] magics = {{'I', 'D', '3', 3, 0, 0}, {'I', 'D', '3', 4, 0, 0x40},
+                {'f', 'L', 'a', 'C'}, {0, 0, 0, 16, 'f', 't', 'y', 'p'}};
+        Random random = new Random(23);
+        for (int i = 0; i < 400; i++) {
+            byte[] magic = magics[i % magics.length];
+            byte[] data = new byte[magic.length + random.nextInt(2000)];
+            random.nextBytes(data);
+            System.arraycopy(magic, 0, data, 0, magic.length);
+            try {
+                read(data);
+            } catch (IOException e) {
+                // The file ended where the tag says it doesn't, nothing to read
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package br.jm.music.audio;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeStretcherTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final float[] SPEEDS = {0.5f, 0.75f, 1f, 1.25f, 1.5f, 2f};
+    private static final int BLOCK = 2048;
+
+    /**
+     * Interleaved sines, one frequency per channel.
+     */
+    private static float[] sines(double seconds, double... frequencies) {
+        int channels = frequencies.length;
+        int frames = (int) (seconds * SAMPLE_RATE);
+        float[] data = new float[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            for (int channel = 0; channel < channels; channel++) {
+                data[i * channels + channel] = (float) (0.5
+                        * Math.sin(2 * Math.PI * frequencies[channel] * i / SAMPLE_RATE));
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Runs the whole input through the stretcher, the way the pipeline does, and drains it.
+     */
+    private static float[] stretch(TimeStretcher stretcher, float[] input) {
+        float[] output = new float[input.length * 3];
+        float[] block = new float[BLOCK];
+        int length = 0;
+        int offset = 0;
+        while (offset < input.length) {
+            offset += stretcher.putSamples(input, offset, Math.min(BLOCK, input.length - offset));
+            int count;
+            while ((count = stretcher.getSamples(block, 0, block.length)) > 0) {
+                System.arraycopy(block, 0, output, length, count);
+                length += count;
+            }
+        }
+        while (true) {
+            int count = stretcher.getSamples(block, 0, block.length);
+            if (count > 0) {
+                System.arraycopy(block, 0, output, length, count);
+                length += count;
+            } else if (!stretcher.isDrained()) {
+                stretcher.drain();
+            } else {
+                break;
+            }
+        }
+        return Arrays.copyOf(output, length);
+    }
+
+    /**
+     * @return the frequency of a sine estimated from its zero crossings, ignoring the first and
+     * last quarters of the signal
+     */
+    private static double estimateFrequency(float[] data, int channels, int channel) {
+        int frames = data.length / channels;
+        int from = frames / 4;
+        int to = frames * 3 / 4;
+        int first = -1;
+        int last = -1;
+        int crossings = 0;
+        for (int i = from + 1; i < to; i++) {
+            float previous = data[(i - 1) * channels + channel];
+            float current = data[i * channels + channel];
+            if (previous < 0 && current >= 0) {
+                if (first < 0) {
+                    first = i;
+                } else {
+                    crossings++;
+                }
+                last = i;
+            }
+        }
+        return (double) crossings * SAMPLE_RATE / (last - first);
+    }
+
+    @Test
+    public void outputLengthFollowsSpeed() {
+        float[] input = sines(10, 441.3, 441.3);
+        for (float speed : SPEEDS) {
+            TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2);
+            stretcher.setSpeed(speed);
+            float[] output = stretch(stretcher, input);
+            assertEquals(0, output.length % 2);
+            double expected = input.length / speed;
+            // Within 1%, plus the last sequence which may be cut short
+            assertEquals("speed " + speed, expected, output.length,
+                    expected / 100 + SAMPLE_RATE * 2 * 0.04);
+        }
+    }
+
+    @Test
+    public void keepsPitch() {
+        float[] input = sines(10, 441.3, 441.3);
+        for (float speed : SPEEDS) {
+            TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2);
+            stretcher.setSpeed(speed);
+            float[] output = stretch(stretcher, input);
+            assertEquals("speed " + speed, 441.3, estimateFrequency(output, 2, 0), 441.3 / 100);
+        }
+    }
+
+    @Test
+    public void keepsChannelsApart() {
+        float[] input = sines(5, 330.7, 880.2);
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2);
+        stretcher.setSpeed(1.5f);
+        float[] output = stretch(stretcher, input);
+        assertEquals(330.7, estimateFrequency(output, 2, 0), 330.7 / 100);
+        assertEquals(880.2, estimateFrequency(output, 2, 1), 880.2 / 100);
+    }
+
+    @Test
+    public void stretchesMono() {
+        float[] input = sines(5, 523.1);
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 1);
+        stretcher.setSpeed(0.8f);
+        float[] output = stretch(stretcher, input);
+        assertEquals(input.length / 0.8, output.length, input.length / 100 + SAMPLE_RATE * 0.04);
+        assertEquals(523.1, estimateFrequency(output, 1, 0), 523.1 / 100);
+    }
+
+    @Test
+    public void splicesWithoutClicks() {
+        // A sine can't move by more than its amplitude times 2 pi f / fs between samples
+        double frequency = 441.3;
+        double maxStep = 0.5 * 2 * Math.PI * frequency / SAMPLE_RATE;
+        float[] input = sines(5, frequency, frequency);
+        for (float speed : SPEEDS) {
+            TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2);
+            stretcher.setSpeed(speed);
+            float[] output = stretch(stretcher, input);
+            double worst = 0;
+            for (int i = 2; i < output.length; i += 2) {
+                worst = Math.max(worst, Math.abs(output[i] - output[i - 2]));
+            }
+            assertTrue("speed " + speed + ": step " + worst, worst < maxStep * 1.5);
+        }
+    }
+
+    @Test
+    public void endsWithoutClicks() {
+        // Stream lengths that leave all sorts of input after the last sequence
+        double frequency = 441.3;
+        double maxStep = 0.5 * 2 * Math.PI * frequency / SAMPLE_RATE;
+        float[] sines = sines(2, frequency, frequency);
+        for (int extra = 0; extra < 2000; extra += 97) {
+            float[] input = Arrays.copyOf(sines, sines.length - 4000 + extra * 2);
+            TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2);
+            stretcher.setSpeed(1.5f);
+            float[] output = stretch(stretcher, input);
+            for (int i = 2; i < output.length; i += 2) {
+                assertTrue("length " + input.length + ": step at " + i,
+                        Math.abs(output[i] - output[i - 2]) < maxStep * 1.5);
+            }
+        }
+    }
+
+    @Test
+    public void clampsSpeed() {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2);
+        stretcher.setSpeed(10);
+        assertEquals(TimeStretcher.MAX_SPEED, stretcher.getSpeed(), 0);
+        stretcher.setSpeed(0.1f);
+        assertEquals(TimeStretcher.MIN_SPEED, stretcher.getSpeed(), 0);
+    }
+
+    @Test
+    public void resetDropsPendingSamples() {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2);
+        stretcher.setSpeed(1.5f);
+        float[] input = sines(1, 441.3, 441.3);
+        stretcher.putSamples(input, 0, BLOCK);
+        stretcher.reset();
+        assertTrue(stretcher.isDrained());
+        assertEquals(0, stretcher.getSamples(new float[BLOCK], 0, BLOCK));
+        // And starts over cleanly
+        float[] output = stretch(stretcher, input);
+        assertEquals(input.length / 1.5, output.length, input.length / 100 + SAMPLE_RATE * 0.08);
+    }
+
+    @Test
+    public void stretchingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2);
+        stretcher.setSpeed(1.3f);
+        float[] input = sines(1, 441.3, 441.3);
+        float[] block = new float[BLOCK];
+        // Warms up the code
+        for (int round = 0; round < 20; round++) {
+            pump(stretcher, input, block);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int round = 0; round < 5; round++) {
+            pump(stretcher, input, block);
+        }
+        assertEquals(0, threads.getThreadAllocatedBytes(thread) - before);
+    }
+
+    private static void pump(TimeStretcher stretcher, float[] input, float[] block) {
+        int offset = 0;
+        while (offset < input.length) {
+            offset += stretcher.putSamples(input, offset, Math.min(BLOCK, input.length - offset));
+            while (stretcher.getSamples(block, 0, block.length) > 0) {
+                // Discards the output
+            }
+        }
+    }
+
+    @Test
+    public void runsFasterThanRealTime() {
+        float[] input = sines(10, 441.3, 662.1);
+        for (float speed : new float[]{0.5f, 2f}) {
+            TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2);
+            stretcher.setSpeed(speed);
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++) {
+                stretcher.reset();
+                long start = System.nanoTime();
+                stretch(stretcher, input);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            // Ten seconds of stereo, with room for a slow device and a slow test machine
+            assertTrue("speed " + speed + ": " + best + " ns", best < 1000000000);
+        }
+    }
+}